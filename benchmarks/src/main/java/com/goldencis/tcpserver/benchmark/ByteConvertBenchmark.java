@@ -0,0 +1,59 @@
+package com.goldencis.tcpserver.benchmark;
+
+import com.goldencis.tcpserver.utils.ByteConvert;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * ByteConvert的整数与字节数组转换，分配新数组的版本与写入已有数组的版本对比
+ */
+@State(Scope.Thread)
+@Fork(1)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class ByteConvertBenchmark {
+
+    private long longValue = 0x0123456789abcdefL;
+
+    private int intValue = 0x11ffeedd;
+
+    private byte[] array = new byte[8];
+
+    @Benchmark
+    public byte[] longToBytes() {
+        return ByteConvert.longToBytes(longValue);
+    }
+
+    @Benchmark
+    public long longRoundTrip() {
+        ByteConvert.longToBytes(longValue, array, 0);
+        return ByteConvert.bytesToLong(array, 0);
+    }
+
+    @Benchmark
+    public byte[] intToBytes() {
+        return ByteConvert.intToBytes(intValue);
+    }
+
+    @Benchmark
+    public int intRoundTrip() {
+        ByteConvert.intToBytes(intValue, array, 0);
+        return ByteConvert.bytesToInt(array, 0);
+    }
+
+    @Benchmark
+    public long uintRoundTrip() {
+        ByteConvert.uintToBytes(intValue & 0xffffffffL, array, 0);
+        return ByteConvert.bytesToUint(array, 0);
+    }
+
+    @Benchmark
+    public int ushortRoundTrip() {
+        ByteConvert.ushortToBytes(intValue & 0xffff, array, 0);
+        return ByteConvert.bytesToUshort(array, 0);
+    }
+}
@@ -0,0 +1,136 @@
+package com.goldencis.tcpserver.benchmark;
+
+import com.goldencis.tcpserver.constants.ConstantsDto;
+import com.goldencis.tcpserver.entity.TcpProtocolBody;
+import com.goldencis.tcpserver.utils.TcpFrameDecoder;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.UUID;
+
+/**
+ * 握手协议解析。TcpProtocolUtil.parseTcpProtocol的解析部分全部由TcpFrameDecoder完成，
+ * 这里用内存通道代替socket，排除内核开销；fragment为每次可读的字节数，0表示整帧一次到达。
+ */
+@State(Scope.Thread)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class HandshakeBenchmark {
+
+    @Param({"0", "16", "1"})
+    private int fragment;
+
+    private MemoryChannel jsonChannel;
+
+    private MemoryChannel binaryChannel;
+
+    @Setup
+    public void setUp() {
+        UUID pipe = UUID.randomUUID();
+        String json = "{\"action\":\"" + ConstantsDto.CONNECT_NOVNC_SERVER + "\",\"pipe\":\"" + pipe
+                + "\",\"userguid\":\"" + UUID.randomUUID() + "\"}";
+        jsonChannel = new MemoryChannel(jsonFrame(json), fragment);
+        binaryChannel = new MemoryChannel(binaryFrame(pipe, UUID.randomUUID().toString()), fragment);
+    }
+
+    @Benchmark
+    public TcpProtocolBody json() throws IOException {
+        return decode(jsonChannel);
+    }
+
+    @Benchmark
+    public TcpProtocolBody binary() throws IOException {
+        return decode(binaryChannel);
+    }
+
+    private static TcpProtocolBody decode(MemoryChannel channel) throws IOException {
+        channel.reset();
+        TcpFrameDecoder decoder = new TcpFrameDecoder(4096);
+        TcpProtocolBody body;
+        //与监听服务相同，未接收完整时等待下一次可读
+        while ((body = decoder.decode(channel)) == null) {
+            channel.release();
+        }
+        return body;
+    }
+
+    static byte[] jsonFrame(String json) {
+        byte[] body = json.getBytes(StandardCharsets.UTF_8);
+        ByteBuffer buffer = ByteBuffer.allocate(ConstantsDto.TCP_PROTOCOL_HEAD_SIZE + body.length);
+        buffer.putInt(ConstantsDto.TCP_PROTOCOL_VERIFY);
+        buffer.putInt(ConstantsDto.TCP_PROTOCOL_VERSION);
+        buffer.putInt(buffer.capacity());
+        buffer.put(body);
+        return buffer.array();
+    }
+
+    static byte[] binaryFrame(UUID pipe, String userguid) {
+        byte[] guid = userguid.getBytes(StandardCharsets.UTF_8);
+        ByteBuffer buffer = ByteBuffer.allocate(ConstantsDto.TCP_PROTOCOL_HEAD_SIZE + ConstantsDto.TCP_PROTOCOL_BINARY_BODY_SIZE + guid.length);
+        buffer.putInt(ConstantsDto.TCP_PROTOCOL_VERIFY);
+        buffer.putInt(ConstantsDto.TCP_PROTOCOL_VERSION_BINARY);
+        buffer.putInt(buffer.capacity());
+        buffer.put((byte) ConstantsDto.ACTION_CONNECT_NOVNC_SERVER);
+        buffer.putLong(pipe.getMostSignificantBits());
+        buffer.putLong(pipe.getLeastSignificantBits());
+        buffer.putShort((short) guid.length);
+        buffer.put(guid);
+        return buffer.array();
+    }
+
+    /**
+     * 内存中的可读通道，每次release后放出fragment个字节
+     */
+    static class MemoryChannel implements ReadableByteChannel {
+
+        private final byte[] data;
+
+        private final int fragment;
+
+        private int position;
+
+        private int limit;
+
+        MemoryChannel(byte[] data, int fragment) {
+            this.data = data;
+            this.fragment = fragment;
+        }
+
+        void reset() {
+            position = 0;
+            limit = fragment > 0 ? Math.min(fragment, data.length) : data.length;
+        }
+
+        void release() {
+            limit = Math.min(limit + fragment, data.length);
+        }
+
+        @Override
+        public int read(ByteBuffer dst) {
+            int n = Math.min(dst.remaining(), limit - position);
+            dst.put(data, position, n);
+            position += n;
+            return n;
+        }
+
+        @Override
+        public boolean isOpen() {
+            return true;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+}
@@ -0,0 +1,154 @@
+package com.goldencis.tcpserver.benchmark;
+
+import com.goldencis.tcpserver.buffer.BufferPool;
+import com.goldencis.tcpserver.runner.EventLoop;
+import com.goldencis.tcpserver.runner.PipeRegistry;
+import com.goldencis.tcpserver.runner.RelayContext;
+import com.goldencis.tcpserver.runner.TcpTransferRunner;
+import com.goldencis.tcpserver.timer.HashedTimingWheel;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 输入事件延迟：目标端持续发送大块画面数据时，noVNC端发出一个6字节的指针事件到目标端读完的时间。
+ * priorityBudgetMicros为0时只在每轮select开始时优先处理noVNC端，flood为false时作为空载的对照。
+ */
+@State(Scope.Benchmark)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class InputLatencyBenchmark {
+
+    @Param({"false", "true"})
+    private boolean flood;
+
+    @Param({"0", "1000"})
+    private long priorityBudgetMicros;
+
+    private ServerSocketChannel server;
+
+    private EventLoop eventLoop;
+
+    private HashedTimingWheel timingWheel;
+
+    private TcpTransferRunner runner;
+
+    private SocketChannel noVNC;
+
+    private SocketChannel target;
+
+    private volatile boolean on;
+
+    private Thread flooder;
+
+    private Thread drainer;
+
+    private final ByteBuffer event = ByteBuffer.allocateDirect(6);
+
+    private final ByteBuffer received = ByteBuffer.allocateDirect(6);
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        server = ServerSocketChannel.open();
+        server.bind(new InetSocketAddress("127.0.0.1", 0));
+        eventLoop = new EventLoop("bench-loop", 16, TimeUnit.MICROSECONDS.toNanos(priorityBudgetMicros));
+        eventLoop.start();
+        timingWheel = new HashedTimingWheel("bench-timer", 100, TimeUnit.MILLISECONDS, 512);
+
+        BufferPool bufferPool = new BufferPool(512, 256 * 1024, 1024 * 1024, 64 * 1024 * 1024);
+        RelayContext relayContext = new RelayContext(bufferPool, new PipeRegistry(4), timingWheel);
+
+        noVNC = SocketChannel.open(server.getLocalAddress());
+        target = SocketChannel.open(server.getLocalAddress());
+        SocketChannel source = server.accept();
+        SocketChannel destination = server.accept();
+        source.configureBlocking(false);
+        destination.configureBlocking(false);
+
+        runner = new TcpTransferRunner("bench", eventLoop, relayContext, true, source);
+        runner.setDestinationChannel(destination);
+        runner.setDestinationReady(true);
+        runner.start();
+
+        on = true;
+        if (flood) {
+            //目标端不停发送画面数据，noVNC端不停读取
+            flooder = new Thread(() -> {
+                ByteBuffer update = ByteBuffer.allocateDirect(4 * 1024 * 1024);
+                try {
+                    while (on) {
+                        update.clear();
+                        target.write(update);
+                    }
+                } catch (IOException e) {
+                    //连接关闭
+                }
+            }, "bench-flood");
+            drainer = new Thread(() -> {
+                ByteBuffer buffer = ByteBuffer.allocateDirect(1024 * 1024);
+                try {
+                    while (noVNC.read(buffer) >= 0) {
+                        buffer.clear();
+                    }
+                } catch (IOException e) {
+                    //连接关闭
+                }
+            }, "bench-drain");
+            flooder.start();
+            drainer.start();
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        on = false;
+        runner.close();
+        noVNC.close();
+        target.close();
+        if (flood) {
+            flooder.join();
+            drainer.join();
+        }
+        eventLoop.shutdown();
+        timingWheel.stop();
+        server.close();
+    }
+
+    @Benchmark
+    public int pointerEvent() throws IOException {
+        event.clear();
+        //RFB PointerEvent
+        event.put((byte) 5).put((byte) 0).putShort((short) 100).putShort((short) 200);
+        event.flip();
+        while (event.hasRemaining()) {
+            noVNC.write(event);
+        }
+        received.clear();
+        while (received.hasRemaining()) {
+            if (target.read(received) < 0) {
+                throw new IOException("转发已关闭");
+            }
+        }
+        return received.position();
+    }
+}
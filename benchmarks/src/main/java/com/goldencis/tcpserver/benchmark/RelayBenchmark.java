@@ -0,0 +1,117 @@
+package com.goldencis.tcpserver.benchmark;
+
+import com.goldencis.tcpserver.buffer.BufferPool;
+import com.goldencis.tcpserver.runner.EventLoop;
+import com.goldencis.tcpserver.runner.PipeRegistry;
+import com.goldencis.tcpserver.runner.RelayContext;
+import com.goldencis.tcpserver.runner.TcpTransferRunner;
+import com.goldencis.tcpserver.timer.HashedTimingWheel;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 转发吞吐：noVNC端写入一条消息，经TcpTransferRunner转发后在目标端读完。
+ * 使用本地回环连接，每次操作为一条消息的完整转发，bytes计数器给出每秒转发字节数。
+ */
+@State(Scope.Benchmark)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class RelayBenchmark {
+
+    @Param({"64", "1024", "16384", "262144"})
+    private int messageSize;
+
+    private ServerSocketChannel server;
+
+    private EventLoop eventLoop;
+
+    private HashedTimingWheel timingWheel;
+
+    private TcpTransferRunner runner;
+
+    private SocketChannel noVNC;
+
+    private SocketChannel target;
+
+    private ByteBuffer message;
+
+    private ByteBuffer received;
+
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    @State(Scope.Thread)
+    public static class Bytes {
+
+        //转发的字节数，按每秒速率输出
+        public long bytes;
+    }
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        server = ServerSocketChannel.open();
+        server.bind(new InetSocketAddress("127.0.0.1", 0));
+        eventLoop = new EventLoop("bench-loop", 16);
+        eventLoop.start();
+        timingWheel = new HashedTimingWheel("bench-timer", 100, TimeUnit.MILLISECONDS, 512);
+
+        BufferPool bufferPool = new BufferPool(512, 256 * 1024, 1024 * 1024, 64 * 1024 * 1024);
+        RelayContext relayContext = new RelayContext(bufferPool, new PipeRegistry(4), timingWheel);
+
+        noVNC = SocketChannel.open(server.getLocalAddress());
+        target = SocketChannel.open(server.getLocalAddress());
+        SocketChannel source = server.accept();
+        SocketChannel destination = server.accept();
+        source.configureBlocking(false);
+        destination.configureBlocking(false);
+
+        runner = new TcpTransferRunner("bench", eventLoop, relayContext, true, source);
+        runner.setDestinationChannel(destination);
+        runner.setDestinationReady(true);
+        runner.start();
+
+        message = ByteBuffer.allocateDirect(messageSize);
+        received = ByteBuffer.allocateDirect(messageSize);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        runner.close();
+        noVNC.close();
+        target.close();
+        eventLoop.shutdown();
+        timingWheel.stop();
+        server.close();
+    }
+
+    @Benchmark
+    public int relay(Bytes counter) throws IOException {
+        message.clear();
+        while (message.hasRemaining()) {
+            noVNC.write(message);
+        }
+        received.clear();
+        while (received.hasRemaining()) {
+            if (target.read(received) < 0) {
+                throw new IOException("转发已关闭");
+            }
+        }
+        counter.bytes += messageSize;
+        return received.position();
+    }
+}
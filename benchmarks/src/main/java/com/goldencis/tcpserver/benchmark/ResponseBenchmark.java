@@ -0,0 +1,55 @@
+package com.goldencis.tcpserver.benchmark;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.goldencis.tcpserver.constants.ConstantsDto;
+import com.goldencis.tcpserver.entity.TcpProtocolBody;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.ByteBuffer;
+import java.util.UUID;
+
+/**
+ * 握手成功响应的编码，json版本与二进制版本对比
+ */
+@State(Scope.Thread)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class ResponseBenchmark {
+
+    private ByteBuffer buffer = ByteBuffer.allocate(1024);
+
+    private TcpProtocolBody jsonRequest;
+
+    private TcpProtocolBody binaryRequest;
+
+    @Setup
+    public void setUp() {
+        UUID pipe = UUID.randomUUID();
+        jsonRequest = new TcpProtocolBody(ConstantsDto.CONNECT_VNC_CLIENT, pipe.toString());
+
+        ByteBuffer frame = ByteBuffer.wrap(HandshakeBenchmark.binaryFrame(pipe, ""));
+        frame.position(ConstantsDto.TCP_PROTOCOL_HEAD_SIZE);
+        binaryRequest = TcpProtocolBody.decode(frame);
+    }
+
+    @Benchmark
+    public int json() throws JsonProcessingException {
+        buffer.clear();
+        TcpProtocolBody.response(ConstantsDto.CONNECT_VNC_SUCCESS, jsonRequest, buffer);
+        return buffer.position();
+    }
+
+    @Benchmark
+    public int binary() throws JsonProcessingException {
+        buffer.clear();
+        TcpProtocolBody.response(ConstantsDto.CONNECT_VNC_SUCCESS, binaryRequest, buffer);
+        return buffer.position();
+    }
+}
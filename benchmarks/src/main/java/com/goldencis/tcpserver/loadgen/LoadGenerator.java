@@ -0,0 +1,331 @@
+package com.goldencis.tcpserver.loadgen;
+
+import com.goldencis.tcpserver.TcpServerApplication;
+import com.goldencis.tcpserver.record.SegmentWriter;
+import com.goldencis.tcpserver.record.SessionReplay;
+import org.HdrHistogram.Histogram;
+import org.HdrHistogram.Recorder;
+import org.json.JSONObject;
+import org.springframework.boot.SpringApplication;
+import org.springframework.context.ConfigurableApplicationContext;
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.JedisPubSub;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 端到端压测工具，驱动真实的tcp-server：
+ * 模拟的noVNC端连接noVNC端口并握手，模拟的目标端订阅redis通知，收到通知后回连目标端口，
+ * 之后按RFB的请求-应答节奏传输画面更新。
+ * 输出会话建立延迟分位数、稳定阶段的转发字节数、每GB内存承载的会话数和每Gbit转发消耗的cpu时间。
+ *
+ * 用法：java -cp target/benchmarks.jar com.goldencis.tcpserver.loadgen.LoadGenerator [--参数=值 ...]
+ *   --host=127.0.0.1 --novnc-port=8888 --target-port=9999  被测服务地址
+ *   --sessions=1000 --ramp-seconds=10 --duration-seconds=60  会话数、建立会话的时长、稳定阶段时长
+ *   --update-size=16384 --updates-per-second=0              每个画面更新的字节数，每会话每秒更新数(0不限)
+ *   --redis=host:port                                        使用外部redis，默认在--mini-redis-port(30019)启动进程内替身
+ *   --embedded=false --engine=nio                            在本进程内启动服务，便于直接测量
+ *   --server-pid=pid                                         外部服务的进程号，用于读取内存和cpu
+ *   --replay-dir=record --replay-speed=1                     回放录制目录中的会话代替合成的画面更新，倍速0为最快速度
+ */
+public class LoadGenerator {
+
+    //模拟目标端的userguid前缀，订阅该前缀的所有频道
+    private static final String USERGUID_PREFIX = "loadgen-";
+
+    private static final int THREAD_STACK_SIZE = 256 * 1024;
+
+    private final Map<String, String> options;
+
+    private final String host;
+
+    private final int noVNCPort;
+
+    private final int targetPort;
+
+    private final int updateSize;
+
+    private final long updateIntervalNanos;
+
+    //录制目录，为空时使用合成的画面更新
+    private final Path replayDir;
+
+    private final double replaySpeed;
+
+    //录制的管道，各会话轮流回放
+    private final List<String> recordings = new ArrayList<>();
+
+    private final Map<String, SyntheticSession> sessions = new ConcurrentHashMap<>();
+
+    //会话建立延迟，从noVNC端连接成功到收到目标端的RFB版本
+    private final Recorder setupLatency = new Recorder(TimeUnit.SECONDS.toNanos(60), 3);
+
+    private final LongAdder established = new LongAdder();
+
+    private final LongAdder failed = new LongAdder();
+
+    private final LongAdder upstream = new LongAdder();
+
+    private final LongAdder downstream = new LongAdder();
+
+    private volatile boolean running = true;
+
+    public LoadGenerator(Map<String, String> options) {
+        this.options = options;
+        this.host = this.option("host", "127.0.0.1");
+        this.noVNCPort = Integer.parseInt(this.option("novnc-port", "8888"));
+        this.targetPort = Integer.parseInt(this.option("target-port", "9999"));
+        this.updateSize = Integer.parseInt(this.option("update-size", "16384"));
+        int updatesPerSecond = Integer.parseInt(this.option("updates-per-second", "0"));
+        this.updateIntervalNanos = updatesPerSecond > 0 ? TimeUnit.SECONDS.toNanos(1) / updatesPerSecond : 0;
+        this.replayDir = options.containsKey("replay-dir") ? Paths.get(options.get("replay-dir")) : null;
+        this.replaySpeed = Double.parseDouble(this.option("replay-speed", "1"));
+    }
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = new HashMap<>();
+        for (String arg : args) {
+            if (!arg.startsWith("--") || !arg.contains("=")) {
+                throw new IllegalArgumentException("参数格式为--名称=值: " + arg);
+            }
+            options.put(arg.substring(2, arg.indexOf('=')), arg.substring(arg.indexOf('=') + 1));
+        }
+        new LoadGenerator(options).run();
+        System.exit(0);
+    }
+
+    public void run() throws Exception {
+        int sessionCount = Integer.parseInt(this.option("sessions", "1000"));
+        long rampNanos = TimeUnit.SECONDS.toNanos(Long.parseLong(this.option("ramp-seconds", "10")));
+        long durationSeconds = Long.parseLong(this.option("duration-seconds", "60"));
+        if (replayDir != null) {
+            this.loadRecordings();
+        }
+
+        //redis：外部服务或进程内替身
+        String redisHost = "127.0.0.1";
+        int redisPort;
+        MiniRedis miniRedis = null;
+        if (options.containsKey("redis")) {
+            String[] address = options.get("redis").split(":");
+            redisHost = address[0];
+            redisPort = Integer.parseInt(address[1]);
+        } else {
+            miniRedis = new MiniRedis(Integer.parseInt(this.option("mini-redis-port", "30019")));
+            redisPort = miniRedis.getPort();
+        }
+
+        //被测进程
+        ConfigurableApplicationContext context = null;
+        long pid = Long.parseLong(this.option("server-pid", "0"));
+        if (Boolean.parseBoolean(this.option("embedded", "false"))) {
+            context = SpringApplication.run(TcpServerApplication.class,
+                    "--server.port=0",
+                    "--spring.redis.host=" + redisHost,
+                    "--spring.redis.port=" + redisPort,
+                    "--server.noVNC.port=" + noVNCPort,
+                    "--server.VNCtarget.port=" + targetPort,
+                    "--relay.engine=" + this.option("engine", "nio"));
+            pid = ProcessStats.currentPid();
+            System.out.println("内嵌服务已启动，内存和cpu统计包含压测工具自身");
+        }
+        ProcessStats server = pid > 0 ? new ProcessStats(pid) : null;
+
+        //模拟目标端订阅通知
+        this.startAgents(redisHost, redisPort);
+
+        long rssBase = server != null ? server.rssBytes() : -1;
+        long start = System.nanoTime();
+        for (int i = 0; i < sessionCount; i++) {
+            String recording = recordings.isEmpty() ? null : recordings.get(i % recordings.size());
+            SyntheticSession session = new SyntheticSession(this, UUID.randomUUID().toString(), USERGUID_PREFIX + i, recording);
+            sessions.put(session.pipe, session);
+            this.startThread(session::runClient, "client-" + i);
+
+            //匀速建立会话
+            long due = start + rampNanos * (i + 1) / sessionCount;
+            long sleep = due - System.nanoTime();
+            if (sleep > 0) {
+                Thread.sleep(sleep / 1000000, (int) (sleep % 1000000));
+            }
+            if (i > 0 && i % 1000 == 0) {
+                this.progress(start);
+            }
+        }
+        this.progress(start);
+
+        //稳定阶段
+        long steadyStart = System.nanoTime();
+        long bytesStart = upstream.sum() + downstream.sum();
+        double cpuStart = server != null ? server.cpuSeconds() : -1;
+        Histogram latency = setupLatency.getIntervalHistogram();
+        for (long s = 0; s < durationSeconds; s += 5) {
+            Thread.sleep(TimeUnit.SECONDS.toMillis(Math.min(5, durationSeconds - s)));
+            this.progress(start);
+        }
+        double steadySeconds = (System.nanoTime() - steadyStart) / 1e9;
+        long steadyBytes = upstream.sum() + downstream.sum() - bytesStart;
+        double cpuEnd = server != null ? server.cpuSeconds() : -1;
+        long rssEnd = server != null ? server.rssBytes() : -1;
+        latency.add(setupLatency.getIntervalHistogram());
+
+        running = false;
+        for (SyntheticSession session : sessions.values()) {
+            session.close();
+        }
+
+        this.report(latency, steadySeconds, steadyBytes, rssBase, rssEnd, cpuStart, cpuEnd);
+
+        if (context != null) {
+            context.close();
+        }
+        if (miniRedis != null) {
+            miniRedis.close();
+        }
+    }
+
+    private void startAgents(String redisHost, int redisPort) throws InterruptedException {
+        JedisPubSub pubSub = new JedisPubSub() {
+            @Override
+            public void onPMessage(String pattern, String channel, String message) {
+                //通知内容：{"message":...,"content":{"action":...,"pipe":...}}
+                String pipe = new JSONObject(message).getJSONObject("content").getString("pipe");
+                SyntheticSession session = sessions.get(pipe);
+                if (session != null) {
+                    startThread(session::runTarget, "target-" + session.userguid);
+                }
+            }
+        };
+        Thread agents = new Thread(() -> {
+            try (Jedis jedis = new Jedis(redisHost, redisPort, 0)) {
+                jedis.psubscribe(pubSub, USERGUID_PREFIX + "*");
+            } catch (RuntimeException e) {
+                if (running) {
+                    e.printStackTrace();
+                }
+            }
+        }, "agents");
+        agents.setDaemon(true);
+        agents.start();
+        //等待订阅生效
+        while (!pubSub.isSubscribed()) {
+            Thread.sleep(10);
+        }
+    }
+
+    /**
+     * 录制目录中的全部管道
+     */
+    private void loadRecordings() throws IOException {
+        Path indexDir = replayDir.resolve(SegmentWriter.INDEX_DIR);
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(indexDir, "*" + SegmentWriter.INDEX_SUFFIX)) {
+            for (Path path : stream) {
+                String name = path.getFileName().toString();
+                recordings.add(name.substring(0, name.length() - SegmentWriter.INDEX_SUFFIX.length()));
+            }
+        }
+        if (recordings.isEmpty()) {
+            throw new IllegalArgumentException("录制目录中没有会话: " + replayDir);
+        }
+        System.out.println("回放 " + recordings.size() + " 个录制的管道，倍速 " + replaySpeed);
+    }
+
+    SessionReplay openReplay(String recording) throws IOException {
+        return SessionReplay.open(replayDir, recording);
+    }
+
+    void startThread(Runnable task, String name) {
+        Thread thread = new Thread(null, task, name, THREAD_STACK_SIZE);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    private void progress(long start) {
+        System.out.printf("[%5.1fs] 已建立 %d, 失败 %d, 累计转发 %.1f MB%n",
+                (System.nanoTime() - start) / 1e9, established.sum(), failed.sum(),
+                (upstream.sum() + downstream.sum()) / 1e6);
+    }
+
+    private void report(Histogram latency, double steadySeconds, long steadyBytes,
+                        long rssBase, long rssEnd, double cpuStart, double cpuEnd) {
+        System.out.println();
+        System.out.println("会话: 建立 " + established.sum() + ", 失败 " + failed.sum());
+        System.out.printf("会话建立延迟(ms): p50 %.2f, p90 %.2f, p99 %.2f, p99.9 %.2f, max %.2f%n",
+                latency.getValueAtPercentile(50) / 1e6, latency.getValueAtPercentile(90) / 1e6,
+                latency.getValueAtPercentile(99) / 1e6, latency.getValueAtPercentile(99.9) / 1e6,
+                latency.getMaxValue() / 1e6);
+        double bytesPerSecond = steadyBytes / steadySeconds;
+        System.out.printf("稳定阶段转发: %.1f MB/s (%.3f Gbit/s)%n", bytesPerSecond / 1e6, bytesPerSecond * 8 / 1e9);
+        if (rssEnd > 0) {
+            double gb = (rssEnd - rssBase) / (1024.0 * 1024 * 1024);
+            System.out.printf("常驻内存: %.1f MB -> %.1f MB, 每GB会话数 %.0f%n",
+                    rssBase / 1048576.0, rssEnd / 1048576.0, gb > 0 ? established.sum() / gb : Double.NaN);
+        }
+        if (cpuEnd >= 0 && steadyBytes > 0) {
+            double gbit = steadyBytes * 8 / 1e9;
+            System.out.printf("每Gbit转发的cpu时间: %.3f s%n", (cpuEnd - cpuStart) / gbit);
+        }
+    }
+
+    void sessionEstablished(SyntheticSession session, long nanos) {
+        established.increment();
+        setupLatency.recordValue(Math.min(nanos, TimeUnit.SECONDS.toNanos(60)));
+    }
+
+    void sessionFailed(SyntheticSession session, Exception e) {
+        failed.increment();
+        sessions.remove(session.pipe);
+    }
+
+    void addUpstream(long bytes) {
+        upstream.add(bytes);
+    }
+
+    void addDownstream(long bytes) {
+        downstream.add(bytes);
+    }
+
+    boolean isRunning() {
+        return running;
+    }
+
+    String getHost() {
+        return host;
+    }
+
+    int getNoVNCPort() {
+        return noVNCPort;
+    }
+
+    int getTargetPort() {
+        return targetPort;
+    }
+
+    int getUpdateSize() {
+        return updateSize;
+    }
+
+    long getUpdateIntervalNanos() {
+        return updateIntervalNanos;
+    }
+
+    double getReplaySpeed() {
+        return replaySpeed;
+    }
+
+    private String option(String name, String defaultValue) {
+        return options.getOrDefault(name, defaultValue);
+    }
+}
@@ -0,0 +1,233 @@
+package com.goldencis.tcpserver.loadgen;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * 进程内的redis替身，只实现压测需要的PING、PUBLISH、SUBSCRIBE、PSUBSCRIBE(仅支持前缀*)，
+ * SELECT、AUTH、CLIENT直接返回OK。每个连接一个线程，连接数很少(服务端通知连接和模拟客户端的订阅连接)。
+ */
+public class MiniRedis implements Runnable {
+
+    private final ServerSocket server;
+
+    private final Set<Connection> connections = ConcurrentHashMap.newKeySet();
+
+    public MiniRedis(int port) throws IOException {
+        server = new ServerSocket();
+        server.setReuseAddress(true);
+        server.bind(new InetSocketAddress(port));
+        Thread thread = new Thread(this, "mini-redis");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    public int getPort() {
+        return server.getLocalPort();
+    }
+
+    @Override
+    public void run() {
+        try {
+            while (true) {
+                Connection connection = new Connection(server.accept());
+                connections.add(connection);
+                Thread thread = new Thread(connection, "mini-redis-conn");
+                thread.setDaemon(true);
+                thread.start();
+            }
+        } catch (IOException e) {
+            //已关闭
+        }
+    }
+
+    /**
+     * 发布消息
+     * @return 收到消息的订阅连接数
+     */
+    private int publish(String channel, String message) throws IOException {
+        int receivers = 0;
+        for (Connection connection : connections) {
+            if (connection.deliver(channel, message)) {
+                receivers++;
+            }
+        }
+        return receivers;
+    }
+
+    public void close() throws IOException {
+        server.close();
+        for (Connection connection : connections) {
+            connection.socket.close();
+        }
+    }
+
+    private class Connection implements Runnable {
+
+        private final Socket socket;
+
+        private final InputStream in;
+
+        private final OutputStream out;
+
+        private final Set<String> channels = ConcurrentHashMap.newKeySet();
+
+        //PSUBSCRIBE的前缀
+        private final Set<String> prefixes = ConcurrentHashMap.newKeySet();
+
+        Connection(Socket socket) throws IOException {
+            this.socket = socket;
+            socket.setTcpNoDelay(true);
+            this.in = new BufferedInputStream(socket.getInputStream());
+            this.out = new BufferedOutputStream(socket.getOutputStream());
+        }
+
+        @Override
+        public void run() {
+            try (Socket s = socket) {
+                List<String> command;
+                while ((command = readCommand(in)) != null) {
+                    this.execute(command);
+                    //pipeline中的多条命令处理完再flush
+                    if (in.available() == 0) {
+                        synchronized (this) {
+                            out.flush();
+                        }
+                    }
+                }
+            } catch (IOException e) {
+                //连接关闭
+            } finally {
+                connections.remove(this);
+            }
+        }
+
+        private void execute(List<String> command) throws IOException {
+            String name = command.get(0).toUpperCase(Locale.ROOT);
+            switch (name) {
+                case "PING":
+                    this.write("+PONG\r\n");
+                    break;
+                case "PUBLISH":
+                    int receivers = publish(command.get(1), command.get(2));
+                    this.write(":" + receivers + "\r\n");
+                    break;
+                case "SUBSCRIBE":
+                case "PSUBSCRIBE":
+                    for (int i = 1; i < command.size(); i++) {
+                        String channel = command.get(i);
+                        if ("PSUBSCRIBE".equals(name)) {
+                            prefixes.add(channel.endsWith("*") ? channel.substring(0, channel.length() - 1) : channel);
+                        } else {
+                            channels.add(channel);
+                        }
+                        this.write("*3\r\n" + bulk(name.toLowerCase(Locale.ROOT)) + bulk(channel)
+                                + ":" + (channels.size() + prefixes.size()) + "\r\n");
+                    }
+                    break;
+                case "SELECT":
+                case "AUTH":
+                case "CLIENT":
+                    this.write("+OK\r\n");
+                    break;
+                case "QUIT":
+                    this.write("+OK\r\n");
+                    socket.close();
+                    break;
+                default:
+                    this.write("-ERR unknown command '" + command.get(0) + "'\r\n");
+            }
+        }
+
+        /**
+         * 向本连接推送订阅的消息
+         * @return 本连接订阅了该频道返回true
+         */
+        boolean deliver(String channel, String message) throws IOException {
+            if (channels.contains(channel)) {
+                synchronized (this) {
+                    this.write("*3\r\n" + bulk("message") + bulk(channel) + bulk(message));
+                    out.flush();
+                }
+                return true;
+            }
+            for (String prefix : prefixes) {
+                if (channel.startsWith(prefix)) {
+                    synchronized (this) {
+                        this.write("*4\r\n" + bulk("pmessage") + bulk(prefix + "*") + bulk(channel) + bulk(message));
+                        out.flush();
+                    }
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        private synchronized void write(String reply) throws IOException {
+            out.write(reply.getBytes(StandardCharsets.UTF_8));
+        }
+    }
+
+    private static String bulk(String value) {
+        return "$" + value.getBytes(StandardCharsets.UTF_8).length + "\r\n" + value + "\r\n";
+    }
+
+    private static List<String> readCommand(InputStream in) throws IOException {
+        String line = readLine(in);
+        if (line == null) {
+            return null;
+        }
+        if (line.charAt(0) != '*') {
+            //inline命令
+            List<String> args = new ArrayList<>();
+            for (String arg : line.trim().split("\\s+")) {
+                args.add(arg);
+            }
+            return args;
+        }
+        int count = Integer.parseInt(line.substring(1));
+        List<String> args = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            String header = readLine(in);
+            if (header == null) {
+                return null;
+            }
+            int length = Integer.parseInt(header.substring(1));
+            byte[] bytes = new byte[length + 2];
+            int read = 0;
+            while (read < bytes.length) {
+                int n = in.read(bytes, read, bytes.length - read);
+                if (n < 0) {
+                    return null;
+                }
+                read += n;
+            }
+            args.add(new String(bytes, 0, length, StandardCharsets.UTF_8));
+        }
+        return args;
+    }
+
+    private static String readLine(InputStream in) throws IOException {
+        StringBuilder line = new StringBuilder();
+        int b;
+        while ((b = in.read()) >= 0) {
+            if (b == '\n') {
+                return line.substring(0, line.length() - 1);
+            }
+            line.append((char) b);
+        }
+        return null;
+    }
+}
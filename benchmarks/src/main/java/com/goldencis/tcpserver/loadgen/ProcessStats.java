@@ -0,0 +1,60 @@
+package com.goldencis.tcpserver.loadgen;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.List;
+
+/**
+ * 从/proc读取被测进程的常驻内存和cpu时间，仅支持linux
+ */
+public class ProcessStats {
+
+    //内核时钟频率，绝大多数linux为100
+    private static final double CLOCK_TICKS = 100.0;
+
+    private final long pid;
+
+    public ProcessStats(long pid) {
+        this.pid = pid;
+    }
+
+    /**
+     * 常驻内存，字节；无法读取时返回-1
+     */
+    public long rssBytes() {
+        try {
+            List<String> lines = Files.readAllLines(Paths.get("/proc", String.valueOf(pid), "status"), StandardCharsets.UTF_8);
+            for (String line : lines) {
+                if (line.startsWith("VmRSS:")) {
+                    String[] parts = line.split("\\s+");
+                    return Long.parseLong(parts[1]) * 1024;
+                }
+            }
+        } catch (IOException | RuntimeException e) {
+            //非linux或进程不存在
+        }
+        return -1;
+    }
+
+    /**
+     * 用户态加内核态的cpu时间，秒；无法读取时返回-1
+     */
+    public double cpuSeconds() {
+        try {
+            String stat = new String(Files.readAllBytes(Paths.get("/proc", String.valueOf(pid), "stat")), StandardCharsets.UTF_8);
+            //进程名可能包含空格，从最后一个右括号之后开始解析
+            String[] fields = stat.substring(stat.lastIndexOf(')') + 2).split(" ");
+            //utime和stime是第14、15个字段，去掉前两个字段后下标为11、12
+            return (Long.parseLong(fields[11]) + Long.parseLong(fields[12])) / CLOCK_TICKS;
+        } catch (IOException | RuntimeException e) {
+            return -1;
+        }
+    }
+
+    public static long currentPid() {
+        String name = java.lang.management.ManagementFactory.getRuntimeMXBean().getName();
+        return Long.parseLong(name.substring(0, name.indexOf('@')));
+    }
+}
@@ -0,0 +1,230 @@
+package com.goldencis.tcpserver.loadgen;
+
+import com.goldencis.tcpserver.constants.ConstantsDto;
+import com.goldencis.tcpserver.record.RecordingSession;
+import com.goldencis.tcpserver.record.ReplayClock;
+import com.goldencis.tcpserver.record.SessionReplay;
+import org.json.JSONObject;
+
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * 一个模拟会话：noVNC端发起握手并按RFB的请求-应答节奏拉取画面更新，目标端收到通知后回连并响应更新。
+ * 每端一个线程，使用阻塞socket。
+ * 指定了录制的管道时改为回放录制的会话：noVNC端按录制的节奏发送上行数据，目标端发送下行数据，每端另有一个线程读取对端的数据。
+ */
+public class SyntheticSession {
+
+    //RFB协议版本，目标端握手成功后首先发送
+    static final byte[] RFB_VERSION = "RFB 003.008\n".getBytes(StandardCharsets.US_ASCII);
+
+    //FramebufferUpdateRequest的长度
+    static final int UPDATE_REQUEST_SIZE = 10;
+
+    private final LoadGenerator generator;
+
+    final String pipe;
+
+    final String userguid;
+
+    //回放的录制管道，为空时使用合成的画面更新
+    private final String recording;
+
+    private volatile long startNanos;
+
+    private volatile Socket noVNC;
+
+    private volatile Socket target;
+
+    public SyntheticSession(LoadGenerator generator, String pipe, String userguid, String recording) {
+        this.generator = generator;
+        this.pipe = pipe;
+        this.userguid = userguid;
+        this.recording = recording;
+    }
+
+    /**
+     * noVNC端：握手、等待目标端的RFB版本、循环请求画面更新
+     */
+    void runClient() {
+        try (Socket socket = new Socket()) {
+            noVNC = socket;
+            socket.setTcpNoDelay(true);
+            socket.connect(new InetSocketAddress(generator.getHost(), generator.getNoVNCPort()));
+            startNanos = System.nanoTime();
+
+            JSONObject body = new JSONObject();
+            body.put("action", ConstantsDto.CONNECT_NOVNC_SERVER);
+            body.put("pipe", pipe);
+            body.put("userguid", userguid);
+            OutputStream out = socket.getOutputStream();
+            out.write(frame(body.toString()));
+
+            if (recording != null) {
+                //收到目标端的第一段数据后开始回放上行数据
+                InputStream in = socket.getInputStream();
+                byte[] buffer = new byte[64 * 1024];
+                int read = in.read(buffer);
+                if (read < 0) {
+                    throw new EOFException("目标端未发送数据");
+                }
+                generator.sessionEstablished(this, System.nanoTime() - startNanos);
+                generator.addDownstream(read);
+                generator.startThread(() -> this.replay(out, RecordingSession.UPSTREAM), "replay-client-" + userguid);
+                while ((read = in.read(buffer)) >= 0) {
+                    generator.addDownstream(read);
+                }
+                return;
+            }
+
+            DataInputStream in = new DataInputStream(socket.getInputStream());
+            byte[] version = new byte[RFB_VERSION.length];
+            in.readFully(version);
+            generator.sessionEstablished(this, System.nanoTime() - startNanos);
+
+            byte[] request = new byte[UPDATE_REQUEST_SIZE];
+            request[0] = 3;
+            byte[] update = new byte[generator.getUpdateSize()];
+            long interval = generator.getUpdateIntervalNanos();
+            long next = System.nanoTime();
+            while (generator.isRunning()) {
+                out.write(request);
+                generator.addUpstream(request.length);
+                in.readFully(update);
+                generator.addDownstream(update.length);
+                if (interval > 0) {
+                    next += interval;
+                    long sleep = next - System.nanoTime();
+                    if (sleep > 0) {
+                        Thread.sleep(sleep / 1000000, (int) (sleep % 1000000));
+                    }
+                }
+            }
+        } catch (IOException | InterruptedException e) {
+            if (generator.isRunning()) {
+                generator.sessionFailed(this, e);
+            }
+        } finally {
+            this.closeTarget();
+        }
+    }
+
+    /**
+     * 目标端：收到通知后回连、握手、发送RFB版本，之后每收到一个更新请求发送一个画面更新
+     */
+    void runTarget() {
+        try (Socket socket = new Socket()) {
+            target = socket;
+            socket.setTcpNoDelay(true);
+            socket.connect(new InetSocketAddress(generator.getHost(), generator.getTargetPort()));
+
+            JSONObject body = new JSONObject();
+            body.put("action", ConstantsDto.CONNECT_VNC_CLIENT);
+            body.put("pipe", pipe);
+            OutputStream out = socket.getOutputStream();
+            out.write(frame(body.toString()));
+
+            //握手响应
+            DataInputStream in = new DataInputStream(socket.getInputStream());
+            byte[] header = new byte[ConstantsDto.TCP_PROTOCOL_HEAD_SIZE];
+            in.readFully(header);
+            int length = ByteBuffer.wrap(header).getInt(8);
+            in.readFully(new byte[length - ConstantsDto.TCP_PROTOCOL_HEAD_SIZE]);
+
+            if (recording != null) {
+                //上行数据读取后丢弃，由noVNC端计数
+                generator.startThread(() -> this.replay(out, RecordingSession.DOWNSTREAM), "replay-target-" + userguid);
+                byte[] buffer = new byte[64 * 1024];
+                while (in.read(buffer) >= 0) {
+                    continue;
+                }
+                return;
+            }
+
+            out.write(RFB_VERSION);
+            byte[] request = new byte[UPDATE_REQUEST_SIZE];
+            byte[] update = new byte[generator.getUpdateSize()];
+            update[0] = 0;
+            while (true) {
+                in.readFully(request);
+                out.write(update);
+            }
+        } catch (IOException e) {
+            //noVNC端结束或转发关闭
+        }
+    }
+
+    /**
+     * 按录制的节奏发送一个方向的数据，录制结束后从头重复，直到压测结束
+     */
+    private void replay(OutputStream out, byte direction) {
+        byte[] copy = new byte[64 * 1024];
+        try {
+            while (generator.isRunning()) {
+                SessionReplay replay = generator.openReplay(recording);
+                ReplayClock clock = new ReplayClock(generator.getReplaySpeed());
+                long sent = 0;
+                while (generator.isRunning() && replay.next()) {
+                    if (replay.direction() != direction) {
+                        continue;
+                    }
+                    clock.await(replay.nanos());
+                    ByteBuffer payload = replay.payload();
+                    int length = payload.remaining();
+                    while (payload.hasRemaining()) {
+                        int n = Math.min(copy.length, payload.remaining());
+                        payload.get(copy, 0, n);
+                        out.write(copy, 0, n);
+                    }
+                    if (direction == RecordingSession.UPSTREAM) {
+                        generator.addUpstream(length);
+                    }
+                    sent += length;
+                }
+                //该方向没有录制数据
+                if (sent == 0) {
+                    return;
+                }
+            }
+        } catch (IOException | InterruptedException e) {
+            //对端关闭或压测结束
+        }
+    }
+
+    void close() {
+        closeQuietly(noVNC);
+        this.closeTarget();
+    }
+
+    private void closeTarget() {
+        closeQuietly(target);
+    }
+
+    private static void closeQuietly(Socket socket) {
+        if (socket != null) {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                //忽略
+            }
+        }
+    }
+
+    static byte[] frame(String json) {
+        byte[] body = json.getBytes(StandardCharsets.UTF_8);
+        ByteBuffer buffer = ByteBuffer.allocate(ConstantsDto.TCP_PROTOCOL_HEAD_SIZE + body.length);
+        buffer.putInt(ConstantsDto.TCP_PROTOCOL_VERIFY);
+        buffer.putInt(ConstantsDto.TCP_PROTOCOL_VERSION);
+        buffer.putInt(buffer.capacity());
+        buffer.put(body);
+        return buffer.array();
+    }
+}
@@ -0,0 +1,186 @@
+package com.goldencis.tcpserver.broadcast;
+
+import com.goldencis.tcpserver.buffer.BufferPool;
+import com.goldencis.tcpserver.entity.TcpProtocolBody;
+import com.goldencis.tcpserver.runner.TcpTransferRunner;
+import com.goldencis.tcpserver.websocket.WebSocketFrameDecoder;
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.MeterBinder;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.nio.channels.SocketChannel;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 广播会话登记表，一个目标端连接的画面同时发给多个noVNC端。
+ * 控制端以connectNoVncBroadcast_c2s握手，和普通会话一样等待目标端配对，输入照常转发；
+ * 旁观端以connectNoVncViewer_c2s携带同一管道id握手，由转发服务完成RFB握手后只接收画面。
+ * 为了让旁观端能从任意消息边界开始显示，广播会话只允许Raw、CopyRect、RRE、Hextile等无连接状态的编码，
+ * 旁观端必须使用和控制端相同的像素格式(noVNC的默认格式)。控制端断开时广播会话结束。
+ * 登记和加入在noVNC监听线程中调用，会话内的处理都在控制端会话所属的事件循环线程中。
+ */
+@Component
+public class BroadcastHub implements MeterBinder {
+
+    @Value("${relay.broadcast.enabled:false}")
+    private boolean enabled;
+
+    //每个广播会话缓存的下行数据上限
+    @Value("${relay.broadcast.ring-bytes:8388608}")
+    private long ringBytes = 8 * 1024 * 1024;
+
+    //每个广播会话的旁观端上限
+    @Value("${relay.broadcast.max-viewers:16}")
+    private int maxViewers = 16;
+
+    @Autowired
+    private BufferPool bufferPool;
+
+    private final Map<String, BroadcastSession> sessions = new ConcurrentHashMap<>();
+
+    private final AtomicInteger viewers = new AtomicInteger();
+
+    //旁观端跳过画面重新同步的次数
+    private final LongAdder resyncs = new LongAdder();
+
+    //因落后过多或会话失效断开的旁观端数
+    private final LongAdder dropped = new LongAdder();
+
+    //超出上限或会话不可用而拒绝的旁观端数
+    private final LongAdder rejected = new LongAdder();
+
+    //下行数据无法解析而失效的会话数
+    private final LongAdder failed = new LongAdder();
+
+    //写给旁观端的字节数
+    private final LongAdder bytes = new LongAdder();
+
+    public BroadcastHub() {
+    }
+
+    public BroadcastHub(BufferPool bufferPool, long ringBytes, int maxViewers) {
+        this.enabled = true;
+        this.bufferPool = bufferPool;
+        this.ringBytes = ringBytes;
+        this.maxViewers = maxViewers;
+    }
+
+    /**
+     * 把控制端的会话登记为广播会话，在会话开始转发之前调用
+     * @param runner 控制端的会话，已登记到配对表
+     * @throws IOException 未启用广播
+     */
+    public void open(TcpTransferRunner runner) throws IOException {
+        if (!enabled) {
+            throw new IOException("未启用广播");
+        }
+        String pipe = runner.getUuid();
+        BroadcastSession session = new BroadcastSession(this, runner, bufferPool, ringBytes, maxViewers);
+        runner.setDownstreamTap(session);
+        runner.setUpstreamFilter(session.getFilter());
+        runner.setCloseHook(() -> {
+            sessions.remove(pipe, session);
+            runner.getEventLoop().execute(session::close);
+        });
+        sessions.put(pipe, session);
+    }
+
+    /**
+     * 旁观端加入广播会话
+     * @param channel 已完成握手的noVNC通道
+     * @param body 旁观端的协议体，管道id为广播会话的管道id
+     * @param frames websocket连接的帧解码器，原始tcp时为空
+     * @throws IOException 未启用广播或会话不存在，由调用方关闭通道
+     */
+    public void join(SocketChannel channel, TcpProtocolBody body, WebSocketFrameDecoder frames) throws IOException {
+        BroadcastSession session = enabled ? sessions.get(body.getPipe()) : null;
+        if (session == null) {
+            rejected.increment();
+            throw new IOException("广播会话不存在: " + body.getPipe());
+        }
+        channel.configureBlocking(false);
+        BroadcastViewer viewer = new BroadcastViewer(session, channel, frames);
+        session.getEventLoop().execute(() -> session.join(viewer));
+    }
+
+    @Override
+    public void bindTo(MeterRegistry registry) {
+        Gauge.builder("relay.broadcast.sessions", sessions, Map::size)
+                .description("广播会话数").register(registry);
+        Gauge.builder("relay.broadcast.viewers", viewers, AtomicInteger::get)
+                .description("旁观端数").register(registry);
+        FunctionCounter.builder("relay.broadcast.resyncs", resyncs, LongAdder::sum).register(registry);
+        FunctionCounter.builder("relay.broadcast.viewers.dropped", dropped, LongAdder::sum).register(registry);
+        FunctionCounter.builder("relay.broadcast.viewers.rejected", rejected, LongAdder::sum).register(registry);
+        FunctionCounter.builder("relay.broadcast.failed", failed, LongAdder::sum).register(registry);
+        FunctionCounter.builder("relay.broadcast.bytes", bytes, LongAdder::sum).register(registry);
+    }
+
+    void viewerAdded() {
+        viewers.incrementAndGet();
+    }
+
+    void viewerRemoved() {
+        viewers.decrementAndGet();
+    }
+
+    void viewerDropped() {
+        dropped.increment();
+    }
+
+    void viewerRejected() {
+        rejected.increment();
+    }
+
+    void resynced() {
+        resyncs.increment();
+    }
+
+    void sessionFailed() {
+        failed.increment();
+    }
+
+    void addBytes(long written) {
+        bytes.add(written);
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    public int getSessions() {
+        return sessions.size();
+    }
+
+    public int getViewers() {
+        return viewers.get();
+    }
+
+    public long getResyncs() {
+        return resyncs.sum();
+    }
+
+    public long getDropped() {
+        return dropped.sum();
+    }
+
+    public long getRejected() {
+        return rejected.sum();
+    }
+
+    public long getFailed() {
+        return failed.sum();
+    }
+
+    public long getBytes() {
+        return bytes.sum();
+    }
+}
@@ -0,0 +1,211 @@
+package com.goldencis.tcpserver.broadcast;
+
+import com.goldencis.tcpserver.buffer.BufferPool;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+
+/**
+ * 广播会话的下行数据环，按到达顺序保存目标端发来的明文数据块，各旁观端按自己的位置读取。
+ * 位置为会话开始以来的下行字节偏移。数据块带引用计数：环持有一个引用，正在写出该块的旁观端各持有一个，
+ * 环淘汰数据块后，仍在写出的旁观端可以写完，最后一个引用释放时归还缓冲池。
+ * 同时记录消息边界，旁观端加入和重新同步时只能从边界开始。
+ * 只在会话所属事件循环的线程中调用。
+ */
+final class BroadcastRing {
+
+    private static final int MAX_BOUNDARIES = 4096;
+
+    private final BufferPool bufferPool;
+
+    private final ArrayDeque<Chunk> chunks = new ArrayDeque<>();
+
+    //环中第一个字节和最后一个字节之后的位置
+    private long start;
+
+    private long end;
+
+    //start之后的消息边界，循环数组，超出上限时丢弃最早的
+    private final long[] boundaries = new long[MAX_BOUNDARIES];
+
+    private int boundaryHead;
+
+    private int boundaryCount;
+
+    BroadcastRing(BufferPool bufferPool) {
+        this.bufferPool = bufferPool;
+    }
+
+    /**
+     * 复制一段数据到环尾
+     * @param src 缓冲块，数据位于[from, to)，不修改
+     */
+    void append(ByteBuffer src, int from, int to) {
+        int length = to - from;
+        ByteBuffer data = bufferPool.allocate(length);
+        ByteBuffer slice = src.duplicate();
+        slice.limit(to).position(from);
+        data.put(slice);
+        data.flip();
+        chunks.addLast(new Chunk(bufferPool, data, end));
+        end += length;
+    }
+
+    /**
+     * 没有旁观端时不复制数据，只推进位置
+     */
+    void skip(int length) {
+        this.clear();
+        end += length;
+        start = end;
+    }
+
+    /**
+     * 记录消息边界，位置不早于已记录的边界
+     */
+    void boundary(long offset) {
+        if (boundaryCount > 0 && boundaries[(boundaryHead + boundaryCount - 1) % MAX_BOUNDARIES] == offset) {
+            return;
+        }
+        if (boundaryCount == MAX_BOUNDARIES) {
+            boundaryHead = (boundaryHead + 1) % MAX_BOUNDARIES;
+            boundaryCount--;
+        }
+        boundaries[(boundaryHead + boundaryCount) % MAX_BOUNDARIES] = offset;
+        boundaryCount++;
+    }
+
+    /**
+     * 最近的消息边界
+     * @return 环中没有边界时返回-1
+     */
+    long lastBoundary() {
+        return boundaryCount == 0 ? -1 : boundaries[(boundaryHead + boundaryCount - 1) % MAX_BOUNDARIES];
+    }
+
+    /**
+     * 不早于offset的第一个消息边界
+     * @return 没有时返回-1
+     */
+    long boundaryAtOrAfter(long offset) {
+        for (int i = 0; i < boundaryCount; i++) {
+            long boundary = boundaries[(boundaryHead + i) % MAX_BOUNDARIES];
+            if (boundary >= offset) {
+                return boundary;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * 包含offset的数据块，旁观端通常在环尾附近，从后向前查找
+     * @return 数据块，已被淘汰或尚未到达时返回null
+     */
+    Chunk chunkAt(long offset) {
+        if (offset < start || offset >= end) {
+            return null;
+        }
+        Iterator<Chunk> it = chunks.descendingIterator();
+        while (it.hasNext()) {
+            Chunk chunk = it.next();
+            if (chunk.offset <= offset) {
+                return chunk;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * 淘汰offset之前的全部数据块
+     */
+    void trimBefore(long offset) {
+        Chunk chunk;
+        while ((chunk = chunks.peekFirst()) != null && chunk.end() <= offset) {
+            this.evictFirst();
+        }
+    }
+
+    /**
+     * 淘汰最早的数据块
+     */
+    void evictFirst() {
+        Chunk chunk = chunks.pollFirst();
+        if (chunk == null) {
+            return;
+        }
+        start = chunk.end();
+        chunk.release();
+        while (boundaryCount > 0 && boundaries[boundaryHead] < start) {
+            boundaryHead = (boundaryHead + 1) % MAX_BOUNDARIES;
+            boundaryCount--;
+        }
+    }
+
+    /**
+     * 释放环持有的全部数据块
+     */
+    void clear() {
+        while (!chunks.isEmpty()) {
+            this.evictFirst();
+        }
+        start = end;
+    }
+
+    long getStart() {
+        return start;
+    }
+
+    long getEnd() {
+        return end;
+    }
+
+    long getRetained() {
+        return end - start;
+    }
+
+    /**
+     * 带引用计数的数据块，只在事件循环线程中访问
+     */
+    static final class Chunk {
+
+        private final BufferPool bufferPool;
+
+        //读模式，数据位于[0, limit)
+        private final ByteBuffer data;
+
+        //第一个字节的位置
+        final long offset;
+
+        private int refs = 1;
+
+        Chunk(BufferPool bufferPool, ByteBuffer data, long offset) {
+            this.bufferPool = bufferPool;
+            this.data = data;
+            this.offset = offset;
+        }
+
+        long end() {
+            return offset + data.limit();
+        }
+
+        /**
+         * [from, to)范围内的数据，共享内容，不修改数据块本身
+         */
+        ByteBuffer slice(long from, long to) {
+            ByteBuffer slice = data.duplicate();
+            slice.limit((int) (to - offset)).position((int) (from - offset));
+            return slice;
+        }
+
+        void retain() {
+            refs++;
+        }
+
+        void release() {
+            if (--refs == 0) {
+                bufferPool.release(data);
+            }
+        }
+    }
+}
@@ -0,0 +1,251 @@
+package com.goldencis.tcpserver.broadcast;
+
+import com.goldencis.tcpserver.buffer.BufferPool;
+import com.goldencis.tcpserver.runner.ChunkTap;
+import com.goldencis.tcpserver.runner.EventLoop;
+import com.goldencis.tcpserver.runner.RelayDirection;
+import com.goldencis.tcpserver.runner.TcpTransferRunner;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * 一个管道的广播会话：控制端的转发会话照常进行，下行数据同时复制到数据环，由各旁观端按自己的位置写出。
+ * 数据环只保留最慢的旁观端还未写出的数据，超出容量时淘汰最早的数据，需要被淘汰数据的旁观端断开。
+ * 旁观端加入或跳转后向目标端请求一次全屏更新，尚未响应的请求合并为一次。
+ * 下行数据无法解析时断开全部旁观端，控制端的会话不受影响。
+ * 除join外只在控制端会话所属事件循环的线程中调用。
+ */
+final class BroadcastSession implements ChunkTap, RfbServerParser.Listener {
+
+    private final BroadcastHub hub;
+
+    private final TcpTransferRunner runner;
+
+    private final BroadcastRing ring;
+
+    private final RfbServerParser parser;
+
+    private final RfbClientFilter filter;
+
+    private final List<BroadcastViewer> viewers = new ArrayList<>();
+
+    //数据环的容量
+    private final long capacity;
+
+    //旁观端落后超过该字节数时重新同步
+    private final long resyncBytes;
+
+    private final int maxViewers;
+
+    //已请求全屏更新，尚未收到FramebufferUpdate
+    private boolean updateRequested;
+
+    private boolean closed;
+
+    BroadcastSession(BroadcastHub hub, TcpTransferRunner runner, BufferPool bufferPool, long capacity, int maxViewers) {
+        this.hub = hub;
+        this.runner = runner;
+        this.ring = new BroadcastRing(bufferPool);
+        this.parser = new RfbServerParser(this);
+        this.filter = new RfbClientFilter(bufferPool, parser);
+        this.capacity = capacity;
+        this.resyncBytes = capacity / 2;
+        this.maxViewers = maxViewers;
+    }
+
+    @Override
+    public void tap(ByteBuffer chunk, int from, int to) {
+        long base = ring.getEnd();
+        if (viewers.isEmpty() || parser.isBroken()) {
+            ring.skip(to - from);
+        } else {
+            ring.append(chunk, from, to);
+        }
+        parser.parse(chunk, from, to, base);
+        if (viewers.isEmpty()) {
+            return;
+        }
+        for (int i = viewers.size() - 1; i >= 0; i--) {
+            this.pump(viewers.get(i));
+        }
+        this.trim();
+    }
+
+    private void pump(BroadcastViewer viewer) {
+        try {
+            viewer.pump();
+        } catch (IOException e) {
+            hub.viewerDropped();
+            viewer.close();
+        }
+    }
+
+    /**
+     * 淘汰所有旁观端都已写出的数据，超出容量时淘汰最早的数据
+     */
+    private void trim() {
+        ring.trimBefore(this.minPosition());
+        if (ring.getRetained() <= capacity) {
+            return;
+        }
+        for (BroadcastViewer viewer : viewers) {
+            viewer.resyncIfParked();
+        }
+        ring.trimBefore(this.minPosition());
+        while (ring.getRetained() > capacity) {
+            ring.evictFirst();
+        }
+        for (int i = viewers.size() - 1; i >= 0; i--) {
+            BroadcastViewer viewer = viewers.get(i);
+            long position = viewer.getPosition();
+            if (position >= 0 && position < ring.getStart()) {
+                hub.viewerDropped();
+                viewer.close();
+            }
+        }
+    }
+
+    private long minPosition() {
+        long min = ring.getEnd();
+        for (BroadcastViewer viewer : viewers) {
+            long position = viewer.getPosition();
+            if (position >= 0) {
+                min = Math.min(min, position);
+            }
+        }
+        return min;
+    }
+
+    /**
+     * 加入旁观端，在事件循环线程中调用
+     */
+    void join(BroadcastViewer viewer) {
+        if (closed || parser.isBroken() || viewers.size() >= maxViewers) {
+            hub.viewerRejected();
+            viewer.close();
+            return;
+        }
+        viewers.add(viewer);
+        hub.viewerAdded();
+        try {
+            viewer.start();
+        } catch (IOException e) {
+            viewer.close();
+        }
+    }
+
+    /**
+     * 旁观端握手完成，控制端握手完成后才能合成ServerInit
+     */
+    void attach(BroadcastViewer viewer) throws IOException {
+        if (parser.isReady()) {
+            viewer.attach(parser.getWidth(), parser.getHeight(), parser.getPixelFormat(), parser.getName(), ring.getEnd());
+            this.requestFullUpdate();
+        }
+    }
+
+    void remove(BroadcastViewer viewer) {
+        if (viewers.remove(viewer)) {
+            hub.viewerRemoved();
+        }
+    }
+
+    /**
+     * 旁观端跳过了部分画面
+     */
+    void resync() {
+        hub.resynced();
+        this.requestFullUpdate();
+    }
+
+    private void requestFullUpdate() {
+        if (updateRequested || closed) {
+            return;
+        }
+        RelayDirection upstream = runner.getUpstream();
+        if (upstream == null) {
+            return;
+        }
+        updateRequested = true;
+        try {
+            filter.requestFullUpdate(upstream);
+        } catch (IOException e) {
+            runner.close();
+        }
+    }
+
+    @Override
+    public void boundary(long offset) {
+        ring.boundary(offset);
+    }
+
+    @Override
+    public void ready() {
+        for (int i = viewers.size() - 1; i >= 0; i--) {
+            BroadcastViewer viewer = viewers.get(i);
+            try {
+                if (viewer.isHandshaken()) {
+                    this.attach(viewer);
+                }
+            } catch (IOException e) {
+                viewer.close();
+            }
+        }
+    }
+
+    @Override
+    public void update() {
+        updateRequested = false;
+    }
+
+    @Override
+    public void broken(String reason) {
+        hub.sessionFailed();
+        for (int i = viewers.size() - 1; i >= 0; i--) {
+            hub.viewerDropped();
+            viewers.get(i).close();
+        }
+        ring.clear();
+    }
+
+    /**
+     * 控制端会话结束，断开全部旁观端并释放数据环，在事件循环线程中调用
+     */
+    void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        for (int i = viewers.size() - 1; i >= 0; i--) {
+            viewers.get(i).close();
+        }
+        ring.clear();
+    }
+
+    void addBytes(long bytes) {
+        hub.addBytes(bytes);
+    }
+
+    RfbClientFilter getFilter() {
+        return filter;
+    }
+
+    BroadcastRing getRing() {
+        return ring;
+    }
+
+    long getResyncBytes() {
+        return resyncBytes;
+    }
+
+    EventLoop getEventLoop() {
+        return runner.getEventLoop();
+    }
+
+    TcpTransferRunner getRunner() {
+        return runner;
+    }
+}
@@ -0,0 +1,382 @@
+package com.goldencis.tcpserver.broadcast;
+
+import com.goldencis.tcpserver.runner.RelayDirection;
+import com.goldencis.tcpserver.runner.SelectionHandler;
+import com.goldencis.tcpserver.websocket.WebSocketFrameDecoder;
+import com.goldencis.tcpserver.websocket.WebSocketFrameEncoder;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+
+/**
+ * 广播会话的旁观端，注册在控制端会话所属的事件循环上。
+ * 握手由转发服务代目标端完成：协商3.3到3.8版本、None安全类型，ServerInit按控制端当前的帧缓冲状态合成，
+ * 之后从数据环中的一个消息边界开始接收目标端的画面，旁观端发出的消息全部丢弃，websocket的ping在帧之间回应pong。
+ * 每个旁观端有自己的读取位置，落后超过重新同步的阈值时写到下一个消息边界为止，
+ * 然后跳到最近的消息边界并请求一次全屏更新，不为慢速旁观端无限缓存。
+ */
+final class BroadcastViewer implements SelectionHandler {
+
+    private static final int VERSION = 0;
+
+    private static final int SECURITY_TYPE = 1;
+
+    private static final int CLIENT_INIT = 2;
+
+    private static final int MESSAGES = 3;
+
+    private final BroadcastSession session;
+
+    private final SocketChannel channel;
+
+    //noVNC端为websocket连接时的帧解码器，为空表示原始tcp
+    private final WebSocketFrameDecoder frames;
+
+    private SelectionKey key;
+
+    //旁观端发来的数据，写模式
+    private final ByteBuffer input = ByteBuffer.allocate(4096);
+
+    private int state = VERSION;
+
+    private int minor;
+
+    //需要丢弃的字节数
+    private long skip;
+
+    //握手数据和回应的控制帧，均为读模式，已带websocket帧头
+    private final ArrayDeque<ByteBuffer> control = new ArrayDeque<>();
+
+    //待写的控制帧超过该数量时不再回应ping
+    private static final int MAX_CONTROL = 8;
+
+    private boolean attached;
+
+    //加入时数据环的末尾，从不早于该位置的第一个消息边界开始接收
+    private long joinFrom;
+
+    //下一个要写出的字节位置，-1表示尚未确定
+    private long position = -1;
+
+    //落后过多时写到该消息边界后跳转，-1表示未落后
+    private long stopAt = -1;
+
+    //正在写出的数据块，持有一个引用
+    private BroadcastRing.Chunk current;
+
+    //当前websocket帧的帧头和剩余负载
+    private final ByteBuffer frameHeader = ByteBuffer.allocate(WebSocketFrameEncoder.HEADER_RESERVE);
+
+    private long frameRemaining;
+
+    private final ByteBuffer[] frame = new ByteBuffer[2];
+
+    private boolean closed;
+
+    BroadcastViewer(BroadcastSession session, SocketChannel channel, WebSocketFrameDecoder frames) {
+        this.session = session;
+        this.channel = channel;
+        this.frames = frames;
+        frameHeader.flip();
+    }
+
+    /**
+     * 注册到事件循环并发送协议版本，在事件循环线程中调用
+     */
+    void start() throws IOException {
+        key = session.getEventLoop().register(channel, SelectionKey.OP_READ, this);
+        this.send(RfbProtocol.VERSION_3_8);
+    }
+
+    @Override
+    public void handle(SelectionKey key) throws IOException {
+        if (key.isReadable()) {
+            this.read();
+        }
+        if (key.isValid() && key.isWritable()) {
+            this.pump();
+        }
+    }
+
+    private void read() throws IOException {
+        int start = input.position();
+        int read = channel.read(input);
+        if (read < 0) {
+            throw new IOException("旁观端已关闭");
+        }
+        if (frames != null) {
+            input.position(frames.unwrap(input, start));
+            ByteBuffer ping = frames.takePing();
+            if (ping != null && control.size() < MAX_CONTROL) {
+                ByteBuffer pong = ByteBuffer.allocate(WebSocketFrameEncoder.MAX_CONTROL_FRAME);
+                WebSocketFrameEncoder.pong(pong, ping);
+                pong.flip();
+                control.addLast(pong);
+                this.pump();
+            }
+            if (frames.isClosed()) {
+                //在帧之间时回应关闭帧，只尝试写一次，不等待
+                if (frameRemaining == 0 && control.isEmpty()) {
+                    ByteBuffer echo = ByteBuffer.allocate(WebSocketFrameEncoder.HEADER_RESERVE);
+                    WebSocketFrameEncoder.close(echo, frames.getCloseStatus());
+                    echo.flip();
+                    channel.write(echo);
+                }
+                throw new IOException("旁观端已关闭");
+            }
+        }
+        input.flip();
+        try {
+            this.process();
+        } finally {
+            input.compact();
+        }
+    }
+
+    /**
+     * 完成握手，之后的消息只按长度丢弃
+     */
+    private void process() throws IOException {
+        while (input.hasRemaining()) {
+            if (skip > 0) {
+                int n = (int) Math.min(skip, input.remaining());
+                input.position(input.position() + n);
+                skip -= n;
+                continue;
+            }
+            switch (state) {
+                case VERSION:
+                    if (input.remaining() < RfbProtocol.VERSION_LENGTH) {
+                        return;
+                    }
+                    byte[] version = new byte[RfbProtocol.VERSION_LENGTH];
+                    input.get(version);
+                    minor = RfbProtocol.minorVersion(version);
+                    if (minor < 0) {
+                        throw new IOException("不是RFB协议");
+                    }
+                    if (minor == 3) {
+                        //3.3由服务端指定安全类型
+                        this.send(ByteBuffer.allocate(4).putInt(0, RfbProtocol.SECURITY_NONE).array());
+                        state = CLIENT_INIT;
+                    } else {
+                        this.send(new byte[]{1, RfbProtocol.SECURITY_NONE});
+                        state = SECURITY_TYPE;
+                    }
+                    break;
+                case SECURITY_TYPE:
+                    if (input.get() != RfbProtocol.SECURITY_NONE) {
+                        throw new IOException("不支持的安全类型");
+                    }
+                    if (minor == 8) {
+                        this.send(new byte[4]);
+                    }
+                    state = CLIENT_INIT;
+                    break;
+                case CLIENT_INIT:
+                    input.get();
+                    state = MESSAGES;
+                    session.attach(this);
+                    break;
+                default:
+                    long length;
+                    try {
+                        length = RfbProtocol.clientMessageLength(input, input.position(), input.remaining());
+                    } catch (IllegalArgumentException e) {
+                        throw new IOException(e.getMessage());
+                    }
+                    if (length < 0) {
+                        return;
+                    }
+                    skip = length;
+            }
+        }
+    }
+
+    /**
+     * 发送合成的ServerInit并开始接收画面，在控制端握手完成后调用
+     * @param joinFrom 当前数据环的末尾
+     */
+    void attach(int width, int height, byte[] pixelFormat, byte[] name, long joinFrom) throws IOException {
+        ByteBuffer init = ByteBuffer.allocate(24 + name.length);
+        init.putShort((short) width).putShort((short) height).put(pixelFormat).putInt(name.length).put(name);
+        this.joinFrom = joinFrom;
+        attached = true;
+        this.send(init.array());
+    }
+
+    private void send(byte[] data) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(data.length + (frames != null ? WebSocketFrameEncoder.HEADER_RESERVE : 0));
+        if (frames != null) {
+            WebSocketFrameEncoder.header(buffer, data.length);
+        }
+        buffer.put(data);
+        buffer.flip();
+        control.addLast(buffer);
+        this.pump();
+    }
+
+    /**
+     * 先写出握手数据，再按读取位置写出数据环中的画面，写不完时监听可写事件
+     * @throws IOException IO异常或落后的数据已被淘汰
+     */
+    void pump() throws IOException {
+        if (closed) {
+            return;
+        }
+        if (!this.writeControl()) {
+            return;
+        }
+        if (!attached) {
+            RelayDirection.interest(key, SelectionKey.OP_WRITE, false);
+            return;
+        }
+
+        BroadcastRing ring = session.getRing();
+        if (position < 0) {
+            position = ring.boundaryAtOrAfter(joinFrom);
+        }
+        while (position >= 0) {
+            if (frameRemaining == 0) {
+                if (!this.writeControl()) {
+                    return;
+                }
+                //落后过多时找到下一个消息边界，写到该边界后跳转
+                if (stopAt < 0 && ring.getEnd() - position > session.getResyncBytes()) {
+                    stopAt = ring.boundaryAtOrAfter(position);
+                }
+                if (stopAt >= 0 && position >= stopAt) {
+                    this.jump();
+                }
+            }
+            long limit = stopAt >= 0 ? stopAt : ring.getEnd();
+            if (position >= limit) {
+                break;
+            }
+            if (current == null || position >= current.end()) {
+                this.releaseChunk();
+                if (position < ring.getStart()) {
+                    throw new IOException("旁观端落后的数据已被淘汰");
+                }
+                current = ring.chunkAt(position);
+                current.retain();
+            }
+
+            long to = Math.min(current.end(), limit);
+            long written;
+            ByteBuffer slice;
+            if (frames != null) {
+                if (frameRemaining == 0) {
+                    frameRemaining = to - position;
+                    frameHeader.clear();
+                    WebSocketFrameEncoder.header(frameHeader, (int) frameRemaining);
+                    frameHeader.flip();
+                } else {
+                    to = Math.min(to, position + frameRemaining);
+                }
+                slice = current.slice(position, to);
+                frame[0] = frameHeader;
+                frame[1] = slice;
+                written = channel.write(frame);
+            } else {
+                slice = current.slice(position, to);
+                written = channel.write(slice);
+            }
+            session.addBytes(written);
+            long sent = to - position - slice.remaining();
+            position += sent;
+            if (frames != null) {
+                frameRemaining -= sent;
+            }
+            if (slice.hasRemaining() || frameHeader.hasRemaining()) {
+                RelayDirection.interest(key, SelectionKey.OP_WRITE, true);
+                return;
+            }
+        }
+        RelayDirection.interest(key, SelectionKey.OP_WRITE, false);
+    }
+
+    /**
+     * 写出待写的控制帧，正在写出的画面帧写完之前不插入
+     * @return 控制帧已全部写出
+     */
+    private boolean writeControl() throws IOException {
+        if (frameRemaining > 0) {
+            return true;
+        }
+        ByteBuffer buffer;
+        while ((buffer = control.peekFirst()) != null) {
+            session.addBytes(channel.write(buffer));
+            if (buffer.hasRemaining()) {
+                RelayDirection.interest(key, SelectionKey.OP_WRITE, true);
+                return false;
+            }
+            control.pollFirst();
+        }
+        return true;
+    }
+
+    /**
+     * 停在消息边界时跳到数据环中最近的消息边界，并请求全屏更新补齐跳过的画面
+     */
+    private void jump() {
+        stopAt = -1;
+        long last = session.getRing().lastBoundary();
+        if (last > position) {
+            position = last;
+            this.releaseChunk();
+            session.resync();
+        }
+    }
+
+    /**
+     * 数据环超出容量时，已停在消息边界的旁观端直接跳转，不再占用旧数据
+     */
+    void resyncIfParked() {
+        if (attached && frameRemaining == 0 && stopAt >= 0 && position >= stopAt) {
+            this.jump();
+        }
+    }
+
+    private void releaseChunk() {
+        if (current != null) {
+            current.release();
+            current = null;
+        }
+    }
+
+    /**
+     * 读取位置，尚未开始接收时返回-1
+     */
+    long getPosition() {
+        return attached ? position : -1;
+    }
+
+    /**
+     * 已完成握手，等待控制端握手完成
+     */
+    boolean isHandshaken() {
+        return state == MESSAGES && !attached;
+    }
+
+    @Override
+    public void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        if (key != null) {
+            key.cancel();
+        }
+        try {
+            channel.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        this.releaseChunk();
+        session.remove(this);
+    }
+}
@@ -0,0 +1,216 @@
+package com.goldencis.tcpserver.broadcast;
+
+import com.goldencis.tcpserver.buffer.BufferPool;
+import com.goldencis.tcpserver.runner.ChunkFilter;
+import com.goldencis.tcpserver.runner.RelayDirection;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.function.Consumer;
+
+/**
+ * 广播会话中控制端到目标端方向的过滤器，按消息转发，不完整的消息暂存到下一次读取。
+ * 握手数据原样转发，同时把控制端选择的版本和安全类型告知下行解析器；
+ * SetEncodings中不允许的编码就地替换为服务端会忽略的编码号，SetPixelFormat同步给下行解析器；
+ * 需要全屏更新时只在消息边界插入请求，不打断控制端正在发送的消息。ClientCutText的正文直接转发，不暂存。
+ * 下行解析失效后全部原样转发。只在会话所属事件循环的线程中调用。
+ */
+final class RfbClientFilter implements ChunkFilter {
+
+    private static final int VERSION = 0;
+
+    private static final int SECURITY_TYPE = 1;
+
+    //VNC认证的16字节响应或ClientInit，取决于选定的安全类型
+    private static final int CREDENTIALS = 2;
+
+    private static final int CLIENT_INIT = 3;
+
+    private static final int MESSAGES = 4;
+
+    private final BufferPool bufferPool;
+
+    private final RfbServerParser parser;
+
+    private int state = VERSION;
+
+    //不完整的消息，写模式
+    private final ByteBuffer carry = ByteBuffer.allocate(RfbProtocol.MAX_HELD_MESSAGE);
+
+    //直接转发的剩余字节数
+    private long skip;
+
+    //等待插入的全屏更新请求
+    private boolean updatePending;
+
+    RfbClientFilter(BufferPool bufferPool, RfbServerParser parser) {
+        this.bufferPool = bufferPool;
+        this.parser = parser;
+    }
+
+    @Override
+    public void filter(ByteBuffer chunk, int offset, Consumer<ByteBuffer> out) throws IOException {
+        if (carry.position() > 0) {
+            chunk = this.merge(chunk, offset);
+        }
+        int pos = offset;
+        int end = chunk.limit();
+        try {
+            while (pos < end && !parser.isBroken()) {
+                if (skip > 0) {
+                    int n = (int) Math.min(skip, end - pos);
+                    pos += n;
+                    skip -= n;
+                    continue;
+                }
+                int length = this.unitLength(chunk, pos, end - pos);
+                if (length < 0 || length > end - pos) {
+                    break;
+                }
+                this.process(chunk, pos, length);
+                pos += length;
+            }
+        } catch (IllegalArgumentException e) {
+            parser.fail(e.getMessage());
+        }
+        if (parser.isBroken()) {
+            pos = end;
+        }
+
+        //暂存不完整的消息
+        if (pos < end) {
+            ByteBuffer tail = chunk.duplicate();
+            tail.limit(end).position(pos);
+            carry.put(tail);
+        }
+        if (pos > offset) {
+            chunk.limit(pos);
+            out.accept(chunk);
+        } else {
+            bufferPool.release(chunk);
+        }
+
+        if (updatePending && this.atBoundary()) {
+            updatePending = false;
+            out.accept(this.fullUpdateRequest(offset));
+        }
+    }
+
+    /**
+     * 暂存的数据和新读到的数据合并到一个缓冲块中
+     */
+    private ByteBuffer merge(ByteBuffer chunk, int offset) {
+        int length = carry.position() + chunk.limit() - offset;
+        ByteBuffer merged = bufferPool.allocate(offset + length);
+        merged.position(offset);
+        carry.flip();
+        merged.put(carry);
+        carry.clear();
+        chunk.position(offset);
+        merged.put(chunk);
+        bufferPool.release(chunk);
+        merged.flip();
+        return merged;
+    }
+
+    /**
+     * 下一个需要完整转发的单元的长度
+     * @return 长度，消息头不完整时返回-1
+     */
+    private int unitLength(ByteBuffer chunk, int pos, int available) {
+        switch (state) {
+            case VERSION:
+                return RfbProtocol.VERSION_LENGTH;
+            case SECURITY_TYPE:
+            case CLIENT_INIT:
+                return 1;
+            case CREDENTIALS:
+                return parser.getSecurityType() == RfbProtocol.SECURITY_VNC ? 16 : 1;
+            default:
+                if ((chunk.get(pos) & 0xff) == RfbProtocol.CLIENT_CUT_TEXT) {
+                    //正文不暂存
+                    return available < 8 ? -1 : 8;
+                }
+                long length = RfbProtocol.clientMessageLength(chunk, pos, available);
+                if (length > RfbProtocol.MAX_HELD_MESSAGE) {
+                    throw new IllegalArgumentException("客户端消息过长: " + length);
+                }
+                return (int) length;
+        }
+    }
+
+    private void process(ByteBuffer chunk, int pos, int length) {
+        switch (state) {
+            case VERSION:
+                byte[] version = new byte[RfbProtocol.VERSION_LENGTH];
+                for (int i = 0; i < version.length; i++) {
+                    version[i] = chunk.get(pos + i);
+                }
+                int minor = RfbProtocol.minorVersion(version);
+                if (minor < 0) {
+                    throw new IllegalArgumentException("不是RFB协议");
+                }
+                parser.setMinor(minor);
+                state = minor == 3 ? CREDENTIALS : SECURITY_TYPE;
+                break;
+            case SECURITY_TYPE:
+                parser.setSecurityType(chunk.get(pos) & 0xff);
+                state = CREDENTIALS;
+                break;
+            case CREDENTIALS:
+                state = length == 16 ? CLIENT_INIT : MESSAGES;
+                break;
+            case CLIENT_INIT:
+                state = MESSAGES;
+                break;
+            default:
+                this.message(chunk, pos);
+        }
+    }
+
+    private void message(ByteBuffer chunk, int pos) {
+        switch (chunk.get(pos) & 0xff) {
+            case RfbProtocol.SET_PIXEL_FORMAT:
+                parser.setPixelFormat(chunk, pos + 4);
+                break;
+            case RfbProtocol.SET_ENCODINGS:
+                int count = chunk.getShort(pos + 2) & 0xffff;
+                for (int i = 0, p = pos + 4; i < count; i++, p += 4) {
+                    if (!RfbProtocol.isAllowed(chunk.getInt(p))) {
+                        chunk.putInt(p, RfbProtocol.ENCODING_IGNORED);
+                    }
+                }
+                break;
+            case RfbProtocol.CLIENT_CUT_TEXT:
+                skip = chunk.getInt(pos + 4) & 0xffffffffL;
+                break;
+            default:
+                break;
+        }
+    }
+
+    /**
+     * 请求一次全屏的非增量更新，控制端的消息未发送完时等到消息边界
+     * @param upstream 上行数据泵
+     * @throws IOException IO异常
+     */
+    void requestFullUpdate(RelayDirection upstream) throws IOException {
+        if (this.atBoundary()) {
+            upstream.send(this.fullUpdateRequest(upstream.payloadOffset()));
+        } else {
+            updatePending = true;
+        }
+    }
+
+    private boolean atBoundary() {
+        return state == MESSAGES && skip == 0 && carry.position() == 0 && !parser.isBroken();
+    }
+
+    private ByteBuffer fullUpdateRequest(int offset) {
+        ByteBuffer request = bufferPool.allocate(offset + 10);
+        request.position(offset);
+        RfbProtocol.fullUpdateRequest(request, parser.getWidth(), parser.getHeight());
+        request.flip();
+        return request;
+    }
+}
@@ -0,0 +1,144 @@
+package com.goldencis.tcpserver.broadcast;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * 广播需要用到的RFB(RFC 6143)协议常量和消息长度计算。
+ * 旁观端只能从消息边界开始接收，中途加入时没有之前的zlib压缩状态，
+ * 所以广播会话只允许不依赖连接状态的编码，其余编码在控制端的SetEncodings中替换为服务端会忽略的编码号。
+ */
+final class RfbProtocol {
+
+    //客户端到服务端的消息类型
+    static final int SET_PIXEL_FORMAT = 0;
+
+    static final int SET_ENCODINGS = 2;
+
+    static final int FRAMEBUFFER_UPDATE_REQUEST = 3;
+
+    static final int KEY_EVENT = 4;
+
+    static final int POINTER_EVENT = 5;
+
+    static final int CLIENT_CUT_TEXT = 6;
+
+    //服务端到客户端的消息类型
+    static final int FRAMEBUFFER_UPDATE = 0;
+
+    static final int SET_COLOUR_MAP_ENTRIES = 1;
+
+    static final int BELL = 2;
+
+    static final int SERVER_CUT_TEXT = 3;
+
+    //编码
+    static final int ENCODING_RAW = 0;
+
+    static final int ENCODING_COPY_RECT = 1;
+
+    static final int ENCODING_RRE = 2;
+
+    static final int ENCODING_HEXTILE = 5;
+
+    static final int ENCODING_DESKTOP_SIZE = -223;
+
+    static final int ENCODING_LAST_RECT = -224;
+
+    static final int ENCODING_CURSOR = -239;
+
+    //替换不允许的编码，未分配的编码号，服务端按协议忽略
+    static final int ENCODING_IGNORED = 0x7fffff00;
+
+    //安全类型
+    static final int SECURITY_INVALID = 0;
+
+    static final int SECURITY_NONE = 1;
+
+    static final int SECURITY_VNC = 2;
+
+    static final int VERSION_LENGTH = 12;
+
+    static final byte[] VERSION_3_8 = "RFB 003.008\n".getBytes(StandardCharsets.US_ASCII);
+
+    //SetEncodings最多暂存的编码数
+    static final int MAX_ENCODINGS = 255;
+
+    //需要完整暂存的客户端消息的最大长度
+    static final int MAX_HELD_MESSAGE = 4 + 4 * MAX_ENCODINGS;
+
+    private RfbProtocol() {
+    }
+
+    /**
+     * 从协议版本字符串中取小版本号，3.3和3.7以外的版本都按3.8处理
+     */
+    static int minorVersion(byte[] version) {
+        if (version[0] != 'R' || version[1] != 'F' || version[2] != 'B') {
+            return -1;
+        }
+        int minor = (version[8] - '0') * 100 + (version[9] - '0') * 10 + (version[10] - '0');
+        return minor == 3 || minor == 7 ? minor : 8;
+    }
+
+    /**
+     * 客户端消息的总长度
+     * @param buffer 消息所在的缓冲区
+     * @param pos 消息起始位置
+     * @param available 可读的字节数
+     * @return 总长度，消息头不完整时返回-1
+     * @throws IllegalArgumentException 未知的消息类型
+     */
+    static long clientMessageLength(ByteBuffer buffer, int pos, int available) {
+        if (available < 1) {
+            return -1;
+        }
+        int type = buffer.get(pos) & 0xff;
+        switch (type) {
+            case SET_PIXEL_FORMAT:
+                return 20;
+            case SET_ENCODINGS:
+                return available < 4 ? -1 : 4 + 4L * (buffer.getShort(pos + 2) & 0xffff);
+            case FRAMEBUFFER_UPDATE_REQUEST:
+                return 10;
+            case KEY_EVENT:
+                return 8;
+            case POINTER_EVENT:
+                return 6;
+            case CLIENT_CUT_TEXT:
+                return available < 8 ? -1 : 8 + (buffer.getInt(pos + 4) & 0xffffffffL);
+            default:
+                throw new IllegalArgumentException("不支持的客户端消息: " + type);
+        }
+    }
+
+    /**
+     * 广播会话是否允许该编码
+     */
+    static boolean isAllowed(int encoding) {
+        switch (encoding) {
+            case ENCODING_RAW:
+            case ENCODING_COPY_RECT:
+            case ENCODING_RRE:
+            case ENCODING_HEXTILE:
+            case ENCODING_DESKTOP_SIZE:
+            case ENCODING_LAST_RECT:
+            case ENCODING_CURSOR:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * 写入全屏的非增量更新请求
+     */
+    static void fullUpdateRequest(ByteBuffer buffer, int width, int height) {
+        buffer.put((byte) FRAMEBUFFER_UPDATE_REQUEST);
+        buffer.put((byte) 0);
+        buffer.putShort((short) 0);
+        buffer.putShort((short) 0);
+        buffer.putShort((short) width);
+        buffer.putShort((short) height);
+    }
+}
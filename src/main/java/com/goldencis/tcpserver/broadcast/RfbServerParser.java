@@ -0,0 +1,517 @@
+package com.goldencis.tcpserver.broadcast;
+
+import java.nio.ByteBuffer;
+
+/**
+ * 目标端到控制端方向的RFB数据解析，只计算消息边界，不复制像素数据。
+ * 跟踪握手得到帧缓冲大小、像素格式和桌面名称，旁观端的ServerInit据此合成。
+ * 每个字段可以分布在任意多次读取中：定长字段先收集到field中，像素数据等按长度跳过。
+ * 遇到不支持的安全类型、消息或编码时标记为失效，广播会话退化为普通转发。
+ * 只在会话所属事件循环的线程中调用。
+ */
+final class RfbServerParser {
+
+    /**
+     * 解析结果的回调
+     */
+    interface Listener {
+
+        /**
+         * 消息边界，offset为下一条消息第一个字节的位置
+         */
+        void boundary(long offset);
+
+        /**
+         * 握手完成，可以合成ServerInit
+         */
+        void ready();
+
+        /**
+         * 收到一个FramebufferUpdate
+         */
+        void update();
+
+        /**
+         * 数据无法解析
+         */
+        void broken(String reason);
+    }
+
+    private static final int MAX_NAME_LENGTH = 1024;
+
+    //需要收集字段的状态
+    private static final int VERSION = 0;
+
+    private static final int SECURITY_33 = 1;
+
+    private static final int SECURITY_COUNT = 2;
+
+    private static final int CHALLENGE = 3;
+
+    private static final int SECURITY_RESULT = 4;
+
+    private static final int SERVER_INIT = 5;
+
+    private static final int NAME = 6;
+
+    private static final int MESSAGE_TYPE = 7;
+
+    private static final int UPDATE_HEADER = 8;
+
+    private static final int RECT_HEADER = 9;
+
+    private static final int RRE_HEADER = 10;
+
+    private static final int TILE = 11;
+
+    private static final int TILE_SUBRECTS = 12;
+
+    private static final int COLOUR_MAP_HEADER = 13;
+
+    private static final int CUT_TEXT_HEADER = 14;
+
+    //取决于控制端选择的状态，等收到下一个字节时再决定
+    private static final int AWAIT_VERSION = 15;
+
+    private static final int AWAIT_SECURITY = 16;
+
+    //跳过数据之后的状态
+    private static final int RECT_DONE = 0;
+
+    private static final int TILE_DONE = 1;
+
+    private static final int MESSAGE_DONE = 2;
+
+    private final Listener listener;
+
+    private int state = VERSION;
+
+    //定长字段
+    private final ByteBuffer field = ByteBuffer.allocate(MAX_NAME_LENGTH);
+
+    private int need = RfbProtocol.VERSION_LENGTH;
+
+    //需要跳过的字节数及跳过后的状态
+    private long skip;
+
+    private int afterSkip;
+
+    //服务端和协商后的小版本号
+    private int serverMinor;
+
+    private int minor = -1;
+
+    //选定的安全类型，-1表示未知
+    private int securityType = -1;
+
+    private int width;
+
+    private int height;
+
+    private final byte[] pixelFormat = new byte[16];
+
+    private int bytesPerPixel;
+
+    private byte[] name = new byte[0];
+
+    //当前FramebufferUpdate剩余的矩形数
+    private int rects;
+
+    //当前矩形的宽高及Hextile的当前块位置
+    private int rectWidth;
+
+    private int rectHeight;
+
+    private int tileX;
+
+    private int tileY;
+
+    private boolean colouredSubrects;
+
+    private boolean ready;
+
+    private boolean broken;
+
+    RfbServerParser(Listener listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * 解析一段下行数据
+     * @param chunk 缓冲块，数据位于[from, to)，不修改
+     * @param base from处的位置
+     */
+    void parse(ByteBuffer chunk, int from, int to, long base) {
+        int pos = from;
+        while (pos < to && !broken) {
+            if (skip > 0) {
+                int n = (int) Math.min(skip, to - pos);
+                pos += n;
+                skip -= n;
+                if (skip == 0) {
+                    this.resume(afterSkip, base + pos - from);
+                }
+                continue;
+            }
+            if (state == AWAIT_VERSION || state == AWAIT_SECURITY) {
+                this.decide();
+                continue;
+            }
+            int n = Math.min(need - field.position(), to - pos);
+            for (int i = 0; i < n; i++) {
+                field.put(chunk.get(pos + i));
+            }
+            pos += n;
+            if (field.position() == need) {
+                field.flip();
+                this.complete(base + pos - from);
+            }
+        }
+    }
+
+    /**
+     * 一个字段已收集完整
+     * @param offset 字段之后的位置
+     */
+    private void complete(long offset) {
+        switch (state) {
+            case VERSION:
+                byte[] version = new byte[RfbProtocol.VERSION_LENGTH];
+                field.get(version);
+                serverMinor = RfbProtocol.minorVersion(version);
+                if (serverMinor < 0) {
+                    this.fail("不是RFB协议");
+                    return;
+                }
+                state = AWAIT_VERSION;
+                break;
+            case SECURITY_33:
+                securityType = field.getInt();
+                this.afterSecurity();
+                break;
+            case SECURITY_COUNT:
+                int count = field.get() & 0xff;
+                if (count == 0) {
+                    this.fail("目标端拒绝连接");
+                    return;
+                }
+                skip = count;
+                afterSkip = -1;
+                state = AWAIT_SECURITY;
+                break;
+            case CHALLENGE:
+                this.expect(SECURITY_RESULT, 4);
+                break;
+            case SECURITY_RESULT:
+                if (field.getInt() != 0) {
+                    this.fail("目标端认证失败");
+                    return;
+                }
+                this.expect(SERVER_INIT, 24);
+                break;
+            case SERVER_INIT:
+                width = field.getShort() & 0xffff;
+                height = field.getShort() & 0xffff;
+                field.get(pixelFormat);
+                this.updateBytesPerPixel();
+                if (broken) {
+                    return;
+                }
+                long nameLength = field.getInt() & 0xffffffffL;
+                if (nameLength > MAX_NAME_LENGTH) {
+                    this.fail("桌面名称过长: " + nameLength);
+                } else if (nameLength == 0) {
+                    this.start(offset);
+                } else {
+                    this.expect(NAME, (int) nameLength);
+                }
+                break;
+            case NAME:
+                name = new byte[field.remaining()];
+                field.get(name);
+                this.start(offset);
+                break;
+            case MESSAGE_TYPE:
+                this.message(field.get() & 0xff, offset);
+                break;
+            case UPDATE_HEADER:
+                rects = field.getShort(1) & 0xffff;
+                listener.update();
+                this.nextRect(offset);
+                break;
+            case RECT_HEADER:
+                this.rect(offset);
+                break;
+            case RRE_HEADER:
+                long subrects = field.getInt() & 0xffffffffL;
+                this.skip(subrects * (bytesPerPixel + 8), RECT_DONE, offset);
+                break;
+            case TILE:
+                this.tile(field.get() & 0xff, offset);
+                break;
+            case TILE_SUBRECTS:
+                int subrectCount = field.get(need - 1) & 0xff;
+                this.skip((long) subrectCount * (colouredSubrects ? bytesPerPixel + 2 : 2), TILE_DONE, offset);
+                break;
+            case COLOUR_MAP_HEADER:
+                this.skip(6L * (field.getShort(3) & 0xffff), MESSAGE_DONE, offset);
+                break;
+            case CUT_TEXT_HEADER:
+                this.skip(field.getInt(3) & 0xffffffffL, MESSAGE_DONE, offset);
+                break;
+            default:
+                this.fail("解析状态错误: " + state);
+        }
+    }
+
+    /**
+     * 协商版本和安全类型由控制端决定，目标端的下一个字节到达时控制端一定已经选择
+     */
+    private void decide() {
+        if (state == AWAIT_VERSION) {
+            if (minor < 0) {
+                this.fail("未收到控制端的协议版本");
+            } else if (minor == 3) {
+                this.expect(SECURITY_33, 4);
+            } else {
+                this.expect(SECURITY_COUNT, 1);
+            }
+        } else {
+            this.afterSecurity();
+        }
+    }
+
+    private void afterSecurity() {
+        if (securityType == RfbProtocol.SECURITY_VNC) {
+            this.expect(CHALLENGE, 16);
+        } else if (securityType == RfbProtocol.SECURITY_NONE) {
+            //3.8的None类型也返回认证结果
+            if (minor == 8) {
+                this.expect(SECURITY_RESULT, 4);
+            } else {
+                this.expect(SERVER_INIT, 24);
+            }
+        } else {
+            this.fail("不支持的安全类型: " + securityType);
+        }
+    }
+
+    private void start(long offset) {
+        ready = true;
+        listener.ready();
+        this.nextMessage(offset);
+    }
+
+    private void nextMessage(long offset) {
+        listener.boundary(offset);
+        this.expect(MESSAGE_TYPE, 1);
+    }
+
+    private void message(int type, long offset) {
+        switch (type) {
+            case RfbProtocol.FRAMEBUFFER_UPDATE:
+                this.expect(UPDATE_HEADER, 3);
+                break;
+            case RfbProtocol.SET_COLOUR_MAP_ENTRIES:
+                this.expect(COLOUR_MAP_HEADER, 5);
+                break;
+            case RfbProtocol.BELL:
+                this.nextMessage(offset);
+                break;
+            case RfbProtocol.SERVER_CUT_TEXT:
+                this.expect(CUT_TEXT_HEADER, 7);
+                break;
+            default:
+                this.fail("不支持的服务端消息: " + type);
+        }
+    }
+
+    private void nextRect(long offset) {
+        if (rects == 0) {
+            this.nextMessage(offset);
+        } else {
+            this.expect(RECT_HEADER, 12);
+        }
+    }
+
+    private void rect(long offset) {
+        field.position(4);
+        rectWidth = field.getShort() & 0xffff;
+        rectHeight = field.getShort() & 0xffff;
+        int encoding = field.getInt();
+        rects--;
+        long pixels = (long) rectWidth * rectHeight;
+        switch (encoding) {
+            case RfbProtocol.ENCODING_RAW:
+                this.skip(pixels * bytesPerPixel, RECT_DONE, offset);
+                break;
+            case RfbProtocol.ENCODING_COPY_RECT:
+                this.skip(4, RECT_DONE, offset);
+                break;
+            case RfbProtocol.ENCODING_RRE:
+                this.expect(RRE_HEADER, 4 + bytesPerPixel);
+                break;
+            case RfbProtocol.ENCODING_HEXTILE:
+                tileX = 0;
+                tileY = 0;
+                if (pixels == 0) {
+                    this.nextRect(offset);
+                } else {
+                    this.expect(TILE, 1);
+                }
+                break;
+            case RfbProtocol.ENCODING_DESKTOP_SIZE:
+                width = rectWidth;
+                height = rectHeight;
+                this.nextRect(offset);
+                break;
+            case RfbProtocol.ENCODING_LAST_RECT:
+                rects = 0;
+                this.nextRect(offset);
+                break;
+            case RfbProtocol.ENCODING_CURSOR:
+                this.skip(pixels * bytesPerPixel + (long) ((rectWidth + 7) / 8) * rectHeight, RECT_DONE, offset);
+                break;
+            default:
+                this.fail("不支持的编码: " + encoding);
+        }
+    }
+
+    /**
+     * Hextile的一个16x16块，右侧和底部的块可能更小
+     */
+    private void tile(int subencoding, long offset) {
+        int tileWidth = Math.min(16, rectWidth - tileX);
+        int tileHeight = Math.min(16, rectHeight - tileY);
+        if ((subencoding & 0x1) != 0) {
+            this.skip((long) tileWidth * tileHeight * bytesPerPixel, TILE_DONE, offset);
+            return;
+        }
+        int colours = ((subencoding & 0x2) != 0 ? bytesPerPixel : 0) + ((subencoding & 0x4) != 0 ? bytesPerPixel : 0);
+        if ((subencoding & 0x8) != 0) {
+            colouredSubrects = (subencoding & 0x10) != 0;
+            this.expect(TILE_SUBRECTS, colours + 1);
+        } else {
+            this.skip(colours, TILE_DONE, offset);
+        }
+    }
+
+    private void nextTile(long offset) {
+        tileX += 16;
+        if (tileX >= rectWidth) {
+            tileX = 0;
+            tileY += 16;
+        }
+        if (tileY >= rectHeight) {
+            this.nextRect(offset);
+        } else {
+            this.expect(TILE, 1);
+        }
+    }
+
+    private void expect(int state, int need) {
+        this.state = state;
+        this.need = need;
+        field.clear();
+    }
+
+    /**
+     * 跳过length字节后进入next状态，长度为0时直接进入
+     */
+    private void skip(long length, int next, long offset) {
+        if (length == 0) {
+            this.resume(next, offset);
+        } else {
+            skip = length;
+            afterSkip = next;
+        }
+    }
+
+    private void resume(int next, long offset) {
+        switch (next) {
+            case RECT_DONE:
+                this.nextRect(offset);
+                break;
+            case TILE_DONE:
+                this.nextTile(offset);
+                break;
+            case MESSAGE_DONE:
+                this.nextMessage(offset);
+                break;
+            default:
+                //跳过安全类型列表后等待控制端选择
+                break;
+        }
+    }
+
+    private void updateBytesPerPixel() {
+        bytesPerPixel = (pixelFormat[0] & 0xff) / 8;
+        if (bytesPerPixel != 1 && bytesPerPixel != 2 && bytesPerPixel != 4) {
+            this.fail("不支持的像素格式: " + (pixelFormat[0] & 0xff));
+        }
+    }
+
+    /**
+     * 标记为失效，之后不再解析
+     */
+    void fail(String reason) {
+        if (!broken) {
+            broken = true;
+            listener.broken(reason);
+        }
+    }
+
+    /**
+     * 控制端的协议版本，不高于目标端的版本
+     */
+    void setMinor(int minor) {
+        this.minor = Math.min(minor, serverMinor);
+    }
+
+    /**
+     * 控制端选择的安全类型，3.7及以上版本
+     */
+    void setSecurityType(int securityType) {
+        this.securityType = securityType;
+    }
+
+    /**
+     * 控制端的SetPixelFormat，之后的画面按新格式计算长度
+     * @param buffer 缓冲区
+     * @param pos 16字节像素格式的起始位置
+     */
+    void setPixelFormat(ByteBuffer buffer, int pos) {
+        for (int i = 0; i < pixelFormat.length; i++) {
+            pixelFormat[i] = buffer.get(pos + i);
+        }
+        this.updateBytesPerPixel();
+    }
+
+    int getSecurityType() {
+        return securityType;
+    }
+
+    int getWidth() {
+        return width;
+    }
+
+    int getHeight() {
+        return height;
+    }
+
+    byte[] getPixelFormat() {
+        return pixelFormat;
+    }
+
+    byte[] getName() {
+        return name;
+    }
+
+    boolean isReady() {
+        return ready;
+    }
+
+    boolean isBroken() {
+        return broken;
+    }
+}
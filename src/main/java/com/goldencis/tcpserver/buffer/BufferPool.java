@@ -0,0 +1,268 @@
+package com.goldencis.tcpserver.buffer;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import java.nio.ByteBuffer;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 转发会话共用的直接内存缓冲池。
+ * 按2的幂划分大小等级，每个等级从固定大小的slab中切分出缓冲块，归还后重复使用。
+ * 所有slab的总大小受maxMemory限制，达到限制时acquire返回null，从套接字读取的调用方暂停读取，
+ * 并通过await在有缓冲块归还时恢复，读入的数据总量因此受内存上限约束。
+ * 长度已受流控窗口、水位或消息格式限制的二次拷贝和控制帧使用allocate，达到限制时退化为非池化的堆缓冲区。
+ * 会话只在有数据传输时借用缓冲块，通道空闲后立即归还。
+ */
+@Component
+public class BufferPool {
+
+    @Value("${relay.buffer.min-chunk-size:512}")
+    private int minChunkSize = 512;
+
+    @Value("${relay.buffer.max-chunk-size:262144}")
+    private int maxChunkSize = 256 * 1024;
+
+    @Value("${relay.buffer.slab-size:1048576}")
+    private int slabSize = 1024 * 1024;
+
+    @Value("${relay.buffer.max-memory:268435456}")
+    private long maxMemory = 256L * 1024 * 1024;
+
+    //转发会话每次读取使用的缓冲块大小
+    @Value("${relay.buffer.read-chunk-size:65536}")
+    private int readChunkSize = 64 * 1024;
+
+    private SizeClass[] sizeClasses;
+
+    //已分配的slab总字节数
+    private final AtomicLong allocated = new AtomicLong();
+
+    //借出中的字节数及其峰值
+    private final AtomicLong inUse = new AtomicLong();
+
+    private final AtomicLong highWaterMark = new AtomicLong();
+
+    //allocate因超出上限而分配的非池化缓冲区个数
+    private final AtomicLong overflow = new AtomicLong();
+
+    //acquire因超出上限而借用失败的次数
+    private final AtomicLong exhausted = new AtomicLong();
+
+    //借用失败后等待缓冲块归还的回调，归还时全部取出执行一次
+    private final Queue<Runnable> waiters = new ConcurrentLinkedQueue<>();
+
+    public BufferPool() {
+    }
+
+    public BufferPool(int minChunkSize, int maxChunkSize, int slabSize, long maxMemory) {
+        this.minChunkSize = minChunkSize;
+        this.maxChunkSize = maxChunkSize;
+        this.slabSize = slabSize;
+        this.maxMemory = maxMemory;
+        this.init();
+    }
+
+    @PostConstruct
+    public void init() {
+        int count = 0;
+        for (int size = minChunkSize; size <= maxChunkSize; size <<= 1) {
+            count++;
+        }
+        sizeClasses = new SizeClass[count];
+        for (int i = 0, size = minChunkSize; i < count; i++, size <<= 1) {
+            sizeClasses[i] = new SizeClass(size, Math.max(size, slabSize));
+        }
+    }
+
+    /**
+     * 借用一个容量不小于size的缓冲块，position为0，limit为size。
+     * 本等级没有空闲块且已达到内存上限时，借用更大等级的空闲块，limit同样为size，调用方读入的数据不超过size
+     * @param size 需要的字节数
+     * @return 缓冲块，超出最大等级或已达到内存上限时返回null
+     */
+    public ByteBuffer acquire(int size) {
+        ByteBuffer buffer = null;
+        for (int i = this.indexOf(size); i >= 0 && i < sizeClasses.length && buffer == null; i++) {
+            buffer = sizeClasses[i].poll(i == this.indexOf(size));
+        }
+        if (buffer == null) {
+            exhausted.incrementAndGet();
+            return null;
+        }
+
+        long used = inUse.addAndGet(buffer.capacity());
+        long mark;
+        while (used > (mark = highWaterMark.get()) && !highWaterMark.compareAndSet(mark, used)) {
+        }
+        buffer.clear();
+        buffer.limit(size);
+        return buffer;
+    }
+
+    /**
+     * 借用缓冲块，已达到内存上限时分配非池化的堆缓冲区。
+     * 只用于长度已受流控窗口、水位或消息格式限制的数据，从套接字读取必须使用acquire
+     * @param size 需要的字节数
+     * @return 缓冲块
+     */
+    public ByteBuffer allocate(int size) {
+        ByteBuffer buffer = this.acquire(size);
+        if (buffer == null) {
+            overflow.incrementAndGet();
+            return ByteBuffer.allocate(size);
+        }
+        return buffer;
+    }
+
+    /**
+     * acquire返回null后登记回调，有缓冲块归还时在归还的线程中执行一次。
+     * 登记时已有可借的缓冲块则立即执行，不会错过登记之前的归还
+     * @param size 需要的字节数
+     * @param waiter 回调，应把恢复读取的动作提交到调用方所属的线程
+     */
+    public void await(int size, Runnable waiter) {
+        waiters.add(waiter);
+        if (this.isAvailable(size)) {
+            this.wakeUp();
+        }
+    }
+
+    private boolean isAvailable(int size) {
+        int index = this.indexOf(size);
+        if (index < 0) {
+            return false;
+        }
+        if (allocated.get() + sizeClasses[index].slabSize <= maxMemory) {
+            return true;
+        }
+        for (int i = index; i < sizeClasses.length; i++) {
+            if (sizeClasses[i].freeCount() > 0) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void wakeUp() {
+        Runnable waiter;
+        while ((waiter = waiters.poll()) != null) {
+            waiter.run();
+        }
+    }
+
+    /**
+     * 归还缓冲块，非池化的缓冲块直接丢弃
+     * @param buffer 缓冲块
+     */
+    public void release(ByteBuffer buffer) {
+        if (buffer == null || !buffer.isDirect()) {
+            return;
+        }
+        SizeClass sizeClass = this.sizeClassOf(buffer.capacity());
+        if (sizeClass != null && sizeClass.chunkSize == buffer.capacity()) {
+            inUse.addAndGet(-buffer.capacity());
+            sizeClass.offer(buffer);
+            if (!waiters.isEmpty()) {
+                this.wakeUp();
+            }
+        }
+    }
+
+    private SizeClass sizeClassOf(int size) {
+        int index = this.indexOf(size);
+        return index < 0 ? null : sizeClasses[index];
+    }
+
+    /**
+     * 容量不小于size的最小等级，超出最大等级时返回-1
+     */
+    private int indexOf(int size) {
+        for (int i = 0; i < sizeClasses.length; i++) {
+            if (sizeClasses[i].chunkSize >= size) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    public int getReadChunkSize() {
+        return readChunkSize;
+    }
+
+    public BufferPoolStats getStats() {
+        long free = 0;
+        for (SizeClass sizeClass : sizeClasses) {
+            free += (long) sizeClass.freeCount() * sizeClass.chunkSize;
+        }
+        return new BufferPoolStats(allocated.get(), inUse.get(), free, highWaterMark.get(), overflow.get(),
+                exhausted.get(), maxMemory);
+    }
+
+    /**
+     * 同一大小等级的缓冲块，空闲块保存在数组栈中
+     */
+    private class SizeClass {
+
+        private final int chunkSize;
+
+        private final int slabSize;
+
+        private ByteBuffer[] free = new ByteBuffer[16];
+
+        private int top;
+
+        SizeClass(int chunkSize, int slabSize) {
+            this.chunkSize = chunkSize;
+            this.slabSize = slabSize;
+        }
+
+        /**
+         * @param grow 没有空闲块时是否分配新的slab
+         */
+        synchronized ByteBuffer poll(boolean grow) {
+            if (top == 0 && (!grow || !this.allocateSlab())) {
+                return null;
+            }
+            ByteBuffer buffer = free[--top];
+            free[top] = null;
+            return buffer;
+        }
+
+        synchronized void offer(ByteBuffer buffer) {
+            if (top == free.length) {
+                ByteBuffer[] grown = new ByteBuffer[free.length << 1];
+                System.arraycopy(free, 0, grown, 0, top);
+                free = grown;
+            }
+            free[top++] = buffer;
+        }
+
+        synchronized int freeCount() {
+            return top;
+        }
+
+        /**
+         * 在内存上限内分配一个新的slab，并切分为缓冲块
+         */
+        private boolean allocateSlab() {
+            long current;
+            do {
+                current = allocated.get();
+                if (current + slabSize > maxMemory) {
+                    return false;
+                }
+            } while (!allocated.compareAndSet(current, current + slabSize));
+
+            ByteBuffer slab = ByteBuffer.allocateDirect(slabSize);
+            for (int offset = 0; offset + chunkSize <= slabSize; offset += chunkSize) {
+                slab.limit(offset + chunkSize).position(offset);
+                this.offer(slab.slice());
+            }
+            return true;
+        }
+    }
+}
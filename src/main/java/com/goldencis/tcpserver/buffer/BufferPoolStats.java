@@ -0,0 +1,67 @@
+package com.goldencis.tcpserver.buffer;
+
+/**
+ * 缓冲池的统计快照，单位均为字节
+ */
+public class BufferPoolStats {
+
+    //已分配的slab总大小
+    private final long allocated;
+
+    //借出中的大小
+    private final long inUse;
+
+    //空闲可借的大小
+    private final long free;
+
+    //借出大小的峰值
+    private final long highWaterMark;
+
+    //超出上限而分配的非池化缓冲区个数
+    private final long overflow;
+
+    //超出上限而借用失败的次数
+    private final long exhausted;
+
+    //内存上限
+    private final long maxMemory;
+
+    public BufferPoolStats(long allocated, long inUse, long free, long highWaterMark, long overflow, long exhausted,
+                           long maxMemory) {
+        this.allocated = allocated;
+        this.inUse = inUse;
+        this.free = free;
+        this.highWaterMark = highWaterMark;
+        this.overflow = overflow;
+        this.exhausted = exhausted;
+        this.maxMemory = maxMemory;
+    }
+
+    public long getAllocated() {
+        return allocated;
+    }
+
+    public long getInUse() {
+        return inUse;
+    }
+
+    public long getFree() {
+        return free;
+    }
+
+    public long getHighWaterMark() {
+        return highWaterMark;
+    }
+
+    public long getOverflow() {
+        return overflow;
+    }
+
+    public long getExhausted() {
+        return exhausted;
+    }
+
+    public long getMaxMemory() {
+        return maxMemory;
+    }
+}
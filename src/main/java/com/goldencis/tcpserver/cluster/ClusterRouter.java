@@ -0,0 +1,352 @@
+package com.goldencis.tcpserver.cluster;
+
+import com.goldencis.tcpserver.buffer.BufferPool;
+import com.goldencis.tcpserver.constants.ConstantsDto;
+import com.goldencis.tcpserver.entity.TcpProtocolBody;
+import com.goldencis.tcpserver.mq.MQClient;
+import com.goldencis.tcpserver.mq.RedisNotifier;
+import com.goldencis.tcpserver.runner.EventLoop;
+import com.goldencis.tcpserver.runner.EventLoopGroup;
+import com.goldencis.tcpserver.utils.TcpProtocolException;
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.MeterBinder;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 多节点部署时的目标端路由。
+ * noVNC端所在的节点登记会话时，把管道id到本节点地址的映射写入redis；
+ * 目标端连接到其他节点时，该节点查到管道所在的节点，经节点之间的持久隧道把连接转发过去，
+ * 对方节点用回环连接交给自己的目标端监听服务，按原有流程握手和转发。
+ * 只支持nio转发引擎。
+ */
+@Component
+public class ClusterRouter implements MeterBinder {
+
+    //管道路由的redis键前缀
+    public static final String ROUTE_PREFIX = "relay:pipe:";
+
+    @Value("${relay.cluster.enabled:false}")
+    private boolean enabled;
+
+    //其他节点连接本节点隧道端口的地址，host:port
+    @Value("${relay.cluster.node-address:127.0.0.1:9990}")
+    private String nodeAddress = "127.0.0.1:9990";
+
+    @Value("${relay.cluster.tunnel-port:9990}")
+    private int tunnelPort = 9990;
+
+    //路由的有效秒数，不短于配对超时
+    @Value("${relay.cluster.route-ttl-seconds:60}")
+    private int routeTtlSeconds = 60;
+
+    @Value("${relay.cluster.connect-timeout-ms:3000}")
+    private int connectTimeoutMillis = 3000;
+
+    @Value("${server.VNCtarget.port:0}")
+    private int targetPort;
+
+    //隧道及其中每个流的背压水位，与下行方向相同
+    @Value("${relay.backpressure.downstream.high-watermark:1048576}")
+    private int highWatermark = 1024 * 1024;
+
+    @Value("${relay.backpressure.downstream.low-watermark:262144}")
+    private int lowWatermark = 256 * 1024;
+
+    @Autowired
+    private RedisNotifier notifier;
+
+    @Autowired
+    private MQClient mqClient;
+
+    @Autowired
+    private EventLoopGroup eventLoopGroup;
+
+    @Autowired
+    private BufferPool bufferPool;
+
+    //查询路由和建立隧道会阻塞，不在监听线程中执行
+    @Autowired
+    @Qualifier("asyncServiceExecutor")
+    private Executor executor;
+
+    //本节点发起的隧道，按对方节点地址
+    private final Map<String, Tunnel> tunnels = new ConcurrentHashMap<>();
+
+    //所有隧道，包括对方节点发起的
+    private final Set<Tunnel> active = ConcurrentHashMap.newKeySet();
+
+    //接收方回环连接的本地端口，这些连接不再转发
+    private final Set<Integer> loopbackPorts = ConcurrentHashMap.newKeySet();
+
+    private final AtomicInteger streams = new AtomicInteger();
+
+    private final LongAdder forwarded = new LongAdder();
+
+    private final LongAdder forwardFailed = new LongAdder();
+
+    private ServerSocketChannel server;
+
+    public ClusterRouter() {
+    }
+
+    public ClusterRouter(String nodeAddress, int tunnelPort, int targetPort, RedisNotifier notifier, MQClient mqClient,
+                         EventLoopGroup eventLoopGroup, BufferPool bufferPool, Executor executor) {
+        this.enabled = true;
+        this.nodeAddress = nodeAddress;
+        this.tunnelPort = tunnelPort;
+        this.targetPort = targetPort;
+        this.notifier = notifier;
+        this.mqClient = mqClient;
+        this.eventLoopGroup = eventLoopGroup;
+        this.bufferPool = bufferPool;
+        this.executor = executor;
+    }
+
+    @PostConstruct
+    public void start() throws IOException {
+        if (!enabled) {
+            return;
+        }
+        server = ServerSocketChannel.open();
+        server.bind(new InetSocketAddress(tunnelPort));
+        Thread acceptor = new Thread(this::accept, "cluster-acceptor");
+        acceptor.setDaemon(true);
+        acceptor.start();
+    }
+
+    /**
+     * 接收其他节点发起的隧道
+     */
+    private void accept() {
+        while (true) {
+            try {
+                SocketChannel channel = server.accept();
+                channel.socket().setTcpNoDelay(true);
+                channel.configureBlocking(false);
+                this.newTunnel(channel, false);
+            } catch (ClosedChannelException e) {
+                //已停止
+                return;
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * 登记管道所在的节点，与之后的客户端通知经同一队列按顺序写入redis
+     * @param pipe 管道id
+     */
+    public CompletableFuture<Boolean> register(String pipe) {
+        return notifier.route(ROUTE_PREFIX + pipe, nodeAddress, routeTtlSeconds);
+    }
+
+    /**
+     * 把本节点没有对应会话的目标端连接转发到管道所在的节点，不阻塞调用线程
+     * 查不到路由或转发失败时关闭目标端通道
+     * @param target 已读完握手帧的目标端通道，非阻塞模式
+     * @param body 目标端的协议体
+     * @throws IOException 该连接本身是经隧道转入的
+     */
+    public void forward(SocketChannel target, TcpProtocolBody body) throws IOException {
+        //经隧道转入本节点的连接不再转发，避免路由过期时在节点之间循环
+        InetSocketAddress remote = (InetSocketAddress) target.getRemoteAddress();
+        if (remote.getAddress().isLoopbackAddress() && loopbackPorts.contains(remote.getPort())) {
+            throw new TcpProtocolException("管道不存在或已配对: " + body.getPipe());
+        }
+
+        //按请求的协议版本重新编码握手帧，由对方节点的目标端监听服务解析
+        ByteBuffer handshake = ByteBuffer.allocate(1024);
+        TcpProtocolBody.response(ConstantsDto.CONNECT_VNC_CLIENT, body, handshake);
+        handshake.flip();
+
+        String pipe = body.getPipe();
+        executor.execute(() -> {
+            try {
+                String node = mqClient.getValue(ROUTE_PREFIX + pipe);
+                if (node == null || node.equals(nodeAddress)) {
+                    throw new TcpProtocolException("管道不在集群中: " + pipe);
+                }
+                Tunnel tunnel = this.tunnelTo(node);
+                tunnel.getLoop().execute(() -> tunnel.open(target, handshake));
+            } catch (Exception e) {
+                this.streamFailed(target);
+            }
+        });
+    }
+
+    /**
+     * 获取到对方节点的隧道，没有时建立
+     */
+    private synchronized Tunnel tunnelTo(String node) throws IOException {
+        Tunnel tunnel = tunnels.get(node);
+        if (tunnel != null) {
+            return tunnel;
+        }
+        int separator = node.lastIndexOf(':');
+        InetSocketAddress address = new InetSocketAddress(node.substring(0, separator), Integer.parseInt(node.substring(separator + 1)));
+        SocketChannel channel = SocketChannel.open();
+        try {
+            channel.socket().connect(address, connectTimeoutMillis);
+            channel.socket().setTcpNoDelay(true);
+            ByteBuffer magic = ByteBuffer.allocate(4);
+            magic.putInt(Tunnel.MAGIC);
+            magic.flip();
+            while (magic.hasRemaining()) {
+                channel.write(magic);
+            }
+            channel.configureBlocking(false);
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+        tunnel = this.newTunnel(channel, true);
+        tunnels.put(node, tunnel);
+        return tunnel;
+    }
+
+    private Tunnel newTunnel(SocketChannel channel, boolean initiator) throws IOException {
+        EventLoop loop;
+        try {
+            loop = eventLoopGroup.next();
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+        Tunnel tunnel = new Tunnel(this, channel, loop, bufferPool, initiator, highWatermark, lowWatermark);
+        active.add(tunnel);
+        loop.execute(tunnel::register);
+        return tunnel;
+    }
+
+    /**
+     * 接收方收到OPEN帧，建立到本节点目标端端口的回环连接，在隧道的事件循环线程中调用
+     * @return 流，连接失败时返回null
+     */
+    TunnelStream connectLocal(Tunnel tunnel, int id) {
+        SocketChannel channel = null;
+        try {
+            channel = SocketChannel.open();
+            channel.configureBlocking(false);
+            channel.socket().setTcpNoDelay(true);
+            channel.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+            int port = ((InetSocketAddress) channel.getLocalAddress()).getPort();
+            TunnelStream stream = new TunnelStream(tunnel, id, channel, bufferPool, highWatermark, lowWatermark);
+            stream.setLoopbackPort(port);
+            loopbackPorts.add(port);
+            boolean connected = channel.connect(new InetSocketAddress(InetAddress.getLoopbackAddress(), targetPort));
+            stream.register(tunnel.getLoop(), connected ? SelectionKey.OP_READ : SelectionKey.OP_CONNECT);
+            return stream;
+        } catch (IOException e) {
+            e.printStackTrace();
+            if (channel != null) {
+                try {
+                    channel.close();
+                } catch (IOException ex) {
+                    //忽略
+                }
+            }
+            return null;
+        }
+    }
+
+    void streamOpened(boolean forwarding) {
+        streams.incrementAndGet();
+        if (forwarding) {
+            forwarded.increment();
+        }
+    }
+
+    void streamClosed(TunnelStream stream) {
+        streams.decrementAndGet();
+        if (stream.getLoopbackPort() != 0) {
+            loopbackPorts.remove(stream.getLoopbackPort());
+        }
+    }
+
+    /**
+     * 转发失败，关闭目标端通道
+     */
+    void streamFailed(SocketChannel target) {
+        forwardFailed.increment();
+        try {
+            target.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    void tunnelClosed(Tunnel tunnel) {
+        active.remove(tunnel);
+        tunnels.values().remove(tunnel);
+    }
+
+    @PreDestroy
+    public void stop() {
+        try {
+            if (server != null) {
+                server.close();
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        for (Tunnel tunnel : active) {
+            tunnel.getLoop().execute(tunnel::close);
+        }
+    }
+
+    @Override
+    public void bindTo(MeterRegistry registry) {
+        FunctionCounter.builder("relay.cluster.forwarded", forwarded, LongAdder::sum).register(registry);
+        FunctionCounter.builder("relay.cluster.forward.failed", forwardFailed, LongAdder::sum).register(registry);
+        Gauge.builder("relay.cluster.tunnels", active, Set::size).register(registry);
+        Gauge.builder("relay.cluster.streams", streams, AtomicInteger::get).register(registry);
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    public int getTunnelPort() {
+        return server == null ? tunnelPort : server.socket().getLocalPort();
+    }
+
+    public int getTunnelCount() {
+        return active.size();
+    }
+
+    public int getStreamCount() {
+        return streams.get();
+    }
+
+    public long getForwardedCount() {
+        return forwarded.sum();
+    }
+
+    public long getForwardFailedCount() {
+        return forwardFailed.sum();
+    }
+}
@@ -0,0 +1,288 @@
+package com.goldencis.tcpserver.cluster;
+
+import com.goldencis.tcpserver.buffer.BufferPool;
+import com.goldencis.tcpserver.runner.EventLoop;
+import com.goldencis.tcpserver.runner.RelayDirection;
+import com.goldencis.tcpserver.runner.SelectionHandler;
+import com.goldencis.tcpserver.utils.StreamFrameDecoder;
+import com.goldencis.tcpserver.utils.StreamFrameEncoder;
+import com.goldencis.tcpserver.utils.TcpProtocolException;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * 两个节点之间的持久隧道，一个tcp连接上承载多个转发流。
+ * 帧格式见{@link StreamFrameEncoder}，隧道只使用OPEN、DATA、CLOSE。
+ * 发起方连接后先发送MAGIC，之后只由发起方打开流，OPEN帧的负载为目标端的握手帧。
+ * 隧道和其上的所有流在同一个事件循环中处理，只在该循环的线程中调用。
+ * 隧道待写数据达到高水位时暂停所有流的读取；某个流的本地通道写不进去时暂停读取隧道，
+ * 此时同一隧道上的其他流也一并等待。
+ */
+public class Tunnel implements SelectionHandler {
+
+    public static final int MAGIC = 0x52544e31;
+
+    private final ClusterRouter router;
+
+    private final SocketChannel channel;
+
+    private final EventLoop loop;
+
+    private final BufferPool bufferPool;
+
+    //是否为发起方
+    private final boolean initiator;
+
+    private final int highWatermark;
+
+    private final int lowWatermark;
+
+    private SelectionKey key;
+
+    private final Map<Integer, TunnelStream> streams = new HashMap<>();
+
+    private int nextStreamId;
+
+    //接收方先校验MAGIC
+    private final StreamFrameDecoder decoder;
+
+    //待写出的帧，均为读模式
+    private final ArrayDeque<ByteBuffer> pending = new ArrayDeque<>();
+
+    private long pendingBytes;
+
+    //是否因待写数据过多而暂停了各个流的读取
+    private boolean streamsPaused;
+
+    //本地通道写不进去的流的个数，不为0时暂停读取隧道
+    private int blockedStreams;
+
+    private boolean closed;
+
+    Tunnel(ClusterRouter router, SocketChannel channel, EventLoop loop, BufferPool bufferPool, boolean initiator,
+           int highWatermark, int lowWatermark) {
+        this.router = router;
+        this.channel = channel;
+        this.loop = loop;
+        this.bufferPool = bufferPool;
+        this.initiator = initiator;
+        this.highWatermark = highWatermark;
+        this.lowWatermark = lowWatermark;
+        this.decoder = new StreamFrameDecoder(bufferPool.getReadChunkSize(), initiator ? 0 : MAGIC);
+    }
+
+    /**
+     * 注册到事件循环，只能在所属循环的线程中调用
+     */
+    void register() {
+        try {
+            key = loop.register(channel, SelectionKey.OP_READ, this);
+        } catch (IOException e) {
+            this.close();
+        }
+    }
+
+    /**
+     * 打开一个流，转发本节点收到的目标端连接，只由发起方调用
+     * @param target 目标端通道，非阻塞模式
+     * @param handshake 目标端的握手帧，读模式
+     */
+    void open(SocketChannel target, ByteBuffer handshake) {
+        if (closed) {
+            router.streamFailed(target);
+            return;
+        }
+        int id = ++nextStreamId;
+        TunnelStream stream = new TunnelStream(this, id, target, bufferPool, highWatermark, lowWatermark);
+        try {
+            stream.register(loop, SelectionKey.OP_READ);
+        } catch (IOException e) {
+            router.streamFailed(target);
+            return;
+        }
+        streams.put(id, stream);
+        router.streamOpened(true);
+
+        ByteBuffer frame = StreamFrameEncoder.acquire(bufferPool, handshake.remaining());
+        frame.put(handshake);
+        frame.flip();
+        this.send(id, StreamFrameEncoder.OPEN, frame);
+    }
+
+    @Override
+    public void handle(SelectionKey key) throws IOException {
+        if (key.isWritable()) {
+            this.flush();
+        }
+        if (key.isReadable()) {
+            this.read();
+        }
+    }
+
+    private void read() throws IOException {
+        int budget = loop.getReadBudget();
+        while (budget-- > 0 && blockedStreams == 0 && !closed) {
+            if (decoder.read(channel, this::frame) == 0) {
+                break;
+            }
+        }
+        RelayDirection.interest(key, SelectionKey.OP_READ, blockedStreams == 0);
+    }
+
+    private void frame(int id, byte type, ByteBuffer payload) throws IOException {
+        if (closed) {
+            return;
+        }
+        TunnelStream stream = streams.get(id);
+        switch (type) {
+            case StreamFrameEncoder.OPEN:
+                if (initiator || stream != null) {
+                    throw new TcpProtocolException("隧道流id错误: " + id);
+                }
+                stream = router.connectLocal(this, id);
+                if (stream == null) {
+                    this.sendClose(id);
+                    return;
+                }
+                streams.put(id, stream);
+                router.streamOpened(false);
+                stream.write(payload);
+                break;
+            case StreamFrameEncoder.DATA:
+                //本地已关闭的流，丢弃途中的数据
+                if (stream != null) {
+                    stream.write(payload);
+                }
+                break;
+            case StreamFrameEncoder.CLOSE:
+                if (stream != null) {
+                    stream.remoteClose();
+                }
+                break;
+            default:
+                throw new TcpProtocolException("隧道帧类型错误: " + type);
+        }
+    }
+
+    /**
+     * 发送一帧
+     * @param frame 读模式的缓冲块，负载前预留了帧头空间，发送后由隧道归还
+     */
+    void send(int id, byte type, ByteBuffer frame) {
+        if (closed) {
+            bufferPool.release(frame);
+            return;
+        }
+        StreamFrameEncoder.header(frame, id, type);
+        pending.addLast(frame);
+        pendingBytes += frame.remaining();
+        try {
+            this.flush();
+        } catch (IOException e) {
+            this.close();
+            return;
+        }
+
+        //达到高水位，暂停各个流的读取
+        if (!streamsPaused && pendingBytes >= highWatermark) {
+            streamsPaused = true;
+            for (TunnelStream stream : streams.values()) {
+                stream.pauseRead(true);
+            }
+        }
+    }
+
+    void sendClose(int id) {
+        ByteBuffer frame = StreamFrameEncoder.acquire(bufferPool, 0);
+        frame.flip();
+        this.send(id, StreamFrameEncoder.CLOSE, frame);
+    }
+
+    private void flush() throws IOException {
+        ByteBuffer frame;
+        while ((frame = pending.peekFirst()) != null) {
+            pendingBytes -= channel.write(frame);
+            if (frame.hasRemaining()) {
+                break;
+            }
+            pending.pollFirst();
+            bufferPool.release(frame);
+        }
+        RelayDirection.interest(key, SelectionKey.OP_WRITE, !pending.isEmpty());
+
+        //降到低水位以下，恢复各个流的读取
+        if (streamsPaused && pendingBytes <= lowWatermark) {
+            streamsPaused = false;
+            for (TunnelStream stream : new ArrayList<>(streams.values())) {
+                stream.pauseRead(false);
+            }
+        }
+    }
+
+    /**
+     * 流的本地通道写不进去或已写出，调整隧道的读取
+     */
+    void streamBlocked(boolean blocked) {
+        blockedStreams += blocked ? 1 : -1;
+        if (blockedStreams == 0 && !closed) {
+            RelayDirection.interest(key, SelectionKey.OP_READ, true);
+        }
+    }
+
+    /**
+     * 流关闭后移除
+     */
+    void removed(TunnelStream stream) {
+        if (streams.remove(stream.getId(), stream)) {
+            router.streamClosed(stream);
+        }
+    }
+
+    boolean isStreamsPaused() {
+        return streamsPaused;
+    }
+
+    boolean isClosed() {
+        return closed;
+    }
+
+    EventLoop getLoop() {
+        return loop;
+    }
+
+    int getStreamCount() {
+        return streams.size();
+    }
+
+    @Override
+    public void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        for (TunnelStream stream : new ArrayList<>(streams.values())) {
+            stream.close(false);
+        }
+        ByteBuffer frame;
+        while ((frame = pending.pollFirst()) != null) {
+            bufferPool.release(frame);
+        }
+        pendingBytes = 0;
+        if (key != null) {
+            key.cancel();
+        }
+        try {
+            channel.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        router.tunnelClosed(this);
+    }
+}
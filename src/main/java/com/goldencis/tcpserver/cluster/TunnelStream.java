@@ -0,0 +1,244 @@
+package com.goldencis.tcpserver.cluster;
+
+import com.goldencis.tcpserver.buffer.BufferPool;
+import com.goldencis.tcpserver.runner.EventLoop;
+import com.goldencis.tcpserver.runner.RelayDirection;
+import com.goldencis.tcpserver.runner.SelectionHandler;
+import com.goldencis.tcpserver.utils.StreamFrameEncoder;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+
+/**
+ * 隧道上的一个流，对应一个本地通道。
+ * 发起方的本地通道为转发过来的目标端连接，接收方的本地通道为连接本节点目标端端口的回环连接，
+ * 由本节点的VNCTargetServer按原有流程完成握手和转发。
+ * 本地通道读到的数据作为DATA帧发送，收到的DATA帧写入本地通道，任一侧关闭后整个流关闭。
+ * 只在所属隧道的事件循环线程中调用。
+ */
+class TunnelStream implements SelectionHandler {
+
+    private final Tunnel tunnel;
+
+    private final int id;
+
+    private final SocketChannel channel;
+
+    private final BufferPool bufferPool;
+
+    private final int highWatermark;
+
+    private final int lowWatermark;
+
+    private SelectionKey key;
+
+    //接收方回环连接的本地端口，发起方为0
+    private int loopbackPort;
+
+    //待写入本地通道的数据，均为读模式
+    private final ArrayDeque<ByteBuffer> pending = new ArrayDeque<>();
+
+    private long pendingBytes;
+
+    //本地通道写不进去，已暂停隧道的读取
+    private boolean blocked;
+
+    //对端已关闭，写完待写数据后关闭
+    private boolean remoteClosed;
+
+    //缓冲池达到内存上限，暂停读取本地通道，有缓冲块归还时恢复
+    private boolean starved;
+
+    private boolean closed;
+
+    TunnelStream(Tunnel tunnel, int id, SocketChannel channel, BufferPool bufferPool, int highWatermark, int lowWatermark) {
+        this.tunnel = tunnel;
+        this.id = id;
+        this.channel = channel;
+        this.bufferPool = bufferPool;
+        this.highWatermark = highWatermark;
+        this.lowWatermark = lowWatermark;
+    }
+
+    void register(EventLoop loop, int ops) throws IOException {
+        key = loop.register(channel, tunnel.isStreamsPaused() ? ops & ~SelectionKey.OP_READ : ops, this);
+    }
+
+    @Override
+    public void handle(SelectionKey key) throws IOException {
+        if (key.isConnectable()) {
+            channel.finishConnect();
+            RelayDirection.interest(key, SelectionKey.OP_CONNECT, false);
+            RelayDirection.interest(key, SelectionKey.OP_READ, !tunnel.isStreamsPaused() && !starved);
+            this.flush();
+            return;
+        }
+        if (key.isWritable()) {
+            this.flush();
+        }
+        if (key.isValid() && key.isReadable()) {
+            this.read();
+        }
+    }
+
+    private void read() throws IOException {
+        int budget = tunnel.getLoop().getReadBudget();
+        while (budget-- > 0 && !closed && !tunnel.isStreamsPaused()) {
+            ByteBuffer chunk = bufferPool.acquire(bufferPool.getReadChunkSize());
+            if (chunk == null) {
+                starved = true;
+                RelayDirection.interest(key, SelectionKey.OP_READ, false);
+                bufferPool.await(bufferPool.getReadChunkSize(), () -> tunnel.getLoop().execute(this::unstarve));
+                return;
+            }
+            chunk.position(StreamFrameEncoder.HEADER_SIZE);
+            int read;
+            try {
+                read = channel.read(chunk);
+            } catch (IOException e) {
+                bufferPool.release(chunk);
+                throw e;
+            }
+            if (read <= 0) {
+                bufferPool.release(chunk);
+                if (read < 0) {
+                    this.close();
+                }
+                return;
+            }
+            chunk.flip();
+            tunnel.send(id, StreamFrameEncoder.DATA, chunk);
+        }
+    }
+
+    /**
+     * 写入隧道收到的负载
+     * @param payload 读模式，只读取剩余部分，不保留引用
+     */
+    void write(ByteBuffer payload) {
+        if (closed || !payload.hasRemaining()) {
+            return;
+        }
+        ByteBuffer chunk = bufferPool.allocate(payload.remaining());
+        chunk.put(payload);
+        chunk.flip();
+        pending.addLast(chunk);
+        pendingBytes += chunk.remaining();
+        try {
+            this.flush();
+        } catch (IOException e) {
+            this.close();
+            return;
+        }
+        if (!blocked && pendingBytes >= highWatermark) {
+            blocked = true;
+            tunnel.streamBlocked(true);
+        }
+    }
+
+    private void flush() throws IOException {
+        //回环连接尚未建立
+        if (!channel.isConnected()) {
+            return;
+        }
+        ByteBuffer chunk;
+        while ((chunk = pending.peekFirst()) != null) {
+            pendingBytes -= channel.write(chunk);
+            if (chunk.hasRemaining()) {
+                break;
+            }
+            pending.pollFirst();
+            bufferPool.release(chunk);
+        }
+        RelayDirection.interest(key, SelectionKey.OP_WRITE, !pending.isEmpty());
+
+        if (blocked && pendingBytes <= lowWatermark) {
+            blocked = false;
+            tunnel.streamBlocked(false);
+        }
+        if (remoteClosed && pending.isEmpty()) {
+            this.close(false);
+        }
+    }
+
+    /**
+     * 隧道待写数据过多时暂停读取本地通道
+     */
+    void pauseRead(boolean paused) {
+        if (channel.isConnected()) {
+            RelayDirection.interest(key, SelectionKey.OP_READ, !paused && !starved);
+        }
+    }
+
+    /**
+     * 有缓冲块归还后恢复读取
+     */
+    private void unstarve() {
+        starved = false;
+        if (!closed) {
+            this.pauseRead(tunnel.isStreamsPaused());
+        }
+    }
+
+    /**
+     * 对端关闭了流
+     */
+    void remoteClose() {
+        remoteClosed = true;
+        if (pending.isEmpty()) {
+            this.close(false);
+        }
+    }
+
+    int getId() {
+        return id;
+    }
+
+    int getLoopbackPort() {
+        return loopbackPort;
+    }
+
+    void setLoopbackPort(int loopbackPort) {
+        this.loopbackPort = loopbackPort;
+    }
+
+    @Override
+    public void close() {
+        this.close(true);
+    }
+
+    /**
+     * 关闭本地通道
+     * @param notify 是否通知对端
+     */
+    void close(boolean notify) {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        if (blocked) {
+            blocked = false;
+            tunnel.streamBlocked(false);
+        }
+        ByteBuffer chunk;
+        while ((chunk = pending.pollFirst()) != null) {
+            bufferPool.release(chunk);
+        }
+        pendingBytes = 0;
+        if (key != null) {
+            key.cancel();
+        }
+        try {
+            channel.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        if (notify) {
+            tunnel.sendClose(id);
+        }
+        tunnel.removed(this);
+    }
+}
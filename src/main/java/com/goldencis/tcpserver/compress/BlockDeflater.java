@@ -0,0 +1,123 @@
+package com.goldencis.tcpserver.compress;
+
+import java.nio.ByteBuffer;
+import java.util.zip.Deflater;
+
+/**
+ * 发往目标端的分块压缩，每个会话一个实例，只在所属事件循环的线程中调用。
+ * 每个读取到的缓冲块编码为一个数据块：类型(1字节)、负载长度(3字节)、负载。
+ * 压缩块使用不带zlib头的deflate流，以SYNC_FLUSH结束，会话内共用同一个压缩字典。
+ * 压缩后节省不足1/8时改为发送原始块，并重置压缩流，解压端收到原始块时同样重置；
+ * 连续多个块压缩效果差(如已经过Tight编码的画面)时，在之后的若干块中不再尝试压缩。
+ */
+public class BlockDeflater {
+
+    //块头长度，读取时在数据前预留
+    public static final int HEADER_SIZE = 4;
+
+    public static final byte TYPE_RAW = 0;
+
+    public static final byte TYPE_DEFLATE = 1;
+
+    //连续压缩效果差的块数达到该值后暂停压缩
+    private static final int POOR_LIMIT = 4;
+
+    //暂停压缩的块数
+    private static final int BYPASS_BLOCKS = 64;
+
+    private final Deflater deflater;
+
+    private final byte[] input;
+
+    private final byte[] output;
+
+    private int poorStreak;
+
+    private int bypassRemaining;
+
+    //原始字节数和编码后的字节数，用于观察压缩比
+    private long rawBytes;
+
+    private long encodedBytes;
+
+    /**
+     * @param level 压缩级别
+     * @param blockSize 最大块长度，即读取缓冲块的大小
+     */
+    public BlockDeflater(int level, int blockSize) {
+        this.deflater = new Deflater(level, true);
+        this.input = new byte[blockSize];
+        this.output = new byte[blockSize];
+    }
+
+    /**
+     * 把缓冲块编码为一个数据块
+     * @param chunk 读模式的缓冲块，负载位于[offset, limit)，offset不小于HEADER_SIZE
+     * @param offset 负载起始位置
+     */
+    public void encode(ByteBuffer chunk, int offset) {
+        int length = chunk.limit() - offset;
+        rawBytes += length;
+        if (bypassRemaining > 0) {
+            bypassRemaining--;
+            this.raw(chunk, offset, length);
+            return;
+        }
+
+        chunk.position(offset);
+        chunk.get(input, 0, length);
+        deflater.setInput(input, 0, length);
+        int compressed = deflater.deflate(output, 0, output.length, Deflater.SYNC_FLUSH);
+        //输出缓冲区写满说明压缩流未完整刷出，同样按效果差处理
+        if (compressed < output.length && compressed < length - (length >> 3)) {
+            poorStreak = 0;
+            chunk.clear();
+            header(chunk, 0, TYPE_DEFLATE, compressed);
+            chunk.position(HEADER_SIZE);
+            chunk.put(output, 0, compressed);
+            chunk.flip();
+            encodedBytes += HEADER_SIZE + compressed;
+            return;
+        }
+
+        //已压缩的数据不发送，双方都从新的压缩流开始
+        deflater.reset();
+        if (++poorStreak >= POOR_LIMIT) {
+            poorStreak = 0;
+            bypassRemaining = BYPASS_BLOCKS;
+        }
+        this.raw(chunk, offset, length);
+    }
+
+    private void raw(ByteBuffer chunk, int offset, int length) {
+        header(chunk, offset - HEADER_SIZE, TYPE_RAW, length);
+        chunk.position(offset - HEADER_SIZE);
+        encodedBytes += HEADER_SIZE + length;
+    }
+
+    private static void header(ByteBuffer chunk, int index, byte type, int length) {
+        chunk.put(index, type);
+        chunk.put(index + 1, (byte) (length >>> 16));
+        chunk.put(index + 2, (byte) (length >>> 8));
+        chunk.put(index + 3, (byte) length);
+    }
+
+    /**
+     * 释放压缩流占用的本地内存
+     */
+    public void end() {
+        deflater.end();
+    }
+
+    public long getRawBytes() {
+        return rawBytes;
+    }
+
+    public long getEncodedBytes() {
+        return encodedBytes;
+    }
+
+    public boolean isBypassing() {
+        return bypassRemaining > 0;
+    }
+}
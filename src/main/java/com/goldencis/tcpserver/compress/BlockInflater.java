@@ -0,0 +1,220 @@
+package com.goldencis.tcpserver.compress;
+
+import com.goldencis.tcpserver.buffer.BufferPool;
+import com.goldencis.tcpserver.utils.TcpProtocolException;
+
+import java.nio.ByteBuffer;
+import java.util.function.BooleanSupplier;
+import java.util.function.Consumer;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * 目标端发来的分块数据的增量解码，格式见BlockDeflater，每个会话一个实例，只在所属事件循环的线程中调用。
+ * 块头和块负载可以分布在任意多次读取中，解码结果写入从缓冲池借用的缓冲块。
+ * 每个块解压后不超过读取缓冲块的大小，超出时按格式错误处理；接收方的待写数据已满时暂停解压，
+ * 剩余的输入留在本实例中，由接收方写出后调用resume()继续，解压结果不会超出接收方的水位。
+ */
+public class BlockInflater {
+
+    private final BufferPool bufferPool;
+
+    private final Inflater inflater = new Inflater(true);
+
+    private final byte[] input;
+
+    private final byte[] output;
+
+    //一个压缩块解压后的最大长度，与压缩端的块长度相同
+    private final int maxBlockSize;
+
+    private final byte[] header = new byte[BlockDeflater.HEADER_SIZE];
+
+    private int headerPos;
+
+    private byte type;
+
+    //当前块剩余的负载字节数
+    private int remaining;
+
+    //当前块已解压的字节数
+    private int blockInflated;
+
+    //正在解码的输入缓冲块，读模式，消费完后归还
+    private ByteBuffer in;
+
+    //暂停时解压流中可能还有未取出的输出
+    private boolean inflating;
+
+    //正在填充的输出缓冲块，写模式
+    private ByteBuffer current;
+
+    public BlockInflater(BufferPool bufferPool) {
+        this.bufferPool = bufferPool;
+        this.maxBlockSize = bufferPool.getReadChunkSize();
+        this.input = new byte[bufferPool.getReadChunkSize()];
+        this.output = new byte[bufferPool.getReadChunkSize()];
+    }
+
+    /**
+     * 解码一个读取到的缓冲块
+     * @param in 读模式的缓冲块，交给本实例，消费完后归还缓冲池
+     * @param offset 输出缓冲块中负载的起始位置，之前的空间留给后续封装
+     * @param out 接收读模式的输出缓冲块，负载位于[offset, limit)，缓冲块由接收方归还
+     * @param full 接收方的待写数据是否已满，已满时暂停解压
+     * @return 输入已全部解码返回true；暂停时返回false，剩余输入由resume()继续
+     * @throws TcpProtocolException 数据块格式错误
+     */
+    public boolean decode(ByteBuffer in, int offset, Consumer<ByteBuffer> out, BooleanSupplier full) throws TcpProtocolException {
+        this.in = in;
+        return this.resume(offset, out, full);
+    }
+
+    /**
+     * 继续解码暂停时剩余的输入
+     * @return 输入已全部解码返回true，再次暂停时返回false
+     * @throws TcpProtocolException 数据块格式错误
+     */
+    public boolean resume(int offset, Consumer<ByteBuffer> out, BooleanSupplier full) throws TcpProtocolException {
+        if (in == null) {
+            return true;
+        }
+        //先取出暂停时解压流中剩余的输出
+        if (inflating && !this.inflate(offset, out, full)) {
+            return false;
+        }
+        while (in.hasRemaining()) {
+            if (remaining == 0) {
+                header[headerPos++] = in.get();
+                if (headerPos == header.length) {
+                    this.parseHeader();
+                }
+                continue;
+            }
+
+            int n = Math.min(remaining, in.remaining());
+            remaining -= n;
+            if (type == BlockDeflater.TYPE_RAW) {
+                //原始块直接复制，输出不超过输入
+                int limit = in.limit();
+                while (n > 0) {
+                    ByteBuffer target = this.current(offset, out);
+                    int m = Math.min(n, target.remaining());
+                    in.limit(in.position() + m);
+                    target.put(in);
+                    in.limit(limit);
+                    n -= m;
+                }
+                continue;
+            }
+
+            in.get(input, 0, n);
+            inflater.setInput(input, 0, n);
+            if (!this.inflate(offset, out, full)) {
+                return false;
+            }
+        }
+
+        //本次读取的数据全部交出，不跨读取保留
+        if (current != null && current.position() > offset) {
+            this.emit(out);
+        }
+        bufferPool.release(in);
+        in = null;
+        return true;
+    }
+
+    /**
+     * 取出解压流中的输出，每交出一个缓冲块检查一次接收方是否已满
+     * @return 解压流已没有输出返回true，暂停时返回false
+     */
+    private boolean inflate(int offset, Consumer<ByteBuffer> out, BooleanSupplier full) throws TcpProtocolException {
+        inflating = true;
+        try {
+            int inflated;
+            while ((inflated = inflater.inflate(output)) > 0) {
+                blockInflated += inflated;
+                if (blockInflated > maxBlockSize) {
+                    throw new TcpProtocolException("解压后的数据块过长");
+                }
+                this.put(output, inflated, offset, out);
+                if (full.getAsBoolean()) {
+                    //未写满的输出缓冲块留到继续时填充
+                    return false;
+                }
+            }
+        } catch (DataFormatException e) {
+            throw new TcpProtocolException("压缩数据格式错误", e);
+        }
+        if (inflater.finished() || inflater.needsDictionary()) {
+            throw new TcpProtocolException("压缩数据格式错误");
+        }
+        inflating = false;
+        return true;
+    }
+
+    /**
+     * 是否有暂停时剩余的输入
+     */
+    public boolean hasInput() {
+        return in != null;
+    }
+
+    private void parseHeader() throws TcpProtocolException {
+        headerPos = 0;
+        blockInflated = 0;
+        type = header[0];
+        remaining = ((header[1] & 0xff) << 16) | ((header[2] & 0xff) << 8) | (header[3] & 0xff);
+        if (type == BlockDeflater.TYPE_RAW) {
+            //压缩端发送原始块时已重置压缩流
+            inflater.reset();
+        } else if (type != BlockDeflater.TYPE_DEFLATE) {
+            throw new TcpProtocolException("未知的数据块类型: " + type);
+        }
+    }
+
+    private void put(byte[] bytes, int length, int offset, Consumer<ByteBuffer> out) {
+        int pos = 0;
+        while (pos < length) {
+            ByteBuffer target = this.current(offset, out);
+            int m = Math.min(length - pos, target.remaining());
+            target.put(bytes, pos, m);
+            pos += m;
+        }
+    }
+
+    /**
+     * 当前输出缓冲块，写满时先交出
+     */
+    private ByteBuffer current(int offset, Consumer<ByteBuffer> out) {
+        if (current != null && !current.hasRemaining()) {
+            this.emit(out);
+        }
+        if (current == null) {
+            current = bufferPool.allocate(bufferPool.getReadChunkSize());
+            current.position(offset);
+        }
+        return current;
+    }
+
+    private void emit(Consumer<ByteBuffer> out) {
+        current.flip();
+        out.accept(current);
+        current = null;
+    }
+
+    /**
+     * 归还输入和输出缓冲块，释放解压流占用的本地内存
+     */
+    public void end() {
+        if (current != null) {
+            bufferPool.release(current);
+            current = null;
+        }
+        if (in != null) {
+            bufferPool.release(in);
+            in = null;
+        }
+        inflater.end();
+    }
+}
@@ -1,11 +1,14 @@
 package com.goldencis.tcpserver.config;
 
-import com.goldencis.tcpserver.runner.TcpTransferRunner;
+import com.goldencis.tcpserver.runner.PipeRegistry;
+import com.goldencis.tcpserver.runner.SocketOptions;
+import com.goldencis.tcpserver.server.AdmissionControl;
+import com.goldencis.tcpserver.timer.HashedTimingWheel;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
 
-import java.util.HashMap;
-import java.util.Map;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Created by limingchao on 2018/10/23.
@@ -13,9 +16,92 @@ import java.util.Map;
 @Configuration
 public class TCPTransferRunnerConfig {
 
+    //配对表的分段数
+    @Value("${relay.registry.concurrency:64}")
+    private int concurrency;
+
+    //时间轮的tick时长和槽位数
+    @Value("${relay.timer.tick-ms:100}")
+    private long tickMillis;
+
+    @Value("${relay.timer.wheel-size:512}")
+    private int wheelSize;
+
+    //noVNC端口接受的连接，下行画面数据已在转发时合并写出，默认关闭Nagle算法
+    @Value("${relay.socket.novnc.tcp-no-delay:true}")
+    private boolean noVNCTcpNoDelay;
+
+    @Value("${relay.socket.novnc.keep-alive:true}")
+    private boolean noVNCKeepAlive;
+
+    @Value("${relay.socket.novnc.send-buffer:0}")
+    private int noVNCSendBuffer;
+
+    @Value("${relay.socket.novnc.receive-buffer:0}")
+    private int noVNCReceiveBuffer;
+
+    //目标端口接受的连接，上行输入事件读到即写出，默认关闭Nagle算法
+    @Value("${relay.socket.target.tcp-no-delay:true}")
+    private boolean targetTcpNoDelay;
+
+    @Value("${relay.socket.target.keep-alive:true}")
+    private boolean targetKeepAlive;
+
+    @Value("${relay.socket.target.send-buffer:0}")
+    private int targetSendBuffer;
+
+    @Value("${relay.socket.target.receive-buffer:0}")
+    private int targetReceiveBuffer;
+
+    //连接准入，两个监听端口各自计数
+    @Value("${relay.admission.enabled:false}")
+    private boolean admissionEnabled;
+
+    //每个来源IP每秒允许的新连接数和突发数
+    @Value("${relay.admission.ip-rate:20}")
+    private long admissionIpRate;
+
+    @Value("${relay.admission.ip-burst:40}")
+    private long admissionIpBurst;
+
+    //握手中的连接数上限
+    @Value("${relay.admission.max-half-open:1024}")
+    private int admissionMaxHalfOpen;
+
+    //保留令牌桶的来源IP数
+    @Value("${relay.admission.tracked-ips:65536}")
+    private int admissionTrackedIps;
+
+    @Bean
+    public AdmissionControl noVNCAdmission() {
+        return new AdmissionControl("novnc", admissionEnabled, admissionIpRate, admissionIpBurst,
+                admissionMaxHalfOpen, admissionTrackedIps);
+    }
+
     @Bean
-    public Map<String, TcpTransferRunner> runnerMap() {
-        return new HashMap<>();
+    public AdmissionControl targetAdmission() {
+        return new AdmissionControl("target", admissionEnabled, admissionIpRate, admissionIpBurst,
+                admissionMaxHalfOpen, admissionTrackedIps);
+    }
+
+    @Bean
+    public SocketOptions noVNCSocketOptions() {
+        return new SocketOptions(noVNCTcpNoDelay, noVNCKeepAlive, noVNCSendBuffer, noVNCReceiveBuffer);
+    }
+
+    @Bean
+    public SocketOptions targetSocketOptions() {
+        return new SocketOptions(targetTcpNoDelay, targetKeepAlive, targetSendBuffer, targetReceiveBuffer);
+    }
+
+    @Bean
+    public PipeRegistry pipeRegistry() {
+        return new PipeRegistry(concurrency);
+    }
+
+    @Bean(destroyMethod = "stop")
+    public HashedTimingWheel timingWheel() {
+        return new HashedTimingWheel("relay-timer", tickMillis, TimeUnit.MILLISECONDS, wheelSize);
     }
 
 }
@@ -9,6 +9,13 @@ public class ConstantsDto {
 
     public static final Integer TCP_PROTOCOL_VERSION = 0x1000;
 
+    //二进制协议体版本：动作码(1字节)、管道id(16字节)、userguid长度(2字节)、userguid、可选的能力标志(1字节)，
+    //能力标志之后可以有令牌长度(2字节)和令牌，只用于备用连接
+    public static final Integer TCP_PROTOCOL_VERSION_BINARY = 0x1001;
+
+    //二进制协议体除userguid外的固定长度
+    public static final int TCP_PROTOCOL_BINARY_BODY_SIZE = 19;
+
     public static final Integer TCP_PROTOCOL_HEAD_SIZE = 12;
 
     public static final String CONNECT_VNC_SERVER = "connectVncServer_c2s";
@@ -18,4 +25,40 @@ public class ConstantsDto {
     public static final String CONNECT_VNC_SUCCESS = "connectVncSucc_s2c";
 
     public static final String CONNECT_NOVNC_SERVER = "connectNoVncServer_c2s";
+
+    //目标端建立多路复用连接，之后在该连接上按流打开管道
+    public static final String CONNECT_MUX = "connectMux_c2s";
+
+    //目标端预先建立的备用连接，按userguid登记，noVNC端连接时直接配对，须携带连接通知中下发的令牌
+    public static final String CONNECT_VNC_STANDBY = "connectVncStandby_c2s";
+
+    //连接通知中下发备用连接令牌的字段
+    public static final String STANDBY_TOKEN = "standbyToken";
+
+    //noVNC端以控制端身份打开广播会话，握手和转发与connectNoVncServer_c2s相同
+    public static final String CONNECT_NOVNC_BROADCAST = "connectNoVncBroadcast_c2s";
+
+    //noVNC端以旁观端身份加入该管道的广播会话，只接收画面，输入被丢弃
+    public static final String CONNECT_NOVNC_VIEWER = "connectNoVncViewer_c2s";
+
+    //二进制协议中各动作对应的动作码
+    public static final int ACTION_CONNECT_VNC_SERVER = 1;
+
+    public static final int ACTION_CONNECT_VNC_CLIENT = 2;
+
+    public static final int ACTION_CONNECT_VNC_SUCCESS = 3;
+
+    public static final int ACTION_CONNECT_NOVNC_SERVER = 4;
+
+    public static final int ACTION_CONNECT_MUX = 5;
+
+    public static final int ACTION_CONNECT_VNC_STANDBY = 6;
+
+    public static final int ACTION_CONNECT_NOVNC_BROADCAST = 7;
+
+    public static final int ACTION_CONNECT_NOVNC_VIEWER = 8;
+
+    //目标端握手时请求的能力标志，握手响应中返回转发服务同意的部分
+    //目标端一侧使用分块的deflate压缩
+    public static final int CAPABILITY_DEFLATE = 0x1;
 }
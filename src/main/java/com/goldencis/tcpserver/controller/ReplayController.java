@@ -0,0 +1,51 @@
+package com.goldencis.tcpserver.controller;
+
+import com.goldencis.tcpserver.entity.RecordedSession;
+import com.goldencis.tcpserver.entity.ReplayRequest;
+import com.goldencis.tcpserver.server.ReplayServer;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.PathVariable;
+import org.springframework.web.bind.annotation.PostMapping;
+import org.springframework.web.bind.annotation.RequestBody;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RestController;
+
+import java.io.IOException;
+import java.nio.file.NoSuchFileException;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * 录制会话的回放接口：查看管道的录制、创建回放
+ */
+@RestController
+@RequestMapping("/replays")
+public class ReplayController {
+
+    @Autowired
+    private ReplayServer replayServer;
+
+    @GetMapping("/{pipe}")
+    public List<RecordedSession> recordings(@PathVariable String pipe) throws IOException {
+        return replayServer.recordings(pipe);
+    }
+
+    /**
+     * 创建回放
+     * @return 票据，noVNC端以其作为管道id连接回放端口
+     */
+    @PostMapping
+    public ResponseEntity<Map<String, String>> create(@RequestBody ReplayRequest request) throws IOException {
+        if (!replayServer.isEnabled() || request.getPipe() == null) {
+            return ResponseEntity.badRequest().build();
+        }
+        try {
+            return ResponseEntity.ok(Collections.singletonMap("ticket", replayServer.createTicket(request)));
+        } catch (NoSuchFileException e) {
+            return ResponseEntity.notFound().build();
+        }
+    }
+}
@@ -0,0 +1,47 @@
+package com.goldencis.tcpserver.controller;
+
+import com.goldencis.tcpserver.entity.SessionSnapshot;
+import com.goldencis.tcpserver.metrics.SessionMonitor;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.DeleteMapping;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.PathVariable;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RestController;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
+
+import java.util.List;
+
+/**
+ * 转发会话的管理接口：查看会话、强制结束会话、订阅吞吐量
+ */
+@RestController
+@RequestMapping("/sessions")
+public class SessionController {
+
+    @Autowired
+    private SessionMonitor sessionMonitor;
+
+    @GetMapping
+    public List<SessionSnapshot> list() {
+        return sessionMonitor.snapshots();
+    }
+
+    @GetMapping(value = "/stream", produces = MediaType.TEXT_EVENT_STREAM_VALUE)
+    public SseEmitter stream() {
+        return sessionMonitor.subscribe();
+    }
+
+    @GetMapping("/{pipe}")
+    public ResponseEntity<SessionSnapshot> get(@PathVariable String pipe) {
+        SessionSnapshot snapshot = sessionMonitor.snapshot(pipe);
+        return snapshot == null ? ResponseEntity.notFound().build() : ResponseEntity.ok(snapshot);
+    }
+
+    @DeleteMapping("/{pipe}")
+    public ResponseEntity<Void> close(@PathVariable String pipe) {
+        return sessionMonitor.close(pipe) ? ResponseEntity.noContent().build() : ResponseEntity.notFound().build();
+    }
+}
@@ -0,0 +1,87 @@
+package com.goldencis.tcpserver.controller;
+
+import com.goldencis.tcpserver.entity.ShapingLimit;
+import com.goldencis.tcpserver.entity.ShapingSnapshot;
+import com.goldencis.tcpserver.shaping.TrafficShaper;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.DeleteMapping;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.PathVariable;
+import org.springframework.web.bind.annotation.PutMapping;
+import org.springframework.web.bind.annotation.RequestBody;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RestController;
+
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * 带宽整形的管理接口：查看和调整默认限速、单个会话和单个用户的限速及优先级
+ */
+@RestController
+@RequestMapping("/shaping")
+public class ShapingController {
+
+    @Autowired
+    private TrafficShaper trafficShaper;
+
+    @GetMapping
+    public List<ShapingSnapshot> list() {
+        return trafficShaper.snapshots();
+    }
+
+    @GetMapping("/defaults")
+    public Map<String, ShapingLimit> defaults() {
+        Map<String, ShapingLimit> defaults = new LinkedHashMap<>();
+        defaults.put("session", trafficShaper.getSessionDefault());
+        defaults.put("user", trafficShaper.getUserDefault());
+        return defaults;
+    }
+
+    @PutMapping("/defaults/session")
+    public ResponseEntity<Void> sessionDefault(@RequestBody ShapingLimit limit) {
+        try {
+            trafficShaper.setSessionDefault(limit);
+        } catch (IllegalArgumentException e) {
+            return ResponseEntity.badRequest().build();
+        }
+        return ResponseEntity.noContent().build();
+    }
+
+    @PutMapping("/defaults/user")
+    public ResponseEntity<Void> userDefault(@RequestBody ShapingLimit limit) {
+        try {
+            trafficShaper.setUserDefault(limit);
+        } catch (IllegalArgumentException e) {
+            return ResponseEntity.badRequest().build();
+        }
+        return ResponseEntity.noContent().build();
+    }
+
+    @PutMapping("/sessions/{pipe}")
+    public ResponseEntity<Void> session(@PathVariable String pipe, @RequestBody ShapingLimit limit) {
+        try {
+            return trafficShaper.setSessionLimit(pipe, limit) ? ResponseEntity.noContent().build() : ResponseEntity.notFound().build();
+        } catch (IllegalArgumentException e) {
+            return ResponseEntity.badRequest().build();
+        }
+    }
+
+    @PutMapping("/users/{userguid}")
+    public ResponseEntity<Void> user(@PathVariable String userguid, @RequestBody ShapingLimit limit) {
+        try {
+            trafficShaper.setUserLimit(userguid, limit);
+        } catch (IllegalArgumentException e) {
+            //限速为负数或优先级不存在
+            return ResponseEntity.badRequest().build();
+        }
+        return ResponseEntity.noContent().build();
+    }
+
+    @DeleteMapping("/users/{userguid}")
+    public ResponseEntity<Void> removeUser(@PathVariable String userguid) {
+        return trafficShaper.removeUserLimit(userguid) ? ResponseEntity.noContent().build() : ResponseEntity.notFound().build();
+    }
+}
@@ -0,0 +1,20 @@
+package com.goldencis.tcpserver.entity;
+
+import lombok.Data;
+
+/**
+ * 管道的一个录制会话，来自录制索引
+ */
+@Data
+public class RecordedSession {
+
+    private long sessionId;
+
+    private long startMillis;
+
+    //结束时间，会话仍在录制或未正常结束时为0
+    private long endMillis;
+
+    //会话跨越的段文件数
+    private int segments;
+}
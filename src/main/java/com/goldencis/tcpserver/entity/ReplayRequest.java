@@ -0,0 +1,22 @@
+package com.goldencis.tcpserver.entity;
+
+import lombok.Data;
+
+/**
+ * 一次回放的参数，创建回放后noVNC端以返回的票据作为管道id连接回放端口
+ */
+@Data
+public class ReplayRequest {
+
+    //录制的管道id
+    private String pipe;
+
+    //录制会话id，为空时回放该管道最近的会话
+    private Long sessionId;
+
+    //回放倍速，1为实时，0为最快速度，为空时使用配置的默认值
+    private Double speed;
+
+    //开始回放的时间，毫秒，为空时从头回放
+    private Long from;
+}
@@ -0,0 +1,51 @@
+package com.goldencis.tcpserver.entity;
+
+import lombok.Data;
+
+/**
+ * 转发会话某一时刻的状态，供管理接口查看。
+ * 字节数为已写出的字节，速率为最近一个采样周期的平均值，单位字节/秒。
+ */
+@Data
+public class SessionSnapshot {
+
+    private String pipe;
+
+    private String userguid;
+
+    //noVNC端地址
+    private String sourceAddress;
+
+    //目标端地址，未配对时为空
+    private String destinationAddress;
+
+    private boolean sourceReady;
+
+    private boolean destinationReady;
+
+    //是否正在转发
+    private boolean on;
+
+    private long upstreamBytes;
+
+    private long downstreamBytes;
+
+    private long upstreamRate;
+
+    private long downstreamRate;
+
+    //待写出的字节数
+    private long upstreamPending;
+
+    private long downstreamPending;
+
+    //目标通道写满到写完的最长时间，毫秒
+    private long maxWriteStallMillis;
+
+    //是否因带宽整形暂停读取目标端
+    private boolean throttled;
+
+    private long idleMillis;
+
+    private long ageMillis;
+}
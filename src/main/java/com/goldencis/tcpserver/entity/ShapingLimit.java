@@ -0,0 +1,29 @@
+package com.goldencis.tcpserver.entity;
+
+import com.fasterxml.jackson.annotation.JsonInclude;
+import lombok.Data;
+
+/**
+ * 带宽整形的限速，速率单位字节/秒，0表示不限速；突发为0时取一秒的速率。
+ * 修改时为空的字段保持原值。
+ */
+@Data
+@JsonInclude(JsonInclude.Include.NON_NULL)
+public class ShapingLimit {
+
+    private Long rate;
+
+    private Long burst;
+
+    //优先级，见PriorityClass，只对用户有效
+    private String priority;
+
+    public ShapingLimit() {
+    }
+
+    public ShapingLimit(Long rate, Long burst, String priority) {
+        this.rate = rate;
+        this.burst = burst;
+        this.priority = priority;
+    }
+}
@@ -0,0 +1,25 @@
+package com.goldencis.tcpserver.entity;
+
+import lombok.Data;
+
+/**
+ * 一个用户的带宽整形状态，供管理接口查看
+ */
+@Data
+public class ShapingSnapshot {
+
+    private String userguid;
+
+    private String priority;
+
+    //用户所有会话共用的限速，已按优先级换算
+    private long rate;
+
+    private long burst;
+
+    //是否为管理接口单独设置的限速
+    private boolean override;
+
+    //正在整形的会话数
+    private int sessions;
+}
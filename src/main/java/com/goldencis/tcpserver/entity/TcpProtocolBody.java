@@ -1,11 +1,15 @@
 package com.goldencis.tcpserver.entity;
 
+import com.fasterxml.jackson.annotation.JsonIgnore;
+import com.fasterxml.jackson.annotation.JsonInclude;
 import com.fasterxml.jackson.core.JsonProcessingException;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.goldencis.tcpserver.constants.ConstantsDto;
 import lombok.Data;
 
 import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.UUID;
 
 /**
  * Created by limingchao on 2018/10/18.
@@ -21,6 +25,28 @@ public class TcpProtocolBody {
 
     private String userguid;
 
+    //能力标志，见ConstantsDto.CAPABILITY_*，为0时不序列化，兼容旧客户端
+    @JsonInclude(JsonInclude.Include.NON_DEFAULT)
+    private int capabilities;
+
+    //备用连接的令牌，由转发服务随连接通知下发，只在登记备用连接时携带
+    @JsonInclude(JsonInclude.Include.NON_NULL)
+    private String token;
+
+    //协议版本，握手响应使用与请求相同的版本
+    @JsonIgnore
+    private int version = ConstantsDto.TCP_PROTOCOL_VERSION;
+
+    //二进制协议中的16字节管道id
+    @JsonIgnore
+    private boolean binaryPipe;
+
+    @JsonIgnore
+    private long pipeMost;
+
+    @JsonIgnore
+    private long pipeLeast;
+
     public TcpProtocolBody() {
     }
 
@@ -29,7 +55,21 @@ public class TcpProtocolBody {
         this.pipe = pipe;
     }
 
+    /**
+     * 二进制协议的管道id在首次使用字符串形式时才格式化
+     */
+    public String getPipe() {
+        if (pipe == null && binaryPipe) {
+            pipe = new UUID(pipeMost, pipeLeast).toString();
+        }
+        return pipe;
+    }
+
     public static void response(String action, String pipe, ByteBuffer buffer) throws JsonProcessingException {
+        response(action, pipe, 0, buffer);
+    }
+
+    private static void response(String action, String pipe, int capabilities, ByteBuffer buffer) throws JsonProcessingException {
         //写入校验标示符
         buffer.putInt(ConstantsDto.TCP_PROTOCOL_VERIFY);
         //写入版本信息
@@ -37,10 +77,140 @@ public class TcpProtocolBody {
 
         //构建响应消息体
         TcpProtocolBody responseBody = new TcpProtocolBody(action, pipe);
+        responseBody.setCapabilities(capabilities);
         byte[] bytes = MAPPER.writeValueAsString(responseBody).getBytes();
         //写入消息体长度
         buffer.putInt(bytes.length + ConstantsDto.TCP_PROTOCOL_HEAD_SIZE);
         //写入消息体字节数组
         buffer.put(bytes);
     }
+
+    /**
+     * 按请求的协议版本写入响应
+     * @param action 响应动作
+     * @param request 请求协议体
+     * @param buffer 缓冲区
+     */
+    public static void response(String action, TcpProtocolBody request, ByteBuffer buffer) throws JsonProcessingException {
+        if (!ConstantsDto.TCP_PROTOCOL_VERSION_BINARY.equals(request.getVersion())) {
+            response(action, request.getPipe(), request.getCapabilities(), buffer);
+            return;
+        }
+        boolean capabilities = request.getCapabilities() != 0;
+
+        //写入校验标示符
+        buffer.putInt(ConstantsDto.TCP_PROTOCOL_VERIFY);
+        //写入版本信息
+        buffer.putInt(ConstantsDto.TCP_PROTOCOL_VERSION_BINARY);
+        //写入消息体长度，响应不携带userguid
+        buffer.putInt(ConstantsDto.TCP_PROTOCOL_HEAD_SIZE + ConstantsDto.TCP_PROTOCOL_BINARY_BODY_SIZE + (capabilities ? 1 : 0));
+        //写入动作码、管道id、userguid长度
+        buffer.put((byte) actionCode(action));
+        buffer.putLong(request.getPipeMost());
+        buffer.putLong(request.getPipeLeast());
+        buffer.putShort((short) 0);
+        //同意的能力标志
+        if (capabilities) {
+            buffer.put((byte) request.getCapabilities());
+        }
+    }
+
+    /**
+     * 从缓冲区解析二进制协议体，管道id直接读取为两个long，不经过字符串
+     * @param buffer 读模式的缓冲区，剩余字节为完整的协议体
+     * @return 协议体
+     * @throws IllegalArgumentException 动作码或长度错误
+     */
+    public static TcpProtocolBody decode(ByteBuffer buffer) {
+        if (buffer.remaining() < ConstantsDto.TCP_PROTOCOL_BINARY_BODY_SIZE) {
+            throw new IllegalArgumentException("协议体长度错误");
+        }
+        TcpProtocolBody body = new TcpProtocolBody();
+        body.version = ConstantsDto.TCP_PROTOCOL_VERSION_BINARY;
+
+        //动作码
+        body.action = actionOf(buffer.get() & 0xff);
+        if (body.action == null) {
+            throw new IllegalArgumentException("未知的动作码");
+        }
+
+        //管道id
+        body.binaryPipe = true;
+        body.pipeMost = buffer.getLong();
+        body.pipeLeast = buffer.getLong();
+
+        //userguid
+        int length = buffer.getShort() & 0xffff;
+        //userguid之后可以有1字节的能力标志，其后可以有令牌长度(2字节)和令牌
+        int extra = buffer.remaining() - length;
+        if (extra < 0 || extra == 2 || extra == 3) {
+            throw new IllegalArgumentException("userguid长度错误");
+        }
+        if (length > 0 && buffer.hasArray()) {
+            body.userguid = new String(buffer.array(), buffer.arrayOffset() + buffer.position(), length, StandardCharsets.UTF_8);
+            buffer.position(buffer.position() + length);
+        } else if (length > 0) {
+            //直接内存缓冲区
+            byte[] bytes = new byte[length];
+            buffer.get(bytes);
+            body.userguid = new String(bytes, StandardCharsets.UTF_8);
+        }
+        if (extra >= 1) {
+            body.capabilities = buffer.get() & 0xff;
+        }
+        if (extra > 1) {
+            int tokenLength = buffer.getShort() & 0xffff;
+            if (tokenLength != buffer.remaining()) {
+                throw new IllegalArgumentException("令牌长度错误");
+            }
+            byte[] bytes = new byte[tokenLength];
+            buffer.get(bytes);
+            body.token = new String(bytes, StandardCharsets.UTF_8);
+        }
+        return body;
+    }
+
+    private static String actionOf(int code) {
+        switch (code) {
+            case ConstantsDto.ACTION_CONNECT_VNC_SERVER:
+                return ConstantsDto.CONNECT_VNC_SERVER;
+            case ConstantsDto.ACTION_CONNECT_VNC_CLIENT:
+                return ConstantsDto.CONNECT_VNC_CLIENT;
+            case ConstantsDto.ACTION_CONNECT_VNC_SUCCESS:
+                return ConstantsDto.CONNECT_VNC_SUCCESS;
+            case ConstantsDto.ACTION_CONNECT_NOVNC_SERVER:
+                return ConstantsDto.CONNECT_NOVNC_SERVER;
+            case ConstantsDto.ACTION_CONNECT_MUX:
+                return ConstantsDto.CONNECT_MUX;
+            case ConstantsDto.ACTION_CONNECT_VNC_STANDBY:
+                return ConstantsDto.CONNECT_VNC_STANDBY;
+            case ConstantsDto.ACTION_CONNECT_NOVNC_BROADCAST:
+                return ConstantsDto.CONNECT_NOVNC_BROADCAST;
+            case ConstantsDto.ACTION_CONNECT_NOVNC_VIEWER:
+                return ConstantsDto.CONNECT_NOVNC_VIEWER;
+            default:
+                return null;
+        }
+    }
+
+    private static int actionCode(String action) {
+        if (ConstantsDto.CONNECT_VNC_SERVER.equals(action)) {
+            return ConstantsDto.ACTION_CONNECT_VNC_SERVER;
+        } else if (ConstantsDto.CONNECT_VNC_CLIENT.equals(action)) {
+            return ConstantsDto.ACTION_CONNECT_VNC_CLIENT;
+        } else if (ConstantsDto.CONNECT_VNC_SUCCESS.equals(action)) {
+            return ConstantsDto.ACTION_CONNECT_VNC_SUCCESS;
+        } else if (ConstantsDto.CONNECT_NOVNC_SERVER.equals(action)) {
+            return ConstantsDto.ACTION_CONNECT_NOVNC_SERVER;
+        } else if (ConstantsDto.CONNECT_MUX.equals(action)) {
+            return ConstantsDto.ACTION_CONNECT_MUX;
+        } else if (ConstantsDto.CONNECT_VNC_STANDBY.equals(action)) {
+            return ConstantsDto.ACTION_CONNECT_VNC_STANDBY;
+        } else if (ConstantsDto.CONNECT_NOVNC_BROADCAST.equals(action)) {
+            return ConstantsDto.ACTION_CONNECT_NOVNC_BROADCAST;
+        } else if (ConstantsDto.CONNECT_NOVNC_VIEWER.equals(action)) {
+            return ConstantsDto.ACTION_CONNECT_NOVNC_VIEWER;
+        }
+        throw new IllegalArgumentException("未知的动作: " + action);
+    }
 }
@@ -0,0 +1,253 @@
+package com.goldencis.tcpserver.metrics;
+
+import com.goldencis.tcpserver.buffer.BufferPool;
+import com.goldencis.tcpserver.mq.RedisNotifier;
+import com.goldencis.tcpserver.runner.EventLoop;
+import com.goldencis.tcpserver.runner.EventLoopGroup;
+import com.goldencis.tcpserver.runner.PipeRegistry;
+import com.goldencis.tcpserver.timer.HashedTimingWheel;
+import com.goldencis.tcpserver.utils.TcpFrameDecoder;
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.TimeGauge;
+import io.micrometer.core.instrument.Timer;
+import io.micrometer.core.instrument.binder.MeterBinder;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import java.time.Duration;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 转发的全局指标，通过micrometer发布到actuator。
+ * 转发路径上只做LongAdder累加(按线程分段，无竞争)，gauge在采集时才读取缓冲池、配对表和事件循环的状态。
+ * 握手到首字节的延迟使用带直方图的Timer，分位数由HdrHistogram计算。
+ */
+@Component
+public class RelayMetrics implements MeterBinder {
+
+    @Autowired
+    private PipeRegistry pipeRegistry;
+
+    @Autowired
+    private BufferPool bufferPool;
+
+    @Autowired
+    private EventLoopGroup eventLoopGroup;
+
+    @Autowired
+    private HashedTimingWheel timingWheel;
+
+    @Autowired
+    private RedisNotifier notifier;
+
+    //上行、下行转发的字节数
+    private final LongAdder upstreamBytes = new LongAdder();
+
+    private final LongAdder downstreamBytes = new LongAdder();
+
+    //上行、下行写出的系统调用次数，与字节数相除得到每MB的写调用数
+    private final LongAdder upstreamWrites = new LongAdder();
+
+    private final LongAdder downstreamWrites = new LongAdder();
+
+    //开始转发和结束转发的会话数
+    private final LongAdder sessionsOpened = new LongAdder();
+
+    private final LongAdder sessionsClosed = new LongAdder();
+
+    //netty引擎中等待配对的会话数
+    private final LongAdder nettyParked = new LongAdder();
+
+    //noVNC端握手到收到第一个下行字节的延迟，注册前的记录丢弃
+    private volatile Timer firstByteLatency;
+
+    //noVNC端握手到两端配对的延迟，按配对方式区分：备用连接直接配对、通知目标端后等待连接
+    private volatile Timer standbySetupLatency;
+
+    private volatile Timer notifySetupLatency;
+
+    @PostConstruct
+    public void init() {
+        //每秒探测一次事件循环的排队延迟
+        this.scheduleLagProbe();
+    }
+
+    private void scheduleLagProbe() {
+        timingWheel.newTimeout(() -> {
+            for (EventLoop loop : eventLoopGroup.getLoops()) {
+                loop.probeLag();
+            }
+            this.scheduleLagProbe();
+        }, 1, TimeUnit.SECONDS);
+    }
+
+    @Override
+    public void bindTo(MeterRegistry registry) {
+        FunctionCounter.builder("relay.bytes", upstreamBytes, LongAdder::sum)
+                .tag("direction", "upstream").baseUnit("bytes").register(registry);
+        FunctionCounter.builder("relay.bytes", downstreamBytes, LongAdder::sum)
+                .tag("direction", "downstream").baseUnit("bytes").register(registry);
+        FunctionCounter.builder("relay.writes", upstreamWrites, LongAdder::sum)
+                .tag("direction", "upstream").register(registry);
+        FunctionCounter.builder("relay.writes", downstreamWrites, LongAdder::sum)
+                .tag("direction", "downstream").register(registry);
+        FunctionCounter.builder("relay.sessions.opened", sessionsOpened, LongAdder::sum).register(registry);
+        FunctionCounter.builder("relay.sessions.closed", sessionsClosed, LongAdder::sum).register(registry);
+
+        Gauge.builder("relay.sessions.active", this, RelayMetrics::getActiveSessions)
+                .description("正在转发的会话数").register(registry);
+        Gauge.builder("relay.sessions.half-paired", this, RelayMetrics::getHalfPairedSessions)
+                .description("noVNC端已握手、等待目标端连接的会话数").register(registry);
+
+        //缓冲池
+        Gauge.builder("relay.buffer.allocated", bufferPool, pool -> pool.getStats().getAllocated())
+                .baseUnit("bytes").register(registry);
+        Gauge.builder("relay.buffer.in-use", bufferPool, pool -> pool.getStats().getInUse())
+                .baseUnit("bytes").register(registry);
+        Gauge.builder("relay.buffer.high-water-mark", bufferPool, pool -> pool.getStats().getHighWaterMark())
+                .baseUnit("bytes").register(registry);
+        FunctionCounter.builder("relay.buffer.overflow", bufferPool, pool -> pool.getStats().getOverflow())
+                .register(registry);
+        FunctionCounter.builder("relay.buffer.exhausted", bufferPool, pool -> pool.getStats().getExhausted())
+                .description("缓冲池达到内存上限而暂停读取的次数").register(registry);
+
+        //事件循环
+        TimeGauge.builder("relay.eventloop.lag", this, TimeUnit.NANOSECONDS, RelayMetrics::getMaxLoopLag)
+                .description("事件循环的任务排队延迟，取各循环的最大值").register(registry);
+        FunctionCounter.builder("relay.eventloop.priority-polls", this, RelayMetrics::getPriorityPolls)
+                .description("处理画面数据中途插入处理输入事件的次数").register(registry);
+
+        //握手
+        FunctionCounter.builder("relay.handshake", this, m -> TcpFrameDecoder.getDecodedCount())
+                .tag("result", "decoded").register(registry);
+        FunctionCounter.builder("relay.handshake", this, m -> TcpFrameDecoder.getMalformedCount())
+                .tag("result", "malformed").register(registry);
+        FunctionCounter.builder("relay.handshake", this, m -> TcpFrameDecoder.getTruncatedCount())
+                .tag("result", "truncated").register(registry);
+
+        //客户端通知
+        Gauge.builder("relay.notify.queue", notifier, RedisNotifier::getQueueSize).register(registry);
+        FunctionCounter.builder("relay.notify.overflow", notifier, RedisNotifier::getOverflowCount).register(registry);
+        FunctionCounter.builder("relay.notify.failed", notifier, RedisNotifier::getFailedCount).register(registry);
+
+        firstByteLatency = Timer.builder("relay.handshake.first-byte")
+                .description("noVNC端握手到收到第一个下行字节的延迟")
+                .publishPercentiles(0.5, 0.9, 0.99, 0.999)
+                .publishPercentileHistogram()
+                .minimumExpectedValue(Duration.ofMillis(1))
+                .maximumExpectedValue(Duration.ofSeconds(60))
+                .register(registry);
+        standbySetupLatency = this.setupTimer("standby", registry);
+        notifySetupLatency = this.setupTimer("notify", registry);
+    }
+
+    private Timer setupTimer(String path, MeterRegistry registry) {
+        return Timer.builder("relay.session.setup")
+                .description("noVNC端握手到两端配对的延迟")
+                .tag("path", path)
+                .publishPercentiles(0.5, 0.9, 0.99)
+                .minimumExpectedValue(Duration.ofMillis(1))
+                .maximumExpectedValue(Duration.ofSeconds(60))
+                .register(registry);
+    }
+
+    public void sessionOpened() {
+        sessionsOpened.increment();
+    }
+
+    public void sessionClosed() {
+        sessionsClosed.increment();
+    }
+
+    public void nettyParked(boolean parked) {
+        if (parked) {
+            nettyParked.increment();
+        } else {
+            nettyParked.decrement();
+        }
+    }
+
+    /**
+     * 记录握手到首字节的延迟
+     * @param nanos 纳秒
+     */
+    public void recordFirstByte(long nanos) {
+        Timer timer = firstByteLatency;
+        if (timer != null) {
+            timer.record(nanos, TimeUnit.NANOSECONDS);
+        }
+    }
+
+    /**
+     * 记录会话的配对延迟
+     * @param standby 是否使用目标端的备用连接配对
+     * @param nanos 纳秒
+     */
+    public void recordSetup(boolean standby, long nanos) {
+        Timer timer = standby ? standbySetupLatency : notifySetupLatency;
+        if (timer != null) {
+            timer.record(nanos, TimeUnit.NANOSECONDS);
+        }
+    }
+
+    public LongAdder getUpstreamBytes() {
+        return upstreamBytes;
+    }
+
+    public LongAdder getDownstreamBytes() {
+        return downstreamBytes;
+    }
+
+    public LongAdder getUpstreamWrites() {
+        return upstreamWrites;
+    }
+
+    public LongAdder getDownstreamWrites() {
+        return downstreamWrites;
+    }
+
+    public long getActiveSessions() {
+        return sessionsOpened.sum() - sessionsClosed.sum();
+    }
+
+    /**
+     * 采集时遍历配对表统计尚未开始转发的会话
+     */
+    public long getHalfPairedSessions() {
+        long[] count = new long[1];
+        if (pipeRegistry != null) {
+            pipeRegistry.forEach(runner -> {
+                if (!runner.isOn()) {
+                    count[0]++;
+                }
+            });
+        }
+        return count[0] + nettyParked.sum();
+    }
+
+    public long getPriorityPolls() {
+        long polls = 0;
+        if (eventLoopGroup == null) {
+            return polls;
+        }
+        for (EventLoop loop : eventLoopGroup.getLoops()) {
+            polls += loop.getPriorityPolls();
+        }
+        return polls;
+    }
+
+    public long getMaxLoopLag() {
+        long max = 0;
+        if (eventLoopGroup == null) {
+            return max;
+        }
+        for (EventLoop loop : eventLoopGroup.getLoops()) {
+            max = Math.max(max, loop.getLagNanos());
+        }
+        return max;
+    }
+}
@@ -0,0 +1,228 @@
+package com.goldencis.tcpserver.metrics;
+
+import com.goldencis.tcpserver.entity.SessionSnapshot;
+import com.goldencis.tcpserver.runner.PipeRegistry;
+import com.goldencis.tcpserver.runner.RelayDirection;
+import com.goldencis.tcpserver.runner.TcpTransferRunner;
+import com.goldencis.tcpserver.timer.HashedTimingWheel;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
+
+import javax.annotation.PostConstruct;
+import java.io.IOException;
+import java.net.SocketAddress;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 转发会话的查看和管理。
+ * 快照直接读取会话和数据泵中由事件循环单线程写入的字段，不加锁也不打断转发，读到的是近似值。
+ * 定时器按采样周期记录各会话的字节数计算速率，并推送给订阅了吞吐量的客户端。
+ */
+@Component
+public class SessionMonitor {
+
+    @Autowired
+    private PipeRegistry pipeRegistry;
+
+    @Autowired
+    private HashedTimingWheel timingWheel;
+
+    //推送在线程池中执行，慢客户端不占用定时器线程
+    @Autowired
+    @Qualifier("asyncServiceExecutor")
+    private Executor executor;
+
+    //采样周期秒数
+    @Value("${relay.sessions.sample-seconds:1}")
+    private long sampleSeconds = 1;
+
+    //各会话最近一次采样，只由定时器线程写入
+    private final Map<TcpTransferRunner, Sample> samples = new ConcurrentHashMap<>();
+
+    //吞吐量订阅者
+    private final List<SseEmitter> emitters = new CopyOnWriteArrayList<>();
+
+    public SessionMonitor() {
+    }
+
+    public SessionMonitor(PipeRegistry pipeRegistry, HashedTimingWheel timingWheel, Executor executor) {
+        this.pipeRegistry = pipeRegistry;
+        this.timingWheel = timingWheel;
+        this.executor = executor;
+    }
+
+    @PostConstruct
+    public void init() {
+        this.scheduleSample();
+    }
+
+    private void scheduleSample() {
+        timingWheel.newTimeout(() -> {
+            try {
+                this.sample();
+            } finally {
+                this.scheduleSample();
+            }
+        }, sampleSeconds, TimeUnit.SECONDS);
+    }
+
+    /**
+     * 记录各会话的字节数并计算速率，有订阅者时推送最新快照
+     */
+    void sample() {
+        long now = System.nanoTime();
+        Map<TcpTransferRunner, Sample> seen = new ConcurrentHashMap<>();
+        pipeRegistry.forEach(runner -> {
+            RelayDirection upstream = runner.getUpstream();
+            RelayDirection downstream = runner.getDownstream();
+            if (upstream == null || downstream == null) {
+                return;
+            }
+            Sample sample = new Sample(upstream.getBytes(), downstream.getBytes(), now, samples.get(runner));
+            seen.put(runner, sample);
+        });
+        //已结束的会话不再保留采样
+        samples.keySet().retainAll(seen.keySet());
+        samples.putAll(seen);
+
+        if (!emitters.isEmpty()) {
+            List<SessionSnapshot> snapshots = this.snapshots();
+            executor.execute(() -> this.publish(snapshots));
+        }
+    }
+
+    private void publish(List<SessionSnapshot> snapshots) {
+        for (SseEmitter emitter : emitters) {
+            try {
+                emitter.send(SseEmitter.event().name("throughput").data(snapshots));
+            } catch (IOException | IllegalStateException e) {
+                //客户端已断开
+                emitters.remove(emitter);
+            }
+        }
+    }
+
+    /**
+     * 订阅吞吐量推送，每个采样周期推送一次全部会话的快照
+     */
+    public SseEmitter subscribe() {
+        SseEmitter emitter = new SseEmitter(0L);
+        emitter.onCompletion(() -> emitters.remove(emitter));
+        emitter.onTimeout(() -> emitters.remove(emitter));
+        emitters.add(emitter);
+        return emitter;
+    }
+
+    public List<SessionSnapshot> snapshots() {
+        List<SessionSnapshot> snapshots = new ArrayList<>();
+        pipeRegistry.forEach(runner -> snapshots.add(this.snapshot(runner)));
+        return snapshots;
+    }
+
+    public SessionSnapshot snapshot(String pipe) {
+        TcpTransferRunner runner = pipeRegistry.get(pipe);
+        return runner == null ? null : this.snapshot(runner);
+    }
+
+    private SessionSnapshot snapshot(TcpTransferRunner runner) {
+        long now = System.nanoTime();
+        SessionSnapshot snapshot = new SessionSnapshot();
+        snapshot.setPipe(runner.getUuid());
+        snapshot.setUserguid(runner.getUserguid());
+        snapshot.setSourceAddress(address(runner.getSourceChannel()));
+        snapshot.setDestinationAddress(address(runner.getDestinationChannel()));
+        snapshot.setSourceReady(runner.isSourceReady());
+        snapshot.setDestinationReady(runner.isDestinationReady());
+        snapshot.setOn(runner.isOn());
+        snapshot.setAgeMillis(TimeUnit.NANOSECONDS.toMillis(now - runner.getCreatedNanos()));
+        long lastActivity = runner.getLastActivity();
+        snapshot.setIdleMillis(TimeUnit.NANOSECONDS.toMillis(now - (lastActivity == 0 ? runner.getCreatedNanos() : lastActivity)));
+
+        RelayDirection upstream = runner.getUpstream();
+        RelayDirection downstream = runner.getDownstream();
+        if (upstream != null && downstream != null) {
+            snapshot.setUpstreamBytes(upstream.getBytes());
+            snapshot.setDownstreamBytes(downstream.getBytes());
+            snapshot.setUpstreamPending(upstream.getPendingBytes());
+            snapshot.setDownstreamPending(downstream.getPendingBytes());
+            snapshot.setThrottled(downstream.isThrottled());
+            snapshot.setMaxWriteStallMillis(TimeUnit.NANOSECONDS.toMillis(
+                    Math.max(upstream.getMaxWriteStall(), downstream.getMaxWriteStall())));
+        }
+        Sample sample = samples.get(runner);
+        if (sample != null) {
+            snapshot.setUpstreamRate(sample.upstreamRate);
+            snapshot.setDownstreamRate(sample.downstreamRate);
+        }
+        return snapshot;
+    }
+
+    /**
+     * 强制结束会话，未配对的会话先认领，避免目标端同时接入。
+     * 已被目标端认领、尚未开始转发的会话，由start()看到已关闭后放弃开始
+     * @return 会话不存在返回false
+     */
+    public boolean close(String pipe) {
+        TcpTransferRunner runner = pipeRegistry.get(pipe);
+        if (runner == null) {
+            return false;
+        }
+        //未配对时认领，阻止目标端接入；认领失败说明配对正在进行，start()看到已关闭后不再开始
+        runner.claim();
+        runner.close();
+        return true;
+    }
+
+    private static String address(SocketChannel channel) {
+        if (channel == null) {
+            return null;
+        }
+        try {
+            SocketAddress address = channel.getRemoteAddress();
+            return address == null ? null : address.toString();
+        } catch (IOException e) {
+            //通道已关闭
+            return null;
+        }
+    }
+
+    /**
+     * 一次采样的字节数及与上次采样之间的速率
+     */
+    private static class Sample {
+
+        private final long upstreamBytes;
+
+        private final long downstreamBytes;
+
+        private final long nanos;
+
+        private final long upstreamRate;
+
+        private final long downstreamRate;
+
+        Sample(long upstreamBytes, long downstreamBytes, long nanos, Sample previous) {
+            this.upstreamBytes = upstreamBytes;
+            this.downstreamBytes = downstreamBytes;
+            this.nanos = nanos;
+            if (previous == null || nanos <= previous.nanos) {
+                this.upstreamRate = 0;
+                this.downstreamRate = 0;
+            } else {
+                long elapsed = nanos - previous.nanos;
+                this.upstreamRate = (upstreamBytes - previous.upstreamBytes) * TimeUnit.SECONDS.toNanos(1) / elapsed;
+                this.downstreamRate = (downstreamBytes - previous.downstreamBytes) * TimeUnit.SECONDS.toNanos(1) / elapsed;
+            }
+        }
+    }
+}
@@ -51,25 +51,52 @@ public class MQClient {
         this.pubsub = pubsub;
     }
 
-    public boolean publish(String channels, String message, String content) {
+    /**
+     * 实时消息的内容
+     */
+    static String realtimePayload(String message, String content) throws JSONException {
         JSONObject obj = new JSONObject();
+        if (message != null) {
+            obj.put("message", message);
+        }
+        try {
+            JSONObject objCon = new JSONObject(content);
+            obj.put("content", objCon);
+        } catch (JSONException e) {
+            obj.put("content", content);
+        }
+        return obj.toString();
+    }
+
+    /**
+     * 发往消息缓存服务的消息内容
+     */
+    static String notifyPayload(String clients, String message, String content, int type) throws JSONException {
+        JSONObject obj = new JSONObject();
+        obj.put("clients", clients);
+        obj.put("type", type);
+        if (message != null) {
+            obj.put("message", message);
+        }
+        try {
+            JSONObject objCon = new JSONObject(content);
+            obj.put("content", objCon);
+        } catch (JSONException e) {
+            obj.put("content", content);
+        }
+        return obj.toString();
+    }
+
+    public boolean publish(String channels, String message, String content) {
         boolean ret = false;
         Jedis jedis = null;
         try {
             jedis = pool.getResource();
-            if (message != null) {
-                obj.put("message", message);
-            }
-            try {
-                JSONObject objCon = new JSONObject(content);
-                obj.put("content", objCon);
-            } catch (JSONException e) {
-                obj.put("content", content);
-            }
+            String payload = realtimePayload(message, content);
             String[] tmp = channels.split(";");
             for (String channel : tmp) {
                 try {
-                    if (jedis.publish(channel, obj.toString()) > 0) {
+                    if (jedis.publish(channel, payload) > 0) {
                         ret = true;
                     }
                 } catch (Exception e) {
@@ -95,21 +122,10 @@ public class MQClient {
         Jedis jedis = null;
 
         try {
-            JSONObject obj = new JSONObject();
-            obj.put("clients", clients);
-            obj.put("type", type);
-            if (message != null) {
-                obj.put("message", message);
-            }
-            try {
-                JSONObject objCon = new JSONObject(content);
-                obj.put("content", objCon);
-            } catch (JSONException e) {
-                obj.put("content", content);
-            }
+            String payload = notifyPayload(clients, message, content, type);
 
             jedis = pool.getResource();
-            if (jedis.publish(NOTIFY_CHANNEL, obj.toString()) > 0) {
+            if (jedis.publish(NOTIFY_CHANNEL, payload) > 0) {
                 ret = true;
             }
         } catch (JSONException e) {
@@ -136,7 +152,10 @@ public class MQClient {
     }
 
     public String getValue(String key) {
-        return pool.getResource().get(key);
+        //用完归还连接
+        try (Jedis jedis = pool.getResource()) {
+            return jedis.get(key);
+        }
     }
 
     public void subscribe(String... channels) {
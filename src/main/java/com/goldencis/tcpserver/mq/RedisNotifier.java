@@ -0,0 +1,253 @@
+package com.goldencis.tcpserver.mq;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.Pipeline;
+import redis.clients.jedis.Protocol;
+import redis.clients.jedis.Response;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 异步批量发送客户端通知，替代在监听线程中同步调用{@link MQClient#clientNotify}。
+ * 调用方只把通知放入有界队列，由专用的发送线程组装消息，并在一个独占连接上用pipeline批量PUBLISH，
+ * 一批通知只需一次往返。每条通知对应一个future，发送失败或无人订阅时调用方可立即关闭会话。
+ * 集群模式下管道的路由也经同一队列写入，保证先于该管道的通知到达redis。
+ */
+@Component
+public class RedisNotifier implements Runnable {
+
+    //写入路由，不是客户端通知
+    private static final int TYPE_ROUTE = 0;
+
+    @Value("${spring.redis.host}")
+    private String redisHost;
+
+    @Value("${spring.redis.port}")
+    private Integer redisPort;
+
+    //通知队列容量，队列满时直接拒绝
+    @Value("${relay.notify.queue-capacity:10000}")
+    private int queueCapacity = 10000;
+
+    //每次pipeline发送的最大通知数
+    @Value("${relay.notify.batch-size:128}")
+    private int batchSize = 128;
+
+    private BlockingQueue<Notification> queue;
+
+    //队列满被拒绝的通知数
+    private final LongAdder overflow = new LongAdder();
+
+    //发送成功的通知数
+    private final LongAdder sent = new LongAdder();
+
+    //发送失败的通知数
+    private final LongAdder failed = new LongAdder();
+
+    //发送的批次数
+    private final LongAdder batches = new LongAdder();
+
+    //发送线程独占的连接
+    private Jedis jedis;
+
+    private volatile boolean on;
+
+    private Thread sender;
+
+    public RedisNotifier() {
+    }
+
+    public RedisNotifier(String redisHost, int redisPort, int queueCapacity, int batchSize) {
+        this.redisHost = redisHost;
+        this.redisPort = redisPort;
+        this.queueCapacity = queueCapacity;
+        this.batchSize = batchSize;
+    }
+
+    @PostConstruct
+    public void start() {
+        queue = new ArrayBlockingQueue<>(queueCapacity);
+        on = true;
+        sender = new Thread(this, "redis-notifier");
+        sender.setDaemon(true);
+        sender.start();
+    }
+
+    /**
+     * 异步通知客户端，可在任意线程调用，不会阻塞
+     * 参数与{@link MQClient#clientNotify}相同
+     * @return 有订阅者收到时为true，无订阅者时为false；队列已满或发送失败时异常结束
+     */
+    public CompletableFuture<Boolean> clientNotify(String clients, String message, String content, int type) {
+        return this.offer(new Notification(clients, message, content, type));
+    }
+
+    /**
+     * 异步写入带有效期的路由键，与通知按入队顺序发送
+     * @return 写入成功时为true；队列已满或发送失败时异常结束
+     */
+    public CompletableFuture<Boolean> route(String key, String value, int ttlSeconds) {
+        Notification notification = new Notification(key, null, value, TYPE_ROUTE);
+        notification.ttlSeconds = ttlSeconds;
+        return this.offer(notification);
+    }
+
+    private CompletableFuture<Boolean> offer(Notification notification) {
+        if (!on || !queue.offer(notification)) {
+            overflow.increment();
+            notification.future.completeExceptionally(new RejectedExecutionException("通知队列已满"));
+        }
+        return notification.future;
+    }
+
+    @Override
+    public void run() {
+        List<Notification> batch = new ArrayList<>(batchSize);
+        while (on) {
+            try {
+                //等待第一条通知，之后取出已排队的通知一起发送
+                Notification first = queue.poll(1, TimeUnit.SECONDS);
+                if (first == null) {
+                    continue;
+                }
+                batch.add(first);
+                queue.drainTo(batch, batchSize - 1);
+                this.send(batch);
+            } catch (InterruptedException e) {
+                //停止
+            } catch (Exception e) {
+                failed.add(batch.size());
+                for (Notification notification : batch) {
+                    notification.future.completeExceptionally(e);
+                }
+                this.disconnect();
+                try {
+                    //连接失败后稍等再重连
+                    Thread.sleep(1000);
+                } catch (InterruptedException ex) {
+                    //停止
+                }
+            } finally {
+                batch.clear();
+            }
+        }
+
+        //拒绝停止后剩余的通知
+        Notification notification;
+        while ((notification = queue.poll()) != null) {
+            notification.future.completeExceptionally(new RejectedExecutionException("通知服务已停止"));
+        }
+        this.disconnect();
+    }
+
+    private void send(List<Notification> batch) {
+        if (jedis == null) {
+            jedis = new Jedis(redisHost, redisPort, Protocol.DEFAULT_TIMEOUT);
+        }
+        Pipeline pipeline = jedis.pipelined();
+        List<List<Response<?>>> responses = new ArrayList<>(batch.size());
+        for (Notification notification : batch) {
+            List<Response<?>> published = new ArrayList<>(1);
+            if (notification.type == TYPE_ROUTE) {
+                published.add(pipeline.setex(notification.clients, notification.ttlSeconds, notification.content));
+            } else if (notification.type == MQClient.MSG_REALTIME) {
+                //实时消息逐个发往客户端的频道
+                String payload = MQClient.realtimePayload(notification.message, notification.content);
+                for (String channel : notification.clients.split(";")) {
+                    published.add(pipeline.publish(channel, payload));
+                }
+            } else {
+                String payload = MQClient.notifyPayload(notification.clients, notification.message, notification.content, notification.type);
+                published.add(pipeline.publish(MQClient.NOTIFY_CHANNEL, payload));
+            }
+            responses.add(published);
+        }
+        pipeline.sync();
+        batches.increment();
+
+        for (int i = 0; i < batch.size(); i++) {
+            boolean received = false;
+            for (Response<?> response : responses.get(i)) {
+                //PUBLISH返回订阅者数，SETEX返回OK
+                Object result = response.get();
+                if (result instanceof Long ? (Long) result > 0 : "OK".equals(result)) {
+                    received = true;
+                }
+            }
+            sent.increment();
+            batch.get(i).future.complete(received);
+        }
+    }
+
+    private void disconnect() {
+        if (jedis != null) {
+            try {
+                jedis.close();
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
+            jedis = null;
+        }
+    }
+
+    @PreDestroy
+    public void stop() {
+        on = false;
+        if (sender != null) {
+            sender.interrupt();
+        }
+    }
+
+    public int getQueueSize() {
+        return queue.size();
+    }
+
+    public long getOverflowCount() {
+        return overflow.sum();
+    }
+
+    public long getSentCount() {
+        return sent.sum();
+    }
+
+    public long getFailedCount() {
+        return failed.sum();
+    }
+
+    public long getBatchCount() {
+        return batches.sum();
+    }
+
+    private static class Notification {
+
+        private final String clients;
+
+        private final String message;
+
+        private final String content;
+
+        private final int type;
+
+        private int ttlSeconds;
+
+        private final CompletableFuture<Boolean> future = new CompletableFuture<>();
+
+        Notification(String clients, String message, String content, int type) {
+            this.clients = clients;
+            this.message = message;
+            this.content = content;
+            this.type = type;
+        }
+    }
+}
@@ -0,0 +1,266 @@
+package com.goldencis.tcpserver.mux;
+
+import com.goldencis.tcpserver.buffer.BufferPool;
+import com.goldencis.tcpserver.runner.EventLoop;
+import com.goldencis.tcpserver.runner.RelayContext;
+import com.goldencis.tcpserver.runner.RelayDirection;
+import com.goldencis.tcpserver.runner.SelectionHandler;
+import com.goldencis.tcpserver.runner.TcpTransferRunner;
+import com.goldencis.tcpserver.utils.StreamFrameDecoder;
+import com.goldencis.tcpserver.utils.StreamFrameEncoder;
+import com.goldencis.tcpserver.utils.TcpProtocolException;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * 一个目标端的多路复用连接，按流id把收到的帧分发给各个流。
+ * 连接上打开的流所配对的转发会话都迁移到本连接的事件循环上，流与会话之间的调用不跨线程。
+ * 连接待写数据达到高水位时各个流暂停发送，写出到低水位以下再恢复；
+ * 接收方向由各流的窗口限制，不需要暂停读取连接。
+ * 只在所属事件循环的线程中调用。
+ */
+class MuxConnection implements SelectionHandler {
+
+    private final MuxServer server;
+
+    private final SocketChannel channel;
+
+    private final EventLoop loop;
+
+    private final RelayContext relayContext;
+
+    private final BufferPool bufferPool;
+
+    private final StreamFrameDecoder decoder;
+
+    private SelectionKey key;
+
+    private final Map<Integer, MuxStream> streams = new HashMap<>();
+
+    //待写出的帧，均为读模式
+    private final ArrayDeque<ByteBuffer> pending = new ArrayDeque<>();
+
+    private long pendingBytes;
+
+    //待写数据过多，暂停各个流的发送
+    private boolean writeBlocked;
+
+    private boolean closed;
+
+    MuxConnection(MuxServer server, SocketChannel channel, EventLoop loop, RelayContext relayContext) {
+        this.server = server;
+        this.channel = channel;
+        this.loop = loop;
+        this.relayContext = relayContext;
+        this.bufferPool = relayContext.getBufferPool();
+        this.decoder = new StreamFrameDecoder(bufferPool.getReadChunkSize(), 0);
+    }
+
+    void register() {
+        try {
+            key = loop.register(channel, SelectionKey.OP_READ, this);
+            server.connectionOpened();
+        } catch (IOException e) {
+            closed = true;
+            try {
+                channel.close();
+            } catch (IOException ex) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    @Override
+    public void handle(SelectionKey key) throws IOException {
+        if (key.isWritable()) {
+            this.flush();
+        }
+        if (key.isValid() && key.isReadable()) {
+            int budget = loop.getReadBudget();
+            while (budget-- > 0 && !closed && decoder.read(channel, this::frame) > 0) {
+                //继续读取
+            }
+        }
+    }
+
+    private void frame(int id, byte type, ByteBuffer payload) throws IOException {
+        if (closed) {
+            return;
+        }
+        MuxStream stream = streams.get(id);
+        switch (type) {
+            case StreamFrameEncoder.OPEN:
+                if (stream != null) {
+                    throw new TcpProtocolException("流id重复: " + id);
+                }
+                this.open(id, StandardCharsets.UTF_8.decode(payload).toString());
+                break;
+            case StreamFrameEncoder.DATA:
+                //本地已关闭的流，丢弃途中的数据
+                if (stream != null) {
+                    stream.receive(payload);
+                }
+                break;
+            case StreamFrameEncoder.WINDOW_UPDATE:
+                if (stream != null) {
+                    stream.windowUpdate(payload.getInt());
+                }
+                break;
+            case StreamFrameEncoder.CLOSE:
+                if (stream != null) {
+                    stream.remoteClose();
+                }
+                break;
+            default:
+                throw new TcpProtocolException("帧类型错误: " + type);
+        }
+    }
+
+    /**
+     * 按管道id认领noVNC端登记的会话，以新的流作为会话的目标端
+     */
+    private void open(int id, String pipe) {
+        TcpTransferRunner runner = streams.size() < server.getMaxStreams() ? relayContext.getPipeRegistry().claim(pipe) : null;
+        if (runner == null) {
+            server.streamRejected();
+            this.sendControl(id, StreamFrameEncoder.CLOSE);
+            return;
+        }
+        MuxStream stream = new MuxStream(this, id, runner, server.getWindow());
+        streams.put(id, stream);
+        server.streamOpened();
+
+        //会话尚未注册到事件循环，迁移到本连接所在的循环
+        runner.setEventLoop(loop);
+        runner.setDestinationEndpoint(stream);
+        runner.setDestinationReady(true);
+        //流上不协商压缩
+        runner.negotiateCapabilities(0);
+        this.sendControl(id, StreamFrameEncoder.OPEN);
+        runner.start();
+    }
+
+    /**
+     * 发送一帧
+     * @param frame 读模式的缓冲块，负载前预留了帧头空间，发送后由连接归还
+     */
+    void send(int id, byte type, ByteBuffer frame) {
+        if (closed) {
+            bufferPool.release(frame);
+            return;
+        }
+        StreamFrameEncoder.header(frame, id, type);
+        pending.addLast(frame);
+        pendingBytes += frame.remaining();
+        try {
+            this.flush();
+        } catch (IOException e) {
+            this.close();
+            return;
+        }
+        if (pendingBytes >= relayContext.getDownstreamHighWatermark()) {
+            writeBlocked = true;
+        }
+    }
+
+    private void sendControl(int id, byte type) {
+        ByteBuffer frame = StreamFrameEncoder.acquire(bufferPool, 0);
+        frame.flip();
+        this.send(id, type, frame);
+    }
+
+    void sendClose(int id) {
+        this.sendControl(id, StreamFrameEncoder.CLOSE);
+    }
+
+    void sendWindowUpdate(int id, int increment) {
+        ByteBuffer frame = StreamFrameEncoder.acquire(bufferPool, 4);
+        frame.putInt(increment);
+        frame.flip();
+        this.send(id, StreamFrameEncoder.WINDOW_UPDATE, frame);
+    }
+
+    private void flush() throws IOException {
+        ByteBuffer frame;
+        while ((frame = pending.peekFirst()) != null) {
+            pendingBytes -= channel.write(frame);
+            if (frame.hasRemaining()) {
+                break;
+            }
+            pending.pollFirst();
+            bufferPool.release(frame);
+        }
+        RelayDirection.interest(key, SelectionKey.OP_WRITE, !pending.isEmpty());
+
+        //降到低水位以下，通知等待发送的流
+        if (writeBlocked && pendingBytes <= relayContext.getDownstreamLowWatermark()) {
+            writeBlocked = false;
+            for (MuxStream stream : streams.values()) {
+                stream.schedule();
+            }
+        }
+    }
+
+    /**
+     * 流关闭后移除
+     */
+    void removed(MuxStream stream) {
+        if (streams.remove(stream.getId(), stream)) {
+            server.streamClosed();
+        }
+    }
+
+    boolean isWriteBlocked() {
+        return writeBlocked;
+    }
+
+    int getMaxPayload() {
+        return bufferPool.getReadChunkSize();
+    }
+
+    EventLoop getLoop() {
+        return loop;
+    }
+
+    BufferPool getBufferPool() {
+        return bufferPool;
+    }
+
+    MuxServer getServer() {
+        return server;
+    }
+
+    @Override
+    public void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        //目标端断开，连接上的会话一并结束
+        for (MuxStream stream : new ArrayList<>(streams.values())) {
+            stream.connectionClosed();
+        }
+        ByteBuffer frame;
+        while ((frame = pending.pollFirst()) != null) {
+            bufferPool.release(frame);
+        }
+        pendingBytes = 0;
+        if (key != null) {
+            key.cancel();
+            server.connectionClosed();
+        }
+        try {
+            channel.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+}
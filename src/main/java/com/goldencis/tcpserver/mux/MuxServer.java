@@ -0,0 +1,158 @@
+package com.goldencis.tcpserver.mux;
+
+import com.goldencis.tcpserver.constants.ConstantsDto;
+import com.goldencis.tcpserver.entity.TcpProtocolBody;
+import com.goldencis.tcpserver.runner.EventLoop;
+import com.goldencis.tcpserver.runner.EventLoopGroup;
+import com.goldencis.tcpserver.runner.RelayContext;
+import com.goldencis.tcpserver.utils.TcpProtocolException;
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.MeterBinder;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 目标端的多路复用连接。
+ * 目标端在目标端口上以connectMux_c2s握手，收到connectVncSucc_s2c后，该连接改为按流传输，
+ * 每个流对应一个管道，帧格式见{@link com.goldencis.tcpserver.utils.StreamFrameEncoder}：
+ * 目标端发送OPEN帧(负载为管道id)打开流，转发服务回复OPEN帧表示配对成功，回复CLOSE帧表示管道不存在；
+ * 之后双方用DATA帧传输数据，用CLOSE帧关闭流。
+ * 每个流每个方向有独立的流控窗口，发送方最多发送窗口大小的未确认数据，
+ * 接收方消费后用WINDOW_UPDATE帧归还窗口，一个流读得慢不影响同一连接上的其他流。
+ * 流直接作为转发会话的目标端，不再经过单独的tcp连接。
+ */
+@Component
+public class MuxServer implements MeterBinder {
+
+    @Value("${relay.mux.enabled:false}")
+    private boolean enabled;
+
+    //每个流每个方向的初始窗口字节数
+    @Value("${relay.mux.window:262144}")
+    private int window = 256 * 1024;
+
+    //每个连接上同时打开的流的上限
+    @Value("${relay.mux.max-streams:1024}")
+    private int maxStreams = 1024;
+
+    @Autowired
+    private EventLoopGroup eventLoopGroup;
+
+    @Autowired
+    private RelayContext relayContext;
+
+    private final AtomicInteger connections = new AtomicInteger();
+
+    private final AtomicInteger streams = new AtomicInteger();
+
+    private final LongAdder streamsOpened = new LongAdder();
+
+    //管道不存在或超出上限而拒绝的流
+    private final LongAdder streamsRejected = new LongAdder();
+
+    //发送窗口用尽、等待目标端归还的次数
+    private final LongAdder windowStalls = new LongAdder();
+
+    public MuxServer() {
+    }
+
+    public MuxServer(EventLoopGroup eventLoopGroup, RelayContext relayContext, int window, int maxStreams) {
+        this.enabled = true;
+        this.eventLoopGroup = eventLoopGroup;
+        this.relayContext = relayContext;
+        this.window = window;
+        this.maxStreams = maxStreams;
+    }
+
+    /**
+     * 目标端完成多路复用握手，响应后把连接交给转发事件循环
+     * @param channel 目标端通道，非阻塞模式
+     * @param body 目标端的协议体
+     * @throws IOException 未启用多路复用或响应失败
+     */
+    public void accept(SocketChannel channel, TcpProtocolBody body) throws IOException {
+        if (!enabled) {
+            throw new TcpProtocolException("未启用多路复用");
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(1024);
+        TcpProtocolBody.response(ConstantsDto.CONNECT_VNC_SUCCESS, body, buffer);
+        buffer.flip();
+        channel.write(buffer);
+
+        EventLoop loop = eventLoopGroup.next();
+        MuxConnection connection = new MuxConnection(this, channel, loop, relayContext);
+        loop.execute(connection::register);
+    }
+
+    @Override
+    public void bindTo(MeterRegistry registry) {
+        Gauge.builder("relay.mux.connections", connections, AtomicInteger::get).register(registry);
+        Gauge.builder("relay.mux.streams", streams, AtomicInteger::get).register(registry);
+        FunctionCounter.builder("relay.mux.streams.opened", streamsOpened, LongAdder::sum).register(registry);
+        FunctionCounter.builder("relay.mux.streams.rejected", streamsRejected, LongAdder::sum).register(registry);
+        FunctionCounter.builder("relay.mux.window.stalls", windowStalls, LongAdder::sum)
+                .description("发送窗口用尽的次数").register(registry);
+    }
+
+    void connectionOpened() {
+        connections.incrementAndGet();
+    }
+
+    void connectionClosed() {
+        connections.decrementAndGet();
+    }
+
+    void streamOpened() {
+        streams.incrementAndGet();
+        streamsOpened.increment();
+    }
+
+    void streamClosed() {
+        streams.decrementAndGet();
+    }
+
+    void streamRejected() {
+        streamsRejected.increment();
+    }
+
+    void windowStalled() {
+        windowStalls.increment();
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    public int getWindow() {
+        return window;
+    }
+
+    public int getMaxStreams() {
+        return maxStreams;
+    }
+
+    public int getConnectionCount() {
+        return connections.get();
+    }
+
+    public int getStreamCount() {
+        return streams.get();
+    }
+
+    public long getStreamsRejected() {
+        return streamsRejected.sum();
+    }
+
+    public long getWindowStalls() {
+        return windowStalls.sum();
+    }
+}
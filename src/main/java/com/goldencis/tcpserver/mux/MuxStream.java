@@ -0,0 +1,244 @@
+package com.goldencis.tcpserver.mux;
+
+import com.goldencis.tcpserver.buffer.BufferPool;
+import com.goldencis.tcpserver.runner.RelayEndpoint;
+import com.goldencis.tcpserver.runner.TcpTransferRunner;
+import com.goldencis.tcpserver.utils.StreamFrameEncoder;
+import com.goldencis.tcpserver.utils.TcpProtocolException;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.util.ArrayDeque;
+
+/**
+ * 多路复用连接上的一个流，作为转发会话的目标端。
+ * 收到的DATA帧复制到接收队列，会话读取后累计消费的字节数，达到半个窗口时归还给目标端；
+ * 会话写出的数据封装为DATA帧，受发送窗口和连接待写水位的限制，写不进去时返回0。
+ * 流没有选择键，有数据可读、窗口恢复或监听事件打开时，向事件循环提交一次就绪通知。
+ * 只在所属连接的事件循环线程中调用，close()除外。
+ */
+class MuxStream implements RelayEndpoint {
+
+    private final MuxConnection connection;
+
+    private final int id;
+
+    private final TcpTransferRunner runner;
+
+    private final BufferPool bufferPool;
+
+    private final int window;
+
+    //收到尚未被会话读取的数据，均为读模式
+    private final ArrayDeque<ByteBuffer> inbound = new ArrayDeque<>();
+
+    //目标端还可以发送的字节数
+    private int receiveWindow;
+
+    //已读取尚未归还的字节数
+    private int consumed;
+
+    //还可以发给目标端的字节数
+    private long sendWindow;
+
+    private boolean readInterest;
+
+    private boolean writeInterest;
+
+    //是否已提交就绪通知
+    private boolean scheduled;
+
+    //目标端已关闭该流
+    private boolean remoteClosed;
+
+    private boolean closed;
+
+    MuxStream(MuxConnection connection, int id, TcpTransferRunner runner, int window) {
+        this.connection = connection;
+        this.id = id;
+        this.runner = runner;
+        this.bufferPool = connection.getBufferPool();
+        this.window = window;
+        this.receiveWindow = window;
+        this.sendWindow = window;
+    }
+
+    /**
+     * 收到DATA帧
+     * @param payload 读模式，只读取剩余部分，不保留引用
+     * @throws TcpProtocolException 目标端超出窗口发送
+     */
+    void receive(ByteBuffer payload) throws TcpProtocolException {
+        int length = payload.remaining();
+        if (length > receiveWindow) {
+            throw new TcpProtocolException("流" + id + "超出流控窗口");
+        }
+        if (closed || length == 0) {
+            return;
+        }
+        receiveWindow -= length;
+        ByteBuffer chunk = bufferPool.allocate(length);
+        chunk.put(payload);
+        chunk.flip();
+        inbound.addLast(chunk);
+        if (readInterest) {
+            this.schedule();
+        }
+    }
+
+    void windowUpdate(int increment) throws TcpProtocolException {
+        if (increment <= 0) {
+            throw new TcpProtocolException("窗口增量错误: " + increment);
+        }
+        sendWindow += increment;
+        if (writeInterest) {
+            this.schedule();
+        }
+    }
+
+    void remoteClose() {
+        remoteClosed = true;
+        this.schedule();
+    }
+
+    /**
+     * 所属连接已关闭
+     */
+    void connectionClosed() {
+        remoteClosed = true;
+        runner.close();
+    }
+
+    @Override
+    public int read(ByteBuffer dst) throws IOException {
+        if (closed) {
+            throw new ClosedChannelException();
+        }
+        int read = 0;
+        ByteBuffer chunk;
+        while (dst.hasRemaining() && (chunk = inbound.peekFirst()) != null) {
+            int length = Math.min(dst.remaining(), chunk.remaining());
+            int limit = chunk.limit();
+            chunk.limit(chunk.position() + length);
+            dst.put(chunk);
+            chunk.limit(limit);
+            read += length;
+            if (!chunk.hasRemaining()) {
+                inbound.pollFirst();
+                bufferPool.release(chunk);
+            }
+        }
+        if (read == 0) {
+            return remoteClosed ? -1 : 0;
+        }
+
+        //消费达到半个窗口时归还，减少WINDOW_UPDATE帧的数量
+        consumed += read;
+        if (consumed >= window / 2 && !remoteClosed) {
+            connection.sendWindowUpdate(id, consumed);
+            receiveWindow += consumed;
+            consumed = 0;
+        }
+        return read;
+    }
+
+    @Override
+    public int write(ByteBuffer src) throws IOException {
+        if (closed) {
+            throw new ClosedChannelException();
+        }
+        if (connection.isWriteBlocked()) {
+            return 0;
+        }
+        int length = (int) Math.min(Math.min(src.remaining(), sendWindow), connection.getMaxPayload());
+        if (length <= 0) {
+            if (src.hasRemaining()) {
+                connection.getServer().windowStalled();
+            }
+            return 0;
+        }
+        ByteBuffer frame = StreamFrameEncoder.acquire(bufferPool, length);
+        int limit = src.limit();
+        src.limit(src.position() + length);
+        frame.put(src);
+        src.limit(limit);
+        frame.flip();
+        sendWindow -= length;
+        connection.send(id, StreamFrameEncoder.DATA, frame);
+        return length;
+    }
+
+    @Override
+    public void interest(int op, boolean on) {
+        if (op == SelectionKey.OP_READ) {
+            readInterest = on;
+        } else if (op == SelectionKey.OP_WRITE) {
+            writeInterest = on;
+        }
+        if (on) {
+            this.schedule();
+        }
+    }
+
+    /**
+     * 提交一次就绪通知，已提交未执行时不重复提交
+     */
+    void schedule() {
+        if (!scheduled && !closed) {
+            scheduled = true;
+            connection.getLoop().execute(this::fire);
+        }
+    }
+
+    private void fire() {
+        scheduled = false;
+        if (closed) {
+            return;
+        }
+        boolean readable = readInterest && (!inbound.isEmpty() || remoteClosed);
+        boolean writable = writeInterest && sendWindow > 0 && !connection.isWriteBlocked();
+        if (!readable && !writable) {
+            return;
+        }
+        try {
+            runner.ready(false, writable, readable);
+        } catch (IOException e) {
+            runner.close();
+            return;
+        }
+        //本轮读取次数用完仍有数据，继续通知
+        if (readInterest && !inbound.isEmpty()) {
+            this.schedule();
+        }
+    }
+
+    @Override
+    public void close() {
+        if (connection.getLoop().inEventLoop()) {
+            this.closeNow();
+        } else {
+            connection.getLoop().execute(this::closeNow);
+        }
+    }
+
+    private void closeNow() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        ByteBuffer chunk;
+        while ((chunk = inbound.pollFirst()) != null) {
+            bufferPool.release(chunk);
+        }
+        if (!remoteClosed) {
+            connection.sendClose(id);
+        }
+        connection.removed(this);
+    }
+
+    int getId() {
+        return id;
+    }
+}
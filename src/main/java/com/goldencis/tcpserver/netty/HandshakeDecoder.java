@@ -0,0 +1,80 @@
+package com.goldencis.tcpserver.netty;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.goldencis.tcpserver.constants.ConstantsDto;
+import com.goldencis.tcpserver.entity.TcpProtocolBody;
+import com.goldencis.tcpserver.utils.TcpProtocolException;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufInputStream;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.handler.codec.ByteToMessageDecoder;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.List;
+
+/**
+ * netty引擎的握手协议解码器，协议格式与{@link com.goldencis.tcpserver.utils.TcpFrameDecoder}相同。
+ * 收齐协议头和协议体后输出一个协议体，之后不再解析。
+ * 握手后已收到的转发数据保留在累积缓冲区中，本解码器被移除时原样传给后续的转发处理器。
+ */
+public class HandshakeDecoder extends ByteToMessageDecoder {
+
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+
+    //协议总长度上限，包含协议头
+    private final int maxFrameSize;
+
+    private boolean decoded;
+
+    public HandshakeDecoder(int maxFrameSize) {
+        this.maxFrameSize = maxFrameSize;
+    }
+
+    @Override
+    protected void decode(ChannelHandlerContext ctx, ByteBuf in, List<Object> out) throws Exception {
+        if (decoded || in.readableBytes() < ConstantsDto.TCP_PROTOCOL_HEAD_SIZE) {
+            return;
+        }
+
+        int start = in.readerIndex();
+        //获取校验位
+        int verify = in.getInt(start);
+        if (!ConstantsDto.TCP_PROTOCOL_VERIFY.equals(verify)) {
+            throw new TcpProtocolException("校验位不匹配!");
+        }
+
+        //获取版本号
+        int version = in.getInt(start + 4);
+        if (!ConstantsDto.TCP_PROTOCOL_VERSION.equals(version)
+                && !ConstantsDto.TCP_PROTOCOL_VERSION_BINARY.equals(version)) {
+            throw new TcpProtocolException("版本不匹配!");
+        }
+
+        //获取协议长度
+        int length = in.getInt(start + 8);
+        if (length <= ConstantsDto.TCP_PROTOCOL_HEAD_SIZE || length > maxFrameSize) {
+            throw new TcpProtocolException("协议长度错误: " + length);
+        }
+        if (in.readableBytes() < length) {
+            //等待协议体接收完整
+            return;
+        }
+
+        in.skipBytes(ConstantsDto.TCP_PROTOCOL_HEAD_SIZE);
+        ByteBuf body = in.readSlice(length - ConstantsDto.TCP_PROTOCOL_HEAD_SIZE);
+        TcpProtocolBody tcpBody;
+        try {
+            if (ConstantsDto.TCP_PROTOCOL_VERSION_BINARY.equals(version)) {
+                tcpBody = TcpProtocolBody.decode(body.nioBuffer());
+            } else {
+                InputStream input = new ByteBufInputStream(body);
+                tcpBody = MAPPER.readValue(input, TcpProtocolBody.class);
+            }
+        } catch (IOException | RuntimeException e) {
+            throw new TcpProtocolException("协议体格式错误", e);
+        }
+        decoded = true;
+        out.add(tcpBody);
+    }
+}
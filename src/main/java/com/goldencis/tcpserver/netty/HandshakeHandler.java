@@ -0,0 +1,79 @@
+package com.goldencis.tcpserver.netty;
+
+import com.goldencis.tcpserver.constants.ConstantsDto;
+import com.goldencis.tcpserver.entity.TcpProtocolBody;
+import com.goldencis.tcpserver.utils.TcpProtocolException;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.SimpleChannelInboundHandler;
+import io.netty.util.concurrent.ScheduledFuture;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * netty引擎的握手处理器，noVNC端和目标端各一个实例。
+ * noVNC端握手后登记通道并停止读取，等待目标端认领；目标端握手后认领noVNC端通道，响应握手成功并开始转发。
+ * 连接后未在限定时间内完成握手的通道直接关闭。
+ */
+public class HandshakeHandler extends SimpleChannelInboundHandler<TcpProtocolBody> {
+
+    private final NettyRelayServer server;
+
+    //本端期望的握手动作
+    private final String action;
+
+    private ScheduledFuture<?> handshakeTimeout;
+
+    public HandshakeHandler(NettyRelayServer server, String action) {
+        this.server = server;
+        this.action = action;
+    }
+
+    @Override
+    public void channelActive(ChannelHandlerContext ctx) {
+        //限定时间内未收到完整握手帧则关闭
+        handshakeTimeout = ctx.executor().schedule(() -> {
+            ctx.close();
+        }, server.getHandshakeSeconds(), TimeUnit.SECONDS);
+        ctx.fireChannelActive();
+    }
+
+    @Override
+    protected void channelRead0(ChannelHandlerContext ctx, TcpProtocolBody body) throws Exception {
+        handshakeTimeout.cancel(false);
+        if (!action.equals(body.getAction())) {
+            throw new TcpProtocolException("不支持的动作: " + body.getAction());
+        }
+
+        if (ConstantsDto.CONNECT_NOVNC_SERVER.equals(action)) {
+            //转发开始前不读取noVNC端数据
+            ctx.channel().config().setAutoRead(false);
+            //登记到配对表，等待目标端认领
+            if (!server.park(body, ctx.channel())) {
+                throw new TcpProtocolException("管道id已被占用: " + body.getPipe());
+            }
+            //需要通知客户端
+            server.notifyVNCTarget(body, ctx.channel());
+        } else {
+            //认领noVNC端通道，响应后开始转发
+            if (!server.claimAndPair(body, ctx.channel())) {
+                throw new TcpProtocolException("管道不存在或已配对: " + body.getPipe());
+            }
+        }
+    }
+
+    @Override
+    public void channelInactive(ChannelHandlerContext ctx) {
+        if (handshakeTimeout != null) {
+            handshakeTimeout.cancel(false);
+        }
+        //未被认领即断开的noVNC端从配对表中移除
+        server.unpark(ctx.channel());
+        ctx.fireChannelInactive();
+    }
+
+    @Override
+    public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) {
+        //握手失败，关闭当前通道，不影响其他连接
+        ctx.close();
+    }
+}
@@ -0,0 +1,320 @@
+package com.goldencis.tcpserver.netty;
+
+import com.goldencis.tcpserver.constants.ConstantsDto;
+import com.goldencis.tcpserver.entity.TcpProtocolBody;
+import com.goldencis.tcpserver.metrics.RelayMetrics;
+import com.goldencis.tcpserver.mq.MQClient;
+import com.goldencis.tcpserver.mq.RedisNotifier;
+import com.goldencis.tcpserver.runner.SocketOptions;
+import com.goldencis.tcpserver.utils.PipeTable;
+import io.netty.bootstrap.ServerBootstrap;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.PooledByteBufAllocator;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFutureListener;
+import io.netty.channel.ChannelInitializer;
+import io.netty.channel.ChannelOption;
+import io.netty.channel.ChannelPipeline;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.ServerChannel;
+import io.netty.channel.WriteBufferWaterMark;
+import io.netty.channel.epoll.Epoll;
+import io.netty.channel.epoll.EpollChannelOption;
+import io.netty.channel.epoll.EpollEventLoopGroup;
+import io.netty.channel.epoll.EpollMode;
+import io.netty.channel.epoll.EpollServerSocketChannel;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.socket.SocketChannel;
+import io.netty.channel.socket.nio.NioServerSocketChannel;
+import io.netty.handler.timeout.IdleStateHandler;
+import io.netty.util.AttributeKey;
+import io.netty.util.concurrent.ScheduledFuture;
+import org.json.JSONObject;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 基于netty的转发引擎，relay.engine=netty时替代NoVNCServer、VNCTargetServer和转发事件循环。
+ * linux下使用边缘触发的epoll原生传输，其他平台退回nio传输；缓冲区使用池化分配器。
+ * 握手协议、配对规则和redis通知与nio引擎相同。
+ */
+@Component
+@ConditionalOnProperty(name = "relay.engine", havingValue = "netty")
+public class NettyRelayServer {
+
+    //noVNC端登记的握手协议体
+    private static final AttributeKey<TcpProtocolBody> PARKED_BODY = AttributeKey.valueOf("parkedBody");
+
+    //等待目标端认领的超时任务
+    private static final AttributeKey<ScheduledFuture<?>> PAIRING_TIMEOUT = AttributeKey.valueOf("pairingTimeout");
+
+    @Autowired
+    private RedisNotifier notifier;
+
+    //未注入时只计数，不发布
+    @Autowired
+    private RelayMetrics metrics = new RelayMetrics();
+
+    //未注入时使用默认的套接字选项
+    @Autowired
+    @Qualifier("noVNCSocketOptions")
+    private SocketOptions noVNCSocketOptions = new SocketOptions(true, true, 0, 0);
+
+    @Autowired
+    @Qualifier("targetSocketOptions")
+    private SocketOptions targetSocketOptions = new SocketOptions(true, true, 0, 0);
+
+    @Value(value = "${server.noVNC.port}")
+    private Integer noVNCPort;
+
+    @Value(value = "${server.VNCtarget.port}")
+    private Integer vNCtargetPort;
+
+    @Value("${relay.eventloop.threads:0}")
+    private int threads;
+
+    @Value("${relay.registry.concurrency:64}")
+    private int concurrency = 64;
+
+    @Value(value = "${relay.handshake.max-frame-size:4096}")
+    private int maxFrameSize = 4096;
+
+    @Value(value = "${relay.timeout.handshake-seconds:10}")
+    private long handshakeSeconds = 10;
+
+    @Value(value = "${relay.timeout.pairing-seconds:30}")
+    private long pairingSeconds = 30;
+
+    @Value("${relay.timeout.idle-seconds:1800}")
+    private long idleSeconds = 1800;
+
+    @Value("${relay.backpressure.upstream.high-watermark:262144}")
+    private int upstreamHighWatermark = 256 * 1024;
+
+    @Value("${relay.backpressure.upstream.low-watermark:65536}")
+    private int upstreamLowWatermark = 64 * 1024;
+
+    @Value("${relay.backpressure.downstream.high-watermark:1048576}")
+    private int downstreamHighWatermark = 1024 * 1024;
+
+    @Value("${relay.backpressure.downstream.low-watermark:262144}")
+    private int downstreamLowWatermark = 256 * 1024;
+
+    private PipeTable<Channel> table;
+
+    private EventLoopGroup bossGroup;
+
+    private EventLoopGroup workerGroup;
+
+    private Channel noVNCChannel;
+
+    private Channel targetChannel;
+
+    public NettyRelayServer() {
+    }
+
+    public NettyRelayServer(int noVNCPort, int vNCtargetPort) {
+        this.noVNCPort = noVNCPort;
+        this.vNCtargetPort = vNCtargetPort;
+    }
+
+    @PostConstruct
+    public void start() throws InterruptedException {
+        table = new PipeTable<>(concurrency);
+
+        boolean epoll = Epoll.isAvailable();
+        Class<? extends ServerChannel> channelClass;
+        if (epoll) {
+            bossGroup = new EpollEventLoopGroup(1);
+            workerGroup = new EpollEventLoopGroup(threads);
+            channelClass = EpollServerSocketChannel.class;
+        } else {
+            bossGroup = new NioEventLoopGroup(1);
+            workerGroup = new NioEventLoopGroup(threads);
+            channelClass = NioServerSocketChannel.class;
+        }
+
+        //noVNC端的写缓冲承载下行数据，目标端的写缓冲承载上行数据
+        noVNCChannel = this.bind(channelClass, epoll, noVNCPort, ConstantsDto.CONNECT_NOVNC_SERVER,
+                new WriteBufferWaterMark(downstreamLowWatermark, downstreamHighWatermark), noVNCSocketOptions);
+        targetChannel = this.bind(channelClass, epoll, vNCtargetPort, ConstantsDto.CONNECT_VNC_CLIENT,
+                new WriteBufferWaterMark(upstreamLowWatermark, upstreamHighWatermark), targetSocketOptions);
+    }
+
+    private Channel bind(Class<? extends ServerChannel> channelClass, boolean epoll, int port, String action,
+                         WriteBufferWaterMark waterMark, SocketOptions socketOptions) throws InterruptedException {
+        ServerBootstrap bootstrap = new ServerBootstrap()
+                .group(bossGroup, workerGroup)
+                .channel(channelClass)
+                .option(ChannelOption.ALLOCATOR, PooledByteBufAllocator.DEFAULT)
+                .childOption(ChannelOption.ALLOCATOR, PooledByteBufAllocator.DEFAULT)
+                .childOption(ChannelOption.TCP_NODELAY, socketOptions.isTcpNoDelay())
+                .childOption(ChannelOption.SO_KEEPALIVE, socketOptions.isKeepAlive())
+                .childOption(ChannelOption.WRITE_BUFFER_WATER_MARK, waterMark)
+                .childHandler(new ChannelInitializer<SocketChannel>() {
+                    @Override
+                    protected void initChannel(SocketChannel ch) {
+                        ch.pipeline().addLast("handshakeDecoder", new HandshakeDecoder(maxFrameSize));
+                        ch.pipeline().addLast("handshake", new HandshakeHandler(NettyRelayServer.this, action));
+                    }
+                });
+        if (socketOptions.getReceiveBufferSize() > 0) {
+            bootstrap.option(ChannelOption.SO_RCVBUF, socketOptions.getReceiveBufferSize())
+                    .childOption(ChannelOption.SO_RCVBUF, socketOptions.getReceiveBufferSize());
+        }
+        if (socketOptions.getSendBufferSize() > 0) {
+            bootstrap.childOption(ChannelOption.SO_SNDBUF, socketOptions.getSendBufferSize());
+        }
+        if (epoll) {
+            bootstrap.childOption(EpollChannelOption.EPOLL_MODE, EpollMode.EDGE_TRIGGERED);
+        }
+        return bootstrap.bind(port).sync().channel();
+    }
+
+    /**
+     * 登记noVNC端通道，超时未被认领时关闭
+     * @return 登记成功返回true，管道id已被占用返回false
+     */
+    boolean park(TcpProtocolBody body, Channel channel) {
+        //先记录协议体，登记后目标端即可认领
+        channel.attr(PARKED_BODY).set(body);
+        Channel existing;
+        if (body.isBinaryPipe()) {
+            existing = table.putIfAbsent(body.getPipeMost(), body.getPipeLeast(), channel);
+        } else {
+            existing = table.putIfAbsent(body.getPipe(), channel);
+        }
+        if (existing != null) {
+            return false;
+        }
+        metrics.nettyParked(true);
+        channel.attr(PAIRING_TIMEOUT).set(channel.eventLoop().schedule(() -> {
+            if (this.unpark(channel)) {
+                channel.close();
+            }
+        }, pairingSeconds, TimeUnit.SECONDS));
+        return true;
+    }
+
+    /**
+     * 从配对表中移除noVNC端通道
+     * @return 本次调用移除成功返回true，未登记或已被认领返回false
+     */
+    boolean unpark(Channel channel) {
+        TcpProtocolBody body = channel.attr(PARKED_BODY).get();
+        if (body == null) {
+            return false;
+        }
+        boolean removed = body.isBinaryPipe()
+                ? table.remove(body.getPipeMost(), body.getPipeLeast(), channel)
+                : table.remove(body.getPipe(), channel);
+        if (removed) {
+            metrics.nettyParked(false);
+        }
+        return removed;
+    }
+
+    /**
+     * 目标端认领noVNC端通道，响应握手成功后开始双向转发
+     * @param body 目标端的协议体
+     * @param target 目标端通道
+     * @return 认领成功返回true
+     */
+    boolean claimAndPair(TcpProtocolBody body, Channel target) throws Exception {
+        Channel noVNC = body.isBinaryPipe()
+                ? table.get(body.getPipeMost(), body.getPipeLeast())
+                : table.get(body.getPipe());
+        //移除成功即认领成功，与超时和其他目标端互斥
+        if (noVNC == null || !this.unpark(noVNC)) {
+            return false;
+        }
+        ScheduledFuture<?> timeout = noVNC.attr(PAIRING_TIMEOUT).get();
+        if (timeout != null) {
+            timeout.cancel(false);
+        }
+
+        //按请求的协议版本响应握手成功
+        ByteBuf response = target.alloc().buffer(1024);
+        ByteBuffer buffer = response.nioBuffer(0, response.capacity());
+        TcpProtocolBody.response(ConstantsDto.CONNECT_VNC_SUCCESS, body, buffer);
+        response.writerIndex(buffer.position());
+        target.writeAndFlush(response).addListener(ChannelFutureListener.CLOSE_ON_FAILURE);
+
+        //目标端在本线程，noVNC端的流水线操作由netty切换到其所在线程
+        metrics.sessionOpened();
+        noVNC.closeFuture().addListener(future -> metrics.sessionClosed());
+        this.startRelay(target, noVNC, metrics.getUpstreamBytes());
+        this.startRelay(noVNC, target, metrics.getDownstreamBytes());
+        noVNC.config().setAutoRead(true);
+        return true;
+    }
+
+    private void startRelay(Channel channel, Channel peer, LongAdder totalBytes) {
+        ChannelPipeline pipeline = channel.pipeline();
+        if (idleSeconds > 0) {
+            pipeline.addLast("idle", new IdleStateHandler(0, 0, idleSeconds, TimeUnit.SECONDS));
+        }
+        pipeline.addLast("relay", new RelayHandler(peer, totalBytes));
+        pipeline.remove("handshake");
+        //解码器移除时把握手后已收到的数据交给转发处理器
+        pipeline.remove("handshakeDecoder");
+        if (!peer.isActive()) {
+            RelayHandler.closeOnFlush(channel);
+        }
+    }
+
+    /**
+     * 异步通知客户端连接，不阻塞事件循环，发送失败或客户端不在线时关闭noVNC端
+     */
+    void notifyVNCTarget(TcpProtocolBody body, Channel channel) {
+        //组装消息内容
+        JSONObject contentJson = new JSONObject();
+        contentJson.put("action", ConstantsDto.CONNECT_VNC_SERVER);
+        contentJson.put("pipe", body.getPipe());
+
+        notifier.clientNotify(body.getUserguid(), ConstantsDto.CONNECT_VNC_SERVER, contentJson.toString(), MQClient.MSG_REALTIME)
+                .whenComplete((received, e) -> {
+                    if ((e != null || !received) && this.unpark(channel)) {
+                        channel.close();
+                    }
+                });
+    }
+
+    public int getNoVNCPort() {
+        return ((InetSocketAddress) noVNCChannel.localAddress()).getPort();
+    }
+
+    public int getVNCtargetPort() {
+        return ((InetSocketAddress) targetChannel.localAddress()).getPort();
+    }
+
+    public long getHandshakeSeconds() {
+        return handshakeSeconds;
+    }
+
+    public int size() {
+        return table.size();
+    }
+
+    @PreDestroy
+    public void stop() {
+        if (noVNCChannel != null) {
+            noVNCChannel.close();
+        }
+        if (targetChannel != null) {
+            targetChannel.close();
+        }
+        bossGroup.shutdownGracefully();
+        workerGroup.shutdownGracefully();
+    }
+}
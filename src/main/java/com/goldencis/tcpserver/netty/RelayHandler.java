@@ -0,0 +1,86 @@
+package com.goldencis.tcpserver.netty;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFutureListener;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.handler.timeout.IdleStateEvent;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * netty引擎的单向转发处理器，把本通道读到的数据原样写入对端通道。
+ * 数据在一次读取完成后统一flush；对端写缓冲超过高水位时停止读取本通道，降到低水位后恢复。
+ */
+public class RelayHandler extends ChannelInboundHandlerAdapter {
+
+    private final Channel peer;
+
+    //全局的本方向字节数
+    private final LongAdder totalBytes;
+
+    public RelayHandler(Channel peer, LongAdder totalBytes) {
+        this.peer = peer;
+        this.totalBytes = totalBytes;
+    }
+
+    @Override
+    public void channelRead(ChannelHandlerContext ctx, Object msg) {
+        if (msg instanceof ByteBuf) {
+            totalBytes.add(((ByteBuf) msg).readableBytes());
+        }
+        //缓冲区的释放由对端的写操作负责
+        peer.write(msg, peer.voidPromise());
+    }
+
+    @Override
+    public void channelReadComplete(ChannelHandlerContext ctx) {
+        peer.flush();
+        if (!peer.isWritable()) {
+            //对端积压，暂停读取本通道
+            ctx.channel().config().setAutoRead(false);
+            //对端可能在暂停前已恢复可写，再检查一次避免永久停止
+            if (peer.isWritable()) {
+                ctx.channel().config().setAutoRead(true);
+            }
+        }
+    }
+
+    @Override
+    public void channelWritabilityChanged(ChannelHandlerContext ctx) {
+        //本通道写缓冲降到低水位，恢复读取对端
+        if (ctx.channel().isWritable()) {
+            peer.config().setAutoRead(true);
+        }
+        ctx.fireChannelWritabilityChanged();
+    }
+
+    @Override
+    public void userEventTriggered(ChannelHandlerContext ctx, Object evt) {
+        if (evt instanceof IdleStateEvent) {
+            //空闲超时
+            ctx.close();
+        } else {
+            ctx.fireUserEventTriggered(evt);
+        }
+    }
+
+    @Override
+    public void channelInactive(ChannelHandlerContext ctx) {
+        //写完已转发的数据后关闭对端
+        closeOnFlush(peer);
+    }
+
+    @Override
+    public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) {
+        ctx.close();
+    }
+
+    static void closeOnFlush(Channel channel) {
+        if (channel.isActive()) {
+            channel.writeAndFlush(Unpooled.EMPTY_BUFFER).addListener(ChannelFutureListener.CLOSE);
+        }
+    }
+}
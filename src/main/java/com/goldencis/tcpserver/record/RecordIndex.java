@@ -0,0 +1,152 @@
+package com.goldencis.tcpserver.record;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * 一个管道的录制索引，由SegmentWriter写入的文本索引解析得到。
+ * 同一管道可能录制了多个会话，按开始顺序排列。
+ */
+public class RecordIndex {
+
+    public static final String START = "start";
+
+    public static final String SEGMENT = "segment";
+
+    public static final String MARK = "mark";
+
+    public static final String END = "end";
+
+    private final Map<Long, List<Entry>> sessions = new LinkedHashMap<>();
+
+    private RecordIndex() {
+    }
+
+    /**
+     * 读取管道的索引
+     * @param dir 录制目录
+     * @return 索引，管道没有录制时会话列表为空
+     */
+    public static RecordIndex load(Path dir, String pipe) throws IOException {
+        RecordIndex index = new RecordIndex();
+        List<String> lines;
+        try {
+            lines = Files.readAllLines(SegmentWriter.indexPath(dir.resolve(SegmentWriter.INDEX_DIR), pipe), StandardCharsets.UTF_8);
+        } catch (NoSuchFileException e) {
+            return index;
+        }
+        for (String line : lines) {
+            String[] fields = line.split(" ");
+            //写入中的最后一行可能不完整
+            if (fields.length != 5) {
+                continue;
+            }
+            Entry entry = new Entry(fields[0], Long.parseLong(fields[1]), fields[2],
+                    Integer.parseInt(fields[3]), Long.parseLong(fields[4]));
+            if (START.equals(entry.event)) {
+                index.sessions.put(entry.sessionId, new ArrayList<>());
+            }
+            List<Entry> entries = index.sessions.get(entry.sessionId);
+            if (entries != null) {
+                entries.add(entry);
+            }
+        }
+        return index;
+    }
+
+    /**
+     * 按开始顺序排列的会话id
+     */
+    public List<Long> sessions() {
+        return new ArrayList<>(sessions.keySet());
+    }
+
+    /**
+     * 最近开始的会话id，没有时返回-1
+     */
+    public long lastSession() {
+        long last = -1;
+        for (Long sessionId : sessions.keySet()) {
+            last = sessionId;
+        }
+        return last;
+    }
+
+    public List<Entry> entries(long sessionId) {
+        List<Entry> entries = sessions.get(sessionId);
+        return entries == null ? Collections.emptyList() : Collections.unmodifiableList(entries);
+    }
+
+    /**
+     * 会话中不晚于指定时间的最后一个定位点，早于会话开始时返回开始记录
+     * @return 定位点，会话不存在时返回null
+     */
+    public Entry floor(long sessionId, long millis) {
+        List<Entry> entries = sessions.get(sessionId);
+        if (entries == null) {
+            return null;
+        }
+        Entry floor = entries.get(0);
+        for (Entry entry : entries) {
+            if (entry.millis > millis) {
+                break;
+            }
+            if (!END.equals(entry.event)) {
+                floor = entry;
+            }
+        }
+        return floor;
+    }
+
+    /**
+     * 索引中的一行
+     */
+    public static class Entry {
+
+        private final String event;
+
+        private final long sessionId;
+
+        private final String segment;
+
+        private final int offset;
+
+        private final long millis;
+
+        Entry(String event, long sessionId, String segment, int offset, long millis) {
+            this.event = event;
+            this.sessionId = sessionId;
+            this.segment = segment;
+            this.offset = offset;
+            this.millis = millis;
+        }
+
+        public String getEvent() {
+            return event;
+        }
+
+        public long getSessionId() {
+            return sessionId;
+        }
+
+        public String getSegment() {
+            return segment;
+        }
+
+        public int getOffset() {
+            return offset;
+        }
+
+        public long getMillis() {
+            return millis;
+        }
+    }
+}
@@ -0,0 +1,129 @@
+package com.goldencis.tcpserver.record;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * 多生产者、单消费者的无锁环形队列，条目预先分配并循环使用。
+ * 生产者(各事件循环)以CAS领取序号，填写条目后发布该序号；消费者(写文件线程)按序号顺序取出已发布的条目。
+ * 队列满时领取失败，由生产者丢弃记录，不等待消费者。
+ */
+public class RecordRing {
+
+    private final Entry[] entries;
+
+    private final int mask;
+
+    //下一个待领取的序号
+    private final AtomicLong tail = new AtomicLong();
+
+    //各条目已发布的序号
+    private final AtomicLongArray published;
+
+    //下一个待消费的序号，只由消费者写入
+    private volatile long head;
+
+    /**
+     * @param capacity 条目数，取不小于该值的2的幂
+     */
+    public RecordRing(int capacity) {
+        int size = 2;
+        while (size < capacity) {
+            size <<= 1;
+        }
+        this.entries = new Entry[size];
+        this.mask = size - 1;
+        this.published = new AtomicLongArray(size);
+        for (int i = 0; i < size; i++) {
+            entries[i] = new Entry();
+            published.set(i, -1);
+        }
+    }
+
+    /**
+     * 领取一个条目的序号
+     * @return 序号，队列已满时返回-1
+     */
+    public long claim() {
+        while (true) {
+            long sequence = tail.get();
+            if (sequence - head >= entries.length) {
+                return -1;
+            }
+            if (tail.compareAndSet(sequence, sequence + 1)) {
+                return sequence;
+            }
+        }
+    }
+
+    public Entry entry(long sequence) {
+        return entries[(int) sequence & mask];
+    }
+
+    /**
+     * 条目填写完成，对消费者可见
+     */
+    public void publish(long sequence) {
+        published.lazySet((int) sequence & mask, sequence);
+    }
+
+    /**
+     * 消费者取出下一个条目，处理完后调用release
+     * @return 下一个已发布的条目，没有时返回null
+     */
+    public Entry peek() {
+        long sequence = head;
+        int index = (int) sequence & mask;
+        return published.get(index) == sequence ? entries[index] : null;
+    }
+
+    public void release() {
+        head = head + 1;
+    }
+
+    /**
+     * 已领取、尚未消费的条目数
+     */
+    public long size() {
+        return Math.max(0, tail.get() - head);
+    }
+
+    public int capacity() {
+        return entries.length;
+    }
+
+    /**
+     * 一条录制记录，数据缓冲区按需扩大后复用
+     */
+    public static class Entry {
+
+        byte type;
+
+        byte direction;
+
+        byte flags;
+
+        long sessionId;
+
+        //System.nanoTime()
+        long nanos;
+
+        byte[] data = new byte[0];
+
+        int length;
+
+        //会话开始记录的附加信息
+        String pipe;
+
+        String userguid;
+
+        long epochMillis;
+
+        void ensureCapacity(int size) {
+            if (data.length < size) {
+                //按4K对齐，减少扩容次数
+                data = new byte[(size + 4095) & ~4095];
+            }
+        }
+    }
+}
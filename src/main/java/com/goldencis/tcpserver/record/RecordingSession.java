@@ -0,0 +1,58 @@
+package com.goldencis.tcpserver.record;
+
+import java.nio.ByteBuffer;
+
+/**
+ * 一个转发会话的录制句柄，只在会话所属事件循环的线程中调用。
+ * 记录被丢弃后，下一条写入的记录带有FLAG_GAP标志，回放时可以知道数据不连续。
+ */
+public class RecordingSession {
+
+    //上行：noVNC端到目标端
+    public static final byte UPSTREAM = 0;
+
+    //下行：目标端到noVNC端
+    public static final byte DOWNSTREAM = 1;
+
+    private final SessionRecorder recorder;
+
+    private final long id;
+
+    //之前是否有记录被丢弃
+    private boolean gap;
+
+    private boolean closed;
+
+    RecordingSession(SessionRecorder recorder, long id) {
+        this.recorder = recorder;
+        this.id = id;
+    }
+
+    /**
+     * 录制一段转发的数据
+     * @param direction 方向
+     * @param src 缓冲区，数据位于[from, to)
+     */
+    public void record(byte direction, ByteBuffer src, int from, int to) {
+        if (closed || to <= from) {
+            return;
+        }
+        byte flags = gap ? SegmentWriter.FLAG_GAP : 0;
+        gap = !recorder.offer(SegmentWriter.TYPE_DATA, id, direction, flags, src, from, to);
+    }
+
+    /**
+     * 会话结束
+     */
+    public void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        recorder.offer(SegmentWriter.TYPE_END, id, (byte) 0, gap ? SegmentWriter.FLAG_GAP : 0, null, 0, 0);
+    }
+
+    public long getId() {
+        return id;
+    }
+}
@@ -0,0 +1,59 @@
+package com.goldencis.tcpserver.record;
+
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * 回放的节奏控制：按记录之间的原始间隔除以倍速等待，倍速不大于0时不等待，以最快速度回放。
+ */
+public class ReplayClock {
+
+    public static final double MAX_SPEED = 0;
+
+    private final double speed;
+
+    //节奏的起点：第一条记录的时间和对应的实际时间
+    private long baseRecordNanos;
+
+    private long baseNanos;
+
+    private boolean started;
+
+    public ReplayClock(double speed) {
+        this.speed = speed;
+    }
+
+    /**
+     * 等待到记录应当发出的时间
+     * @param recordNanos 记录的纳秒时间
+     */
+    public void await(long recordNanos) throws InterruptedException {
+        if (speed <= 0) {
+            return;
+        }
+        if (!started) {
+            this.reset(recordNanos);
+            return;
+        }
+        long due = baseNanos + (long) ((recordNanos - baseRecordNanos) / speed);
+        long wait;
+        while ((wait = due - System.nanoTime()) > 0) {
+            LockSupport.parkNanos(wait);
+            if (Thread.interrupted()) {
+                throw new InterruptedException();
+            }
+        }
+    }
+
+    /**
+     * 以指定记录为新的起点，定位之后调用
+     */
+    public void reset(long recordNanos) {
+        baseRecordNanos = recordNanos;
+        baseNanos = System.nanoTime();
+        started = true;
+    }
+
+    public double getSpeed() {
+        return speed;
+    }
+}
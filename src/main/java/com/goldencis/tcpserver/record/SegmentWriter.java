@@ -0,0 +1,227 @@
+package com.goldencis.tcpserver.record;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * 把录制记录追加到内存映射的段文件中，只由写文件线程调用。
+ * 段文件创建时按固定大小预分配，写满后切换到下一个段文件；文件头之后依次存放记录，长度为0表示数据结束。
+ * 记录格式：长度(4字节，含记录头)、类型、方向、标志、保留(各1字节)、会话id(8字节)、纳秒时间(8字节)、负载。
+ * 会话开始记录的负载为：开始时间(8字节，毫秒)、管道id和userguid(各为2字节长度加utf-8字节)。
+ * 每个管道一个文本索引文件，每行为：事件 会话id 段文件名 偏移 毫秒时间，
+ * 事件为start、segment(会话跨入新的段文件)、mark(每隔一段录制时间的稀疏定位点)、end，回放时据此按时间定位。
+ */
+public class SegmentWriter {
+
+    public static final int MAGIC = 0x52454331;
+
+    public static final int FILE_HEADER_SIZE = 8;
+
+    public static final int RECORD_HEADER_SIZE = 24;
+
+    public static final byte TYPE_START = 1;
+
+    public static final byte TYPE_DATA = 2;
+
+    public static final byte TYPE_END = 3;
+
+    //之前有记录因队列已满被丢弃
+    public static final byte FLAG_GAP = 0x1;
+
+    public static final String SEGMENT_SUFFIX = ".seg";
+
+    public static final String INDEX_DIR = "index";
+
+    public static final String INDEX_SUFFIX = ".idx";
+
+    private static final Pattern SEGMENT_NAME = Pattern.compile("segment-(\\d+)\\" + SEGMENT_SUFFIX);
+
+    private final Path dir;
+
+    private final Path indexDir;
+
+    private final int segmentSize;
+
+    //稀疏定位点的间隔
+    private final long markIntervalNanos;
+
+    private long segmentNumber;
+
+    private String segmentName;
+
+    private MappedByteBuffer segment;
+
+    //进行中的会话，跨段文件时写入索引
+    private final Map<Long, IndexedSession> sessions = new HashMap<>();
+
+    public SegmentWriter(Path dir, int segmentSize, long markIntervalMillis) throws IOException {
+        this.dir = dir;
+        this.indexDir = dir.resolve(INDEX_DIR);
+        this.segmentSize = segmentSize;
+        this.markIntervalNanos = TimeUnit.MILLISECONDS.toNanos(markIntervalMillis);
+        Files.createDirectories(indexDir);
+        //接着已有的最大编号继续
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir, "segment-*" + SEGMENT_SUFFIX)) {
+            for (Path path : stream) {
+                segmentNumber = Math.max(segmentNumber, segmentNumber(path.getFileName().toString()));
+            }
+        }
+    }
+
+    /**
+     * 写入一条记录
+     * @return 记录过长、无法写入任何段文件时返回false
+     */
+    public boolean write(RecordRing.Entry entry) throws IOException {
+        byte[] pipe = null;
+        byte[] userguid = null;
+        int length = RECORD_HEADER_SIZE;
+        if (entry.type == TYPE_START) {
+            pipe = bytes(entry.pipe);
+            userguid = bytes(entry.userguid);
+            length += 8 + 2 + pipe.length + 2 + userguid.length;
+        } else {
+            length += entry.length;
+        }
+        //留出结束标记的4字节
+        if (length + 4 > segmentSize - FILE_HEADER_SIZE) {
+            return false;
+        }
+        if (segment == null || segment.remaining() < length + 4) {
+            this.roll(entry.nanos);
+        }
+
+        int offset = segment.position();
+        segment.putInt(length);
+        segment.put(entry.type);
+        segment.put(entry.direction);
+        segment.put(entry.flags);
+        segment.put((byte) 0);
+        segment.putLong(entry.sessionId);
+        segment.putLong(entry.nanos);
+        if (entry.type == TYPE_START) {
+            segment.putLong(entry.epochMillis);
+            segment.putShort((short) pipe.length).put(pipe);
+            segment.putShort((short) userguid.length).put(userguid);
+            IndexedSession session = new IndexedSession(entry.pipe, entry.epochMillis, entry.nanos);
+            sessions.put(entry.sessionId, session);
+            this.index(session.pipe, "start", entry.sessionId, offset, entry.epochMillis);
+        } else {
+            segment.put(entry.data, 0, entry.length);
+            IndexedSession session = entry.type == TYPE_END ? sessions.remove(entry.sessionId) : sessions.get(entry.sessionId);
+            if (session != null) {
+                if (entry.type == TYPE_END) {
+                    this.index(session.pipe, "end", entry.sessionId, offset, session.millis(entry.nanos));
+                } else if (entry.nanos >= session.nextMark) {
+                    session.nextMark = entry.nanos + markIntervalNanos;
+                    this.index(session.pipe, "mark", entry.sessionId, offset, session.millis(entry.nanos));
+                }
+            }
+        }
+        //结束标记，读取方不会把预分配的空间当作记录
+        segment.putInt(segment.position(), 0);
+        return true;
+    }
+
+    /**
+     * 切换到新的段文件，进行中的会话在索引中记录新的段文件
+     */
+    private void roll(long nanos) throws IOException {
+        this.finish();
+        segmentNumber++;
+        segmentName = segmentName(segmentNumber);
+        try (RandomAccessFile file = new RandomAccessFile(dir.resolve(segmentName).toFile(), "rw");
+             FileChannel channel = file.getChannel()) {
+            //映射时按段大小预分配，关闭通道后映射仍然有效
+            segment = channel.map(FileChannel.MapMode.READ_WRITE, 0, segmentSize);
+        }
+        segment.putInt(MAGIC);
+        segment.putInt(segmentSize);
+        segment.putInt(segment.position(), 0);
+
+        for (Map.Entry<Long, IndexedSession> session : sessions.entrySet()) {
+            IndexedSession indexed = session.getValue();
+            indexed.nextMark = nanos + markIntervalNanos;
+            this.index(indexed.pipe, "segment", session.getKey(), FILE_HEADER_SIZE, indexed.millis(nanos));
+        }
+    }
+
+    /**
+     * 当前段文件刷到磁盘
+     */
+    public void finish() {
+        if (segment != null) {
+            segment.force();
+            segment = null;
+        }
+    }
+
+    private void index(String pipe, String event, long sessionId, int offset, long millis) throws IOException {
+        String line = event + " " + sessionId + " " + segmentName + " " + offset + " " + millis + "\n";
+        Files.write(indexPath(indexDir, pipe), line.getBytes(StandardCharsets.UTF_8),
+                StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+    }
+
+    /**
+     * 管道的索引文件，管道id中文件名不支持的字符替换为下划线
+     */
+    public static Path indexPath(Path indexDir, String pipe) {
+        return indexDir.resolve(pipe.replaceAll("[^A-Za-z0-9._-]", "_") + INDEX_SUFFIX);
+    }
+
+    private static byte[] bytes(String value) {
+        return value == null ? new byte[0] : value.getBytes(StandardCharsets.UTF_8);
+    }
+
+    public long getSegmentNumber() {
+        return segmentNumber;
+    }
+
+    /**
+     * 段文件名对应的编号，不是段文件时返回-1
+     */
+    public static long segmentNumber(String name) {
+        Matcher matcher = SEGMENT_NAME.matcher(name);
+        return matcher.matches() ? Long.parseLong(matcher.group(1)) : -1;
+    }
+
+    public static String segmentName(long number) {
+        return String.format("segment-%08d%s", number, SEGMENT_SUFFIX);
+    }
+
+    private static class IndexedSession {
+
+        final String pipe;
+
+        final long startMillis;
+
+        final long startNanos;
+
+        //下一个定位点的最早时间
+        long nextMark;
+
+        IndexedSession(String pipe, long startMillis, long startNanos) {
+            this.pipe = pipe;
+            this.startMillis = startMillis;
+            this.startNanos = startNanos;
+            this.nextMark = startNanos;
+        }
+
+        //按会话开始的墙上时间换算记录时间
+        long millis(long nanos) {
+            return startMillis + TimeUnit.NANOSECONDS.toMillis(nanos - startNanos);
+        }
+    }
+}
@@ -0,0 +1,249 @@
+package com.goldencis.tcpserver.record;
+
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.TimeGauge;
+import io.micrometer.core.instrument.binder.MeterBinder;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Paths;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * 转发会话的审计录制。
+ * 事件循环把转发的数据连同时间和方向复制到无锁环形队列，后台线程再写入内存映射的段文件，转发线程不做文件IO。
+ * 写文件跟不上时队列写满，新的记录直接丢弃并计数，不反压正在进行的会话。
+ */
+@Component
+public class SessionRecorder implements MeterBinder, Runnable {
+
+    @Value("${relay.record.enabled:false}")
+    private boolean enabled;
+
+    //段文件目录
+    @Value("${relay.record.dir:record}")
+    private String dir = "record";
+
+    //段文件大小
+    @Value("${relay.record.segment-size:268435456}")
+    private int segmentSize = 256 * 1024 * 1024;
+
+    //环形队列的条目数
+    @Value("${relay.record.ring-size:4096}")
+    private int ringSize = 4096;
+
+    //索引中定位点的间隔毫秒数，决定回放按时间定位的精度
+    @Value("${relay.record.index-interval-ms:1000}")
+    private long indexIntervalMillis = 1000;
+
+    private RecordRing ring;
+
+    private SegmentWriter writer;
+
+    private Thread thread;
+
+    private volatile boolean running;
+
+    //以启动时间为起点，重启后的会话id不与已有的录制重复
+    private final AtomicLong sessionIds = new AtomicLong(System.currentTimeMillis() * 1000);
+
+    //队列已满丢弃的记录数和字节数
+    private final LongAdder droppedRecords = new LongAdder();
+
+    private final LongAdder droppedBytes = new LongAdder();
+
+    //写入段文件的记录数和字节数，只由写文件线程更新
+    private volatile long writtenRecords;
+
+    private volatile long writtenBytes;
+
+    //最近写入的记录的产生时间
+    private volatile long lastWrittenNanos;
+
+    public SessionRecorder() {
+    }
+
+    public SessionRecorder(String dir, int segmentSize, int ringSize, long indexIntervalMillis) {
+        this.enabled = true;
+        this.dir = dir;
+        this.segmentSize = segmentSize;
+        this.ringSize = ringSize;
+        this.indexIntervalMillis = indexIntervalMillis;
+    }
+
+    @PostConstruct
+    public void start() throws IOException {
+        if (!enabled) {
+            return;
+        }
+        ring = new RecordRing(ringSize);
+        writer = new SegmentWriter(Paths.get(dir), segmentSize, indexIntervalMillis);
+        running = true;
+        thread = new Thread(this, "session-recorder");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * 开始录制一个会话
+     * @return 录制句柄，未启用录制或队列已满时返回null
+     */
+    public RecordingSession open(String pipe, String userguid) {
+        if (ring == null) {
+            return null;
+        }
+        RecordingSession session = new RecordingSession(this, sessionIds.incrementAndGet());
+        long sequence = ring.claim();
+        if (sequence < 0) {
+            //会话开始记录丢失则不录制该会话
+            droppedRecords.increment();
+            return null;
+        }
+        RecordRing.Entry entry = ring.entry(sequence);
+        entry.type = SegmentWriter.TYPE_START;
+        entry.sessionId = session.getId();
+        entry.direction = 0;
+        entry.flags = 0;
+        entry.nanos = System.nanoTime();
+        entry.epochMillis = System.currentTimeMillis();
+        entry.pipe = pipe;
+        entry.userguid = userguid;
+        entry.length = 0;
+        ring.publish(sequence);
+        return session;
+    }
+
+    /**
+     * 复制一段数据到队列
+     * @return 队列已满丢弃时返回false
+     */
+    boolean offer(byte type, long sessionId, byte direction, byte flags, ByteBuffer src, int from, int to) {
+        long sequence = ring.claim();
+        if (sequence < 0) {
+            droppedRecords.increment();
+            droppedBytes.add(to - from);
+            return false;
+        }
+        RecordRing.Entry entry = ring.entry(sequence);
+        entry.type = type;
+        entry.sessionId = sessionId;
+        entry.direction = direction;
+        entry.flags = flags;
+        entry.nanos = System.nanoTime();
+        entry.pipe = null;
+        entry.userguid = null;
+        entry.length = to - from;
+        if (entry.length > 0) {
+            entry.ensureCapacity(entry.length);
+            int position = src.position();
+            src.position(from);
+            src.get(entry.data, 0, entry.length);
+            src.position(position);
+        }
+        ring.publish(sequence);
+        return true;
+    }
+
+    @Override
+    public void run() {
+        int idle = 0;
+        while (running || ring.peek() != null) {
+            RecordRing.Entry entry = ring.peek();
+            if (entry == null) {
+                //逐步退避，空闲时不占用CPU
+                LockSupport.parkNanos(idle < 100 ? 10_000 : 1_000_000);
+                idle++;
+                continue;
+            }
+            idle = 0;
+            try {
+                if (writer.write(entry)) {
+                    writtenRecords++;
+                    writtenBytes += entry.length;
+                } else {
+                    droppedRecords.increment();
+                    droppedBytes.add(entry.length);
+                }
+            } catch (IOException e) {
+                //磁盘错误时丢弃，不影响转发
+                e.printStackTrace();
+                droppedRecords.increment();
+                droppedBytes.add(entry.length);
+            }
+            lastWrittenNanos = entry.nanos;
+            entry.pipe = null;
+            entry.userguid = null;
+            ring.release();
+        }
+        writer.finish();
+    }
+
+    @PreDestroy
+    public void stop() throws InterruptedException {
+        running = false;
+        if (thread != null) {
+            thread.join(TimeUnit.SECONDS.toMillis(10));
+        }
+    }
+
+    @Override
+    public void bindTo(MeterRegistry registry) {
+        FunctionCounter.builder("relay.record.dropped", droppedRecords, LongAdder::sum).register(registry);
+        FunctionCounter.builder("relay.record.dropped.bytes", droppedBytes, LongAdder::sum)
+                .baseUnit("bytes").register(registry);
+        FunctionCounter.builder("relay.record.written", this, SessionRecorder::getWrittenRecords).register(registry);
+        FunctionCounter.builder("relay.record.written.bytes", this, SessionRecorder::getWrittenBytes)
+                .baseUnit("bytes").register(registry);
+        Gauge.builder("relay.record.queue", this, SessionRecorder::getQueueSize).register(registry);
+        TimeGauge.builder("relay.record.lag", this, TimeUnit.NANOSECONDS, SessionRecorder::getLagNanos)
+                .description("录制落后于转发的时间").register(registry);
+    }
+
+    /**
+     * 录制延迟：队列不为空时，为最近写入的记录至今的时间
+     */
+    public long getLagNanos() {
+        if (ring == null || ring.size() == 0) {
+            return 0;
+        }
+        long last = lastWrittenNanos;
+        return last == 0 ? 0 : System.nanoTime() - last;
+    }
+
+    public long getQueueSize() {
+        return ring == null ? 0 : ring.size();
+    }
+
+    public long getDroppedRecords() {
+        return droppedRecords.sum();
+    }
+
+    public long getDroppedBytes() {
+        return droppedBytes.sum();
+    }
+
+    public long getWrittenRecords() {
+        return writtenRecords;
+    }
+
+    public long getWrittenBytes() {
+        return writtenBytes;
+    }
+
+    public String getDir() {
+        return dir;
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+}
@@ -0,0 +1,224 @@
+package com.goldencis.tcpserver.record;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 按顺序读取一个录制会话的记录，段文件以只读方式内存映射，负载直接是映射区域的视图，不复制。
+ * 会话的记录可能跨多个段文件，读完一个段文件后继续读取编号相邻的下一个，直到会话的结束记录。
+ * 可以按时间定位：先从索引中找到不晚于该时间的定位点，再向后跳过更早的记录。
+ * 非线程安全，每个回放一个实例。
+ */
+public class SessionReplay {
+
+    private final Path dir;
+
+    private final RecordIndex index;
+
+    private final long sessionId;
+
+    private final String pipe;
+
+    private final String userguid;
+
+    //会话开始的墙上时间和纳秒时间，用于换算记录时间
+    private final long startMillis;
+
+    private final long startNanos;
+
+    private long segmentNumber;
+
+    private MappedByteBuffer segment;
+
+    //负载视图，每条记录复用
+    private ByteBuffer payload;
+
+    //下一条记录的位置
+    private int position;
+
+    private boolean ended;
+
+    //定位后已读出、尚未返回的记录
+    private boolean held;
+
+    private byte direction;
+
+    private byte flags;
+
+    private long nanos;
+
+    public SessionReplay(Path dir, RecordIndex index, long sessionId) throws IOException {
+        this.dir = dir;
+        this.index = index;
+        this.sessionId = sessionId;
+        if (index.entries(sessionId).isEmpty()) {
+            throw new NoSuchFileException("录制会话不存在: " + sessionId);
+        }
+        RecordIndex.Entry start = index.entries(sessionId).get(0);
+        this.map(start.getSegment());
+        position = start.getOffset();
+
+        //开始记录：时间、管道id、userguid
+        if (segment.getInt(position) == 0 || segment.get(position + 4) != SegmentWriter.TYPE_START
+                || segment.getLong(position + 8) != sessionId) {
+            throw new IOException("录制索引与段文件不一致: " + sessionId);
+        }
+        startNanos = segment.getLong(position + 16);
+        ByteBuffer body = segment.duplicate();
+        body.position(position + SegmentWriter.RECORD_HEADER_SIZE);
+        startMillis = body.getLong();
+        pipe = string(body);
+        userguid = string(body);
+        position += segment.getInt(position);
+    }
+
+    /**
+     * 打开管道最近的一个录制会话
+     * @throws NoSuchFileException 管道没有录制
+     */
+    public static SessionReplay open(Path dir, String pipe) throws IOException {
+        RecordIndex index = RecordIndex.load(dir, pipe);
+        long sessionId = index.lastSession();
+        if (sessionId < 0) {
+            throw new NoSuchFileException("管道没有录制: " + pipe);
+        }
+        return new SessionReplay(dir, index, sessionId);
+    }
+
+    /**
+     * 读取会话的下一条数据记录
+     * @return 读到会话结束或已有数据的末尾时返回false
+     */
+    public boolean next() throws IOException {
+        if (held) {
+            held = false;
+            return true;
+        }
+        while (!ended) {
+            int length = segment.getInt(position);
+            if (length == 0) {
+                //段文件的剩余空间不足时写入方切换到下一个段文件
+                if (!this.map(SegmentWriter.segmentName(segmentNumber + 1))) {
+                    ended = true;
+                }
+                continue;
+            }
+            int at = position;
+            position += length;
+            if (segment.getLong(at + 8) != sessionId) {
+                continue;
+            }
+            byte type = segment.get(at + 4);
+            if (type == SegmentWriter.TYPE_END) {
+                ended = true;
+                return false;
+            }
+            if (type != SegmentWriter.TYPE_DATA) {
+                continue;
+            }
+            direction = segment.get(at + 5);
+            flags = segment.get(at + 6);
+            nanos = segment.getLong(at + 16);
+            payload.clear();
+            payload.limit(at + length).position(at + SegmentWriter.RECORD_HEADER_SIZE);
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * 定位到不早于指定时间的第一条记录
+     * @param millis 墙上时间，毫秒
+     */
+    public void seek(long millis) throws IOException {
+        RecordIndex.Entry floor = index.floor(sessionId, millis);
+        held = false;
+        ended = !this.map(floor.getSegment());
+        position = floor.getOffset();
+        while (this.next()) {
+            if (this.millis() >= millis) {
+                held = true;
+                return;
+            }
+        }
+    }
+
+    private boolean map(String name) throws IOException {
+        Path path = dir.resolve(name);
+        if (!Files.exists(path)) {
+            return false;
+        }
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            segment = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+        if (segment.getInt(0) != SegmentWriter.MAGIC) {
+            throw new IOException("不是录制段文件: " + path);
+        }
+        segmentNumber = SegmentWriter.segmentNumber(name);
+        payload = segment.duplicate();
+        position = SegmentWriter.FILE_HEADER_SIZE;
+        return true;
+    }
+
+    private static String string(ByteBuffer buffer) {
+        byte[] bytes = new byte[buffer.getShort()];
+        buffer.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * 当前记录的负载，为段文件映射区域的视图，读取下一条记录后失效
+     */
+    public ByteBuffer payload() {
+        return payload;
+    }
+
+    public byte direction() {
+        return direction;
+    }
+
+    /**
+     * 当前记录之前是否有记录在录制时被丢弃
+     */
+    public boolean isGap() {
+        return (flags & SegmentWriter.FLAG_GAP) != 0;
+    }
+
+    /**
+     * 当前记录的纳秒时间，只用于计算记录之间的间隔
+     */
+    public long nanos() {
+        return nanos;
+    }
+
+    /**
+     * 当前记录的墙上时间，毫秒
+     */
+    public long millis() {
+        return startMillis + TimeUnit.NANOSECONDS.toMillis(nanos - startNanos);
+    }
+
+    public long getSessionId() {
+        return sessionId;
+    }
+
+    public String getPipe() {
+        return pipe;
+    }
+
+    public String getUserguid() {
+        return userguid;
+    }
+
+    public long getStartMillis() {
+        return startMillis;
+    }
+}
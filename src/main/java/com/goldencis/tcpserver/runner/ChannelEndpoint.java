@@ -0,0 +1,56 @@
+package com.goldencis.tcpserver.runner;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+
+/**
+ * 注册在事件循环上的SocketChannel，通道注册前切换监听事件不生效。
+ */
+public class ChannelEndpoint implements RelayEndpoint {
+
+    private final SocketChannel channel;
+
+    private SelectionKey key;
+
+    public ChannelEndpoint(SocketChannel channel) {
+        this.channel = channel;
+    }
+
+    @Override
+    public int read(ByteBuffer dst) throws IOException {
+        return channel.read(dst);
+    }
+
+    @Override
+    public int write(ByteBuffer src) throws IOException {
+        return channel.write(src);
+    }
+
+    /**
+     * 一次系统调用写出多个缓冲区
+     */
+    @Override
+    public long write(ByteBuffer[] srcs, int offset, int length) throws IOException {
+        return channel.write(srcs, offset, length);
+    }
+
+    @Override
+    public void interest(int op, boolean on) {
+        RelayDirection.interest(key, op, on);
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+
+    public SocketChannel getChannel() {
+        return channel;
+    }
+
+    public void setKey(SelectionKey key) {
+        this.key = key;
+    }
+}
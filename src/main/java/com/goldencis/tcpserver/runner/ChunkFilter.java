@@ -0,0 +1,20 @@
+package com.goldencis.tcpserver.runner;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.function.Consumer;
+
+/**
+ * 数据泵读到的明文数据在加入待写队列前的过滤器，可以拆分、暂存或改写数据。
+ * 只在会话所属事件循环的线程中调用。
+ */
+public interface ChunkFilter {
+
+    /**
+     * @param chunk 读模式的缓冲块，负载位于[offset, limit)，调用后由过滤器归还或交给out
+     * @param offset 负载起始位置，交给out的缓冲块负载同样从offset开始
+     * @param out 过滤后的数据
+     * @throws IOException 过滤失败，关闭会话
+     */
+    void filter(ByteBuffer chunk, int offset, Consumer<ByteBuffer> out) throws IOException;
+}
@@ -0,0 +1,15 @@
+package com.goldencis.tcpserver.runner;
+
+import java.nio.ByteBuffer;
+
+/**
+ * 数据泵加入待写队列前的明文数据，在解压之后、封帧和压缩之前调用。
+ * 只在会话所属事件循环的线程中调用，不能修改或保留缓冲区。
+ */
+public interface ChunkTap {
+
+    /**
+     * @param chunk 缓冲块，数据位于[from, to)
+     */
+    void tap(ByteBuffer chunk, int from, int to);
+}
@@ -0,0 +1,275 @@
+package com.goldencis.tcpserver.runner;
+
+import java.io.IOException;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * 单线程的事件循环，一个选择器上承载多个tcp转发会话。
+ * 其他线程（如监听服务）通过任务队列把通道交给本循环注册，不会阻塞在select()上。
+ * 每个选择键在一轮select中最多读取readBudget次，避免单个繁忙会话饿死同一循环上的其他会话。
+ * 就绪的选择键分两遍处理：先处理优先的选择键(noVNC端，承载输入事件)，再处理其他选择键；
+ * 处理其他选择键累计超过延迟预算时插入一次selectNow()，只处理新就绪的优先选择键，
+ * 输入事件在大块画面数据之后最多等待约一个预算的时间。
+ */
+public class EventLoop implements Runnable {
+
+    private final String name;
+
+    private final Selector selector;
+
+    //跨线程提交的任务队列
+    private final Queue<Runnable> taskQueue = new ConcurrentLinkedQueue<>();
+
+    //是否已唤醒选择器，避免重复调用wakeup()
+    private final AtomicBoolean wakenUp = new AtomicBoolean();
+
+    //每个选择键每轮select的读取次数上限
+    private final int readBudget;
+
+    //处理其他选择键时检查优先选择键的间隔，纳秒，0表示每轮select只检查一次
+    private final long priorityBudgetNanos;
+
+    //本轮待处理的非优先选择键，复用避免每轮分配
+    private final ArrayList<SelectionKey> deferred = new ArrayList<>();
+
+    //在一轮select中途插入处理优先选择键的次数
+    private long priorityPolls;
+
+    private volatile boolean on = true;
+
+    //每轮select后更新的当前时间，避免每次读写都调用System.nanoTime()
+    private long currentTimeNanos = System.nanoTime();
+
+    private Thread thread;
+
+    //最近一次探测到的任务排队延迟
+    private volatile long lagNanos;
+
+    //尚未执行的探测任务的提交时间，0表示没有
+    private volatile long probeSubmitted;
+
+    public EventLoop(String name, int readBudget) throws IOException {
+        this(name, readBudget, 0);
+    }
+
+    public EventLoop(String name, int readBudget, long priorityBudgetNanos) throws IOException {
+        this.name = name;
+        this.readBudget = readBudget;
+        this.priorityBudgetNanos = priorityBudgetNanos;
+        this.selector = Selector.open();
+    }
+
+    public void start() {
+        thread = new Thread(this, name);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    @Override
+    public void run() {
+        while (on) {
+            try {
+                wakenUp.set(false);
+                //有待执行任务或上一轮留下的就绪选择键时不阻塞
+                if (taskQueue.isEmpty() && selector.selectedKeys().isEmpty()) {
+                    selector.select();
+                } else {
+                    selector.selectNow();
+                }
+                currentTimeNanos = System.nanoTime();
+
+                //处理就绪的选择键
+                this.processSelectedKeys();
+
+                //执行其他线程提交的任务
+                this.runAllTasks();
+            } catch (Throwable e) {
+                e.printStackTrace();
+            }
+        }
+
+        //退出循环后关闭所有会话
+        this.closeAll();
+    }
+
+    private void processSelectedKeys() {
+        Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+        while (it.hasNext()) {
+            SelectionKey sk = it.next();
+            it.remove();
+            if (this.isPriority(sk)) {
+                this.handle(sk);
+            } else {
+                deferred.add(sk);
+            }
+        }
+
+        long checked = System.nanoTime();
+        for (int i = 0; i < deferred.size(); i++) {
+            this.handle(deferred.get(i));
+            if (priorityBudgetNanos > 0 && System.nanoTime() - checked >= priorityBudgetNanos) {
+                this.processPriorityKeys();
+                checked = System.nanoTime();
+            }
+        }
+        deferred.clear();
+    }
+
+    /**
+     * 处理新就绪的优先选择键，其他选择键留在就绪集合中由下一轮处理
+     */
+    private void processPriorityKeys() {
+        try {
+            if (selector.selectNow() == 0) {
+                return;
+            }
+        } catch (IOException e) {
+            return;
+        }
+        priorityPolls++;
+        Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+        while (it.hasNext()) {
+            SelectionKey sk = it.next();
+            if (this.isPriority(sk)) {
+                it.remove();
+                this.handle(sk);
+            }
+        }
+    }
+
+    private boolean isPriority(SelectionKey sk) {
+        SelectionHandler handler = (SelectionHandler) sk.attachment();
+        return handler != null && sk.isValid() && handler.isPriority(sk);
+    }
+
+    private void handle(SelectionKey sk) {
+        SelectionHandler handler = (SelectionHandler) sk.attachment();
+        if (handler == null) {
+            return;
+        }
+        try {
+            if (sk.isValid()) {
+                handler.handle(sk);
+            }
+        } catch (IOException | CancelledKeyException e) {
+            //会话异常，关闭转发双方
+            handler.close();
+        }
+    }
+
+    private void runAllTasks() {
+        Runnable task;
+        while ((task = taskQueue.poll()) != null) {
+            try {
+                task.run();
+            } catch (Throwable e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * 提交任务到本循环线程执行，可在任意线程调用
+     * @param task 任务
+     */
+    public void execute(Runnable task) {
+        taskQueue.offer(task);
+        if (!inEventLoop() && wakenUp.compareAndSet(false, true)) {
+            selector.wakeup();
+        }
+    }
+
+    /**
+     * 将通道注册到本循环的选择器上，只能在本循环线程中调用
+     * @param channel 通道
+     * @param ops 监听事件
+     * @param handler 处理器
+     * @return 选择键
+     * @throws ClosedChannelException 通道已关闭
+     */
+    public SelectionKey register(SelectableChannel channel, int ops, SelectionHandler handler) throws ClosedChannelException {
+        return channel.register(selector, ops, handler);
+    }
+
+    /**
+     * 提交一个探测任务，测量任务从提交到执行的延迟
+     */
+    public void probeLag() {
+        if (probeSubmitted != 0) {
+            //上一次探测尚未执行
+            return;
+        }
+        long submitted = System.nanoTime();
+        probeSubmitted = submitted;
+        this.execute(() -> {
+            lagNanos = System.nanoTime() - submitted;
+            probeSubmitted = 0;
+        });
+    }
+
+    /**
+     * 任务排队延迟，循环卡住时按未执行的探测任务计算
+     */
+    public long getLagNanos() {
+        long submitted = probeSubmitted;
+        return submitted != 0 ? Math.max(lagNanos, System.nanoTime() - submitted) : lagNanos;
+    }
+
+    public boolean inEventLoop() {
+        return Thread.currentThread() == thread;
+    }
+
+    public void shutdown() {
+        on = false;
+        selector.wakeup();
+    }
+
+    private void closeAll() {
+        for (SelectionKey sk : selector.keys()) {
+            Object attachment = sk.attachment();
+            if (attachment instanceof SelectionHandler) {
+                ((SelectionHandler) attachment).close();
+            }
+        }
+        try {
+            selector.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * 本轮select后的时间，只在本循环线程中使用
+     */
+    public long currentTimeNanos() {
+        return currentTimeNanos;
+    }
+
+    public int getReadBudget() {
+        return readBudget;
+    }
+
+    public long getPriorityBudgetNanos() {
+        return priorityBudgetNanos;
+    }
+
+    /**
+     * 在一轮select中途处理优先选择键的次数，只在本循环线程中写入
+     */
+    public long getPriorityPolls() {
+        return priorityPolls;
+    }
+
+    public String getName() {
+        return name;
+    }
+}
@@ -0,0 +1,104 @@
+package com.goldencis.tcpserver.runner;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 固定数量的转发事件循环，默认与cpu核数相同。
+ * 新建的转发会话按轮询方式分配到各个循环上。
+ * relay.engine=nio时随容器启动；netty引擎不使用这些循环，只在多路复用或集群隧道第一次取用时才启动，
+ * 不启用这些功能时不会有空转的选择器线程。
+ */
+@Component
+public class EventLoopGroup {
+
+    @Value("${relay.eventloop.threads:0}")
+    private int threads;
+
+    @Value("${relay.eventloop.read-budget:16}")
+    private int readBudget;
+
+    //处理画面数据时检查输入事件的间隔，微秒，0表示每轮select只检查一次
+    @Value("${relay.eventloop.priority-budget-micros:1000}")
+    private long priorityBudgetMicros = 1000;
+
+    //转发引擎，nio或netty
+    @Value("${relay.engine:nio}")
+    private String engine = "nio";
+
+    private static final EventLoop[] NONE = new EventLoop[0];
+
+    //启动前为null
+    private volatile EventLoop[] loops;
+
+    private final AtomicInteger index = new AtomicInteger();
+
+    public EventLoopGroup() {
+    }
+
+    public EventLoopGroup(int threads, int readBudget) throws IOException {
+        this(threads, readBudget, "nio");
+    }
+
+    public EventLoopGroup(int threads, int readBudget, String engine) throws IOException {
+        this.threads = threads;
+        this.readBudget = readBudget;
+        this.engine = engine;
+        this.init();
+    }
+
+    @PostConstruct
+    public void init() throws IOException {
+        if ("nio".equals(engine)) {
+            this.start();
+        }
+    }
+
+    private synchronized EventLoop[] start() throws IOException {
+        if (loops != null) {
+            return loops;
+        }
+        int size = threads > 0 ? threads : Runtime.getRuntime().availableProcessors();
+        EventLoop[] started = new EventLoop[size];
+        for (int i = 0; i < size; i++) {
+            started[i] = new EventLoop("relay-loop-" + i, readBudget, TimeUnit.MICROSECONDS.toNanos(priorityBudgetMicros));
+            started[i].start();
+        }
+        loops = started;
+        return started;
+    }
+
+    /**
+     * 获取下一个事件循环，尚未启动时先启动
+     * @return 事件循环
+     * @throws IOException 打开选择器失败
+     */
+    public EventLoop next() throws IOException {
+        EventLoop[] current = loops;
+        if (current == null) {
+            current = this.start();
+        }
+        return current[Math.abs(index.getAndIncrement() % current.length)];
+    }
+
+    /**
+     * 已启动的事件循环，尚未启动时为空数组
+     */
+    public EventLoop[] getLoops() {
+        EventLoop[] current = loops;
+        return current != null ? current : NONE;
+    }
+
+    @PreDestroy
+    public synchronized void shutdown() {
+        for (EventLoop loop : this.getLoops()) {
+            loop.shutdown();
+        }
+    }
+}
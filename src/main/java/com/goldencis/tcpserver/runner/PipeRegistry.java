@@ -0,0 +1,88 @@
+package com.goldencis.tcpserver.runner;
+
+import com.goldencis.tcpserver.entity.TcpProtocolBody;
+import com.goldencis.tcpserver.utils.PipeTable;
+
+import java.util.function.Consumer;
+
+/**
+ * noVNC端与目标端的配对表，按管道id登记转发会话。
+ * noVNC端握手后登记(park)会话，目标端握手时认领(claim)会话，两个监听服务可在不同线程中并发调用。
+ * 同一管道只能登记一次、认领一次。
+ */
+public class PipeRegistry {
+
+    private final PipeTable<TcpTransferRunner> table;
+
+    public PipeRegistry(int concurrency) {
+        this.table = new PipeTable<>(concurrency);
+    }
+
+    /**
+     * 登记noVNC端的会话，等待目标端认领
+     * @param body noVNC端的协议体
+     * @param runner 转发会话
+     * @return 登记成功返回true，管道id已被占用返回false
+     */
+    public boolean park(TcpProtocolBody body, TcpTransferRunner runner) {
+        TcpTransferRunner existing;
+        if (body.isBinaryPipe()) {
+            existing = table.putIfAbsent(body.getPipeMost(), body.getPipeLeast(), runner);
+        } else {
+            existing = table.putIfAbsent(body.getPipe(), runner);
+        }
+        return existing == null;
+    }
+
+    /**
+     * 目标端认领会话
+     * @param body 目标端的协议体
+     * @return 认领成功的会话，管道不存在或已被认领时返回null
+     */
+    public TcpTransferRunner claim(TcpProtocolBody body) {
+        TcpTransferRunner runner = this.get(body);
+        if (runner != null && runner.claim()) {
+            return runner;
+        }
+        return null;
+    }
+
+    /**
+     * 按字符串形式的管道id认领会话，用于多路复用连接上打开的流
+     */
+    public TcpTransferRunner claim(String pipe) {
+        TcpTransferRunner runner = table.get(pipe);
+        if (runner != null && runner.claim()) {
+            return runner;
+        }
+        return null;
+    }
+
+    public TcpTransferRunner get(TcpProtocolBody body) {
+        if (body.isBinaryPipe()) {
+            return table.get(body.getPipeMost(), body.getPipeLeast());
+        }
+        return table.get(body.getPipe());
+    }
+
+    public TcpTransferRunner get(String pipe) {
+        return table.get(pipe);
+    }
+
+    /**
+     * 会话结束后移除
+     */
+    public void remove(TcpTransferRunner runner) {
+        if (runner.getUuid() != null) {
+            table.remove(runner.getUuid(), runner);
+        }
+    }
+
+    public void forEach(Consumer<TcpTransferRunner> action) {
+        table.forEach(action);
+    }
+
+    public int size() {
+        return table.size();
+    }
+}
@@ -0,0 +1,190 @@
+package com.goldencis.tcpserver.runner;
+
+import com.goldencis.tcpserver.buffer.BufferPool;
+import com.goldencis.tcpserver.constants.ConstantsDto;
+import com.goldencis.tcpserver.metrics.RelayMetrics;
+import com.goldencis.tcpserver.record.SessionRecorder;
+import com.goldencis.tcpserver.shaping.TrafficShaper;
+import com.goldencis.tcpserver.timer.HashedTimingWheel;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+/**
+ * 所有转发会话共用的资源和配置。
+ * 上行指noVNC端到目标端，下行指目标端到noVNC端。
+ */
+@Component
+public class RelayContext {
+
+    @Autowired
+    private BufferPool bufferPool;
+
+    @Autowired
+    private PipeRegistry pipeRegistry;
+
+    @Autowired
+    private HashedTimingWheel timingWheel;
+
+    //未注入时只计数，不发布
+    @Autowired
+    private RelayMetrics metrics = new RelayMetrics();
+
+    //未注入时不录制
+    @Autowired
+    private SessionRecorder recorder = new SessionRecorder();
+
+    //未注入时不整形
+    @Autowired
+    private TrafficShaper shaper = new TrafficShaper();
+
+    //转发空闲超时秒数，两个方向都没有数据时关闭会话，0表示不限制
+    @Value("${relay.timeout.idle-seconds:1800}")
+    private long idleTimeoutSeconds = 1800;
+
+    //上行待写字节数达到高水位时停止读取源通道，降到低水位后恢复
+    @Value("${relay.backpressure.upstream.high-watermark:262144}")
+    private int upstreamHighWatermark = 256 * 1024;
+
+    @Value("${relay.backpressure.upstream.low-watermark:65536}")
+    private int upstreamLowWatermark = 64 * 1024;
+
+    //下行承载画面更新，水位更高
+    @Value("${relay.backpressure.downstream.high-watermark:1048576}")
+    private int downstreamHighWatermark = 1024 * 1024;
+
+    @Value("${relay.backpressure.downstream.low-watermark:262144}")
+    private int downstreamLowWatermark = 256 * 1024;
+
+    //待写字节数达到该值前，读到的数据留到本轮事件处理结束时合并写出，0表示读到即写出
+    //上行承载输入事件，默认不合并；下行承载画面数据，默认合并
+    @Value("${relay.flush.upstream.coalesce-bytes:0}")
+    private int upstreamCoalesceBytes = 0;
+
+    @Value("${relay.flush.downstream.coalesce-bytes:65536}")
+    private int downstreamCoalesceBytes = 64 * 1024;
+
+    //目标端请求时是否同意对目标端一侧压缩
+    @Value("${relay.compress.enabled:false}")
+    private boolean compressEnabled;
+
+    //deflate压缩级别，转发以速度优先
+    @Value("${relay.compress.level:1}")
+    private int compressLevel = 1;
+
+    public RelayContext() {
+    }
+
+    public RelayContext(BufferPool bufferPool, PipeRegistry pipeRegistry, HashedTimingWheel timingWheel) {
+        this.bufferPool = bufferPool;
+        this.pipeRegistry = pipeRegistry;
+        this.timingWheel = timingWheel;
+    }
+
+    public BufferPool getBufferPool() {
+        return bufferPool;
+    }
+
+    public PipeRegistry getPipeRegistry() {
+        return pipeRegistry;
+    }
+
+    public RelayMetrics getMetrics() {
+        return metrics;
+    }
+
+    public SessionRecorder getRecorder() {
+        return recorder;
+    }
+
+    public void setRecorder(SessionRecorder recorder) {
+        this.recorder = recorder;
+    }
+
+    public TrafficShaper getShaper() {
+        return shaper;
+    }
+
+    public void setShaper(TrafficShaper shaper) {
+        this.shaper = shaper;
+    }
+
+    public HashedTimingWheel getTimingWheel() {
+        return timingWheel;
+    }
+
+    /**
+     * 转发服务支持的能力标志
+     */
+    public int getCapabilities() {
+        return compressEnabled ? ConstantsDto.CAPABILITY_DEFLATE : 0;
+    }
+
+    public boolean isCompressEnabled() {
+        return compressEnabled;
+    }
+
+    public void setCompressEnabled(boolean compressEnabled) {
+        this.compressEnabled = compressEnabled;
+    }
+
+    public int getCompressLevel() {
+        return compressLevel;
+    }
+
+    public long getIdleTimeoutSeconds() {
+        return idleTimeoutSeconds;
+    }
+
+    public void setIdleTimeoutSeconds(long idleTimeoutSeconds) {
+        this.idleTimeoutSeconds = idleTimeoutSeconds;
+    }
+
+    public int getUpstreamHighWatermark() {
+        return upstreamHighWatermark;
+    }
+
+    public void setUpstreamHighWatermark(int upstreamHighWatermark) {
+        this.upstreamHighWatermark = upstreamHighWatermark;
+    }
+
+    public int getUpstreamLowWatermark() {
+        return upstreamLowWatermark;
+    }
+
+    public void setUpstreamLowWatermark(int upstreamLowWatermark) {
+        this.upstreamLowWatermark = upstreamLowWatermark;
+    }
+
+    public int getDownstreamHighWatermark() {
+        return downstreamHighWatermark;
+    }
+
+    public void setDownstreamHighWatermark(int downstreamHighWatermark) {
+        this.downstreamHighWatermark = downstreamHighWatermark;
+    }
+
+    public int getDownstreamLowWatermark() {
+        return downstreamLowWatermark;
+    }
+
+    public void setDownstreamLowWatermark(int downstreamLowWatermark) {
+        this.downstreamLowWatermark = downstreamLowWatermark;
+    }
+
+    public int getUpstreamCoalesceBytes() {
+        return upstreamCoalesceBytes;
+    }
+
+    public void setUpstreamCoalesceBytes(int upstreamCoalesceBytes) {
+        this.upstreamCoalesceBytes = upstreamCoalesceBytes;
+    }
+
+    public int getDownstreamCoalesceBytes() {
+        return downstreamCoalesceBytes;
+    }
+
+    public void setDownstreamCoalesceBytes(int downstreamCoalesceBytes) {
+        this.downstreamCoalesceBytes = downstreamCoalesceBytes;
+    }
+}
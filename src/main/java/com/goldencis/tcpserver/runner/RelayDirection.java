@@ -0,0 +1,556 @@
+package com.goldencis.tcpserver.runner;
+
+import com.goldencis.tcpserver.buffer.BufferPool;
+import com.goldencis.tcpserver.compress.BlockDeflater;
+import com.goldencis.tcpserver.compress.BlockInflater;
+import com.goldencis.tcpserver.record.RecordingSession;
+import com.goldencis.tcpserver.websocket.WebSocketFrameDecoder;
+import com.goldencis.tcpserver.websocket.WebSocketFrameEncoder;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 转发会话中一个方向的数据泵，从from端读取，写入to端。
+ * 目标通道写不进去时，剩余数据保留在待写队列中，并监听目标通道的可写事件，不再循环空转。
+ * 待写队列占用的缓冲块容量达到高水位时停止读取源通道，写出到低水位以下再恢复读取；带宽整形也以同样的方式暂停读取。
+ * 水位按缓冲块容量而不是数据字节数计算，大量小消息占用的整块缓冲同样受水位限制。
+ * 缓冲池达到内存上限借不到缓冲块时同样暂停读取，有缓冲块归还时恢复。
+ * 待写队列中的多个缓冲块用一次聚集写写出；设置了合并阈值时，读到的数据先累积到阈值或由会话在本轮事件处理结束时写出，
+ * 多条小消息合并为一次系统调用。
+ * 只在所属事件循环的线程中调用。
+ * 会话级的统计字段只由该线程写入，不加锁也不用volatile，其他线程读取到的是近似值。
+ */
+public class RelayDirection {
+
+    //一次聚集写最多的缓冲块数
+    private static final int MAX_GATHER = 64;
+
+    private final RelayEndpoint from;
+
+    private final RelayEndpoint to;
+
+    private final BufferPool bufferPool;
+
+    private final int highWatermark;
+
+    private final int lowWatermark;
+
+    //待写出的缓冲块，均为读模式
+    private final ArrayDeque<ByteBuffer> pending = new ArrayDeque<>();
+
+    private long pendingBytes;
+
+    //待写队列中缓冲块的容量之和，用于水位判断
+    private long pendingMemory;
+
+    //聚集写的缓冲块数组，复用
+    private final ByteBuffer[] gather = new ByteBuffer[MAX_GATHER];
+
+    //待写字节数达到该值时立即写出，0表示每次读到数据都立即写出
+    private int coalesceBytes;
+
+    //有读到但尚未写出的数据，需要会话稍后调用flush()
+    private boolean flushDue;
+
+    //是否因待写数据过多而暂停读取
+    private boolean readPaused;
+
+    //是否因带宽整形而暂停读取
+    private boolean throttled;
+
+    //是否因缓冲池达到内存上限而暂停读取
+    private boolean starved;
+
+    //缓冲块归还时把恢复读取的动作提交到所属事件循环，默认在归还的线程中直接执行
+    private Executor wakeup = Runnable::run;
+
+    //源通道是否已读到末尾
+    private boolean eof;
+
+    //源通道为websocket连接时，读到的数据先解帧
+    private WebSocketFrameDecoder unwrapper;
+
+    //目标通道为websocket连接时，读到的数据封装为二进制帧
+    private boolean wrapping;
+
+    //源通道为websocket连接时，回应ping和关闭帧的反方向数据泵
+    private RelayDirection replies;
+
+    //目标通道协商了压缩时，写出前按块压缩
+    private BlockDeflater deflater;
+
+    //源通道协商了压缩时，读到的数据先解压
+    private BlockInflater inflater;
+
+    //会话录制，在封装和压缩之前复制明文数据
+    private RecordingSession recording;
+
+    private byte recordDirection;
+
+    //广播会话的下行明文数据复制给旁观端
+    private ChunkTap tap;
+
+    //广播会话的上行数据按消息过滤
+    private ChunkFilter filter;
+
+    //全局的本方向字节数和写系统调用次数，分段计数，各事件循环之间无竞争
+    private final LongAdder totalBytes;
+
+    private final LongAdder totalWrites;
+
+    //已写出的字节数
+    private long bytes;
+
+    //读取和写出的系统调用次数
+    private long reads;
+
+    private long writes;
+
+    //本次写阻塞开始的时间，0表示没有阻塞
+    private long stallStart;
+
+    //目标通道写满到写完的最长时间
+    private long maxWriteStall;
+
+    public RelayDirection(RelayEndpoint from, RelayEndpoint to, BufferPool bufferPool, int highWatermark, int lowWatermark) {
+        this(from, to, bufferPool, highWatermark, lowWatermark, new LongAdder(), new LongAdder());
+    }
+
+    public RelayDirection(RelayEndpoint from, RelayEndpoint to, BufferPool bufferPool, int highWatermark, int lowWatermark,
+                          LongAdder totalBytes, LongAdder totalWrites) {
+        this.from = from;
+        this.to = to;
+        this.bufferPool = bufferPool;
+        this.highWatermark = highWatermark;
+        this.lowWatermark = lowWatermark;
+        this.totalBytes = totalBytes;
+        this.totalWrites = totalWrites;
+    }
+
+    /**
+     * 从源通道读取数据，未达到合并阈值时留给会话稍后写出
+     * @param budget 本轮最多读取次数
+     * @return 从源通道读到的字节数
+     * @throws IOException IO异常
+     */
+    public long read(int budget) throws IOException {
+        long total = 0;
+        while (budget-- > 0 && !readPaused && !throttled && !starved && !eof) {
+            //只在有数据时借用缓冲块，封帧、压缩时在数据前预留帧头、块头空间
+            ByteBuffer chunk = bufferPool.acquire(bufferPool.getReadChunkSize());
+            if (chunk == null) {
+                starved = true;
+                from.interest(SelectionKey.OP_READ, false);
+                bufferPool.await(bufferPool.getReadChunkSize(), () -> wakeup.execute(this::unstarve));
+                break;
+            }
+            int offset = inflater != null ? 0 : this.payloadOffset();
+            chunk.position(offset);
+            int read;
+            try {
+                reads++;
+                read = from.read(chunk);
+                if (read > 0 && unwrapper != null) {
+                    //就地解帧，只剩控制帧时没有可转发的数据
+                    chunk.position(unwrapper.unwrap(chunk, offset));
+                }
+            } catch (IOException e) {
+                bufferPool.release(chunk);
+                throw e;
+            }
+            if (read <= 0) {
+                bufferPool.release(chunk);
+                if (read < 0) {
+                    //源通道已读到末尾，不再监听可读事件，否则待写数据写出前事件循环会一直空转
+                    this.endOfStream();
+                    if (wrapping) {
+                        this.queueClose();
+                    }
+                }
+                break;
+            }
+
+            total += read;
+            if (chunk.position() > offset) {
+                chunk.flip();
+                if (inflater != null) {
+                    //解压结果写入新的缓冲块，读取用的缓冲块交给解压端，消费完后归还；
+                    //待写数据达到高水位时暂停解压，剩余的输入写出到低水位以下后再继续
+                    if (!inflater.decode(chunk, this.payloadOffset(), this::enqueue, this::aboveHighWatermark)) {
+                        readPaused = true;
+                        from.interest(SelectionKey.OP_READ, false);
+                    }
+                } else if (filter != null) {
+                    filter.filter(chunk, this.payloadOffset(), this::enqueue);
+                } else {
+                    this.enqueue(chunk);
+                }
+                if (pendingBytes >= coalesceBytes) {
+                    this.flush();
+                } else {
+                    flushDue = true;
+                }
+            } else {
+                bufferPool.release(chunk);
+            }
+
+            if (unwrapper != null) {
+                ByteBuffer ping = unwrapper.takePing();
+                if (ping != null && replies != null) {
+                    replies.pong(ping);
+                }
+                //收到websocket关闭帧，回应关闭帧后按读到末尾处理
+                if (unwrapper.isClosed()) {
+                    if (replies != null) {
+                        replies.echoClose(unwrapper.getCloseStatus());
+                    }
+                    this.endOfStream();
+                    break;
+                }
+            }
+
+            //达到高水位，停止读取源通道
+            if (pendingMemory >= highWatermark) {
+                readPaused = true;
+                from.interest(SelectionKey.OP_READ, false);
+            }
+        }
+        return total;
+    }
+
+    private void endOfStream() {
+        eof = true;
+        from.interest(SelectionKey.OP_READ, false);
+    }
+
+    /**
+     * 在读取的数据之外写出一块数据，如广播会话代旁观端发出的请求
+     * @param chunk 读模式的缓冲块，负载从payloadOffset()开始
+     * @throws IOException IO异常
+     */
+    public void send(ByteBuffer chunk) throws IOException {
+        this.enqueue(chunk);
+        this.flush();
+    }
+
+    /**
+     * 负载在缓冲块中的起始位置
+     */
+    public int payloadOffset() {
+        if (wrapping) {
+            return WebSocketFrameEncoder.HEADER_RESERVE;
+        }
+        return deflater != null ? BlockDeflater.HEADER_SIZE : 0;
+    }
+
+    /**
+     * 按目标通道的要求封装后加入待写队列
+     * @param chunk 读模式的缓冲块，负载从payloadOffset()开始
+     */
+    private void enqueue(ByteBuffer chunk) {
+        if (recording != null) {
+            recording.record(recordDirection, chunk, this.payloadOffset(), chunk.limit());
+        }
+        if (tap != null) {
+            tap.tap(chunk, this.payloadOffset(), chunk.limit());
+        }
+        if (wrapping) {
+            WebSocketFrameEncoder.wrap(chunk, WebSocketFrameEncoder.HEADER_RESERVE);
+        } else if (deflater != null) {
+            deflater.encode(chunk, BlockDeflater.HEADER_SIZE);
+        }
+        pending.addLast(chunk);
+        pendingBytes += chunk.remaining();
+        pendingMemory += chunk.capacity();
+    }
+
+    /**
+     * 源通道关闭后通知websocket对端
+     */
+    private void queueClose() throws IOException {
+        ByteBuffer chunk = bufferPool.allocate(WebSocketFrameEncoder.HEADER_RESERVE);
+        WebSocketFrameEncoder.close(chunk);
+        this.queueControl(chunk);
+    }
+
+    /**
+     * 回应websocket对端的ping。只在帧之间插入，不会打断已排队的数据帧；
+     * 待写数据已达到高水位时不回应，对端只需要最近一个ping的回应
+     * @param payload 读模式的ping负载
+     */
+    void pong(ByteBuffer payload) throws IOException {
+        if (eof || pendingMemory >= highWatermark) {
+            return;
+        }
+        ByteBuffer chunk = bufferPool.allocate(WebSocketFrameEncoder.MAX_CONTROL_FRAME);
+        WebSocketFrameEncoder.pong(chunk, payload);
+        this.queueControl(chunk);
+    }
+
+    /**
+     * websocket对端发起关闭时回应关闭帧，之后不再读取源通道。
+     * 已先发出关闭帧时对端的关闭帧是回应，不再重复发送
+     * @param status 读模式的状态码
+     */
+    void echoClose(ByteBuffer status) throws IOException {
+        if (eof) {
+            return;
+        }
+        this.endOfStream();
+        ByteBuffer chunk = bufferPool.allocate(WebSocketFrameEncoder.HEADER_RESERVE);
+        WebSocketFrameEncoder.close(chunk, status);
+        this.queueControl(chunk);
+    }
+
+    /**
+     * 已编码的控制帧直接加入待写队列并写出
+     * @param chunk 写模式
+     */
+    private void queueControl(ByteBuffer chunk) throws IOException {
+        chunk.flip();
+        pending.addLast(chunk);
+        pendingBytes += chunk.remaining();
+        pendingMemory += chunk.capacity();
+        this.flush();
+    }
+
+    /**
+     * 聚集写出待写队列，写不完时监听目标通道的可写事件
+     * @throws IOException IO异常
+     */
+    public void flush() throws IOException {
+        flushDue = false;
+        this.write();
+
+        //降到低水位以下，先继续解压暂停时剩余的输入，全部写出后再恢复读取源通道
+        while (readPaused && pendingMemory <= lowWatermark) {
+            if (inflater != null && inflater.hasInput()) {
+                inflater.resume(this.payloadOffset(), this::enqueue, this::aboveHighWatermark);
+                this.write();
+                continue;
+            }
+            readPaused = false;
+            from.interest(SelectionKey.OP_READ, !throttled && !starved && !eof);
+        }
+    }
+
+    private void write() throws IOException {
+        long written = 0;
+        int calls = 0;
+        boolean full = false;
+        while (!full && !pending.isEmpty()) {
+            int n = 0;
+            for (ByteBuffer chunk : pending) {
+                gather[n++] = chunk;
+                if (n == MAX_GATHER) {
+                    break;
+                }
+            }
+            calls++;
+            written += n == 1 ? to.write(gather[0]) : to.write(gather, 0, n);
+            for (int i = 0; i < n; i++) {
+                if (gather[i].hasRemaining()) {
+                    //目标通道的发送缓冲区已满
+                    full = true;
+                    break;
+                }
+                ByteBuffer done = pending.pollFirst();
+                pendingMemory -= done.capacity();
+                bufferPool.release(done);
+            }
+            Arrays.fill(gather, 0, n, null);
+        }
+        if (calls > 0) {
+            writes += calls;
+            totalWrites.add(calls);
+        }
+        if (written > 0) {
+            pendingBytes -= written;
+            bytes += written;
+            totalBytes.add(written);
+        }
+
+        //记录写阻塞的持续时间，只在阻塞开始和结束时取时间
+        if (pending.isEmpty()) {
+            if (stallStart != 0) {
+                maxWriteStall = Math.max(maxWriteStall, System.nanoTime() - stallStart);
+                stallStart = 0;
+            }
+        } else if (stallStart == 0) {
+            stallStart = System.nanoTime();
+        }
+
+        to.interest(SelectionKey.OP_WRITE, !pending.isEmpty());
+    }
+
+    private boolean aboveHighWatermark() {
+        return pendingMemory >= highWatermark;
+    }
+
+    /**
+     * 有缓冲块归还后恢复读取，仍受水位和带宽整形控制
+     */
+    private void unstarve() {
+        starved = false;
+        if (!readPaused && !throttled && !eof) {
+            from.interest(SelectionKey.OP_READ, true);
+        }
+    }
+
+    /**
+     * 是否有读到但尚未写出的数据
+     */
+    public boolean isFlushDue() {
+        return flushDue;
+    }
+
+    /**
+     * 源通道已关闭且数据已全部写出
+     */
+    public boolean isFinished() {
+        //反方向也已结束时，等回应的关闭帧写出后再结束
+        return eof && pending.isEmpty() && (replies == null || !replies.eof || replies.pending.isEmpty());
+    }
+
+    /**
+     * 归还待写队列中的缓冲块
+     */
+    public void release() {
+        ByteBuffer chunk;
+        while ((chunk = pending.pollFirst()) != null) {
+            bufferPool.release(chunk);
+        }
+        pendingBytes = 0;
+        pendingMemory = 0;
+        if (deflater != null) {
+            deflater.end();
+        }
+        if (inflater != null) {
+            inflater.end();
+        }
+    }
+
+    /**
+     * 打开或关闭选择键的某个监听事件，没有变化时不修改
+     */
+    public static void interest(SelectionKey key, int op, boolean on) {
+        if (key == null || !key.isValid()) {
+            return;
+        }
+        int ops = key.interestOps();
+        int updated = on ? ops | op : ops & ~op;
+        if (updated != ops) {
+            key.interestOps(updated);
+        }
+    }
+
+    public void setUnwrapper(WebSocketFrameDecoder unwrapper) {
+        this.unwrapper = unwrapper;
+    }
+
+    public void setWrapping(boolean wrapping) {
+        this.wrapping = wrapping;
+    }
+
+    /**
+     * 源通道为websocket连接时，由反方向的数据泵回应ping和关闭帧
+     */
+    public void setReplies(RelayDirection replies) {
+        this.replies = replies;
+    }
+
+    public void setDeflater(BlockDeflater deflater) {
+        this.deflater = deflater;
+    }
+
+    public void setInflater(BlockInflater inflater) {
+        this.inflater = inflater;
+    }
+
+    public void setRecording(RecordingSession recording, byte direction) {
+        this.recording = recording;
+        this.recordDirection = direction;
+    }
+
+    /**
+     * 待写字节数达到该值时立即写出，0表示不合并
+     */
+    public void setCoalesceBytes(int coalesceBytes) {
+        this.coalesceBytes = coalesceBytes;
+    }
+
+    public void setTap(ChunkTap tap) {
+        this.tap = tap;
+    }
+
+    public void setFilter(ChunkFilter filter) {
+        this.filter = filter;
+    }
+
+    public BlockDeflater getDeflater() {
+        return deflater;
+    }
+
+    public long getPendingBytes() {
+        return pendingBytes;
+    }
+
+    public long getPendingMemory() {
+        return pendingMemory;
+    }
+
+    public boolean isReadPaused() {
+        return readPaused;
+    }
+
+    /**
+     * 带宽整形暂停或恢复读取源通道，恢复时仍受水位控制
+     */
+    public void setThrottled(boolean throttled) {
+        this.throttled = throttled;
+        if (!readPaused && !starved && !eof) {
+            from.interest(SelectionKey.OP_READ, !throttled);
+        }
+    }
+
+    public boolean isThrottled() {
+        return throttled;
+    }
+
+    public boolean isStarved() {
+        return starved;
+    }
+
+    /**
+     * 缓冲块归还可能发生在其他事件循环的线程，恢复读取的动作通过executor回到本方向所属的线程
+     */
+    public void setWakeup(Executor wakeup) {
+        this.wakeup = wakeup;
+    }
+
+    public long getBytes() {
+        return bytes;
+    }
+
+    public long getReads() {
+        return reads;
+    }
+
+    public long getWrites() {
+        return writes;
+    }
+
+    /**
+     * 最长写阻塞时间，纳秒，包含仍在进行中的阻塞
+     */
+    public long getMaxWriteStall() {
+        long start = stallStart;
+        return start != 0 ? Math.max(maxWriteStall, System.nanoTime() - start) : maxWriteStall;
+    }
+}
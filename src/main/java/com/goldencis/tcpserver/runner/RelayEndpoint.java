@@ -0,0 +1,50 @@
+package com.goldencis.tcpserver.runner;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * 转发会话的一端，数据泵通过它读写数据和切换监听事件。
+ * 普通连接为注册在事件循环上的SocketChannel，多路复用连接上的一端为其中的一个流。
+ * 只在会话所属事件循环的线程中调用，close()除外。
+ */
+public interface RelayEndpoint {
+
+    /**
+     * 非阻塞读取
+     * @return 读取的字节数，没有数据时为0，已到末尾时为-1
+     */
+    int read(ByteBuffer dst) throws IOException;
+
+    /**
+     * 非阻塞写出
+     * @return 写出的字节数，写不进去时为0
+     */
+    int write(ByteBuffer src) throws IOException;
+
+    /**
+     * 非阻塞地按顺序写出多个缓冲区，前一个写不完时不再写后面的
+     * @return 写出的字节数
+     */
+    default long write(ByteBuffer[] srcs, int offset, int length) throws IOException {
+        long written = 0;
+        for (int i = offset; i < offset + length; i++) {
+            written += this.write(srcs[i]);
+            if (srcs[i].hasRemaining()) {
+                break;
+            }
+        }
+        return written;
+    }
+
+    /**
+     * 打开或关闭可读、可写事件的监听
+     * @param op SelectionKey.OP_READ或SelectionKey.OP_WRITE
+     */
+    void interest(int op, boolean on);
+
+    /**
+     * 关闭该端，可在任意线程调用
+     */
+    void close() throws IOException;
+}
@@ -0,0 +1,33 @@
+package com.goldencis.tcpserver.runner;
+
+import java.io.IOException;
+import java.nio.channels.SelectionKey;
+
+/**
+ * 注册在事件循环上的通道处理器，作为SelectionKey的attachment。
+ * 所有回调都在所属事件循环的线程中执行。
+ */
+public interface SelectionHandler {
+
+    /**
+     * 处理已就绪的选择键
+     * @param key 选择键
+     * @throws IOException IO异常，抛出后事件循环会调用close()
+     */
+    void handle(SelectionKey key) throws IOException;
+
+    /**
+     * 该选择键是否优先处理，优先的选择键在每轮select中先于其他选择键处理，
+     * 处理其他选择键的时间超过延迟预算时，事件循环会插入一次selectNow()只处理新就绪的优先选择键
+     * @param key 选择键
+     * @return 默认不优先
+     */
+    default boolean isPriority(SelectionKey key) {
+        return false;
+    }
+
+    /**
+     * 关闭处理器持有的通道及资源
+     */
+    void close();
+}
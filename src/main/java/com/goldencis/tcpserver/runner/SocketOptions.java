@@ -0,0 +1,70 @@
+package com.goldencis.tcpserver.runner;
+
+import java.io.IOException;
+import java.net.StandardSocketOptions;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+
+/**
+ * 一个监听端口上接受的连接使用的套接字选项，缓冲区大小为0时使用系统默认值(由内核自动调整)。
+ */
+public class SocketOptions {
+
+    private final boolean tcpNoDelay;
+
+    private final boolean keepAlive;
+
+    private final int sendBufferSize;
+
+    private final int receiveBufferSize;
+
+    public SocketOptions(boolean tcpNoDelay, boolean keepAlive, int sendBufferSize, int receiveBufferSize) {
+        this.tcpNoDelay = tcpNoDelay;
+        this.keepAlive = keepAlive;
+        this.sendBufferSize = sendBufferSize;
+        this.receiveBufferSize = receiveBufferSize;
+    }
+
+    /**
+     * 在绑定之前设置监听通道的接收缓冲区，超过64KB的接收窗口需要在握手时协商，接受的连接继承该值
+     * @param channel 监听通道
+     * @throws IOException IO异常
+     */
+    public void applyTo(ServerSocketChannel channel) throws IOException {
+        if (receiveBufferSize > 0) {
+            channel.setOption(StandardSocketOptions.SO_RCVBUF, receiveBufferSize);
+        }
+    }
+
+    /**
+     * 设置接受的连接
+     * @param channel 接受的连接
+     * @throws IOException IO异常
+     */
+    public void applyTo(SocketChannel channel) throws IOException {
+        channel.setOption(StandardSocketOptions.TCP_NODELAY, tcpNoDelay);
+        channel.setOption(StandardSocketOptions.SO_KEEPALIVE, keepAlive);
+        if (sendBufferSize > 0) {
+            channel.setOption(StandardSocketOptions.SO_SNDBUF, sendBufferSize);
+        }
+        if (receiveBufferSize > 0) {
+            channel.setOption(StandardSocketOptions.SO_RCVBUF, receiveBufferSize);
+        }
+    }
+
+    public boolean isTcpNoDelay() {
+        return tcpNoDelay;
+    }
+
+    public boolean isKeepAlive() {
+        return keepAlive;
+    }
+
+    public int getSendBufferSize() {
+        return sendBufferSize;
+    }
+
+    public int getReceiveBufferSize() {
+        return receiveBufferSize;
+    }
+}
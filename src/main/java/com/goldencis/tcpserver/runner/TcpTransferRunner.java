@@ -1,24 +1,43 @@
 package com.goldencis.tcpserver.runner;
 
+import com.goldencis.tcpserver.compress.BlockDeflater;
+import com.goldencis.tcpserver.compress.BlockInflater;
+import com.goldencis.tcpserver.constants.ConstantsDto;
+import com.goldencis.tcpserver.metrics.RelayMetrics;
+import com.goldencis.tcpserver.record.RecordingSession;
+import com.goldencis.tcpserver.shaping.SessionShaper;
+import com.goldencis.tcpserver.timer.Timeout;
+import com.goldencis.tcpserver.websocket.WebSocketFrameDecoder;
+
 import java.io.IOException;
-import java.nio.ByteBuffer;
 import java.nio.channels.SelectionKey;
-import java.nio.channels.Selector;
 import java.nio.channels.SocketChannel;
-import java.util.Iterator;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
- * tcp通道数据转发器，监听器上只有源通道和目标通道。
+ * tcp通道数据转发器，源通道和目标通道注册在同一个事件循环上。
  * 监听其可读状态。将进入该状态的通道内数据，写入另外一个通道中去。
+ * 上下行各有独立的数据泵，目标通道写满时按水位暂停读取，等可写事件再继续写出。
+ * 上行承载键盘鼠标等输入事件，数据量小但对延迟敏感，noVNC端的选择键优先处理，同一端就绪时也先处理上行。
+ * 按配置合并写出的方向，读到的数据在本轮事件处理结束时统一写出，同一轮内多次读到的小块数据只需一次聚集写。
+ * 启用带宽整形时，下行读到的数据扣除令牌，欠额时暂停读取目标端，由定时器到期后恢复。
  * Created by limingchao on 2018/10/18.
  */
-public class TcpTransferRunner implements Runnable {
+public class TcpTransferRunner implements SelectionHandler {
 
     private String uuid;
 
+    //发起连接的用户
+    private String userguid;
+
     private boolean on;
 
-    private Selector selector;
+    //会话所属的事件循环
+    private EventLoop eventLoop;
+
+    //共用的缓冲池及水位配置
+    private RelayContext relayContext;
 
     private boolean sourceReady;
 
@@ -28,56 +47,376 @@ public class TcpTransferRunner implements Runnable {
 
     private SocketChannel destinationChannel;
 
-    //读取字节序的缓冲区
-    private ByteBuffer buffer = ByteBuffer.allocate(1024 * 1024 * 4);
+    //数据泵读写的两端，目标端为多路复用连接上的流时由外部设置
+    private ChannelEndpoint sourceEndpoint;
+
+    private RelayEndpoint destinationEndpoint;
+
+    //上行：noVNC端到目标端
+    private RelayDirection upstream;
+
+    //下行：目标端到noVNC端
+    private RelayDirection downstream;
+
+    //noVNC端为websocket连接时的帧解码器，为空表示原始tcp
+    private WebSocketFrameDecoder webSocketFrames;
+
+    //与目标端之间按块压缩
+    private boolean compress;
+
+    //目标端为预先建立的备用连接
+    private boolean standby;
+
+    //会话录制，未启用录制时为空
+    private RecordingSession recording;
+
+    //带宽整形，未启用时为空
+    private SessionShaper shaper;
+
+    //广播会话复制下行数据、过滤上行数据，普通会话为空
+    private ChunkTap downstreamTap;
+
+    private ChunkFilter upstreamFilter;
+
+    //会话结束时的回调，在调用close()的线程中执行
+    private Runnable closeHook;
+
+    //目标端是否已认领，保证同一管道只配对一次
+    private final AtomicBoolean claimed = new AtomicBoolean();
+
+    private final AtomicBoolean closed = new AtomicBoolean();
+
+    //等待目标端认领的超时
+    private volatile Timeout pairingTimeout;
+
+    //空闲检查
+    private volatile Timeout idleTimeout;
+
+    //带宽整形暂停后恢复读取
+    private volatile Timeout throttleTimeout;
+
+    //已提交本轮结束时的合并写出任务
+    private boolean flushScheduled;
+
+    //最后一次读写的时间
+    private long lastActivity;
+
+    //noVNC端握手完成、创建会话的时间
+    private final long createdNanos = System.nanoTime();
+
+    //是否已记录首个下行字节
+    private boolean firstByte;
 
     public TcpTransferRunner() {
     }
 
-    public TcpTransferRunner(String uuid, Selector selector, boolean sourceReady, SocketChannel sourceChannel) {
+    public TcpTransferRunner(String uuid, EventLoop eventLoop, RelayContext relayContext, boolean sourceReady, SocketChannel sourceChannel) {
         this.uuid = uuid;
-        this.selector = selector;
+        this.eventLoop = eventLoop;
+        this.relayContext = relayContext;
         this.sourceReady = sourceReady;
         this.sourceChannel = sourceChannel;
     }
 
+    /**
+     * 目标端认领本会话
+     * @return 首次认领返回true
+     */
+    public boolean claim() {
+        if (!claimed.compareAndSet(false, true)) {
+            return false;
+        }
+        Timeout timeout = pairingTimeout;
+        if (timeout != null) {
+            timeout.cancel();
+        }
+        return true;
+    }
+
+    /**
+     * 开始等待目标端认领，超时未认领时关闭会话
+     * @param seconds 超时秒数
+     */
+    public void startPairingTimeout(long seconds) {
+        pairingTimeout = relayContext.getTimingWheel().newTimeout(() -> {
+            //由超时任务认领，避免与目标端握手同时发生
+            if (this.claim()) {
+                this.close();
+            }
+        }, seconds, TimeUnit.SECONDS);
+    }
+
+    /**
+     * 按目标端请求的能力标志和转发服务的配置协商
+     * @param requested 目标端请求的能力标志
+     * @return 同意的能力标志，写入握手响应
+     */
+    public int negotiateCapabilities(int requested) {
+        int granted = requested & relayContext.getCapabilities();
+        compress = (granted & ConstantsDto.CAPABILITY_DEFLATE) != 0;
+        return granted;
+    }
+
+    /**
+     * 两端通道都就绪后，将其注册到所属的事件循环上开始转发。
+     * 认领之后、开始之前会话可能已被强制结束，此时只关闭交给本会话的通道，不再打开整形、录制和计数
+     */
+    public void start() {
+        //与close()互斥：close()在此之前完成时不再开始，否则close()等待开始完成后一并关闭
+        synchronized (this) {
+            if (closed.get()) {
+                this.closeChannels();
+                return;
+            }
+            this.open();
+        }
+
+        eventLoop.execute(() -> {
+            if (closed.get()) {
+                return;
+            }
+            try {
+                sourceEndpoint.setKey(eventLoop.register(sourceChannel, SelectionKey.OP_READ, this));
+                if (destinationEndpoint instanceof ChannelEndpoint) {
+                    ((ChannelEndpoint) destinationEndpoint).setKey(eventLoop.register(destinationChannel, SelectionKey.OP_READ, this));
+                } else {
+                    //多路复用的流没有选择键，开始监听后由流通知就绪
+                    destinationEndpoint.interest(SelectionKey.OP_READ, true);
+                }
+
+                lastActivity = eventLoop.currentTimeNanos();
+                if (relayContext.getIdleTimeoutSeconds() > 0) {
+                    this.scheduleIdleCheck(TimeUnit.SECONDS.toNanos(relayContext.getIdleTimeoutSeconds()));
+                }
+            } catch (IOException e) {
+                e.printStackTrace();
+                this.close();
+            }
+        });
+    }
+
+    /**
+     * 创建两个方向的数据泵，打开整形、录制并计数
+     */
+    private void open() {
+        RelayMetrics metrics = relayContext.getMetrics();
+        sourceEndpoint = new ChannelEndpoint(sourceChannel);
+        if (destinationEndpoint == null) {
+            destinationEndpoint = new ChannelEndpoint(destinationChannel);
+        }
+        upstream = new RelayDirection(sourceEndpoint, destinationEndpoint, relayContext.getBufferPool(),
+                relayContext.getUpstreamHighWatermark(), relayContext.getUpstreamLowWatermark(),
+                metrics.getUpstreamBytes(), metrics.getUpstreamWrites());
+        downstream = new RelayDirection(destinationEndpoint, sourceEndpoint, relayContext.getBufferPool(),
+                relayContext.getDownstreamHighWatermark(), relayContext.getDownstreamLowWatermark(),
+                metrics.getDownstreamBytes(), metrics.getDownstreamWrites());
+        upstream.setCoalesceBytes(relayContext.getUpstreamCoalesceBytes());
+        downstream.setCoalesceBytes(relayContext.getDownstreamCoalesceBytes());
+        upstream.setWakeup(task -> eventLoop.execute(task));
+        downstream.setWakeup(task -> eventLoop.execute(task));
+        if (compress) {
+            //noVNC端仍收发原始数据
+            upstream.setDeflater(new BlockDeflater(relayContext.getCompressLevel(), relayContext.getBufferPool().getReadChunkSize()));
+            downstream.setInflater(new BlockInflater(relayContext.getBufferPool()));
+        }
+        if (webSocketFrames != null) {
+            upstream.setUnwrapper(webSocketFrames);
+            downstream.setWrapping(true);
+            upstream.setReplies(downstream);
+        }
+        upstream.setFilter(upstreamFilter);
+        downstream.setTap(downstreamTap);
+        recording = relayContext.getRecorder().open(uuid, userguid);
+        if (recording != null) {
+            upstream.setRecording(recording, RecordingSession.UPSTREAM);
+            downstream.setRecording(recording, RecordingSession.DOWNSTREAM);
+        }
+        shaper = relayContext.getShaper().open(uuid, userguid);
+        metrics.sessionOpened();
+        metrics.recordSetup(standby, System.nanoTime() - createdNanos);
+        on = true;
+    }
+
+    private void scheduleIdleCheck(long delayNanos) {
+        idleTimeout = relayContext.getTimingWheel().newTimeout(() -> eventLoop.execute(this::checkIdle), delayNanos, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * 空闲超过上限时关闭会话，否则按剩余时间重新计时，读写时无需取消定时任务
+     */
+    private void checkIdle() {
+        if (closed.get()) {
+            return;
+        }
+        long limit = TimeUnit.SECONDS.toNanos(relayContext.getIdleTimeoutSeconds());
+        long idle = System.nanoTime() - lastActivity;
+        if (idle >= limit) {
+            this.close();
+        } else {
+            this.scheduleIdleCheck(limit - idle);
+        }
+    }
+
     @Override
-    public void run() {
-        //轮询式的获取选择器上已经“准备就绪”的事件
-        try {
-            while (selector.select() > 0) {
-
-                //获取当前选择器中所有注册的“选择键(已就绪的监听事件)”
-                Iterator<SelectionKey> it = selector.selectedKeys().iterator();
-
-                while (it.hasNext()) {
-                    //获取准备“就绪”的是事件
-                    SelectionKey sk = it.next();
-
-                    //9. 判断具体是什么事件准备就绪
-                    if (sk.isReadable()) {
-                        if (sk.channel() instanceof SocketChannel) {
-                            if (sk.channel().equals(sourceChannel)) {
-                                this.transferBuffer(sourceChannel, destinationChannel);
-                            } else {
-                                this.transferBuffer(destinationChannel, sourceChannel);
-                            }
-                        }
-                    }
-
-                    //取消选择键 SelectionKey
-                    it.remove();
+    public void handle(SelectionKey sk) throws IOException {
+        this.ready(sk.channel() == sourceChannel, sk.isWritable(), sk.isValid() && sk.isReadable());
+    }
+
+    /**
+     * noVNC端的选择键优先处理
+     */
+    @Override
+    public boolean isPriority(SelectionKey key) {
+        return key.channel() == sourceChannel;
+    }
+
+    /**
+     * 一端可读或可写，在所属事件循环的线程中调用
+     * @param source 是否为noVNC端
+     * @param writable 可写
+     * @param readable 可读
+     * @throws IOException IO异常，调用方关闭会话
+     */
+    public void ready(boolean source, boolean writable, boolean readable) throws IOException {
+        lastActivity = eventLoop.currentTimeNanos();
+        //先处理上行，输入事件不排在大块的画面数据之后
+        if (source) {
+            if (readable) {
+                upstream.read(eventLoop.getReadBudget());
+            }
+            if (writable) {
+                downstream.flush();
+            }
+        } else {
+            if (writable) {
+                upstream.flush();
+            }
+            if (readable) {
+                long read = downstream.read(eventLoop.getReadBudget());
+                if (shaper != null && read > 0) {
+                    this.shape(read);
                 }
             }
+        }
+
+        this.checkFirstByte();
+
+        //合并写出的数据等本轮其他就绪事件处理完再写出
+        if (!flushScheduled && (upstream.isFlushDue() || downstream.isFlushDue())) {
+            flushScheduled = true;
+            eventLoop.execute(this::flushDue);
+        }
+
+        //任意一端关闭且剩余数据已写出，结束本次转发
+        if (upstream.isFinished() || downstream.isFinished()) {
+            this.close();
+        }
+    }
+
+    /**
+     * 扣除下行读到的字节数，欠额时暂停读取目标端
+     */
+    private void shape(long read) {
+        long delay = shaper.consume(read, eventLoop.currentTimeNanos());
+        if (delay > 0 && !downstream.isThrottled()) {
+            downstream.setThrottled(true);
+            throttleTimeout = relayContext.getTimingWheel().newTimeout(() -> eventLoop.execute(this::resume),
+                    delay, TimeUnit.NANOSECONDS);
+        }
+    }
+
+    private void resume() {
+        if (closed.get()) {
+            return;
+        }
+        shaper.resume();
+        downstream.setThrottled(false);
+    }
+
+    /**
+     * 写出本轮合并的数据，在事件循环线程中执行
+     */
+    private void flushDue() {
+        flushScheduled = false;
+        if (closed.get()) {
+            return;
+        }
+        try {
+            if (upstream.isFlushDue()) {
+                upstream.flush();
+            }
+            if (downstream.isFlushDue()) {
+                downstream.flush();
+            }
         } catch (IOException e) {
-            e.printStackTrace();
-        } finally {
-            //关闭转发线程资源
             this.close();
+            return;
+        }
+        this.checkFirstByte();
+        if (upstream.isFinished() || downstream.isFinished()) {
+            this.close();
+        }
+    }
+
+    /**
+     * 第一个下行字节写给noVNC端，记录握手到首字节的延迟
+     */
+    private void checkFirstByte() {
+        if (!firstByte && downstream.getBytes() > 0) {
+            firstByte = true;
+            relayContext.getMetrics().recordFirstByte(eventLoop.currentTimeNanos() - createdNanos);
         }
     }
 
+    @Override
     public void close() {
+        if (!closed.compareAndSet(false, true)) {
+            return;
+        }
+        //等待正在进行的start()完成，其打开的资源在下面一并关闭
+        synchronized (this) {
+            if (on) {
+                relayContext.getMetrics().sessionClosed();
+            }
+            on = false;
+        }
+        //从配对表中移除
+        relayContext.getPipeRegistry().remove(this);
+
+        //取消定时任务
+        Timeout timeout = pairingTimeout;
+        if (timeout != null) {
+            timeout.cancel();
+        }
+        timeout = idleTimeout;
+        if (timeout != null) {
+            timeout.cancel();
+        }
+        timeout = throttleTimeout;
+        if (timeout != null) {
+            timeout.cancel();
+        }
+        if (shaper != null) {
+            shaper.close();
+        }
+
+        this.closeChannels();
+
+        if (closeHook != null) {
+            closeHook.run();
+        }
+
+        //待写缓冲块只能在事件循环线程中归还
+        if (upstream != null) {
+            if (eventLoop.inEventLoop()) {
+                this.releaseBuffers();
+            } else {
+                eventLoop.execute(this::releaseBuffers);
+            }
+        }
+    }
+
+    private void closeChannels() {
         if (sourceChannel != null) {
             try {
                 sourceChannel.close();
@@ -86,28 +425,43 @@ public class TcpTransferRunner implements Runnable {
             }
         }
 
-        if (destinationChannel != null) {
+        RelayEndpoint destination = destinationEndpoint;
+        if (destination != null || destinationChannel != null) {
             try {
-                destinationChannel.close();
+                if (destination != null) {
+                    destination.close();
+                } else {
+                    destinationChannel.close();
+                }
             } catch (IOException e) {
                 e.printStackTrace();
             }
         }
     }
 
-    private void transferBuffer(SocketChannel sourceChannel, SocketChannel destinationChannel) throws IOException {
-        //数据转发
-        while (sourceChannel.read(buffer) > 0) {
-            buffer.flip();
-            //注意SocketChannel.write()方法的调用是在一个while循环中的。
-            //Write()方法无法保证能写多少字节到SocketChannel。所以，我们重复调用write()直到Buffer没有要写的字节为止。
-            while (buffer.hasRemaining()) {
-                destinationChannel.write(buffer);
-            }
-            buffer.clear();
+    private void releaseBuffers() {
+        upstream.release();
+        downstream.release();
+        if (recording != null) {
+            recording.close();
         }
     }
 
+    /**
+     * 会话创建至今的时长，纳秒
+     */
+    public long getAge() {
+        return System.nanoTime() - createdNanos;
+    }
+
+    public long getCreatedNanos() {
+        return createdNanos;
+    }
+
+    public long getLastActivity() {
+        return lastActivity;
+    }
+
     public String getUuid() {
         return uuid;
     }
@@ -116,6 +470,14 @@ public class TcpTransferRunner implements Runnable {
         this.uuid = uuid;
     }
 
+    public String getUserguid() {
+        return userguid;
+    }
+
+    public void setUserguid(String userguid) {
+        this.userguid = userguid;
+    }
+
     public boolean isSourceReady() {
         return sourceReady;
     }
@@ -148,6 +510,57 @@ public class TcpTransferRunner implements Runnable {
         this.destinationChannel = destinationChannel;
     }
 
+    public RelayEndpoint getDestinationEndpoint() {
+        return destinationEndpoint;
+    }
+
+    /**
+     * 目标端为多路复用连接上的流时，在start()之前设置
+     */
+    public void setDestinationEndpoint(RelayEndpoint destinationEndpoint) {
+        this.destinationEndpoint = destinationEndpoint;
+    }
+
+    public WebSocketFrameDecoder getWebSocketFrames() {
+        return webSocketFrames;
+    }
+
+    public void setWebSocketFrames(WebSocketFrameDecoder webSocketFrames) {
+        this.webSocketFrames = webSocketFrames;
+    }
+
+    public void setDownstreamTap(ChunkTap downstreamTap) {
+        this.downstreamTap = downstreamTap;
+    }
+
+    public void setUpstreamFilter(ChunkFilter upstreamFilter) {
+        this.upstreamFilter = upstreamFilter;
+    }
+
+    public void setCloseHook(Runnable closeHook) {
+        this.closeHook = closeHook;
+    }
+
+    public boolean isCompress() {
+        return compress;
+    }
+
+    public boolean isStandby() {
+        return standby;
+    }
+
+    public void setStandby(boolean standby) {
+        this.standby = standby;
+    }
+
+    public RelayDirection getUpstream() {
+        return upstream;
+    }
+
+    public RelayDirection getDownstream() {
+        return downstream;
+    }
+
     public boolean isOn() {
         return on;
     }
@@ -156,11 +569,11 @@ public class TcpTransferRunner implements Runnable {
         this.on = on;
     }
 
-    public Selector getSelector() {
-        return selector;
+    public EventLoop getEventLoop() {
+        return eventLoop;
     }
 
-    public void setSelector(Selector selector) {
-        this.selector = selector;
+    public void setEventLoop(EventLoop eventLoop) {
+        this.eventLoop = eventLoop;
     }
 }
@@ -0,0 +1,146 @@
+package com.goldencis.tcpserver.server;
+
+import com.goldencis.tcpserver.shaping.TokenBucket;
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.MeterBinder;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.channels.SocketChannel;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 监听端口的连接准入，网络恢复后大量客户端同时重连时保护监听线程。
+ * 接受连接后、开始握手前判断：握手中的连接数达到上限，或来源IP的令牌桶不够时，直接复位连接，
+ * 不解析握手、不发送消息通知，客户端按自己的重连策略稍后再试。
+ * 每个监听端口一个实例，只在该端口的监听线程中调用，计数可在任意线程读取。
+ */
+public class AdmissionControl implements MeterBinder {
+
+    //监听端口名，用作指标的标签
+    private final String port;
+
+    private final boolean enabled;
+
+    //每个来源IP每秒允许的新连接数和突发数，0表示不限制
+    private final long ipRate;
+
+    private final long ipBurst;
+
+    //握手中的连接数上限，0表示不限制
+    private final int maxHalfOpen;
+
+    //按最近使用顺序保留的来源IP令牌桶，超出数量时淘汰最久未连接的IP，被淘汰的IP下次连接时桶是满的
+    private final Map<InetAddress, TokenBucket> buckets;
+
+    //最近一次判断时握手中的连接数
+    private volatile int halfOpen;
+
+    private final LongAdder admitted = new LongAdder();
+
+    //因来源IP超速和握手中的连接过多而复位的连接数
+    private final LongAdder shedRate = new LongAdder();
+
+    private final LongAdder shedHalfOpen = new LongAdder();
+
+    public AdmissionControl(String port, boolean enabled, long ipRate, long ipBurst, int maxHalfOpen, int trackedIps) {
+        this.port = port;
+        this.enabled = enabled;
+        this.ipRate = ipRate;
+        this.ipBurst = ipBurst > 0 ? ipBurst : ipRate;
+        this.maxHalfOpen = maxHalfOpen;
+        this.buckets = new LinkedHashMap<InetAddress, TokenBucket>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<InetAddress, TokenBucket> eldest) {
+                return size() > trackedIps;
+            }
+        };
+    }
+
+    /**
+     * 判断是否接受刚接受的连接，拒绝时复位并关闭
+     * @param channel 刚接受的连接
+     * @param halfOpen 当前握手中的连接数
+     * @return 接受时返回true，由调用方开始握手
+     * @throws IOException 连接已失效，由调用方关闭
+     */
+    public boolean admit(SocketChannel channel, int halfOpen) throws IOException {
+        if (!enabled) {
+            return true;
+        }
+        this.halfOpen = halfOpen;
+        if (maxHalfOpen > 0 && halfOpen >= maxHalfOpen) {
+            shedHalfOpen.increment();
+            shed(channel);
+            return false;
+        }
+        if (ipRate > 0) {
+            InetAddress address = ((InetSocketAddress) channel.getRemoteAddress()).getAddress();
+            TokenBucket bucket = buckets.computeIfAbsent(address, key -> new TokenBucket(ipRate, ipBurst));
+            if (!bucket.tryAcquire(1, System.nanoTime())) {
+                shedRate.increment();
+                shed(channel);
+                return false;
+            }
+        }
+        admitted.increment();
+        return true;
+    }
+
+    /**
+     * 以RST复位连接，不在服务端留下TIME_WAIT
+     */
+    private static void shed(SocketChannel channel) {
+        try {
+            channel.setOption(StandardSocketOptions.SO_LINGER, 0);
+        } catch (IOException e) {
+            //连接已失效，直接关闭
+        }
+        try {
+            channel.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    @Override
+    public void bindTo(MeterRegistry registry) {
+        if (!enabled) {
+            return;
+        }
+        Gauge.builder("relay.admission.half-open", this, AdmissionControl::getHalfOpen)
+                .tag("port", port).description("握手中的连接数").register(registry);
+        FunctionCounter.builder("relay.admission.admitted", admitted, LongAdder::sum)
+                .tag("port", port).register(registry);
+        FunctionCounter.builder("relay.admission.shed", shedRate, LongAdder::sum)
+                .tag("port", port).tag("reason", "ip-rate").register(registry);
+        FunctionCounter.builder("relay.admission.shed", shedHalfOpen, LongAdder::sum)
+                .tag("port", port).tag("reason", "half-open").register(registry);
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    public int getHalfOpen() {
+        return halfOpen;
+    }
+
+    public long getAdmitted() {
+        return admitted.sum();
+    }
+
+    public long getShedRate() {
+        return shedRate.sum();
+    }
+
+    public long getShedHalfOpen() {
+        return shedHalfOpen.sum();
+    }
+}
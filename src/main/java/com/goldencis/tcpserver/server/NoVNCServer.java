@@ -1,58 +1,119 @@
 package com.goldencis.tcpserver.server;
 
+import com.goldencis.tcpserver.broadcast.BroadcastHub;
+import com.goldencis.tcpserver.cluster.ClusterRouter;
 import com.goldencis.tcpserver.constants.ConstantsDto;
 import com.goldencis.tcpserver.entity.TcpProtocolBody;
 import com.goldencis.tcpserver.mq.MQClient;
+import com.goldencis.tcpserver.mq.RedisNotifier;
+import com.goldencis.tcpserver.runner.EventLoopGroup;
+import com.goldencis.tcpserver.runner.PipeRegistry;
+import com.goldencis.tcpserver.runner.RelayContext;
+import com.goldencis.tcpserver.runner.SocketOptions;
 import com.goldencis.tcpserver.runner.TcpTransferRunner;
+import com.goldencis.tcpserver.timer.HashedTimingWheel;
+import com.goldencis.tcpserver.utils.TcpFrameDecoder;
 import com.goldencis.tcpserver.utils.TcpProtocolUtil;
+import com.goldencis.tcpserver.websocket.WebSocketFrameDecoder;
+import com.goldencis.tcpserver.websocket.WebSocketHandshake;
 import org.json.JSONObject;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Component;
 
 import java.io.IOException;
 import java.net.InetSocketAddress;
 import java.nio.channels.*;
-import java.util.HashMap;
 import java.util.Iterator;
-import java.util.Map;
 
 /**
  * 用于监听NoVNC的web端连接请求的服务，开辟单独的端口.
  * 一旦noVNC连接成功，进入可写状态，便为其创建runner实例.
- * 之后，通知对应的客户端连接。
+ * 之后，优先使用该用户的备用目标连接直接配对，没有备用连接时通知对应的客户端连接。
+ * 广播会话的控制端同样创建runner实例，旁观端加入已有的广播会话，不再连接目标端。
  * 最后，将该noVNC通道从服务的监听列表中移除。
  * Created by limingchao on 2018/10/18.
  */
 @Component
 public class NoVNCServer {
 
+    //每次可接受事件最多取出的连接数，取不完的留到下一轮，不让握手中的连接等待过久
+    private static final int ACCEPT_BATCH = 64;
+
     private ServerSocketChannel ssChannel;
 
+    private Selector selector;
+
     @Autowired
-    private Map<String, TcpTransferRunner> runnerMap;
+    private PipeRegistry pipeRegistry;
 
     @Autowired
-    private MQClient publisher;
+    private RedisNotifier notifier;
 
-    private Map<SocketChannel, String> uuidMap = new HashMap<>();
+    @Autowired
+    private EventLoopGroup eventLoopGroup;
 
-    public NoVNCServer(Map<String, TcpTransferRunner> runnerMap) {
-        this.runnerMap = runnerMap;
-    }
+    @Autowired
+    private RelayContext relayContext;
+
+    @Autowired
+    private ClusterRouter clusterRouter;
+
+    @Autowired
+    private TargetPool targetPool;
+
+    @Autowired
+    private BroadcastHub broadcastHub;
 
     @Value(value = "${server.noVNC.port}")
     private Integer noVNCPort;
 
+    @Value(value = "${relay.handshake.max-frame-size:4096}")
+    private Integer maxFrameSize;
+
+    //接收完整握手帧的超时秒数
+    @Value(value = "${relay.timeout.handshake-seconds:10}")
+    private Long handshakeSeconds;
+
+    //等待目标端认领的超时秒数
+    @Value(value = "${relay.timeout.pairing-seconds:30}")
+    private Long pairingSeconds;
+
+    //noVNC端直接使用websocket连接，不再经过websockify
+    @Value(value = "${relay.websocket.enabled:false}")
+    private boolean websocket;
+
+    //websocket升级请求的长度上限
+    @Value(value = "${relay.websocket.max-request-size:8192}")
+    private int maxRequestSize;
+
+    @Autowired
+    private HashedTimingWheel timingWheel;
+
+    @Autowired
+    @Qualifier("noVNCSocketOptions")
+    private SocketOptions socketOptions;
+
+    @Autowired
+    @Qualifier("noVNCAdmission")
+    private AdmissionControl admission;
+
     public void clear() {
-        try {
-            for (TcpTransferRunner tcpTransferRunner : runnerMap.values()) {
+        //关闭尚未等到目标端的会话，已开始转发的会话由事件循环管理
+        pipeRegistry.forEach(tcpTransferRunner -> {
+            if (!tcpTransferRunner.isOn()) {
                 tcpTransferRunner.close();
             }
-            for (SocketChannel channel : uuidMap.keySet()) {
-                if (channel != null) {
-                    channel.close();
+        });
+        try {
+            if (selector != null) {
+                //关闭握手中的通道
+                for (SelectionKey key : selector.keys()) {
+                    key.channel().close();
                 }
+                selector.close();
+                selector = null;
             }
             if (ssChannel != null) {
                 ssChannel.close();
@@ -61,9 +122,6 @@ public class NoVNCServer {
         } catch (IOException e) {
             e.printStackTrace();
         }
-
-        runnerMap.clear();
-        uuidMap.clear();
     }
 
     public void server() throws IOException, InterruptedException {
@@ -73,11 +131,12 @@ public class NoVNCServer {
         //2. 切换非阻塞模式
         ssChannel.configureBlocking(false);
 
-        //3. 绑定连接
+        //3. 绑定连接，接收缓冲区需要在绑定前设置
+        socketOptions.applyTo(ssChannel);
         ssChannel.bind(new InetSocketAddress(noVNCPort));
 
         //4. 获取选择器
-        Selector selector = Selector.open();
+        selector = Selector.open();
 
         //5. 将通道注册到选择器上, 并且指定“监听接收事件”
         ssChannel.register(selector, SelectionKey.OP_ACCEPT);
@@ -93,28 +152,77 @@ public class NoVNCServer {
 
                 //9. 判断具体是什么事件准备就绪
                 if (sk.isAcceptable()) {
-                    //10. 若“接收就绪”，获取客户端连接
-                    SocketChannel sChannel = ssChannel.accept();
-
-                    //11. 切换非阻塞模式
-                    sChannel.configureBlocking(false);
-
-                    //12. 将该通道注册到选择器上
-                    sChannel.register(selector, SelectionKey.OP_READ);
+                    //10. 若“接收就绪”，一次取出积压的客户端连接，除监听通道外的选择键均为握手中的连接
+                    int halfOpen = selector.keys().size() - 1;
+                    SocketChannel sChannel;
+                    for (int i = 0; i < ACCEPT_BATCH && (sChannel = ssChannel.accept()) != null; i++) {
+                        try {
+                            //超出准入限制的连接直接复位，不进入握手
+                            if (!admission.admit(sChannel, halfOpen)) {
+                                continue;
+                            }
+
+                            //11. 切换非阻塞模式
+                            sChannel.configureBlocking(false);
+                            socketOptions.applyTo(sChannel);
+
+                            //12. 将该通道注册到选择器上，附带该通道的协议解码器，websocket连接先完成升级
+                            TcpFrameDecoder decoder = new TcpFrameDecoder(maxFrameSize);
+                            sChannel.register(selector, SelectionKey.OP_READ,
+                                    websocket ? new WebSocketHandshake(maxRequestSize, decoder) : decoder);
+                            //限定时间内未收到完整握手帧则关闭
+                            decoder.startTimeout(timingWheel, sChannel, handshakeSeconds);
+                            halfOpen++;
+                        } catch (IOException e) {
+                            //连接在接受后已失效
+                            sChannel.close();
+                        }
+                    }
                 } else if (sk.isReadable()) {
                     if (sk.channel() instanceof SocketChannel) {
                         SocketChannel sourceChannel = (SocketChannel) sk.channel();
-                        if (!uuidMap.containsKey(sourceChannel)) {
-                            //解析目标通道发送的tcp协议数据
-                            TcpProtocolBody body = TcpProtocolUtil.parseTcpProtocol(sourceChannel);
-
-                            //为对应的noVNC通道创建runner实例
-                            this.createTcpTransferRunner(sourceChannel);
-                            //需要通知客户端
-                            this.notifyVNCTarget(sourceChannel, body);
-
-                            //将该通道从监听列表中移除
+                        try {
+                            //解析目标通道发送的tcp协议数据，未接收完整时等待下一次可读事件
+                            WebSocketFrameDecoder frames = null;
+                            TcpProtocolBody body;
+                            if (sk.attachment() instanceof WebSocketHandshake) {
+                                //握手协议在websocket二进制帧中
+                                WebSocketHandshake handshake = (WebSocketHandshake) sk.attachment();
+                                body = handshake.decode(sourceChannel);
+                                frames = handshake.getFrames();
+                            } else {
+                                body = TcpProtocolUtil.parseTcpProtocol(sourceChannel, (TcpFrameDecoder) sk.attachment());
+                            }
+                            if (body != null && ConstantsDto.CONNECT_NOVNC_VIEWER.equals(body.getAction())) {
+                                //旁观端加入广播会话，由广播会话所属的事件循环接管
+                                sk.cancel();
+                                broadcastHub.join(sourceChannel, body, frames);
+                            } else if (body != null) {
+                                boolean broadcast = ConstantsDto.CONNECT_NOVNC_BROADCAST.equals(body.getAction());
+                                if (!ConstantsDto.CONNECT_NOVNC_SERVER.equals(body.getAction())
+                                        && !(broadcast && broadcastHub.isEnabled())) {
+                                    throw new IOException("不支持的动作: " + body.getAction());
+                                }
+                                //将该通道从监听列表中移除
+                                sk.cancel();
+
+                                //为对应的noVNC通道创建runner实例，并登记到配对表
+                                TcpTransferRunner tcpTransferRunner = this.createTcpTransferRunner(sourceChannel, body);
+                                //转发时继续解析和封装websocket帧
+                                tcpTransferRunner.setWebSocketFrames(frames);
+                                //控制端的画面同时发给旁观端
+                                if (broadcast) {
+                                    broadcastHub.open(tcpTransferRunner);
+                                }
+                                //没有备用连接时需要通知客户端
+                                if (!this.pairStandby(body, tcpTransferRunner)) {
+                                    this.notifyVNCTarget(body, tcpTransferRunner);
+                                }
+                            }
+                        } catch (IOException e) {
+                            //握手失败，关闭当前通道，不影响其他连接
                             sk.cancel();
+                            sourceChannel.close();
                         }
                     }
                 }
@@ -124,43 +232,83 @@ public class NoVNCServer {
         }
     }
 
-    private void createTcpTransferRunner(SocketChannel channel) throws IOException {
-            //生成任务uuid
-            String uuid = uuidMap.get(channel);
-
-            //为本次tcp转发新建选择器
-            Selector redirectSelector = Selector.open();
-            //将源通道注册进单独的转发选择器
-            channel.register(redirectSelector, SelectionKey.OP_READ);
+    private TcpTransferRunner createTcpTransferRunner(SocketChannel channel, TcpProtocolBody body) throws IOException {
+            //任务uuid
+            String uuid = body.getPipe();
 
             //切换非阻塞模式
             channel.configureBlocking(false);
 
-            TcpTransferRunner tcpTransferRunner = new TcpTransferRunner(uuid, redirectSelector, true, channel);
+            //分配转发事件循环，待目标端握手成功后再注册通道
+            TcpTransferRunner tcpTransferRunner = new TcpTransferRunner(uuid, eventLoopGroup.next(), relayContext, true, channel);
+            tcpTransferRunner.setUserguid(body.getUserguid());
+
+            //以管道id登记到配对表，等待目标端认领
+            if (!pipeRegistry.park(body, tcpTransferRunner)) {
+                throw new IOException("管道id已被占用: " + uuid);
+            }
 
-            //以uuid为key，TCPTransferRunner为value，等待符合条件时，
-            runnerMap.put(uuid, tcpTransferRunner);
+            //目标端超时未连接时释放noVNC通道
+            tcpTransferRunner.startPairingTimeout(pairingSeconds);
+            return tcpTransferRunner;
+    }
+
+    /**
+     * 取出该用户的备用目标连接直接配对，不经过消息通知
+     * @param body noVNC端的协议体
+     * @param tcpTransferRunner 已登记的会话
+     * @return 取到备用连接返回true，配对失败时会话已关闭
+     */
+    private boolean pairStandby(TcpProtocolBody body, TcpTransferRunner tcpTransferRunner) {
+        if (!targetPool.isEnabled()) {
+            return false;
+        }
+        TargetPool.Standby standby = targetPool.poll(body);
+        if (standby == null) {
+            return false;
+        }
+        //取消配对超时，与超时任务同时发生时以先认领者为准
+        if (!tcpTransferRunner.claim()) {
+            standby.close();
+            return true;
+        }
+        tcpTransferRunner.setStandby(true);
+        try {
+            TcpProtocolUtil.pair(tcpTransferRunner, standby.getChannel(), standby.getBody());
+        } catch (IOException e) {
+            //响应失败时会话和备用连接均已关闭
+            e.printStackTrace();
+        }
+        return true;
     }
 
     /**
-     * @param socketChannel
+     * 异步通知客户端连接，不阻塞监听线程
+     * 通知发送失败或客户端不在线时，不再等待配对超时，直接关闭会话
      * @param body
+     * @param tcpTransferRunner 已登记的会话
      */
-    private void notifyVNCTarget(SocketChannel socketChannel, TcpProtocolBody body) {
+    private void notifyVNCTarget(TcpProtocolBody body, TcpTransferRunner tcpTransferRunner) {
         //组装消息内容
         JSONObject contentJson = new JSONObject();
         contentJson.put("action", ConstantsDto.CONNECT_VNC_SERVER);
-        contentJson.put("pipe", uuidMap.get(socketChannel));
-
-        //使用消息缓存服务
-        publisher.clientNotify(body.getUserguid(), ConstantsDto.CONNECT_VNC_SERVER, contentJson.toString(), MQClient.MSG_REALTIME);
-    }
+        contentJson.put("pipe", body.getPipe());
+        //备用连接的令牌只经消息通知下发，目标端登记备用连接时携带
+        if (targetPool.isEnabled() && body.getUserguid() != null) {
+            contentJson.put(ConstantsDto.STANDBY_TOKEN, targetPool.token(body.getUserguid()));
+        }
 
-    public Map<String, TcpTransferRunner> getRunnerMap() {
-        return runnerMap;
-    }
+        //集群模式下先登记管道所在的节点，目标端连到其他节点时据此转发
+        if (clusterRouter.isEnabled()) {
+            clusterRouter.register(body.getPipe());
+        }
 
-    public Map<SocketChannel, String> getUuidMap() {
-        return uuidMap;
+        //使用消息缓存服务
+        notifier.clientNotify(body.getUserguid(), ConstantsDto.CONNECT_VNC_SERVER, contentJson.toString(), MQClient.MSG_REALTIME)
+                .whenComplete((received, e) -> {
+                    if ((e != null || !received) && tcpTransferRunner.claim()) {
+                        tcpTransferRunner.close();
+                    }
+                });
     }
 }
@@ -0,0 +1,266 @@
+package com.goldencis.tcpserver.server;
+
+import com.goldencis.tcpserver.constants.ConstantsDto;
+import com.goldencis.tcpserver.entity.RecordedSession;
+import com.goldencis.tcpserver.entity.ReplayRequest;
+import com.goldencis.tcpserver.entity.TcpProtocolBody;
+import com.goldencis.tcpserver.record.RecordIndex;
+import com.goldencis.tcpserver.record.RecordingSession;
+import com.goldencis.tcpserver.record.ReplayClock;
+import com.goldencis.tcpserver.record.SessionRecorder;
+import com.goldencis.tcpserver.record.SessionReplay;
+import com.goldencis.tcpserver.timer.HashedTimingWheel;
+import com.goldencis.tcpserver.utils.TcpFrameDecoder;
+import com.goldencis.tcpserver.utils.TcpProtocolException;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * 录制会话的回放服务，开辟单独的端口。
+ * noVNC端按原有协议握手，管道id为创建回放时返回的票据，票据只能使用一次，之后收到该会话录制的下行数据，
+ * 段文件的映射区域直接写入通道，不复制。noVNC端发送的数据读取后丢弃。
+ * 每个回放占用线程池中的一个线程，同时进行的回放达到上限时直接关闭新的连接，回放结束后关闭连接。
+ */
+@Component
+public class ReplayServer {
+
+    //通道写满时的重试间隔
+    private static final long WRITE_RETRY_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+
+    @Value("${relay.replay.enabled:false}")
+    private boolean enabled;
+
+    @Value("${relay.replay.port:8889}")
+    private int port = 8889;
+
+    //默认倍速，1为实时，0为最快速度
+    @Value("${relay.replay.speed:1}")
+    private double speed = 1;
+
+    //回放票据的有效秒数
+    @Value("${relay.replay.ticket-seconds:60}")
+    private long ticketSeconds = 60;
+
+    //同时进行的回放数上限
+    @Value("${relay.replay.max-threads:8}")
+    private int maxThreads = 8;
+
+    @Value("${relay.handshake.max-frame-size:4096}")
+    private int maxFrameSize = 4096;
+
+    @Value("${relay.timeout.handshake-seconds:10}")
+    private long handshakeSeconds = 10;
+
+    @Autowired
+    private SessionRecorder recorder;
+
+    @Autowired
+    private HashedTimingWheel timingWheel;
+
+    private final Map<String, ReplayRequest> tickets = new ConcurrentHashMap<>();
+
+    private final AtomicLong replays = new AtomicLong();
+
+    private ServerSocketChannel ssChannel;
+
+    private ThreadPoolExecutor executor;
+
+    public ReplayServer() {
+    }
+
+    public ReplayServer(SessionRecorder recorder, HashedTimingWheel timingWheel, int port) {
+        this.enabled = true;
+        this.recorder = recorder;
+        this.timingWheel = timingWheel;
+        this.port = port;
+    }
+
+    public void clear() {
+        if (executor != null) {
+            executor.shutdownNow();
+            executor = null;
+        }
+        try {
+            if (ssChannel != null) {
+                ssChannel.close();
+                ssChannel = null;
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    public void server() throws IOException {
+        ssChannel = ServerSocketChannel.open();
+        ssChannel.bind(new InetSocketAddress(port));
+        //不排队，没有空闲线程且已达上限时拒绝，空闲的线程超时退出
+        executor = new ThreadPoolExecutor(maxThreads, maxThreads, 60, TimeUnit.SECONDS, new SynchronousQueue<>(), runnable -> {
+            Thread thread = new Thread(runnable, "replay-" + replays.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        executor.allowCoreThreadTimeOut(true);
+        while (true) {
+            SocketChannel channel = ssChannel.accept();
+            try {
+                executor.execute(() -> this.replay(channel));
+            } catch (RejectedExecutionException e) {
+                //回放数已达上限
+                channel.close();
+            }
+        }
+    }
+
+    /**
+     * 创建回放，noVNC端在有效期内以票据作为管道id连接
+     * @return 票据
+     * @throws IOException 没有对应的录制
+     */
+    public String createTicket(ReplayRequest request) throws IOException {
+        //提前检查录制是否存在
+        this.open(request);
+        String ticket = UUID.randomUUID().toString();
+        tickets.put(ticket, request);
+        timingWheel.newTimeout(() -> tickets.remove(ticket), ticketSeconds, TimeUnit.SECONDS);
+        return ticket;
+    }
+
+    /**
+     * 管道的录制会话
+     */
+    public List<RecordedSession> recordings(String pipe) throws IOException {
+        RecordIndex index = RecordIndex.load(this.getDir(), pipe);
+        List<RecordedSession> sessions = new ArrayList<>();
+        for (Long sessionId : index.sessions()) {
+            RecordedSession session = new RecordedSession();
+            session.setSessionId(sessionId);
+            int segments = 0;
+            for (RecordIndex.Entry entry : index.entries(sessionId)) {
+                if (RecordIndex.START.equals(entry.getEvent())) {
+                    session.setStartMillis(entry.getMillis());
+                    segments++;
+                } else if (RecordIndex.SEGMENT.equals(entry.getEvent())) {
+                    segments++;
+                } else if (RecordIndex.END.equals(entry.getEvent())) {
+                    session.setEndMillis(entry.getMillis());
+                }
+            }
+            session.setSegments(segments);
+            sessions.add(session);
+        }
+        return sessions;
+    }
+
+    void replay(SocketChannel channel) {
+        try (SocketChannel noVNC = channel) {
+            TcpProtocolBody body = this.handshake(noVNC);
+            //只接受创建回放时返回的票据，用后作废
+            ReplayRequest request = tickets.remove(body.getPipe());
+            if (request == null) {
+                throw new TcpProtocolException("无效的回放票据");
+            }
+            SessionReplay replay = this.open(request);
+            if (request.getFrom() != null) {
+                replay.seek(request.getFrom());
+            }
+            ReplayClock clock = new ReplayClock(request.getSpeed() != null ? request.getSpeed() : speed);
+
+            noVNC.configureBlocking(false);
+            ByteBuffer discard = ByteBuffer.allocate(4096);
+            while (replay.next()) {
+                if (replay.direction() != RecordingSession.DOWNSTREAM) {
+                    continue;
+                }
+                clock.await(replay.nanos());
+                ByteBuffer payload = replay.payload();
+                while (payload.hasRemaining()) {
+                    if (noVNC.write(payload) == 0) {
+                        this.drain(noVNC, discard);
+                        LockSupport.parkNanos(WRITE_RETRY_NANOS);
+                    }
+                }
+                this.drain(noVNC, discard);
+            }
+        } catch (EOFException e) {
+            //noVNC端关闭
+        } catch (IOException e) {
+            e.printStackTrace();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private TcpProtocolBody handshake(SocketChannel channel) throws IOException {
+        TcpFrameDecoder decoder = new TcpFrameDecoder(maxFrameSize);
+        decoder.startTimeout(timingWheel, channel, handshakeSeconds);
+        TcpProtocolBody body;
+        //阻塞读取，超时后通道被关闭
+        do {
+            body = decoder.decode(channel);
+        } while (body == null);
+        decoder.cancelTimeout();
+        if (!ConstantsDto.CONNECT_NOVNC_SERVER.equals(body.getAction())) {
+            throw new TcpProtocolException("不支持的动作: " + body.getAction());
+        }
+        return body;
+    }
+
+    private SessionReplay open(ReplayRequest request) throws IOException {
+        Path dir = this.getDir();
+        if (request.getSessionId() == null) {
+            return SessionReplay.open(dir, request.getPipe());
+        }
+        return new SessionReplay(dir, RecordIndex.load(dir, request.getPipe()), request.getSessionId());
+    }
+
+    /**
+     * 读取并丢弃noVNC端发送的数据
+     */
+    private void drain(SocketChannel channel, ByteBuffer discard) throws IOException {
+        int read;
+        do {
+            discard.clear();
+            read = channel.read(discard);
+        } while (read > 0);
+        if (read < 0) {
+            throw new EOFException();
+        }
+    }
+
+    private Path getDir() {
+        return Paths.get(recorder.getDir());
+    }
+
+    public void setMaxThreads(int maxThreads) {
+        this.maxThreads = maxThreads;
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    public int getPort() {
+        return ssChannel == null ? port : ssChannel.socket().getLocalPort();
+    }
+}
@@ -0,0 +1,370 @@
+package com.goldencis.tcpserver.server;
+
+import com.goldencis.tcpserver.constants.ConstantsDto;
+import com.goldencis.tcpserver.entity.TcpProtocolBody;
+import com.goldencis.tcpserver.timer.HashedTimingWheel;
+import com.goldencis.tcpserver.timer.Timeout;
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.MeterBinder;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 目标端预先建立的备用连接，按userguid登记。
+ * 每个用户有一个随机令牌，只随连接通知经消息服务下发给该用户的目标端，令牌只在本节点有效。
+ * 目标端在目标端口上以connectVncStandby_c2s握手(携带userguid和令牌，不携带管道id)后保持连接空闲，不等待响应，
+ * 令牌不符的连接不登记，只知道userguid的主机不能冒充目标端接收该用户的会话；
+ * noVNC端握手时直接取出该用户的一个备用连接配对，响应connectVncSucc_s2c并返回noVNC端的管道id，
+ * 省去消息通知和目标端重新连接的时间。目标端收到响应后自行补充新的备用连接。
+ * 每个用户和全局各有数量上限，空闲超时的连接由时间轮关闭。
+ * 登记和取出可以在两个监听服务的线程中并发调用。
+ */
+@Component
+public class TargetPool implements MeterBinder {
+
+    @Value("${relay.pool.enabled:false}")
+    private boolean enabled;
+
+    //每个用户的备用连接上限
+    @Value("${relay.pool.max-per-user:4}")
+    private int maxPerUser = 4;
+
+    //所有用户的备用连接上限
+    @Value("${relay.pool.max-total:4096}")
+    private int maxTotal = 4096;
+
+    //备用连接的空闲超时秒数
+    @Value("${relay.pool.idle-seconds:300}")
+    private long idleSeconds = 300;
+
+    @Autowired
+    private HashedTimingWheel timingWheel;
+
+    private final ConcurrentHashMap<String, ArrayDeque<Standby>> pools = new ConcurrentHashMap<>();
+
+    //每个用户的备用连接令牌
+    private final ConcurrentHashMap<String, String> tokens = new ConcurrentHashMap<>();
+
+    private final AtomicInteger total = new AtomicInteger();
+
+    //noVNC端握手时取到和未取到备用连接的次数
+    private final LongAdder hits = new LongAdder();
+
+    private final LongAdder misses = new LongAdder();
+
+    //超出上限而拒绝登记的次数
+    private final LongAdder rejected = new LongAdder();
+
+    //令牌缺失或不符而拒绝登记的次数
+    private final LongAdder unauthorized = new LongAdder();
+
+    //空闲超时关闭和取出时发现已断开的连接数
+    private final LongAdder idleEvicted = new LongAdder();
+
+    private final LongAdder deadEvicted = new LongAdder();
+
+    public TargetPool() {
+    }
+
+    public TargetPool(HashedTimingWheel timingWheel, int maxPerUser, int maxTotal, long idleSeconds) {
+        this.enabled = true;
+        this.timingWheel = timingWheel;
+        this.maxPerUser = maxPerUser;
+        this.maxTotal = maxTotal;
+        this.idleSeconds = idleSeconds;
+    }
+
+    /**
+     * 登记目标端的备用连接
+     * @param channel 已完成握手的目标通道，非阻塞模式
+     * @param body 目标端的协议体
+     * @return 登记成功返回true，未启用、缺少userguid、令牌不符或超出上限返回false，由调用方关闭通道
+     */
+    public boolean offer(SocketChannel channel, TcpProtocolBody body) {
+        String userguid = body.getUserguid();
+        if (!enabled || userguid == null || userguid.isEmpty()) {
+            return false;
+        }
+        //尚未下发令牌的用户不接受备用连接
+        String token = tokens.get(userguid);
+        if (token == null || body.getToken() == null || !MessageDigest.isEqual(
+                token.getBytes(StandardCharsets.UTF_8), body.getToken().getBytes(StandardCharsets.UTF_8))) {
+            unauthorized.increment();
+            return false;
+        }
+        if (total.incrementAndGet() > maxTotal) {
+            total.decrementAndGet();
+            rejected.increment();
+            return false;
+        }
+        Standby standby = new Standby(userguid, channel, body);
+        //先开始计时再登记，取出时总能取消
+        this.startIdleTimeout(standby);
+        boolean[] added = new boolean[1];
+        pools.compute(userguid, (key, queue) -> {
+            if (queue == null) {
+                queue = new ArrayDeque<>();
+            }
+            if (queue.size() < maxPerUser) {
+                queue.addLast(standby);
+                added[0] = true;
+            }
+            return queue;
+        });
+        if (!added[0]) {
+            standby.timeout.cancel();
+            total.decrementAndGet();
+            rejected.increment();
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * 该用户的备用连接令牌，首次使用时生成，由调用方随连接通知下发
+     */
+    public String token(String userguid) {
+        return tokens.computeIfAbsent(userguid, key -> UUID.randomUUID().toString());
+    }
+
+    /**
+     * 为noVNC端取出一个可用的备用连接，先登记的先取出
+     * @param request noVNC端的协议体
+     * @return 备用连接，协议体的管道id已改为noVNC端的管道，没有可用连接时返回null
+     */
+    public Standby poll(TcpProtocolBody request) {
+        if (!enabled || request.getUserguid() == null) {
+            return null;
+        }
+        Standby standby;
+        while ((standby = this.pollFirst(request.getUserguid())) != null) {
+            standby.timeout.cancel();
+            //空闲期间目标端不应发送数据，可读到数据或已关闭的连接不再使用
+            if (!standby.isAlive()) {
+                deadEvicted.increment();
+                standby.close();
+                continue;
+            }
+            if (!standby.assign(request)) {
+                //二进制协议的目标端只接受uuid形式的管道id
+                this.offerFirst(standby);
+                break;
+            }
+            hits.increment();
+            return standby;
+        }
+        misses.increment();
+        return null;
+    }
+
+    private Standby pollFirst(String userguid) {
+        Standby[] polled = new Standby[1];
+        pools.computeIfPresent(userguid, (key, queue) -> {
+            polled[0] = queue.pollFirst();
+            return queue.isEmpty() ? null : queue;
+        });
+        if (polled[0] != null) {
+            total.decrementAndGet();
+        }
+        return polled[0];
+    }
+
+    private void offerFirst(Standby standby) {
+        total.incrementAndGet();
+        this.startIdleTimeout(standby);
+        pools.compute(standby.userguid, (key, queue) -> {
+            if (queue == null) {
+                queue = new ArrayDeque<>();
+            }
+            queue.addFirst(standby);
+            return queue;
+        });
+    }
+
+    private void startIdleTimeout(Standby standby) {
+        standby.timeout = timingWheel.newTimeout(() -> {
+            if (this.remove(standby)) {
+                idleEvicted.increment();
+                standby.close();
+            }
+        }, idleSeconds, TimeUnit.SECONDS);
+    }
+
+    private boolean remove(Standby standby) {
+        boolean[] removed = new boolean[1];
+        pools.computeIfPresent(standby.userguid, (key, queue) -> {
+            removed[0] = queue.remove(standby);
+            return queue.isEmpty() ? null : queue;
+        });
+        if (removed[0]) {
+            total.decrementAndGet();
+        }
+        return removed[0];
+    }
+
+    /**
+     * 关闭所有备用连接
+     */
+    public void clear() {
+        List<Standby> all = new ArrayList<>();
+        for (String userguid : pools.keySet()) {
+            Standby standby;
+            while ((standby = this.pollFirst(userguid)) != null) {
+                all.add(standby);
+            }
+        }
+        for (Standby standby : all) {
+            standby.timeout.cancel();
+            standby.close();
+        }
+    }
+
+    @Override
+    public void bindTo(MeterRegistry registry) {
+        Gauge.builder("relay.pool.connections", total, AtomicInteger::get)
+                .description("目标端的备用连接数").register(registry);
+        FunctionCounter.builder("relay.pool.claims", hits, LongAdder::sum).tag("result", "hit").register(registry);
+        FunctionCounter.builder("relay.pool.claims", misses, LongAdder::sum).tag("result", "miss").register(registry);
+        Gauge.builder("relay.pool.hit-ratio", this, TargetPool::getHitRatio).register(registry);
+        FunctionCounter.builder("relay.pool.rejected", rejected, LongAdder::sum).register(registry);
+        FunctionCounter.builder("relay.pool.unauthorized", unauthorized, LongAdder::sum).register(registry);
+        FunctionCounter.builder("relay.pool.evicted", idleEvicted, LongAdder::sum).tag("reason", "idle").register(registry);
+        FunctionCounter.builder("relay.pool.evicted", deadEvicted, LongAdder::sum).tag("reason", "closed").register(registry);
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    public int getSize() {
+        return total.get();
+    }
+
+    public int getSize(String userguid) {
+        int[] size = new int[1];
+        pools.computeIfPresent(userguid, (key, q) -> {
+            size[0] = q.size();
+            return q;
+        });
+        return size[0];
+    }
+
+    public long getHits() {
+        return hits.sum();
+    }
+
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    public long getRejected() {
+        return rejected.sum();
+    }
+
+    public long getUnauthorized() {
+        return unauthorized.sum();
+    }
+
+    public long getIdleEvicted() {
+        return idleEvicted.sum();
+    }
+
+    public long getDeadEvicted() {
+        return deadEvicted.sum();
+    }
+
+    public double getHitRatio() {
+        long hit = hits.sum();
+        long all = hit + misses.sum();
+        return all == 0 ? 0 : (double) hit / all;
+    }
+
+    /**
+     * 一个备用连接
+     */
+    public static class Standby {
+
+        private final String userguid;
+
+        private final SocketChannel channel;
+
+        //目标端握手的协议体，取出后改为响应使用的管道id
+        private final TcpProtocolBody body;
+
+        private volatile Timeout timeout;
+
+        Standby(String userguid, SocketChannel channel, TcpProtocolBody body) {
+            this.userguid = userguid;
+            this.channel = channel;
+            this.body = body;
+        }
+
+        /**
+         * 非阻塞读取一次，空闲连接应返回0
+         */
+        private boolean isAlive() {
+            try {
+                return channel.isOpen() && channel.read(ByteBuffer.allocate(1)) == 0;
+            } catch (IOException e) {
+                return false;
+            }
+        }
+
+        /**
+         * 把noVNC端的管道id写入响应使用的协议体
+         * @return 二进制协议的目标端遇到非uuid形式的管道id时返回false
+         */
+        private boolean assign(TcpProtocolBody request) {
+            if (ConstantsDto.TCP_PROTOCOL_VERSION_BINARY.equals(body.getVersion())) {
+                if (request.isBinaryPipe()) {
+                    body.setPipeMost(request.getPipeMost());
+                    body.setPipeLeast(request.getPipeLeast());
+                } else {
+                    try {
+                        UUID pipe = UUID.fromString(request.getPipe());
+                        body.setPipeMost(pipe.getMostSignificantBits());
+                        body.setPipeLeast(pipe.getLeastSignificantBits());
+                    } catch (IllegalArgumentException e) {
+                        return false;
+                    }
+                }
+                body.setBinaryPipe(true);
+            }
+            body.setPipe(request.getPipe());
+            return true;
+        }
+
+        void close() {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+
+        public SocketChannel getChannel() {
+            return channel;
+        }
+
+        public TcpProtocolBody getBody() {
+            return body;
+        }
+    }
+}
@@ -1,8 +1,14 @@
 package com.goldencis.tcpserver.server;
 
-import com.goldencis.tcpserver.runner.TcpTransferRunner;
+import com.goldencis.tcpserver.constants.ConstantsDto;
+import com.goldencis.tcpserver.entity.TcpProtocolBody;
+import com.goldencis.tcpserver.mux.MuxServer;
+import com.goldencis.tcpserver.runner.SocketOptions;
+import com.goldencis.tcpserver.timer.HashedTimingWheel;
+import com.goldencis.tcpserver.utils.TcpFrameDecoder;
 import com.goldencis.tcpserver.utils.TcpProtocolUtil;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.scheduling.concurrent.ThreadPoolTaskExecutor;
 import org.springframework.stereotype.Component;
@@ -10,46 +16,67 @@ import org.springframework.stereotype.Component;
 import java.io.IOException;
 import java.net.InetSocketAddress;
 import java.nio.channels.*;
-import java.util.HashMap;
 import java.util.Iterator;
-import java.util.Map;
 
 /**
  * 用于监听VNC目标端连接请求的服务，开辟单独的端口.
  * 连接成功后，需要先按照格式解析自定义的TCP协议。
  * 解析协议头正常后，解析协议体。
  * 根据协议体中的动作标示，可以执行进行握手操作，关联noVNC端和目标端，传递数据。
+ * 以多路复用方式握手的连接交给MuxServer，一个连接承载多个管道。
+ * 备用连接登记到TargetPool，等待noVNC端连接时直接配对。
  * Created by limingchao on 2018/10/18.
  */
 @Component
 public class VNCTargetServer {
 
-    private ServerSocketChannel ssChannel;
-
-    @Autowired
-    private Map<String, TcpTransferRunner> runnerMap;
+    //每次可接受事件最多取出的连接数，取不完的留到下一轮，不让握手中的连接等待过久
+    private static final int ACCEPT_BATCH = 64;
 
-    private Map<SocketChannel, String> uuidMap = new HashMap<>();
+    private ServerSocketChannel ssChannel;
 
-    public VNCTargetServer(Map<String, TcpTransferRunner> runnerMap) {
-        this.runnerMap = runnerMap;
-    }
+    private Selector selector;
 
     @Value(value = "${server.VNCtarget.port}")
     private Integer vNCtargetPort;
 
+    @Value(value = "${relay.handshake.max-frame-size:4096}")
+    private Integer maxFrameSize;
+
+    //接收完整握手帧的超时秒数
+    @Value(value = "${relay.timeout.handshake-seconds:10}")
+    private Long handshakeSeconds;
+
+    @Autowired
+    private HashedTimingWheel timingWheel;
+
     @Autowired
     private ThreadPoolTaskExecutor taskExecutor;
 
+    @Autowired
+    private MuxServer muxServer;
+
+    @Autowired
+    private TargetPool targetPool;
+
+    @Autowired
+    @Qualifier("targetSocketOptions")
+    private SocketOptions socketOptions;
+
+    @Autowired
+    @Qualifier("targetAdmission")
+    private AdmissionControl admission;
+
     public void clear() {
+        targetPool.clear();
         try {
-            for (TcpTransferRunner tcpTransferRunner : runnerMap.values()) {
-                tcpTransferRunner.close();
-            }
-            for (SocketChannel channel : uuidMap.keySet()) {
-                if (channel != null) {
-                    channel.close();
+            if (selector != null) {
+                //关闭握手中的通道，已配对的通道由转发事件循环管理
+                for (SelectionKey key : selector.keys()) {
+                    key.channel().close();
                 }
+                selector.close();
+                selector = null;
             }
             if (ssChannel != null) {
                 ssChannel.close();
@@ -58,23 +85,21 @@ public class VNCTargetServer {
         } catch (IOException e) {
             e.printStackTrace();
         }
-
-        runnerMap.clear();
-        uuidMap.clear();
     }
 
     public void server() throws IOException, InterruptedException {
         //1. 获取通道
-        ServerSocketChannel ssChannel = ServerSocketChannel.open();
+        ssChannel = ServerSocketChannel.open();
 
         //2. 切换非阻塞模式
         ssChannel.configureBlocking(false);
 
-        //3. 绑定连接
+        //3. 绑定连接，接收缓冲区需要在绑定前设置
+        socketOptions.applyTo(ssChannel);
         ssChannel.bind(new InetSocketAddress(vNCtargetPort));
 
         //4. 获取选择器
-        Selector selector = Selector.open();
+        selector = Selector.open();
 
         //5. 将通道注册到选择器上, 并且指定“监听接收事件”
         ssChannel.register(selector, SelectionKey.OP_ACCEPT);
@@ -93,24 +118,52 @@ public class VNCTargetServer {
                 try {
                     //9. 判断具体是什么事件准备就绪
                     if (sk.isAcceptable()) {
-                        //10. 若“接收就绪”，获取客户端连接
-                        SocketChannel sChannel = ssChannel.accept();
-
-                        //11. 切换非阻塞模式
-                        sChannel.configureBlocking(false);
-
-                        //12. 将该通道注册到选择器上
-                        sChannel.register(selector, SelectionKey.OP_READ);
-
+                        //10. 若“接收就绪”，一次取出积压的客户端连接，除监听通道外的选择键均为握手中的连接
+                        int halfOpen = selector.keys().size() - 1;
+                        SocketChannel sChannel;
+                        for (int i = 0; i < ACCEPT_BATCH && (sChannel = ssChannel.accept()) != null; i++) {
+                            try {
+                                //超出准入限制的连接直接复位，不进入握手
+                                if (!admission.admit(sChannel, halfOpen)) {
+                                    continue;
+                                }
 
+                                //11. 切换非阻塞模式
+                                sChannel.configureBlocking(false);
+                                socketOptions.applyTo(sChannel);
+
+                                //12. 将该通道注册到选择器上，附带该通道的协议解码器
+                                TcpFrameDecoder decoder = new TcpFrameDecoder(maxFrameSize);
+                                sChannel.register(selector, SelectionKey.OP_READ, decoder);
+                                //限定时间内未收到完整握手帧则关闭
+                                decoder.startTimeout(timingWheel, sChannel, handshakeSeconds);
+                                halfOpen++;
+                            } catch (IOException e) {
+                                //连接在接受后已失效
+                                sChannel.close();
+                            }
+                        }
                     } else if (sk.isReadable()) {
                         if (sk.channel() instanceof SocketChannel) {
                             SocketChannel destinationChannel = null;
                             try {
                                 destinationChannel = (SocketChannel) sk.channel();
-                                if (!uuidMap.containsKey(destinationChannel)) {
-                                    //解析目标通道发送的tcp协议数据
-                                    TcpProtocolUtil.parseTcpProtocol(destinationChannel);
+                                //解析目标通道发送的tcp协议数据，未接收完整时等待下一次可读事件
+                                TcpProtocolBody body = TcpProtocolUtil.parseTcpProtocol(destinationChannel, (TcpFrameDecoder) sk.attachment());
+                                if (body != null) {
+                                    if (ConstantsDto.CONNECT_MUX.equals(body.getAction())) {
+                                        //多路复用连接，之后按流配对
+                                        muxServer.accept(destinationChannel, body);
+                                    } else if (ConstantsDto.CONNECT_VNC_STANDBY.equals(body.getAction())) {
+                                        //备用连接，校验令牌后保持空闲直到被noVNC端取出
+                                        if (!targetPool.offer(destinationChannel, body)) {
+                                            throw new IOException("备用连接未启用、令牌不符或已满: " + body.getUserguid());
+                                        }
+                                    } else if (!ConstantsDto.CONNECT_VNC_CLIENT.equals(body.getAction())) {
+                                        throw new IOException("不支持的动作: " + body.getAction());
+                                    }
+                                    //握手完成，通道已交给转发事件循环，从监听列表中移除
+                                    sk.cancel();
                                 }
                             } catch (Exception e) {
                                 //log
@@ -150,23 +203,14 @@ public class VNCTargetServer {
 
     /**
      * 关闭资源的方法
-     * 需要关闭当前通道，如果存在guid，需要关闭对应的noVNC端的通道
+     * 握手失败时只需关闭当前通道，已认领的会话在握手过程中自行关闭
      * @param destinationChannel
      * @throws IOException
      */
     private void close(SocketChannel destinationChannel) throws IOException {
         if (destinationChannel != null) {
-            if (uuidMap.containsKey(destinationChannel)) {
-                String uuid = uuidMap.get(destinationChannel);
-                //关闭关联的noVNC端通道
-                runnerMap.get(uuid).close();
-            }
             //关闭目标通道
             destinationChannel.close();
         }
     }
-
-    public Map<SocketChannel, String> getUuidMap() {
-        return uuidMap;
-    }
 }
@@ -0,0 +1,16 @@
+package com.goldencis.tcpserver.shaping;
+
+/**
+ * 用户的优先级，决定带宽整形时套用的限速
+ */
+public enum PriorityClass {
+
+    //不限速，如运维值守
+    HIGH,
+
+    //按配置的限速
+    NORMAL,
+
+    //按配置的限速再乘以低优先级比例，如后台批量会话
+    LOW
+}
@@ -0,0 +1,99 @@
+package com.goldencis.tcpserver.shaping;
+
+import com.goldencis.tcpserver.entity.ShapingLimit;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * 一个转发会话的带宽整形，下行数据同时扣会话和所属用户的令牌桶。
+ * consume和resume在会话所属事件循环的线程中调用，close可在任意线程调用。
+ */
+public final class SessionShaper {
+
+    private final TrafficShaper shaper;
+
+    private final String pipe;
+
+    //所属用户，没有userguid时为空，只按会话限速
+    private final TrafficShaper.User user;
+
+    private final TokenBucket bucket;
+
+    //管理接口单独设置的会话限速，为空时使用默认值
+    private volatile ShapingLimit override;
+
+    //是否已暂停读取，等待欠额偿还
+    private final AtomicBoolean parked = new AtomicBoolean();
+
+    SessionShaper(TrafficShaper shaper, String pipe, TrafficShaper.User user) {
+        this.shaper = shaper;
+        this.pipe = pipe;
+        this.user = user;
+        this.bucket = new TokenBucket(0, 0);
+    }
+
+    /**
+     * 扣除读到的字节数
+     * @param bytes 本轮从目标端读到的字节数
+     * @param now 当前时间，纳秒
+     * @return 需要暂停读取的纳秒数，0表示无需暂停
+     */
+    public long consume(long bytes, long now) {
+        if (this.getPriority() == PriorityClass.HIGH) {
+            return 0;
+        }
+        long delay = bucket.consume(bytes, now);
+        if (user != null) {
+            delay = Math.max(delay, user.getBucket().consume(bytes, now));
+        }
+        if (delay > 0 && parked.compareAndSet(false, true)) {
+            shaper.parked(delay);
+        }
+        return delay;
+    }
+
+    /**
+     * 暂停结束，恢复读取
+     */
+    public void resume() {
+        if (parked.compareAndSet(true, false)) {
+            shaper.resumed();
+        }
+    }
+
+    /**
+     * 会话结束
+     */
+    public void close() {
+        this.resume();
+        shaper.close(this);
+    }
+
+    public PriorityClass getPriority() {
+        return user != null ? user.getPriority() : PriorityClass.NORMAL;
+    }
+
+    public boolean isParked() {
+        return parked.get();
+    }
+
+    public String getPipe() {
+        return pipe;
+    }
+
+    TrafficShaper.User getUser() {
+        return user;
+    }
+
+    TokenBucket getBucket() {
+        return bucket;
+    }
+
+    ShapingLimit getOverride() {
+        return override;
+    }
+
+    void setOverride(ShapingLimit override) {
+        this.override = override;
+    }
+}
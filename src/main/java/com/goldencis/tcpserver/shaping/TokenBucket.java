@@ -0,0 +1,93 @@
+package com.goldencis.tcpserver.shaping;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 令牌桶，按GCRA算法只记录一个理论到达时间，无锁，可被多个事件循环线程共用。
+ * 令牌每秒补充rate个，最多积累burst个。速率和突发可在运行时调整，已有的欠额按新速率偿还。
+ */
+public class TokenBucket {
+
+    private static final double NANOS_PER_SECOND = 1e9;
+
+    //每秒补充的令牌数，0表示不限速
+    private volatile long rate;
+
+    //最多积累的令牌数
+    private volatile long burst;
+
+    //令牌按速率补充到刚好够用的时间，早于当前时间表示桶中有积累，初始时桶是满的
+    private final AtomicLong theoretical = new AtomicLong(System.nanoTime() - TimeUnit.HOURS.toNanos(1));
+
+    public TokenBucket(long rate, long burst) {
+        this.rate = rate;
+        this.burst = burst;
+    }
+
+    /**
+     * 取走令牌，不够时记为欠额，用于已经读到的数据
+     * @param tokens 令牌数
+     * @param now 当前时间，纳秒
+     * @return 需要暂停的纳秒数，欠额偿还后才能继续，0表示无需暂停
+     */
+    public long consume(long tokens, long now) {
+        long r = rate;
+        if (r <= 0) {
+            return 0;
+        }
+        long cost = nanos(tokens, r);
+        long prev;
+        long next;
+        do {
+            prev = theoretical.get();
+            next = Math.max(prev, now) + cost;
+        } while (!theoretical.compareAndSet(prev, next));
+        return Math.max(0, next - now - nanos(burst, r));
+    }
+
+    /**
+     * 令牌足够时取走
+     * @param tokens 令牌数
+     * @param now 当前时间，纳秒
+     * @return 令牌不够时返回false，不记欠额
+     */
+    public boolean tryAcquire(long tokens, long now) {
+        long r = rate;
+        if (r <= 0) {
+            return true;
+        }
+        long cost = nanos(tokens, r);
+        long tolerance = nanos(burst, r);
+        long prev;
+        long next;
+        do {
+            prev = theoretical.get();
+            next = Math.max(prev, now) + cost;
+            if (next - now > tolerance) {
+                return false;
+            }
+        } while (!theoretical.compareAndSet(prev, next));
+        return true;
+    }
+
+    private static long nanos(long tokens, long rate) {
+        return (long) (tokens * NANOS_PER_SECOND / rate);
+    }
+
+    /**
+     * 调整速率和突发
+     */
+    public void set(long rate, long burst) {
+        this.rate = rate;
+        this.burst = burst;
+    }
+
+    public long getRate() {
+        return rate;
+    }
+
+    public long getBurst() {
+        return burst;
+    }
+}
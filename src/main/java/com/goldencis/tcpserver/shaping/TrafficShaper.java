@@ -0,0 +1,340 @@
+package com.goldencis.tcpserver.shaping;
+
+import com.goldencis.tcpserver.entity.ShapingLimit;
+import com.goldencis.tcpserver.entity.ShapingSnapshot;
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.MeterBinder;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 下行带宽整形，防止个别会话占满转发服务的出口带宽。
+ * 每个会话一个令牌桶，同一userguid的会话再共用一个令牌桶，读到的下行数据同时扣两个桶，
+ * 欠额时会话取消目标端的可读监听，由定时器在欠额偿还后恢复，不阻塞事件循环线程。
+ * 上行的输入事件数据量小且对延迟敏感，不整形。
+ * 用户按优先级套用限速：高优先级不限速，低优先级按比例降低。限速和优先级可通过管理接口在运行时调整，立即对已有会话生效。
+ */
+@Component
+public class TrafficShaper implements MeterBinder {
+
+    @Value("${relay.shaping.enabled:false}")
+    private boolean enabled;
+
+    //每个会话的默认限速，字节/秒，0表示不限速
+    @Value("${relay.shaping.session.rate:0}")
+    private volatile long sessionRate;
+
+    //突发字节数，0表示一秒的速率
+    @Value("${relay.shaping.session.burst:0}")
+    private volatile long sessionBurst;
+
+    //每个用户所有会话合计的默认限速
+    @Value("${relay.shaping.user.rate:0}")
+    private volatile long userRate;
+
+    @Value("${relay.shaping.user.burst:0}")
+    private volatile long userBurst;
+
+    //低优先级用户的限速比例
+    @Value("${relay.shaping.low-ratio:0.5}")
+    private double lowRatio = 0.5;
+
+    private final Map<String, SessionShaper> sessions = new ConcurrentHashMap<>();
+
+    //有会话的用户，最后一个会话结束时移除
+    private final Map<String, User> users = new ConcurrentHashMap<>();
+
+    //管理接口单独设置的用户限速和优先级，用户没有会话时也保留
+    private final Map<String, ShapingLimit> overrides = new ConcurrentHashMap<>();
+
+    //正在暂停读取的会话数
+    private final AtomicInteger parked = new AtomicInteger();
+
+    //会话因欠额暂停读取的次数和暂停的总时长
+    private final LongAdder throttled = new LongAdder();
+
+    private final LongAdder throttledNanos = new LongAdder();
+
+    public TrafficShaper() {
+    }
+
+    public TrafficShaper(long sessionRate, long sessionBurst, long userRate, long userBurst) {
+        this.enabled = true;
+        this.sessionRate = sessionRate;
+        this.sessionBurst = sessionBurst;
+        this.userRate = userRate;
+        this.userBurst = userBurst;
+    }
+
+    /**
+     * 开始整形一个会话，在会话开始转发时调用
+     * @return 会话的整形，未启用时返回null
+     */
+    public SessionShaper open(String pipe, String userguid) {
+        if (!enabled) {
+            return null;
+        }
+        User user = null;
+        if (userguid != null && !userguid.isEmpty()) {
+            user = users.compute(userguid, (key, u) -> {
+                if (u == null) {
+                    u = new User(key);
+                    this.apply(u);
+                }
+                u.sessions++;
+                return u;
+            });
+        }
+        SessionShaper session = new SessionShaper(this, pipe, user);
+        this.apply(session);
+        sessions.put(pipe, session);
+        return session;
+    }
+
+    void close(SessionShaper session) {
+        if (!sessions.remove(session.getPipe(), session)) {
+            return;
+        }
+        User user = session.getUser();
+        if (user != null) {
+            users.computeIfPresent(user.userguid, (key, u) -> --u.sessions == 0 ? null : u);
+        }
+    }
+
+    /**
+     * 按用户的单独设置或默认值设置用户的令牌桶
+     */
+    private void apply(User user) {
+        ShapingLimit override = overrides.get(user.userguid);
+        PriorityClass priority = override != null && override.getPriority() != null
+                ? PriorityClass.valueOf(override.getPriority()) : PriorityClass.NORMAL;
+        long rate = override != null && override.getRate() != null ? override.getRate() : userRate;
+        long burst = override != null && override.getBurst() != null ? override.getBurst() : userBurst;
+        user.priority = priority;
+        this.set(user.bucket, rate, burst, priority);
+    }
+
+    /**
+     * 按会话的单独设置或默认值设置会话的令牌桶
+     */
+    private void apply(SessionShaper session) {
+        ShapingLimit override = session.getOverride();
+        long rate = override != null && override.getRate() != null ? override.getRate() : sessionRate;
+        long burst = override != null && override.getBurst() != null ? override.getBurst() : sessionBurst;
+        this.set(session.getBucket(), rate, burst, session.getPriority());
+    }
+
+    private void set(TokenBucket bucket, long rate, long burst, PriorityClass priority) {
+        if (burst <= 0) {
+            burst = rate;
+        }
+        if (priority == PriorityClass.LOW && rate > 0) {
+            rate = Math.max(1, (long) (rate * lowRatio));
+            burst = Math.max(1, (long) (burst * lowRatio));
+        }
+        bucket.set(rate, burst);
+    }
+
+    /**
+     * 修改默认的会话限速，对没有单独设置的会话立即生效
+     */
+    public void setSessionDefault(ShapingLimit limit) {
+        check(limit);
+        if (limit.getRate() != null) {
+            sessionRate = limit.getRate();
+        }
+        if (limit.getBurst() != null) {
+            sessionBurst = limit.getBurst();
+        }
+        sessions.values().forEach(this::apply);
+    }
+
+    /**
+     * 修改默认的用户限速，对没有单独设置的用户立即生效
+     */
+    public void setUserDefault(ShapingLimit limit) {
+        check(limit);
+        if (limit.getRate() != null) {
+            userRate = limit.getRate();
+        }
+        if (limit.getBurst() != null) {
+            userBurst = limit.getBurst();
+        }
+        users.values().forEach(this::apply);
+    }
+
+    /**
+     * 单独设置一个会话的限速
+     * @return 会话不存在时返回false
+     */
+    public boolean setSessionLimit(String pipe, ShapingLimit limit) {
+        check(limit);
+        SessionShaper session = sessions.get(pipe);
+        if (session == null) {
+            return false;
+        }
+        session.setOverride(merge(session.getOverride(), limit));
+        this.apply(session);
+        return true;
+    }
+
+    /**
+     * 单独设置一个用户的限速和优先级，用户没有会话时保留到其下次连接
+     */
+    public void setUserLimit(String userguid, ShapingLimit limit) {
+        check(limit);
+        if (limit.getPriority() != null) {
+            limit.setPriority(PriorityClass.valueOf(limit.getPriority().toUpperCase()).name());
+        }
+        overrides.merge(userguid, limit, TrafficShaper::merge);
+        this.reapply(userguid);
+    }
+
+    /**
+     * 取消用户的单独设置，恢复默认限速
+     * @return 没有单独设置时返回false
+     */
+    public boolean removeUserLimit(String userguid) {
+        if (overrides.remove(userguid) == null) {
+            return false;
+        }
+        this.reapply(userguid);
+        return true;
+    }
+
+    /**
+     * 重新设置用户及其会话的令牌桶，会话限速随优先级变化
+     */
+    private void reapply(String userguid) {
+        User user = users.get(userguid);
+        if (user == null) {
+            return;
+        }
+        this.apply(user);
+        for (SessionShaper session : sessions.values()) {
+            if (session.getUser() == user) {
+                this.apply(session);
+            }
+        }
+    }
+
+    private static void check(ShapingLimit limit) {
+        if ((limit.getRate() != null && limit.getRate() < 0) || (limit.getBurst() != null && limit.getBurst() < 0)) {
+            throw new IllegalArgumentException("限速不能为负数");
+        }
+    }
+
+    private static ShapingLimit merge(ShapingLimit current, ShapingLimit update) {
+        if (current == null) {
+            return new ShapingLimit(update.getRate(), update.getBurst(), update.getPriority());
+        }
+        return new ShapingLimit(update.getRate() != null ? update.getRate() : current.getRate(),
+                update.getBurst() != null ? update.getBurst() : current.getBurst(),
+                update.getPriority() != null ? update.getPriority() : current.getPriority());
+    }
+
+    public ShapingLimit getSessionDefault() {
+        return new ShapingLimit(sessionRate, sessionBurst, null);
+    }
+
+    public ShapingLimit getUserDefault() {
+        return new ShapingLimit(userRate, userBurst, null);
+    }
+
+    /**
+     * 有会话或有单独设置的用户
+     */
+    public List<ShapingSnapshot> snapshots() {
+        Set<String> userguids = new HashSet<>(users.keySet());
+        userguids.addAll(overrides.keySet());
+        List<ShapingSnapshot> snapshots = new ArrayList<>();
+        for (String userguid : userguids) {
+            User user = users.get(userguid);
+            if (user == null) {
+                //没有会话的用户按设置计算
+                user = new User(userguid);
+                this.apply(user);
+            }
+            ShapingSnapshot snapshot = new ShapingSnapshot();
+            snapshot.setUserguid(userguid);
+            snapshot.setPriority(user.priority.name());
+            snapshot.setRate(user.bucket.getRate());
+            snapshot.setBurst(user.bucket.getBurst());
+            snapshot.setOverride(overrides.containsKey(userguid));
+            snapshot.setSessions(user.sessions);
+            snapshots.add(snapshot);
+        }
+        return snapshots;
+    }
+
+    void parked(long delayNanos) {
+        parked.incrementAndGet();
+        throttled.increment();
+        throttledNanos.add(delayNanos);
+    }
+
+    void resumed() {
+        parked.decrementAndGet();
+    }
+
+    @Override
+    public void bindTo(MeterRegistry registry) {
+        Gauge.builder("relay.shaping.sessions", sessions, Map::size)
+                .description("带宽整形的会话数").register(registry);
+        Gauge.builder("relay.shaping.parked", parked, AtomicInteger::get)
+                .description("因限速暂停读取的会话数").register(registry);
+        FunctionCounter.builder("relay.shaping.throttled", throttled, LongAdder::sum).register(registry);
+        FunctionCounter.builder("relay.shaping.throttled.seconds", throttledNanos,
+                nanos -> nanos.sum() / (double) TimeUnit.SECONDS.toNanos(1)).register(registry);
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    public int getParked() {
+        return parked.get();
+    }
+
+    public long getThrottled() {
+        return throttled.sum();
+    }
+
+    /**
+     * 一个用户所有会话共用的令牌桶，sessions只在users.compute中修改
+     */
+    static final class User {
+
+        private final String userguid;
+
+        private final TokenBucket bucket = new TokenBucket(0, 0);
+
+        private volatile PriorityClass priority = PriorityClass.NORMAL;
+
+        private int sessions;
+
+        User(String userguid) {
+            this.userguid = userguid;
+        }
+
+        TokenBucket getBucket() {
+            return bucket;
+        }
+
+        PriorityClass getPriority() {
+            return priority;
+        }
+    }
+}
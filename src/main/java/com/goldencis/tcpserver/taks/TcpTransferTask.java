@@ -1,9 +1,13 @@
 package com.goldencis.tcpserver.taks;
 
+import com.goldencis.tcpserver.cluster.ClusterRouter;
+import com.goldencis.tcpserver.runner.PipeRegistry;
 import com.goldencis.tcpserver.server.NoVNCServer;
+import com.goldencis.tcpserver.server.ReplayServer;
 import com.goldencis.tcpserver.server.VNCTargetServer;
 import com.goldencis.tcpserver.utils.TcpProtocolUtil;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.scheduling.concurrent.ThreadPoolTaskExecutor;
 import org.springframework.stereotype.Component;
 
@@ -25,13 +29,47 @@ public class TcpTransferTask {
     @Autowired
     private NoVNCServer noVNCServer;
 
+    @Autowired
+    private ReplayServer replayServer;
+
+    @Autowired
+    private PipeRegistry pipeRegistry;
+
+    @Autowired
+    private ClusterRouter clusterRouter;
+
+    //转发引擎，nio或netty
+    @Value("${relay.engine:nio}")
+    private String engine;
+
     @PostConstruct
     public void init() {
+        TcpProtocolUtil.setPipeRegistry(pipeRegistry);
+        TcpProtocolUtil.setClusterRouter(clusterRouter);
+
+        //回放服务与转发引擎无关
+        if (replayServer.isEnabled()) {
+            taskExecutor.execute(() -> {
+                while (true) {
+                    try {
+                        replayServer.server();
+                    } catch (IOException e) {
+                        e.printStackTrace();
+                    } finally {
+                        replayServer.clear();
+                    }
+                }
+            });
+        }
+
+        //netty引擎由NettyRelayServer监听端口
+        if (!"nio".equals(engine)) {
+            return;
+        }
+
         taskExecutor.execute(() -> {
             while (true) {
                 try {
-                    TcpProtocolUtil.setRunnerMap(noVNCServer.getRunnerMap());
-                    TcpProtocolUtil.setNoVNCUuidMap(noVNCServer.getUuidMap());
                     noVNCServer.server();
                 } catch (IOException e) {
                     e.printStackTrace();
@@ -46,7 +84,6 @@ public class TcpTransferTask {
         taskExecutor.execute(() -> {
             while (true) {
                 try {
-                    TcpProtocolUtil.setVncTargetUuidMap(vncTargetServer.getUuidMap());
                     vncTargetServer.server();
                 } catch (IOException e) {
                     e.printStackTrace();
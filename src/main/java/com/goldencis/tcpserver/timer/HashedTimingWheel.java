@@ -0,0 +1,208 @@
+package com.goldencis.tcpserver.timer;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 哈希时间轮，用于握手、配对和空闲超时。
+ * 新增和取消都是O(1)：任意线程先放入无锁队列，由时间轮线程在每个tick转入槽位或从槽位摘除。
+ * 精度为一个tick，到期任务在时间轮线程中执行，只应做关闭通道、提交任务等轻量操作。
+ */
+public class HashedTimingWheel implements Runnable {
+
+    private final long tickNanos;
+
+    private final Bucket[] wheel;
+
+    private final int mask;
+
+    //待转入槽位的新任务
+    private final Queue<Timeout> pendingTimeouts = new ConcurrentLinkedQueue<>();
+
+    //待从槽位摘除的已取消任务
+    private final Queue<Timeout> cancelledTimeouts = new ConcurrentLinkedQueue<>();
+
+    //未到期且未取消的任务数
+    private final AtomicLong pending = new AtomicLong();
+
+    private final long startTime;
+
+    private long tick;
+
+    private volatile boolean on = true;
+
+    private final Thread worker;
+
+    public HashedTimingWheel(String name, long tickDuration, TimeUnit unit, int wheelSize) {
+        int size = 1;
+        while (size < wheelSize) {
+            size <<= 1;
+        }
+        this.wheel = new Bucket[size];
+        for (int i = 0; i < size; i++) {
+            wheel[i] = new Bucket();
+        }
+        this.mask = size - 1;
+        this.tickNanos = unit.toNanos(tickDuration);
+        this.startTime = System.nanoTime();
+
+        worker = new Thread(this, name);
+        worker.setDaemon(true);
+        worker.start();
+    }
+
+    /**
+     * 新增定时任务，可在任意线程调用
+     * @param task 到期执行的任务
+     * @param delay 延迟
+     * @param unit 时间单位
+     * @return 定时任务，可用于取消
+     */
+    public Timeout newTimeout(Runnable task, long delay, TimeUnit unit) {
+        long deadline = System.nanoTime() + unit.toNanos(delay) - startTime;
+        Timeout timeout = new Timeout(this, task, deadline);
+        pending.incrementAndGet();
+        pendingTimeouts.add(timeout);
+        return timeout;
+    }
+
+    void cancelled(Timeout timeout) {
+        pending.decrementAndGet();
+        cancelledTimeouts.add(timeout);
+    }
+
+    @Override
+    public void run() {
+        while (on) {
+            if (!this.waitForNextTick()) {
+                continue;
+            }
+            this.processCancelled();
+            this.transferTimeouts();
+            this.expireTimeouts(wheel[(int) (tick & mask)]);
+            tick++;
+        }
+    }
+
+    /**
+     * 等待下一个tick
+     * @return 被停止时返回false
+     */
+    private boolean waitForNextTick() {
+        long deadline = tickNanos * (tick + 1);
+        while (true) {
+            long current = System.nanoTime() - startTime;
+            long sleepMillis = (deadline - current + 999999) / 1000000;
+            if (sleepMillis <= 0) {
+                return true;
+            }
+            try {
+                Thread.sleep(sleepMillis);
+            } catch (InterruptedException e) {
+                if (!on) {
+                    return false;
+                }
+            }
+        }
+    }
+
+    private void processCancelled() {
+        Timeout timeout;
+        while ((timeout = cancelledTimeouts.poll()) != null) {
+            timeout.remove();
+        }
+    }
+
+    private void transferTimeouts() {
+        //每个tick最多转入十万个，避免长时间占用时间轮线程
+        for (int i = 0; i < 100000; i++) {
+            Timeout timeout = pendingTimeouts.poll();
+            if (timeout == null) {
+                break;
+            }
+            if (timeout.isCancelled()) {
+                continue;
+            }
+            long calculated = timeout.deadline / tickNanos;
+            timeout.remainingRounds = (calculated - tick) / wheel.length;
+            //已过期的任务放入当前槽位
+            long ticks = Math.max(calculated, tick);
+            wheel[(int) (ticks & mask)].add(timeout);
+        }
+    }
+
+    private void expireTimeouts(Bucket bucket) {
+        Timeout timeout = bucket.head;
+        while (timeout != null) {
+            Timeout next = timeout.next;
+            if (timeout.isCancelled()) {
+                bucket.remove(timeout);
+            } else if (timeout.remainingRounds <= 0) {
+                //槽位对应的时间已过，任务到期
+                bucket.remove(timeout);
+                //与cancel()竞争，只有置为到期成功时才计数，被取消时已由cancel()计数
+                if (timeout.expire()) {
+                    pending.decrementAndGet();
+                    timeout.run();
+                }
+            } else {
+                timeout.remainingRounds--;
+            }
+            timeout = next;
+        }
+    }
+
+    /**
+     * 未到期且未取消的任务数
+     */
+    public long pendingTimeouts() {
+        return pending.get();
+    }
+
+    public void stop() {
+        on = false;
+        worker.interrupt();
+    }
+
+    /**
+     * 槽位，定时任务的双向链表
+     */
+    static final class Bucket {
+
+        private Timeout head;
+
+        private Timeout tail;
+
+        void add(Timeout timeout) {
+            timeout.bucket = this;
+            if (head == null) {
+                head = tail = timeout;
+            } else {
+                tail.next = timeout;
+                timeout.prev = tail;
+                tail = timeout;
+            }
+        }
+
+        void remove(Timeout timeout) {
+            Timeout next = timeout.next;
+            if (timeout.prev != null) {
+                timeout.prev.next = next;
+            }
+            if (timeout.next != null) {
+                timeout.next.prev = timeout.prev;
+            }
+            if (timeout == head) {
+                head = next;
+            }
+            if (timeout == tail) {
+                tail = timeout.prev;
+            }
+            timeout.prev = null;
+            timeout.next = null;
+            timeout.bucket = null;
+        }
+    }
+}
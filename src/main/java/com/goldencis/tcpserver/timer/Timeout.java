@@ -0,0 +1,86 @@
+package com.goldencis.tcpserver.timer;
+
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+
+/**
+ * 时间轮中的一个定时任务，同时是所在槽位双向链表的节点
+ */
+public class Timeout {
+
+    private static final int ST_INIT = 0;
+
+    private static final int ST_CANCELLED = 1;
+
+    private static final int ST_EXPIRED = 2;
+
+    private static final AtomicIntegerFieldUpdater<Timeout> STATE_UPDATER =
+            AtomicIntegerFieldUpdater.newUpdater(Timeout.class, "state");
+
+    private final HashedTimingWheel wheel;
+
+    private final Runnable task;
+
+    //相对于时间轮启动时间的到期时间，纳秒
+    final long deadline;
+
+    //还需转过的圈数
+    long remainingRounds;
+
+    //所在槽位及链表指针，只在时间轮线程中访问
+    HashedTimingWheel.Bucket bucket;
+
+    Timeout next;
+
+    Timeout prev;
+
+    private volatile int state = ST_INIT;
+
+    Timeout(HashedTimingWheel wheel, Runnable task, long deadline) {
+        this.wheel = wheel;
+        this.task = task;
+        this.deadline = deadline;
+    }
+
+    /**
+     * 取消定时任务，O(1)
+     * @return 取消成功返回true，已到期或已取消返回false
+     */
+    public boolean cancel() {
+        if (!STATE_UPDATER.compareAndSet(this, ST_INIT, ST_CANCELLED)) {
+            return false;
+        }
+        //由时间轮线程从槽位中摘除
+        wheel.cancelled(this);
+        return true;
+    }
+
+    public boolean isCancelled() {
+        return state == ST_CANCELLED;
+    }
+
+    public boolean isExpired() {
+        return state == ST_EXPIRED;
+    }
+
+    /**
+     * 置为到期，成功后由时间轮线程调用run()执行任务
+     * @return 成功置为到期返回true，已被并发取消时返回false
+     */
+    boolean expire() {
+        return STATE_UPDATER.compareAndSet(this, ST_INIT, ST_EXPIRED);
+    }
+
+    void run() {
+        try {
+            task.run();
+        } catch (Throwable e) {
+            e.printStackTrace();
+        }
+    }
+
+    void remove() {
+        if (bucket != null) {
+            bucket.remove(this);
+        }
+    }
+}
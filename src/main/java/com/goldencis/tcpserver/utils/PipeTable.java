@@ -0,0 +1,245 @@
+package com.goldencis.tcpserver.utils;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Consumer;
+
+/**
+ * 以管道id为key的分段锁哈希表。
+ * 管道id为uuid时(二进制协议的16字节id，或标准格式的uuid字符串)按两个long存放在开放寻址数组中，
+ * 不创建key对象；其他格式的字符串管道id退化为ConcurrentHashMap。
+ * 同一个uuid无论以字符串还是二进制形式出现，都映射到同一个位置。
+ */
+public class PipeTable<V> {
+
+    private final Stripe<V>[] stripes;
+
+    private final int stripeMask;
+
+    //非uuid格式的管道id
+    private final ConcurrentHashMap<String, V> named = new ConcurrentHashMap<>();
+
+    @SuppressWarnings("unchecked")
+    public PipeTable(int concurrency) {
+        int size = 1;
+        while (size < concurrency) {
+            size <<= 1;
+        }
+        stripes = new Stripe[size];
+        for (int i = 0; i < size; i++) {
+            stripes[i] = new Stripe<>();
+        }
+        stripeMask = size - 1;
+    }
+
+    public V putIfAbsent(long most, long least, V value) {
+        long hash = hash(most, least);
+        return stripeOf(hash).putIfAbsent(most, least, hash, value);
+    }
+
+    public V get(long most, long least) {
+        long hash = hash(most, least);
+        return stripeOf(hash).get(most, least, hash);
+    }
+
+    /**
+     * 仅当当前值为expected时删除
+     */
+    public boolean remove(long most, long least, V expected) {
+        long hash = hash(most, least);
+        return stripeOf(hash).remove(most, least, hash, expected);
+    }
+
+    public V putIfAbsent(String pipe, V value) {
+        if (isUuid(pipe)) {
+            return this.putIfAbsent(uuidBits(pipe, true), uuidBits(pipe, false), value);
+        }
+        return named.putIfAbsent(pipe, value);
+    }
+
+    public V get(String pipe) {
+        if (isUuid(pipe)) {
+            return this.get(uuidBits(pipe, true), uuidBits(pipe, false));
+        }
+        return named.get(pipe);
+    }
+
+    public boolean remove(String pipe, V expected) {
+        if (isUuid(pipe)) {
+            return this.remove(uuidBits(pipe, true), uuidBits(pipe, false), expected);
+        }
+        return named.remove(pipe, expected);
+    }
+
+    /**
+     * 遍历所有值，每个分段只在复制时短暂加锁
+     */
+    public void forEach(Consumer<V> action) {
+        List<V> values = new ArrayList<>();
+        for (Stripe<V> stripe : stripes) {
+            stripe.copyTo(values);
+        }
+        values.addAll(named.values());
+        values.forEach(action);
+    }
+
+    public int size() {
+        int size = named.size();
+        for (Stripe<V> stripe : stripes) {
+            size += stripe.size();
+        }
+        return size;
+    }
+
+    private Stripe<V> stripeOf(long hash) {
+        return stripes[(int) (hash >>> 48) & stripeMask];
+    }
+
+    private static long hash(long most, long least) {
+        long h = most * 0x9E3779B97F4A7C15L ^ least;
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        return h;
+    }
+
+    /**
+     * 是否为标准格式的uuid字符串：8-4-4-4-12个十六进制字符
+     */
+    public static boolean isUuid(String pipe) {
+        if (pipe == null || pipe.length() != 36) {
+            return false;
+        }
+        for (int i = 0; i < 36; i++) {
+            char c = pipe.charAt(i);
+            if (i == 8 || i == 13 || i == 18 || i == 23) {
+                if (c != '-') {
+                    return false;
+                }
+            } else if (Character.digit(c, 16) < 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * 从标准格式的uuid字符串中解析高64位或低64位
+     */
+    public static long uuidBits(String pipe, boolean most) {
+        int from = most ? 0 : 19;
+        int to = most ? 18 : 36;
+        long bits = 0;
+        for (int i = from; i < to; i++) {
+            char c = pipe.charAt(i);
+            if (c != '-') {
+                bits = bits << 4 | Character.digit(c, 16);
+            }
+        }
+        return bits;
+    }
+
+    /**
+     * 线性探测的开放寻址分段，删除时回移后续元素，不留墓碑
+     */
+    private static final class Stripe<V> {
+
+        private long[] mosts = new long[16];
+
+        private long[] leasts = new long[16];
+
+        private Object[] values = new Object[16];
+
+        private int size;
+
+        synchronized V putIfAbsent(long most, long least, long hash, V value) {
+            int index = this.indexOf(most, least, hash);
+            if (values[index] != null) {
+                return this.valueAt(index);
+            }
+            mosts[index] = most;
+            leasts[index] = least;
+            values[index] = value;
+            if (++size > values.length >> 1) {
+                this.resize();
+            }
+            return null;
+        }
+
+        synchronized V get(long most, long least, long hash) {
+            return this.valueAt(this.indexOf(most, least, hash));
+        }
+
+        synchronized boolean remove(long most, long least, long hash, V expected) {
+            int index = this.indexOf(most, least, hash);
+            if (values[index] == null || values[index] != expected) {
+                return false;
+            }
+            values[index] = null;
+            size--;
+
+            //回移同一探测链上的后续元素
+            int mask = values.length - 1;
+            int hole = index;
+            for (int i = (index + 1) & mask; values[i] != null; i = (i + 1) & mask) {
+                int home = (int) hash(mosts[i], leasts[i]) & mask;
+                //home不在(hole, i]区间内时，可移动到hole
+                if (hole <= i ? (home <= hole || home > i) : (home <= hole && home > i)) {
+                    mosts[hole] = mosts[i];
+                    leasts[hole] = leasts[i];
+                    values[hole] = values[i];
+                    values[i] = null;
+                    hole = i;
+                }
+            }
+            return true;
+        }
+
+        synchronized void copyTo(List<V> list) {
+            for (int i = 0; i < values.length; i++) {
+                if (values[i] != null) {
+                    list.add(this.valueAt(i));
+                }
+            }
+        }
+
+        synchronized int size() {
+            return size;
+        }
+
+        /**
+         * 查找key所在位置，不存在时返回应插入的空位
+         */
+        private int indexOf(long most, long least, long hash) {
+            int mask = values.length - 1;
+            int index = (int) hash & mask;
+            while (values[index] != null && (mosts[index] != most || leasts[index] != least)) {
+                index = (index + 1) & mask;
+            }
+            return index;
+        }
+
+        private void resize() {
+            long[] oldMosts = mosts;
+            long[] oldLeasts = leasts;
+            Object[] oldValues = values;
+            mosts = new long[oldValues.length << 1];
+            leasts = new long[oldValues.length << 1];
+            values = new Object[oldValues.length << 1];
+            for (int i = 0; i < oldValues.length; i++) {
+                if (oldValues[i] != null) {
+                    int index = this.indexOf(oldMosts[i], oldLeasts[i], hash(oldMosts[i], oldLeasts[i]));
+                    mosts[index] = oldMosts[i];
+                    leasts[index] = oldLeasts[i];
+                    values[index] = oldValues[i];
+                }
+            }
+        }
+
+        @SuppressWarnings("unchecked")
+        private V valueAt(int index) {
+            return (V) values[index];
+        }
+    }
+}
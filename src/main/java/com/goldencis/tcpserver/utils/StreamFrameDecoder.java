@@ -0,0 +1,90 @@
+package com.goldencis.tcpserver.utils;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+
+/**
+ * 多流帧的增量解码器，每个连接一个实例，格式见{@link StreamFrameEncoder}。
+ * 收到的数据保留在堆缓冲区中，每次读取后把其中完整的帧依次交给处理器，不完整的帧等待下一次读取。
+ * 负载以缓冲区视图的形式交给处理器，处理器返回后失效。
+ */
+public class StreamFrameDecoder {
+
+    /**
+     * 帧处理器
+     */
+    public interface Handler {
+
+        /**
+         * 处理一帧
+         * @param payload 读模式，剩余部分为负载
+         * @throws IOException 帧内容错误等，抛出后连接关闭
+         */
+        void frame(int id, byte type, ByteBuffer payload) throws IOException;
+    }
+
+    //收到的未解析数据，写模式
+    private final ByteBuffer inbound;
+
+    //连接开始时需要校验的标识，0表示不校验
+    private int magic;
+
+    public StreamFrameDecoder(int maxPayload, int magic) {
+        this.inbound = ByteBuffer.allocate(StreamFrameEncoder.HEADER_SIZE + maxPayload);
+        this.magic = magic;
+    }
+
+    /**
+     * 从通道读取一次，处理其中完整的帧
+     * @return 读取的字节数，没有可读数据时为0
+     * @throws EOFException 对端已关闭
+     * @throws TcpProtocolException 帧格式错误
+     */
+    public int read(ReadableByteChannel channel, Handler handler) throws IOException {
+        int read = channel.read(inbound);
+        if (read < 0) {
+            throw new EOFException();
+        }
+        if (read > 0) {
+            inbound.flip();
+            try {
+                this.dispatch(handler);
+            } finally {
+                inbound.compact();
+            }
+        }
+        return read;
+    }
+
+    private void dispatch(Handler handler) throws IOException {
+        if (magic != 0) {
+            if (inbound.remaining() < 4) {
+                return;
+            }
+            if (inbound.getInt() != magic) {
+                throw new TcpProtocolException("连接标识不匹配");
+            }
+            magic = 0;
+        }
+        while (inbound.remaining() >= StreamFrameEncoder.HEADER_SIZE) {
+            int start = inbound.position();
+            int length = inbound.getInt(start + 5);
+            if (length < 0 || length > inbound.capacity() - StreamFrameEncoder.HEADER_SIZE) {
+                throw new TcpProtocolException("帧长度错误: " + length);
+            }
+            int end = start + StreamFrameEncoder.HEADER_SIZE + length;
+            if (inbound.limit() < end) {
+                return;
+            }
+            int limit = inbound.limit();
+            inbound.position(start + StreamFrameEncoder.HEADER_SIZE).limit(end);
+            try {
+                handler.frame(inbound.getInt(start), inbound.get(start + 4), inbound);
+            } finally {
+                inbound.limit(limit).position(end);
+            }
+        }
+    }
+}
@@ -0,0 +1,50 @@
+package com.goldencis.tcpserver.utils;
+
+import com.goldencis.tcpserver.buffer.BufferPool;
+
+import java.nio.ByteBuffer;
+
+/**
+ * 一个连接上承载多个流的帧格式：流id(4字节)、类型(1字节)、负载长度(4字节)、负载。
+ * 节点之间的隧道和目标端的多路复用连接共用该格式。
+ * 读取数据时从缓冲块的HEADER_SIZE位置开始，帧头直接写在负载前面的预留空间中，不复制负载。
+ */
+public final class StreamFrameEncoder {
+
+    public static final int HEADER_SIZE = 9;
+
+    //打开流
+    public static final byte OPEN = 1;
+
+    public static final byte DATA = 2;
+
+    //关闭流
+    public static final byte CLOSE = 3;
+
+    //接收方已消费的字节数，负载为4字节的窗口增量
+    public static final byte WINDOW_UPDATE = 4;
+
+    private StreamFrameEncoder() {
+    }
+
+    /**
+     * 在负载前写入帧头
+     * @param frame 读模式的缓冲块，负载位于[HEADER_SIZE, limit)
+     */
+    public static void header(ByteBuffer frame, int id, byte type) {
+        frame.putInt(0, id);
+        frame.put(4, type);
+        frame.putInt(5, frame.limit() - HEADER_SIZE);
+    }
+
+    /**
+     * 借用缓冲块并预留帧头空间，负载长度须已受流控窗口或消息格式限制
+     * @param payload 负载长度
+     * @return 写模式的缓冲块，position为HEADER_SIZE
+     */
+    public static ByteBuffer acquire(BufferPool bufferPool, int payload) {
+        ByteBuffer frame = bufferPool.allocate(HEADER_SIZE + payload);
+        frame.position(HEADER_SIZE);
+        return frame;
+    }
+}
@@ -0,0 +1,209 @@
+package com.goldencis.tcpserver.utils;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.goldencis.tcpserver.constants.ConstantsDto;
+import com.goldencis.tcpserver.entity.TcpProtocolBody;
+import com.goldencis.tcpserver.timer.HashedTimingWheel;
+import com.goldencis.tcpserver.timer.Timeout;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channel;
+import java.nio.channels.ReadableByteChannel;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 自定义tcp协议的增量解码器，每个通道一个实例，作为监听选择键的attachment。
+ * 协议头(校验位(固定)、版本号、协议长度)和协议体可以分布在任意多次读取中，
+ * 未接收完整时保留已读数据，等待下一次可读事件继续解析。
+ * 每次只读取当前帧剩余的字节，不会多读属于后续转发的数据。
+ * 协议头和协议体读入同一个按协议长度上限分配的缓冲区，协议体直接从中解析，每帧不再分配缓冲区。
+ * 同时支持json协议体(0x1000)和二进制协议体(0x1001)，按每个连接的请求版本解析。
+ */
+public class TcpFrameDecoder {
+
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+
+    //格式错误的握手次数
+    private static final LongAdder MALFORMED = new LongAdder();
+
+    //数据不完整即断开的握手次数
+    private static final LongAdder TRUNCATED = new LongAdder();
+
+    //解析成功的握手次数
+    private static final LongAdder DECODED = new LongAdder();
+
+    //协议总长度上限，包含协议头
+    private final int maxFrameSize;
+
+    //当前帧的协议头和协议体，limit先为协议头大小，协议头解析完成后扩展到协议长度，各帧复用
+    private final ByteBuffer frame;
+
+    //当前帧的协议长度，0表示协议头尚未解析
+    private int length;
+
+    private int version;
+
+    //协议接收超时
+    private Timeout timeout;
+
+    public TcpFrameDecoder(int maxFrameSize) {
+        this.maxFrameSize = maxFrameSize;
+        this.frame = ByteBuffer.allocate(Math.max(maxFrameSize, ConstantsDto.TCP_PROTOCOL_HEAD_SIZE));
+        frame.limit(ConstantsDto.TCP_PROTOCOL_HEAD_SIZE);
+    }
+
+    /**
+     * 开始计时，超时仍未收到完整协议时关闭通道
+     * @param wheel 时间轮
+     * @param channel 通道
+     * @param seconds 超时秒数
+     */
+    public void startTimeout(HashedTimingWheel wheel, Channel channel, long seconds) {
+        timeout = wheel.newTimeout(() -> {
+            //已收到部分数据，记为不完整
+            if (this.isPartial()) {
+                TRUNCATED.increment();
+            }
+            try {
+                channel.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }, seconds, TimeUnit.SECONDS);
+    }
+
+    public void cancelTimeout() {
+        if (timeout != null) {
+            timeout.cancel();
+        }
+    }
+
+    /**
+     * 从通道读取并解析协议
+     * @param channel 通道
+     * @return 解析完成的协议体，数据尚未接收完整时返回null
+     * @throws TcpProtocolException 协议格式错误
+     * @throws EOFException 对端在协议接收完整前关闭
+     * @throws IOException IO异常
+     */
+    public TcpProtocolBody decode(ReadableByteChannel channel) throws IOException {
+        try {
+            TcpProtocolBody tcpBody = this.decodeFrame(channel);
+            if (tcpBody != null) {
+                DECODED.increment();
+                this.cancelTimeout();
+            }
+            return tcpBody;
+        } catch (TcpProtocolException e) {
+            MALFORMED.increment();
+            this.cancelTimeout();
+            throw e;
+        } catch (IOException e) {
+            this.cancelTimeout();
+            throw e;
+        }
+    }
+
+    private TcpProtocolBody decodeFrame(ReadableByteChannel channel) throws IOException {
+        if (length == 0) {
+            //解析协议头
+            if (!this.readFully(channel, frame)) {
+                return null;
+            }
+            frame.flip();
+
+            //获取校验位
+            int verify = frame.getInt();
+            if (!ConstantsDto.TCP_PROTOCOL_VERIFY.equals(verify)) {
+                throw new TcpProtocolException("校验位不匹配!");
+            }
+
+            //获取版本号
+            version = frame.getInt();
+            if (!ConstantsDto.TCP_PROTOCOL_VERSION.equals(version)
+                    && !ConstantsDto.TCP_PROTOCOL_VERSION_BINARY.equals(version)) {
+                throw new TcpProtocolException("版本不匹配!");
+            }
+
+            //获取协议长度
+            int length = frame.getInt();
+            if (length <= ConstantsDto.TCP_PROTOCOL_HEAD_SIZE || length > maxFrameSize) {
+                throw new TcpProtocolException("协议长度错误: " + length);
+            }
+            this.length = length;
+            frame.limit(length);
+        }
+
+        //解析协议体
+        if (!this.readFully(channel, frame)) {
+            return null;
+        }
+
+        TcpProtocolBody tcpBody;
+        try {
+            if (ConstantsDto.TCP_PROTOCOL_VERSION_BINARY.equals(version)) {
+                //二进制协议体直接从缓冲区解析
+                frame.position(ConstantsDto.TCP_PROTOCOL_HEAD_SIZE);
+                tcpBody = TcpProtocolBody.decode(frame);
+            } else {
+                tcpBody = MAPPER.readValue(frame.array(), ConstantsDto.TCP_PROTOCOL_HEAD_SIZE,
+                        length - ConstantsDto.TCP_PROTOCOL_HEAD_SIZE, TcpProtocolBody.class);
+            }
+        } catch (IOException | RuntimeException e) {
+            throw new TcpProtocolException("协议体格式错误", e);
+        }
+
+        //重置状态，可继续解析下一帧
+        frame.clear();
+        frame.limit(ConstantsDto.TCP_PROTOCOL_HEAD_SIZE);
+        length = 0;
+        return tcpBody;
+    }
+
+    /**
+     * 读取到缓冲区写满为止
+     * @return 缓冲区是否已写满，false表示需等待下一次可读事件
+     */
+    private boolean readFully(ReadableByteChannel channel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            int read = channel.read(buffer);
+            if (read < 0) {
+                //已收到部分数据即断开，记为不完整
+                if (frame.position() > 0) {
+                    TRUNCATED.increment();
+                }
+                throw new EOFException("协议数据不完整");
+            }
+            if (read == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * 当前帧是否已收到部分数据
+     */
+    public boolean isPartial() {
+        return frame.position() > 0;
+    }
+
+    public int getVersion() {
+        return version;
+    }
+
+    public static long getMalformedCount() {
+        return MALFORMED.sum();
+    }
+
+    public static long getTruncatedCount() {
+        return TRUNCATED.sum();
+    }
+
+    public static long getDecodedCount() {
+        return DECODED.sum();
+    }
+}
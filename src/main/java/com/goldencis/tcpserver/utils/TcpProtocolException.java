@@ -0,0 +1,17 @@
+package com.goldencis.tcpserver.utils;
+
+import java.io.IOException;
+
+/**
+ * 自定义tcp协议格式错误，区别于普通的IO异常
+ */
+public class TcpProtocolException extends IOException {
+
+    public TcpProtocolException(String message) {
+        super(message);
+    }
+
+    public TcpProtocolException(String message, Throwable cause) {
+        super(message, cause);
+    }
+}
@@ -0,0 +1,309 @@
+package com.goldencis.tcpserver.websocket;
+
+import com.goldencis.tcpserver.utils.TcpProtocolException;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.ReadableByteChannel;
+
+/**
+ * noVNC端websocket帧的增量解码器，每个连接一个实例，握手和转发阶段共用同一状态。
+ * 帧头、掩码和负载可以分布在任意多次读取中；数据帧的负载按顺序拼接，收到关闭帧视为连接结束。
+ * 控制帧的负载单独保存：ping的负载由调用方取出后回应pong，关闭帧的状态码在回应的关闭帧中原样返回(RFC 6455 5.5)。
+ * 掩码按8字节一次异或，解码在原缓冲区内完成，不为每一帧分配内存。
+ */
+public class WebSocketFrameDecoder {
+
+    private static final int OPCODE_CLOSE = 0x8;
+
+    private static final int OPCODE_PING = 0x9;
+
+    //帧头最长14字节：2字节固定头、8字节扩展长度、4字节掩码
+    private final byte[] header = new byte[14];
+
+    private final ByteBuffer headerBuffer = ByteBuffer.wrap(header);
+
+    //当前控制帧的负载，已解掩码，控制帧负载不超过125字节
+    private final ByteBuffer controlBuffer = ByteBuffer.allocate(125);
+
+    //最近一个尚未回应的ping的负载，读模式，只回应最近的一个
+    private final ByteBuffer ping = ByteBuffer.allocate(125);
+
+    private boolean pingPending;
+
+    //收到的关闭帧中的状态码，读模式，没有状态码时为空
+    private final ByteBuffer closeStatus = ByteBuffer.allocate(2);
+
+    private final byte[] mask = new byte[4];
+
+    //按掩码起始位置旋转后的8字节掩码，分别对应大端和小端缓冲区
+    private final long[] maskWords = new long[4];
+
+    private final long[] maskWordsLittle = new long[4];
+
+    private int headerPos;
+
+    //当前是否在读取负载
+    private boolean inPayload;
+
+    private boolean control;
+
+    private int opcode;
+
+    private long payloadRemaining;
+
+    private int maskIndex;
+
+    //已收到关闭帧
+    private boolean closed;
+
+    /**
+     * 转发阶段：把缓冲区[start, position)内的原始数据就地解码为负载
+     * @param buffer 刚从通道读入数据的缓冲区，写模式
+     * @param start 原始数据的起始位置
+     * @return 解码后负载的结束位置，负载从start开始连续存放
+     * @throws TcpProtocolException 帧格式错误
+     */
+    public int unwrap(ByteBuffer buffer, int start) throws TcpProtocolException {
+        int src = start;
+        int dst = start;
+        int end = buffer.position();
+        while (src < end && !closed) {
+            if (!inPayload) {
+                header[headerPos++] = buffer.get(src++);
+                if (headerPos == this.headerSize()) {
+                    this.parseHeader();
+                }
+                continue;
+            }
+            int n = (int) Math.min(payloadRemaining, end - src);
+            if (!control) {
+                this.unmask(buffer, src, dst, n);
+                dst += n;
+            } else {
+                for (int i = 0; i < n; i++) {
+                    controlBuffer.put((byte) (buffer.get(src + i) ^ mask[maskIndex]));
+                    maskIndex = (maskIndex + 1) & 3;
+                }
+            }
+            src += n;
+            payloadRemaining -= n;
+            if (payloadRemaining == 0) {
+                this.endFrame();
+            }
+        }
+        return dst;
+    }
+
+    /**
+     * 握手阶段：从通道读取负载，只读取当前帧需要的字节，不会多读后续帧
+     * @param channel 原始通道
+     * @param dst 负载写入的缓冲区
+     * @return 读到的负载字节数，通道关闭或收到关闭帧时返回-1
+     * @throws IOException IO异常或帧格式错误
+     */
+    public int read(ReadableByteChannel channel, ByteBuffer dst) throws IOException {
+        while (!closed) {
+            if (!inPayload) {
+                headerBuffer.limit(this.headerSize()).position(headerPos);
+                int read = channel.read(headerBuffer);
+                if (read < 0) {
+                    return -1;
+                }
+                headerPos = headerBuffer.position();
+                if (headerPos == this.headerSize()) {
+                    this.parseHeader();
+                } else if (read == 0) {
+                    return 0;
+                }
+                continue;
+            }
+
+            if (control) {
+                //控制帧负载不属于握手数据，单独保存
+                int start = controlBuffer.position();
+                controlBuffer.limit(start + (int) payloadRemaining);
+                int read = channel.read(controlBuffer);
+                if (read <= 0) {
+                    return read;
+                }
+                this.unmask(controlBuffer, start, start, read);
+                payloadRemaining -= read;
+                if (payloadRemaining == 0) {
+                    this.endFrame();
+                }
+                continue;
+            }
+
+            if (!dst.hasRemaining()) {
+                return 0;
+            }
+            int start = dst.position();
+            int limit = dst.limit();
+            dst.limit(start + (int) Math.min(dst.remaining(), payloadRemaining));
+            int read;
+            try {
+                read = channel.read(dst);
+            } finally {
+                dst.limit(limit);
+            }
+            if (read <= 0) {
+                return read;
+            }
+            this.unmask(dst, start, start, read);
+            payloadRemaining -= read;
+            if (payloadRemaining == 0) {
+                this.endFrame();
+            }
+            return read;
+        }
+        return -1;
+    }
+
+    /**
+     * 固定头收到后才能确定完整帧头的长度
+     */
+    private int headerSize() {
+        if (headerPos < 2) {
+            return 2;
+        }
+        int length = header[1] & 0x7F;
+        int extended = length == 126 ? 2 : length == 127 ? 8 : 0;
+        return 2 + extended + 4;
+    }
+
+    private void parseHeader() throws TcpProtocolException {
+        opcode = header[0] & 0x0F;
+        control = (opcode & 0x8) != 0;
+        if ((header[1] & 0x80) == 0) {
+            throw new TcpProtocolException("客户端帧未使用掩码");
+        }
+        int length = header[1] & 0x7F;
+        int pos = 2;
+        if (length == 126) {
+            payloadRemaining = ((header[2] & 0xFFL) << 8) | (header[3] & 0xFFL);
+            pos = 4;
+        } else if (length == 127) {
+            payloadRemaining = 0;
+            for (int i = 0; i < 8; i++) {
+                payloadRemaining = (payloadRemaining << 8) | (header[2 + i] & 0xFFL);
+            }
+            if (payloadRemaining < 0) {
+                throw new TcpProtocolException("帧长度错误");
+            }
+            pos = 10;
+        } else {
+            payloadRemaining = length;
+        }
+        if (control && payloadRemaining > 125) {
+            throw new TcpProtocolException("控制帧长度错误: " + payloadRemaining);
+        }
+
+        System.arraycopy(header, pos, mask, 0, 4);
+        for (int i = 0; i < 4; i++) {
+            long word = 0;
+            for (int j = 0; j < 8; j++) {
+                word = (word << 8) | (mask[(i + j) & 3] & 0xFFL);
+            }
+            maskWords[i] = word;
+            maskWordsLittle[i] = Long.reverseBytes(word);
+        }
+        maskIndex = 0;
+        headerPos = 0;
+        inPayload = true;
+        controlBuffer.clear();
+        if (payloadRemaining == 0) {
+            this.endFrame();
+        }
+    }
+
+    private void endFrame() {
+        inPayload = false;
+        if (opcode == OPCODE_PING) {
+            controlBuffer.flip();
+            ping.clear();
+            ping.put(controlBuffer);
+            ping.flip();
+            pingPending = true;
+        } else if (opcode == OPCODE_CLOSE) {
+            closed = true;
+            controlBuffer.flip();
+            closeStatus.clear();
+            if (controlBuffer.remaining() >= 2) {
+                closeStatus.put(controlBuffer.get()).put(controlBuffer.get());
+            }
+            closeStatus.flip();
+        }
+    }
+
+    /**
+     * 从src解码n字节到dst，dst不大于src，按顺序处理可以就地解码
+     */
+    private void unmask(ByteBuffer buffer, int src, int dst, int n) {
+        if (n >= 8) {
+            long word = buffer.order() == ByteOrder.BIG_ENDIAN ? maskWords[maskIndex] : maskWordsLittle[maskIndex];
+            //8字节是掩码长度的整数倍，处理后掩码位置不变
+            while (n >= 8) {
+                buffer.putLong(dst, buffer.getLong(src) ^ word);
+                src += 8;
+                dst += 8;
+                n -= 8;
+            }
+        }
+        while (n-- > 0) {
+            buffer.put(dst++, (byte) (buffer.get(src++) ^ mask[maskIndex]));
+            maskIndex = (maskIndex + 1) & 3;
+        }
+    }
+
+    /**
+     * 已收到关闭帧
+     */
+    public boolean isClosed() {
+        return closed;
+    }
+
+    /**
+     * 取出最近一个尚未回应的ping的负载
+     * @return 读模式的负载，下一个ping到来前有效；没有待回应的ping时返回null
+     */
+    public ByteBuffer takePing() {
+        if (!pingPending) {
+            return null;
+        }
+        pingPending = false;
+        return ping;
+    }
+
+    /**
+     * 收到的关闭帧中的状态码，回应的关闭帧原样返回
+     * @return 读模式，没有状态码时为空
+     */
+    public ByteBuffer getCloseStatus() {
+        return closeStatus.duplicate();
+    }
+
+    /**
+     * 以负载为内容的通道视图，供握手协议解码器读取
+     * @param channel 原始通道
+     */
+    public ReadableByteChannel source(ReadableByteChannel channel) {
+        return new ReadableByteChannel() {
+            @Override
+            public int read(ByteBuffer dst) throws IOException {
+                return WebSocketFrameDecoder.this.read(channel, dst);
+            }
+
+            @Override
+            public boolean isOpen() {
+                return channel.isOpen();
+            }
+
+            @Override
+            public void close() throws IOException {
+                channel.close();
+            }
+        };
+    }
+}
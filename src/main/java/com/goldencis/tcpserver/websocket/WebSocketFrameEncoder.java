@@ -0,0 +1,91 @@
+package com.goldencis.tcpserver.websocket;
+
+import java.nio.ByteBuffer;
+
+/**
+ * 发往noVNC端的websocket帧编码，服务端帧不使用掩码。
+ * 转发时从缓冲区的HEADER_RESERVE位置开始读入数据，帧头直接写在负载前面的预留空间中，不复制负载。
+ */
+public final class WebSocketFrameEncoder {
+
+    //最长帧头：2字节固定头加8字节扩展长度
+    public static final int HEADER_RESERVE = 10;
+
+    private static final byte BINARY_FINAL = (byte) 0x82;
+
+    private static final byte CLOSE_FINAL = (byte) 0x88;
+
+    private static final byte PONG_FINAL = (byte) 0x8A;
+
+    //控制帧的最大长度：2字节帧头加125字节负载
+    public static final int MAX_CONTROL_FRAME = 127;
+
+    private WebSocketFrameEncoder() {
+    }
+
+    /**
+     * 在负载前写入二进制帧头
+     * @param buffer 读模式的缓冲区，负载位于[offset, limit)，offset之前至少有HEADER_RESERVE字节空间
+     * @param offset 负载起始位置
+     */
+    public static void wrap(ByteBuffer buffer, int offset) {
+        int length = buffer.limit() - offset;
+        int start;
+        if (length <= 125) {
+            start = offset - 2;
+            buffer.put(start + 1, (byte) length);
+        } else if (length <= 0xFFFF) {
+            start = offset - 4;
+            buffer.put(start + 1, (byte) 126);
+            buffer.putShort(start + 2, (short) length);
+        } else {
+            start = offset - 10;
+            buffer.put(start + 1, (byte) 127);
+            buffer.putLong(start + 2, length);
+        }
+        buffer.put(start, BINARY_FINAL);
+        buffer.position(start);
+    }
+
+    /**
+     * 写入二进制帧头，负载由调用方另行写出
+     * @param buffer 写模式的缓冲区，至少有HEADER_RESERVE字节空间
+     * @param length 负载长度
+     */
+    public static void header(ByteBuffer buffer, int length) {
+        buffer.put(BINARY_FINAL);
+        if (length <= 125) {
+            buffer.put((byte) length);
+        } else if (length <= 0xFFFF) {
+            buffer.put((byte) 126).putShort((short) length);
+        } else {
+            buffer.put((byte) 127).putLong(length);
+        }
+    }
+
+    /**
+     * 写入不带状态码的关闭帧
+     * @param buffer 写模式的缓冲区
+     */
+    public static void close(ByteBuffer buffer) {
+        buffer.put(CLOSE_FINAL).put((byte) 0);
+    }
+
+    /**
+     * 写入关闭帧，回应对端的关闭帧时带回其状态码
+     * @param buffer 写模式的缓冲区
+     * @param status 读模式的状态码，为空时不带状态码
+     */
+    public static void close(ByteBuffer buffer, ByteBuffer status) {
+        buffer.put(CLOSE_FINAL).put((byte) status.remaining()).put(status);
+    }
+
+    /**
+     * 写入回应ping的pong帧，负载与ping相同
+     * @param buffer 写模式的缓冲区
+     * @param payload 读模式的ping负载，不超过125字节
+     */
+    public static void pong(ByteBuffer buffer, ByteBuffer payload) {
+        buffer.put(PONG_FINAL).put((byte) payload.remaining()).put(payload);
+    }
+}
@@ -0,0 +1,177 @@
+package com.goldencis.tcpserver.websocket;
+
+import com.goldencis.tcpserver.entity.TcpProtocolBody;
+import com.goldencis.tcpserver.utils.TcpFrameDecoder;
+import com.goldencis.tcpserver.utils.TcpProtocolException;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Base64;
+
+/**
+ * noVNC端websocket连接的握手状态，每个连接一个实例，作为监听选择键的attachment。
+ * 先在非阻塞循环中增量接收http升级请求并响应101，之后从第一个二进制帧的负载中解析自定义握手协议。
+ * 浏览器在收到101响应之前不会发送帧(RFC 6455 4.1)，请求之后多出的数据按协议错误处理。
+ */
+public class WebSocketHandshake {
+
+    private static final String GUID = "258EAFA5-E914-47DA-95CA-C5AB0DC85B11";
+
+    private static final byte[] BAD_REQUEST = "HTTP/1.1 400 Bad Request\r\nConnection: close\r\n\r\n".getBytes(StandardCharsets.US_ASCII);
+
+    //http升级请求
+    private final ByteBuffer request;
+
+    //自定义握手协议的解码器
+    private final TcpFrameDecoder decoder;
+
+    private final WebSocketFrameDecoder frames = new WebSocketFrameDecoder();
+
+    //以帧负载为内容的通道视图
+    private ReadableByteChannel source;
+
+    private boolean upgraded;
+
+    public WebSocketHandshake(int maxRequestSize, TcpFrameDecoder decoder) {
+        this.request = ByteBuffer.allocate(maxRequestSize);
+        this.decoder = decoder;
+    }
+
+    /**
+     * 从通道读取握手数据
+     * @param channel noVNC端通道
+     * @return 自定义握手协议体，数据尚未接收完整时返回null
+     * @throws TcpProtocolException 升级请求或协议格式错误
+     * @throws IOException IO异常
+     */
+    public TcpProtocolBody decode(SocketChannel channel) throws IOException {
+        if (!upgraded) {
+            if (!this.upgrade(channel)) {
+                return null;
+            }
+            source = frames.source(channel);
+        }
+        return decoder.decode(source);
+    }
+
+    private boolean upgrade(SocketChannel channel) throws IOException {
+        int read = channel.read(request);
+        if (read < 0) {
+            throw new EOFException("升级请求不完整");
+        }
+        int end = indexOfEnd(request);
+        if (end < 0) {
+            if (!request.hasRemaining()) {
+                this.reject(channel, "升级请求过长");
+            }
+            return false;
+        }
+        if (end != request.position()) {
+            this.reject(channel, "升级请求之后收到多余数据");
+        }
+
+        String key = null;
+        String protocols = null;
+        boolean websocket = false;
+        String[] lines = new String(request.array(), 0, end, StandardCharsets.ISO_8859_1).split("\r\n");
+        if (!lines[0].startsWith("GET ")) {
+            this.reject(channel, "不是升级请求: " + lines[0]);
+        }
+        for (int i = 1; i < lines.length; i++) {
+            int colon = lines[i].indexOf(':');
+            if (colon <= 0) {
+                continue;
+            }
+            String name = lines[i].substring(0, colon).trim();
+            String value = lines[i].substring(colon + 1).trim();
+            if ("Upgrade".equalsIgnoreCase(name)) {
+                websocket = "websocket".equalsIgnoreCase(value);
+            } else if ("Sec-WebSocket-Key".equalsIgnoreCase(name)) {
+                key = value;
+            } else if ("Sec-WebSocket-Protocol".equalsIgnoreCase(name)) {
+                protocols = value;
+            }
+        }
+        if (!websocket || key == null) {
+            this.reject(channel, "缺少websocket升级头");
+        }
+
+        StringBuilder response = new StringBuilder()
+                .append("HTTP/1.1 101 Switching Protocols\r\n")
+                .append("Upgrade: websocket\r\n")
+                .append("Connection: Upgrade\r\n")
+                .append("Sec-WebSocket-Accept: ").append(accept(key)).append("\r\n");
+        //noVNC请求binary子协议时确认
+        if (protocols != null) {
+            for (String protocol : protocols.split(",")) {
+                if ("binary".equals(protocol.trim())) {
+                    response.append("Sec-WebSocket-Protocol: binary\r\n");
+                    break;
+                }
+            }
+        }
+        response.append("\r\n");
+        this.writeFully(channel, ByteBuffer.wrap(response.toString().getBytes(StandardCharsets.US_ASCII)));
+        upgraded = true;
+        return true;
+    }
+
+    private void reject(SocketChannel channel, String message) throws IOException {
+        try {
+            channel.write(ByteBuffer.wrap(BAD_REQUEST));
+        } catch (IOException e) {
+            //对端已断开
+        }
+        throw new TcpProtocolException(message);
+    }
+
+    /**
+     * 响应很短，新连接的发送缓冲区足够一次写出
+     */
+    private void writeFully(SocketChannel channel, ByteBuffer buffer) throws IOException {
+        channel.write(buffer);
+        if (buffer.hasRemaining()) {
+            throw new IOException("升级响应未能写出");
+        }
+    }
+
+    /**
+     * 请求头结束位置，即空行之后，未收完时返回-1
+     */
+    private static int indexOfEnd(ByteBuffer request) {
+        byte[] array = request.array();
+        for (int i = 3; i < request.position(); i++) {
+            if (array[i] == '\n' && array[i - 1] == '\r' && array[i - 2] == '\n' && array[i - 3] == '\r') {
+                return i + 1;
+            }
+        }
+        return -1;
+    }
+
+    static String accept(String key) {
+        try {
+            MessageDigest sha1 = MessageDigest.getInstance("SHA-1");
+            byte[] digest = sha1.digest((key + GUID).getBytes(StandardCharsets.US_ASCII));
+            return Base64.getEncoder().encodeToString(digest);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * 握手完成后转发阶段继续使用的帧解码器
+     */
+    public WebSocketFrameDecoder getFrames() {
+        return frames;
+    }
+
+    public TcpFrameDecoder getDecoder() {
+        return decoder;
+    }
+}
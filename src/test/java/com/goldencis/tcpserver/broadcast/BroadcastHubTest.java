@@ -0,0 +1,281 @@
+package com.goldencis.tcpserver.broadcast;
+
+import com.goldencis.tcpserver.buffer.BufferPool;
+import com.goldencis.tcpserver.constants.ConstantsDto;
+import com.goldencis.tcpserver.entity.TcpProtocolBody;
+import com.goldencis.tcpserver.runner.EventLoop;
+import com.goldencis.tcpserver.runner.PipeRegistry;
+import com.goldencis.tcpserver.runner.RelayContext;
+import com.goldencis.tcpserver.runner.TcpTransferRunner;
+import com.goldencis.tcpserver.timer.HashedTimingWheel;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * 用模拟的RFB目标端验证广播会话：旁观端的握手、画面复制、输入丢弃、编码改写和慢速旁观端的重新同步
+ */
+public class BroadcastHubTest {
+
+    private static final byte[] VERSION = "RFB 003.008\n".getBytes();
+
+    private static final int WIDTH = 128;
+
+    private static final int HEIGHT = 128;
+
+    private ServerSocketChannel server;
+
+    private EventLoop eventLoop;
+
+    private BufferPool bufferPool = new BufferPool(512, 256 * 1024, 1024 * 1024, 64 * 1024 * 1024);
+
+    private HashedTimingWheel timingWheel = new HashedTimingWheel("test-timer", 10, TimeUnit.MILLISECONDS, 64);
+
+    private RelayContext relayContext = new RelayContext(bufferPool, new PipeRegistry(4), timingWheel);
+
+    private TcpTransferRunner runner;
+
+    private SocketChannel controller;
+
+    private SocketChannel target;
+
+    @Before
+    public void setUp() throws IOException {
+        server = ServerSocketChannel.open();
+        server.bind(new InetSocketAddress("127.0.0.1", 0));
+        eventLoop = new EventLoop("test-loop", 4);
+        eventLoop.start();
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        if (runner != null) {
+            runner.close();
+        }
+        eventLoop.shutdown();
+        timingWheel.stop();
+        server.close();
+    }
+
+    @Test
+    public void viewerReceivesControllerScreen() throws Exception {
+        BroadcastHub hub = new BroadcastHub(bufferPool, 1024 * 1024, 4);
+        this.openController(hub);
+
+        //控制端的SetEncodings中ZRLE被替换
+        ByteBuffer encodings = ByteBuffer.allocate(16);
+        encodings.put((byte) 2).put((byte) 0).putShort((short) 3).putInt(16).putInt(0).putInt(-239).flip();
+        controller.write(encodings);
+        ByteBuffer rewritten = ByteBuffer.wrap(readFully(target, 16));
+        assertEquals(3, rewritten.getShort(2));
+        assertEquals(RfbProtocol.ENCODING_IGNORED, rewritten.getInt(4));
+        assertEquals(0, rewritten.getInt(8));
+        assertEquals(-239, rewritten.getInt(12));
+
+        SocketChannel viewer = this.joinViewer(hub);
+        //旁观端加入后请求一次全屏更新
+        assertArrayEquals(fullUpdateRequest(), readFully(target, 10));
+
+        byte[] update = update(7, 2, 1);
+        target.write(ByteBuffer.wrap(update));
+        assertArrayEquals(update, readFully(controller, update.length));
+        assertArrayEquals(update, readFully(viewer, update.length));
+
+        //旁观端的输入被丢弃，控制端的输入照常转发
+        viewer.write(ByteBuffer.wrap(new byte[]{5, 0, 0, 1, 0, 2}));
+        Thread.sleep(50);
+        byte[] key = {4, 1, 0, 0, 0, 0, 0, 0x61};
+        controller.write(ByteBuffer.wrap(key));
+        assertArrayEquals(key, readFully(target, key.length));
+
+        assertEquals(1, hub.getSessions());
+        assertEquals(1, hub.getViewers());
+
+        //控制端断开，旁观端随之断开
+        controller.close();
+        assertEquals(-1, viewer.read(ByteBuffer.allocate(16)));
+        Thread.sleep(50);
+        assertEquals(0, hub.getSessions());
+        assertEquals(0, hub.getViewers());
+        viewer.close();
+        target.close();
+    }
+
+    @Test
+    public void slowViewerResyncsAtBoundary() throws Exception {
+        BroadcastHub hub = new BroadcastHub(bufferPool, 4 * 1024 * 1024, 4);
+        this.openController(hub);
+        SocketChannel viewer = this.joinViewer(hub);
+        assertArrayEquals(fullUpdateRequest(), readFully(target, 10));
+
+        //控制端持续读取，旁观端暂不读取
+        int updates = 48;
+        long expected = (long) updates * update(0, WIDTH, HEIGHT).length;
+        AtomicLong drained = new AtomicLong();
+        Thread drainer = new Thread(() -> {
+            ByteBuffer buffer = ByteBuffer.allocate(64 * 1024);
+            try {
+                int read;
+                while ((read = controller.read(buffer)) >= 0) {
+                    drained.addAndGet(read);
+                    buffer.clear();
+                }
+            } catch (IOException e) {
+                //连接关闭
+            }
+        });
+        drainer.start();
+        for (int i = 0; i < updates; i++) {
+            target.write(ByteBuffer.wrap(update(i, WIDTH, HEIGHT)));
+        }
+        long deadline = System.currentTimeMillis() + 10000;
+        while (drained.get() < expected && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(expected, drained.get());
+
+        //旁观端写到消息边界后跳过积压的画面，并请求全屏更新
+        Thread responder = new Thread(() -> {
+            try {
+                assertArrayEquals(fullUpdateRequest(), readFully(target, 10));
+                target.write(ByteBuffer.wrap(update(1000, WIDTH, HEIGHT)));
+            } catch (IOException e) {
+                //连接关闭
+            }
+        });
+        responder.start();
+        int received = 0;
+        int x;
+        while ((x = readUpdate(viewer)) < updates) {
+            received++;
+        }
+        responder.join();
+        assertEquals(1000, x);
+        assertTrue(received < updates);
+        assertEquals(1, hub.getResyncs());
+        assertEquals(0, hub.getDropped());
+
+        viewer.close();
+        controller.close();
+        drainer.join();
+        target.close();
+    }
+
+    /**
+     * 建立广播会话并完成控制端和目标端之间的RFB握手
+     */
+    private void openController(BroadcastHub hub) throws IOException {
+        controller = SocketChannel.open(server.getLocalAddress());
+        SocketChannel source = server.accept();
+        source.configureBlocking(false);
+        target = SocketChannel.open(server.getLocalAddress());
+        SocketChannel destination = server.accept();
+        destination.configureBlocking(false);
+
+        runner = new TcpTransferRunner("pipe-1", eventLoop, relayContext, true, source);
+        hub.open(runner);
+        assertTrue(runner.claim());
+        runner.setDestinationChannel(destination);
+        runner.setDestinationReady(true);
+        runner.start();
+
+        target.write(ByteBuffer.wrap(VERSION));
+        assertArrayEquals(VERSION, readFully(controller, 12));
+        controller.write(ByteBuffer.wrap(VERSION));
+        assertArrayEquals(VERSION, readFully(target, 12));
+        target.write(ByteBuffer.wrap(new byte[]{1, 1}));
+        readFully(controller, 2);
+        controller.write(ByteBuffer.wrap(new byte[]{1}));
+        readFully(target, 1);
+        target.write(ByteBuffer.wrap(new byte[4]));
+        readFully(controller, 4);
+        controller.write(ByteBuffer.wrap(new byte[]{1}));
+        readFully(target, 1);
+        target.write(ByteBuffer.wrap(serverInit()));
+        assertArrayEquals(serverInit(), readFully(controller, serverInit().length));
+    }
+
+    /**
+     * 旁观端加入并完成转发服务代答的握手，发送缓冲区设小以便积压
+     */
+    private SocketChannel joinViewer(BroadcastHub hub) throws IOException {
+        SocketChannel viewer = SocketChannel.open();
+        viewer.socket().setReceiveBufferSize(8192);
+        viewer.connect(server.getLocalAddress());
+        SocketChannel accepted = server.accept();
+        accepted.socket().setSendBufferSize(8192);
+        hub.join(accepted, new TcpProtocolBody(ConstantsDto.CONNECT_NOVNC_VIEWER, "pipe-1"), null);
+
+        assertArrayEquals(VERSION, readFully(viewer, 12));
+        viewer.write(ByteBuffer.wrap(VERSION));
+        assertArrayEquals(new byte[]{1, 1}, readFully(viewer, 2));
+        viewer.write(ByteBuffer.wrap(new byte[]{1}));
+        assertArrayEquals(new byte[4], readFully(viewer, 4));
+        viewer.write(ByteBuffer.wrap(new byte[]{1}));
+        assertArrayEquals(serverInit(), readFully(viewer, serverInit().length));
+        return viewer;
+    }
+
+    private static byte[] serverInit() {
+        ByteBuffer init = ByteBuffer.allocate(28);
+        init.putShort((short) WIDTH).putShort((short) HEIGHT);
+        //32位真彩色
+        init.put(new byte[]{32, 24, 0, 1, 0, (byte) 255, 0, (byte) 255, 0, (byte) 255, 16, 8, 0, 0, 0, 0});
+        init.putInt(4).put("desk".getBytes());
+        return init.array();
+    }
+
+    private static byte[] fullUpdateRequest() {
+        ByteBuffer request = ByteBuffer.allocate(10);
+        RfbProtocol.fullUpdateRequest(request, WIDTH, HEIGHT);
+        return request.array();
+    }
+
+    /**
+     * 只含一个Raw矩形的FramebufferUpdate，以矩形的x坐标区分
+     */
+    private static byte[] update(int x, int width, int height) {
+        ByteBuffer update = ByteBuffer.allocate(16 + width * height * 4);
+        update.put((byte) 0).put((byte) 0).putShort((short) 1);
+        update.putShort((short) x).putShort((short) 0).putShort((short) width).putShort((short) height).putInt(0);
+        return update.array();
+    }
+
+    /**
+     * 按消息读取一个FramebufferUpdate，校验旁观端收到的数据从消息边界开始
+     * @return 矩形的x坐标
+     */
+    private static int readUpdate(SocketChannel channel) throws IOException {
+        ByteBuffer header = ByteBuffer.wrap(readFully(channel, 16));
+        assertEquals(0, header.get(0));
+        assertEquals(1, header.getShort(2));
+        int width = header.getShort(8);
+        int height = header.getShort(10);
+        assertEquals(WIDTH, width);
+        assertEquals(HEIGHT, height);
+        readFully(channel, width * height * 4);
+        return header.getShort(4);
+    }
+
+    private static byte[] readFully(SocketChannel channel, int length) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer) < 0) {
+                throw new IOException("提前关闭");
+            }
+        }
+        return buffer.array();
+    }
+}
@@ -0,0 +1,103 @@
+package com.goldencis.tcpserver.buffer;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * 缓冲池的借还、统计和内存上限
+ */
+public class BufferPoolTest {
+
+    @Test
+    public void acquireAndRelease() {
+        BufferPool pool = new BufferPool(512, 64 * 1024, 64 * 1024, 1024 * 1024);
+
+        ByteBuffer buffer = pool.acquire(1000);
+        assertTrue(buffer.isDirect());
+        assertEquals(1024, buffer.capacity());
+        //limit为需要的字节数，读取不会超出
+        assertEquals(1000, buffer.limit());
+        assertEquals(1024, pool.getStats().getInUse());
+
+        pool.release(buffer);
+        assertEquals(0, pool.getStats().getInUse());
+        assertEquals(1024, pool.getStats().getHighWaterMark());
+
+        //归还后的缓冲块被重复使用
+        assertSame(buffer, pool.acquire(1024));
+    }
+
+    @Test
+    public void exhaustedAtMaxMemory() {
+        BufferPool pool = new BufferPool(512, 64 * 1024, 64 * 1024, 128 * 1024);
+
+        ByteBuffer first = pool.acquire(64 * 1024);
+        ByteBuffer second = pool.acquire(64 * 1024);
+        assertTrue(first.isDirect());
+        assertTrue(second.isDirect());
+        //已达到内存上限，读取方借不到缓冲块
+        assertNull(pool.acquire(64 * 1024));
+        //长度受限的调用方退化为堆缓冲区
+        ByteBuffer third = pool.allocate(64 * 1024);
+        assertFalse(third.isDirect());
+
+        BufferPoolStats stats = pool.getStats();
+        assertEquals(128 * 1024, stats.getAllocated());
+        assertEquals(2, stats.getExhausted());
+        assertEquals(1, stats.getOverflow());
+
+        pool.release(third);
+        pool.release(second);
+        pool.release(first);
+        assertEquals(0, pool.getStats().getInUse());
+        assertEquals(128 * 1024, pool.getStats().getFree());
+    }
+
+    @Test
+    public void inUseNeverExceedsMaxMemory() {
+        long maxMemory = 256 * 1024;
+        BufferPool pool = new BufferPool(512, 64 * 1024, 64 * 1024, maxMemory);
+        List<ByteBuffer> borrowed = new ArrayList<>();
+        int[] sizes = {100, 64 * 1024, 3000, 20000, 512, 64 * 1024 - 1};
+        for (int i = 0; i < 1000; i++) {
+            ByteBuffer buffer = pool.acquire(sizes[i % sizes.length]);
+            if (buffer != null) {
+                borrowed.add(buffer);
+            }
+            assertTrue(pool.getStats().getInUse() <= maxMemory);
+            assertTrue(pool.getStats().getAllocated() <= maxMemory);
+            if (i % 7 == 0 && !borrowed.isEmpty()) {
+                pool.release(borrowed.remove(0));
+            }
+        }
+        assertTrue(pool.getStats().getExhausted() > 0);
+        assertTrue(pool.getStats().getHighWaterMark() <= maxMemory);
+    }
+
+    @Test
+    public void awaitRunsOnRelease() {
+        BufferPool pool = new BufferPool(512, 64 * 1024, 64 * 1024, 64 * 1024);
+        ByteBuffer only = pool.acquire(64 * 1024);
+        assertNull(pool.acquire(64 * 1024));
+
+        AtomicInteger woken = new AtomicInteger();
+        pool.await(64 * 1024, woken::incrementAndGet);
+        assertEquals(0, woken.get());
+        pool.release(only);
+        assertEquals(1, woken.get());
+
+        //登记时已有可借的缓冲块，立即执行
+        pool.await(64 * 1024, woken::incrementAndGet);
+        assertEquals(2, woken.get());
+    }
+}
@@ -0,0 +1,245 @@
+package com.goldencis.tcpserver.cluster;
+
+import com.goldencis.tcpserver.buffer.BufferPool;
+import com.goldencis.tcpserver.constants.ConstantsDto;
+import com.goldencis.tcpserver.entity.TcpProtocolBody;
+import com.goldencis.tcpserver.mq.FakeRedis;
+import com.goldencis.tcpserver.mq.MQClient;
+import com.goldencis.tcpserver.mq.RedisNotifier;
+import com.goldencis.tcpserver.runner.EventLoopGroup;
+import com.goldencis.tcpserver.utils.TcpFrameDecoder;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import redis.clients.jedis.JedisPubSub;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * 同一进程中的两个节点，验证目标端连接经隧道转发到管道所在的节点
+ */
+public class ClusterRouterTest {
+
+    private FakeRedis redis;
+
+    private RedisNotifier notifier;
+
+    private EventLoopGroup eventLoopGroup;
+
+    private BufferPool bufferPool;
+
+    private ExecutorService executor = Executors.newCachedThreadPool();
+
+    //节点A收到目标端连接，节点B持有noVNC端的会话
+    private ClusterRouter routerA;
+
+    private ClusterRouter routerB;
+
+    //代替两个节点的目标端监听服务
+    private ServerSocketChannel targetServerA;
+
+    private ServerSocketChannel targetServerB;
+
+    @Before
+    public void setUp() throws IOException {
+        redis = new FakeRedis();
+        notifier = new RedisNotifier("127.0.0.1", redis.getPort(), 16, 16);
+        notifier.start();
+        MQClient mqClient = new MQClient(new JedisPubSub() {}, "127.0.0.1", redis.getPort());
+        eventLoopGroup = new EventLoopGroup(2, 16);
+        bufferPool = new BufferPool(512, 256 * 1024, 1024 * 1024, 8 * 1024 * 1024);
+
+        targetServerA = ServerSocketChannel.open().bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+        targetServerB = ServerSocketChannel.open().bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+        int portA = freePort();
+        int portB = freePort();
+        routerA = new ClusterRouter("127.0.0.1:" + portA, portA, targetServerA.socket().getLocalPort(),
+                notifier, mqClient, eventLoopGroup, bufferPool, executor);
+        routerB = new ClusterRouter("127.0.0.1:" + portB, portB, targetServerB.socket().getLocalPort(),
+                notifier, mqClient, eventLoopGroup, bufferPool, executor);
+        routerA.start();
+        routerB.start();
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        routerA.stop();
+        routerB.stop();
+        eventLoopGroup.shutdown();
+        executor.shutdownNow();
+        notifier.stop();
+        redis.close();
+        targetServerA.close();
+        targetServerB.close();
+    }
+
+    @Test
+    public void forwardToOwningNode() throws Exception {
+        assertTrue(routerB.register("pipe-1").get(5, TimeUnit.SECONDS));
+        assertEquals("127.0.0.1:" + routerB.getTunnelPort(), redis.values.get(ClusterRouter.ROUTE_PREFIX + "pipe-1"));
+
+        //目标端连到节点A，A已读完握手帧，本地没有该管道
+        SocketChannel target = SocketChannel.open(targetServerA.getLocalAddress());
+        SocketChannel acceptedA = targetServerA.accept();
+        acceptedA.configureBlocking(false);
+        routerA.forward(acceptedA, new TcpProtocolBody(ConstantsDto.CONNECT_VNC_CLIENT, "pipe-1"));
+
+        //节点B的目标端监听服务收到回环连接，握手帧与目标端发送的一致
+        SocketChannel acceptedB = targetServerB.accept();
+        TcpFrameDecoder decoder = new TcpFrameDecoder(4096);
+        TcpProtocolBody body;
+        do {
+            body = decoder.decode(acceptedB);
+        } while (body == null);
+        assertEquals(ConstantsDto.CONNECT_VNC_CLIENT, body.getAction());
+        assertEquals("pipe-1", body.getPipe());
+        //经隧道转入的连接不再转发
+        try {
+            routerB.forward(acceptedB, body);
+            throw new AssertionError();
+        } catch (IOException e) {
+            //预期
+        }
+
+        //两个方向的数据
+        byte[] up = new byte[3 * 1024 * 1024 + 7];
+        for (int i = 0; i < up.length; i++) {
+            up[i] = (byte) (i * 31);
+        }
+        Thread writer = new Thread(() -> {
+            try {
+                target.write(ByteBuffer.wrap(up));
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        });
+        writer.start();
+        assertArrayEquals(up, readFully(acceptedB, up.length));
+        writer.join();
+
+        byte[] down = "RFB 003.008\n".getBytes();
+        acceptedB.write(ByteBuffer.wrap(down));
+        assertArrayEquals(down, readFully(target, down.length));
+
+        assertEquals(1, routerA.getForwardedCount());
+        assertEquals(1, routerA.getStreamCount());
+        assertEquals(1, routerB.getStreamCount());
+        assertEquals(1, routerA.getTunnelCount());
+
+        //目标端关闭后，B的回环连接随之关闭
+        target.close();
+        assertEquals(-1, acceptedB.read(ByteBuffer.allocate(16)));
+        acceptedB.close();
+        waitFor(() -> routerA.getStreamCount() == 0 && routerB.getStreamCount() == 0);
+        //隧道保留，供之后的连接复用
+        assertEquals(1, routerA.getTunnelCount());
+    }
+
+    @Test
+    public void forwardWhenPoolAtCap() throws Exception {
+        //先占用一块两倍大小的缓冲块，再借光内存，然后归还较大等级的缓冲块，
+        //读取缓冲块的等级没有空闲块，只能借用较大等级的空闲块
+        int chunk = bufferPool.getReadChunkSize();
+        List<ByteBuffer> held = new ArrayList<>();
+        held.add(bufferPool.acquire(2 * chunk));
+        ByteBuffer buffer;
+        while ((buffer = bufferPool.acquire(chunk)) != null) {
+            held.add(buffer);
+        }
+        Iterator<ByteBuffer> iterator = held.iterator();
+        while (iterator.hasNext()) {
+            buffer = iterator.next();
+            if (buffer.capacity() > chunk) {
+                bufferPool.release(buffer);
+                iterator.remove();
+            }
+        }
+
+        assertTrue(routerB.register("pipe-2").get(5, TimeUnit.SECONDS));
+        SocketChannel target = SocketChannel.open(targetServerA.getLocalAddress());
+        SocketChannel acceptedA = targetServerA.accept();
+        acceptedA.configureBlocking(false);
+        routerA.forward(acceptedA, new TcpProtocolBody(ConstantsDto.CONNECT_VNC_CLIENT, "pipe-2"));
+        SocketChannel acceptedB = targetServerB.accept();
+        TcpFrameDecoder decoder = new TcpFrameDecoder(4096);
+        while (decoder.decode(acceptedB) == null) {
+        }
+
+        //DATA帧的负载不超过读取缓冲块，对端不会因帧过长关闭隧道
+        byte[] up = new byte[1024 * 1024];
+        for (int i = 0; i < up.length; i++) {
+            up[i] = (byte) (i * 17);
+        }
+        Thread writer = new Thread(() -> {
+            try {
+                target.write(ByteBuffer.wrap(up));
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        });
+        writer.start();
+        assertArrayEquals(up, readFully(acceptedB, up.length));
+        writer.join();
+        assertEquals(1, routerA.getTunnelCount());
+
+        target.close();
+        acceptedB.close();
+        for (ByteBuffer chunkHeld : held) {
+            bufferPool.release(chunkHeld);
+        }
+    }
+
+    @Test
+    public void closeWhenRouteMissing() throws Exception {
+        SocketChannel target = SocketChannel.open(targetServerA.getLocalAddress());
+        SocketChannel acceptedA = targetServerA.accept();
+        acceptedA.configureBlocking(false);
+        routerA.forward(acceptedA, new TcpProtocolBody(ConstantsDto.CONNECT_VNC_CLIENT, "pipe-unknown"));
+
+        assertEquals(-1, target.read(ByteBuffer.allocate(16)));
+        assertEquals(1, routerA.getForwardFailedCount());
+        assertEquals(0, routerA.getTunnelCount());
+        target.close();
+    }
+
+    private static byte[] readFully(SocketChannel channel, int length) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer) < 0) {
+                throw new IOException("提前关闭");
+            }
+        }
+        return buffer.array();
+    }
+
+    private static int freePort() throws IOException {
+        try (ServerSocket socket = new ServerSocket(0)) {
+            return socket.getLocalPort();
+        }
+    }
+
+    private static void waitFor(BooleanSupplier condition) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (!condition.getAsBoolean()) {
+            assertTrue(System.nanoTime() < deadline);
+            Thread.sleep(10);
+        }
+    }
+}
@@ -0,0 +1,220 @@
+package com.goldencis.tcpserver.compress;
+
+import com.goldencis.tcpserver.buffer.BufferPool;
+import com.goldencis.tcpserver.utils.TcpProtocolException;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.zip.Deflater;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * 验证分块压缩、解压和压缩效果差时的原始块
+ */
+public class BlockCompressionTest {
+
+    private BufferPool bufferPool = new BufferPool(512, 256 * 1024, 1024 * 1024, 8 * 1024 * 1024);
+
+    @Test
+    public void compressRepetitiveBlocks() throws Exception {
+        //模拟raw编码的画面，行间大量重复
+        byte[] block = new byte[16 * 1024];
+        for (int i = 0; i < block.length; i++) {
+            block[i] = (byte) ((i % 640) / 16);
+        }
+        BlockDeflater deflater = new BlockDeflater(1, bufferPool.getReadChunkSize());
+        List<ByteBuffer> encoded = new ArrayList<>();
+        for (int i = 0; i < 8; i++) {
+            encoded.add(this.encode(deflater, block));
+        }
+        assertTrue(deflater.getEncodedBytes() * 10 < deflater.getRawBytes());
+        assertEquals(BlockDeflater.TYPE_DEFLATE, encoded.get(0).get(0));
+
+        byte[] expected = new byte[block.length * 8];
+        for (int i = 0; i < 8; i++) {
+            System.arraycopy(block, 0, expected, i * block.length, block.length);
+        }
+        assertArrayEquals(expected, this.decode(encoded, 3, 0));
+        deflater.end();
+    }
+
+    @Test
+    public void bypassIncompressibleBlocks() throws Exception {
+        Random random = new Random(1);
+        byte[] text = new byte[4096];
+        BlockDeflater deflater = new BlockDeflater(1, bufferPool.getReadChunkSize());
+        List<ByteBuffer> encoded = new ArrayList<>();
+        ByteArrayOutputStream expected = new ByteArrayOutputStream();
+
+        //先压缩一块，再发送多块随机数据(如Tight编码后的画面)
+        encoded.add(this.encode(deflater, text));
+        expected.write(text);
+        for (int i = 0; i < 6; i++) {
+            byte[] noise = new byte[4096];
+            random.nextBytes(noise);
+            encoded.add(this.encode(deflater, noise));
+            expected.write(noise);
+            assertEquals(BlockDeflater.TYPE_RAW, encoded.get(encoded.size() - 1).get(0));
+        }
+        assertTrue(deflater.isBypassing());
+        encoded.add(this.encode(deflater, text));
+        expected.write(text);
+        assertEquals(BlockDeflater.TYPE_RAW, encoded.get(encoded.size() - 1).get(0));
+
+        //原始块的长度只增加块头
+        assertEquals(4096 + BlockDeflater.HEADER_SIZE, encoded.get(1).remaining());
+        //解压时在输出缓冲块前预留空间
+        assertArrayEquals(expected.toByteArray(), this.decode(encoded, 1000, 10));
+        deflater.end();
+    }
+
+    @Test
+    public void resetAfterRawBlock() throws Exception {
+        byte[] text = new byte[8192];
+        for (int i = 0; i < text.length; i++) {
+            text[i] = (byte) ('a' + i % 7);
+        }
+        byte[] noise = new byte[8192];
+        new Random(2).nextBytes(noise);
+        BlockDeflater deflater = new BlockDeflater(1, bufferPool.getReadChunkSize());
+        List<ByteBuffer> encoded = new ArrayList<>();
+        //压缩、原始、再压缩，原始块之后两端都从新的压缩流开始
+        encoded.add(this.encode(deflater, text));
+        encoded.add(this.encode(deflater, noise));
+        encoded.add(this.encode(deflater, text));
+        assertEquals(BlockDeflater.TYPE_DEFLATE, encoded.get(2).get(0));
+        assertFalse(deflater.isBypassing());
+
+        ByteArrayOutputStream expected = new ByteArrayOutputStream();
+        expected.write(text);
+        expected.write(noise);
+        expected.write(text);
+        assertArrayEquals(expected.toByteArray(), this.decode(encoded, 7, 0));
+        deflater.end();
+    }
+
+    @Test
+    public void pauseWhenReceiverFull() throws Exception {
+        byte[] block = new byte[bufferPool.getReadChunkSize() - BlockDeflater.HEADER_SIZE];
+        for (int i = 0; i < block.length; i++) {
+            block[i] = (byte) (i % 64);
+        }
+        BlockDeflater deflater = new BlockDeflater(1, bufferPool.getReadChunkSize());
+        ByteArrayOutputStream stream = new ByteArrayOutputStream();
+        for (int i = 0; i < 4; i++) {
+            ByteBuffer encoded = this.encode(deflater, block);
+            stream.write(encoded.array(), 0, encoded.limit());
+        }
+        deflater.end();
+
+        //一次读取的4个压缩块，接收方每收到一块就满，每次继续只解出一块
+        BlockInflater inflater = new BlockInflater(bufferPool);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        List<ByteBuffer> received = new ArrayList<>();
+        ByteBuffer in = ByteBuffer.wrap(stream.toByteArray());
+        assertFalse(inflater.decode(in, 0, received::add, () -> !received.isEmpty()));
+        int resumes = 0;
+        do {
+            assertTrue(inflater.hasInput());
+            assertEquals(1, received.size());
+            this.drain(received.remove(0), out);
+            resumes++;
+        } while (!inflater.resume(0, received::add, () -> !received.isEmpty()));
+        for (ByteBuffer chunk : received) {
+            this.drain(chunk, out);
+        }
+        assertFalse(inflater.hasInput());
+        assertTrue(resumes >= 3);
+        inflater.end();
+
+        ByteArrayOutputStream expected = new ByteArrayOutputStream();
+        for (int i = 0; i < 4; i++) {
+            expected.write(block);
+        }
+        assertArrayEquals(expected.toByteArray(), out.toByteArray());
+        assertEquals(0, bufferPool.getStats().getInUse());
+    }
+
+    private void drain(ByteBuffer chunk, ByteArrayOutputStream out) {
+        while (chunk.hasRemaining()) {
+            out.write(chunk.get());
+        }
+        bufferPool.release(chunk);
+    }
+
+    @Test
+    public void rejectOversizedBlock() throws Exception {
+        //一个压缩块解压出4个读取缓冲块的数据，正常的压缩端不会产生
+        Deflater deflater = new Deflater(9, true);
+        deflater.setInput(new byte[4 * bufferPool.getReadChunkSize()]);
+        byte[] compressed = new byte[64 * 1024];
+        int length = deflater.deflate(compressed, 0, compressed.length, Deflater.SYNC_FLUSH);
+        deflater.end();
+        ByteBuffer in = ByteBuffer.allocate(BlockDeflater.HEADER_SIZE + length);
+        in.put(BlockDeflater.TYPE_DEFLATE).put((byte) (length >>> 16)).put((byte) (length >>> 8)).put((byte) length);
+        in.put(compressed, 0, length);
+        in.flip();
+
+        BlockInflater inflater = new BlockInflater(bufferPool);
+        long[] inflated = new long[1];
+        try {
+            inflater.decode(in, 0, chunk -> {
+                inflated[0] += chunk.remaining();
+                bufferPool.release(chunk);
+            }, () -> false);
+            fail();
+        } catch (TcpProtocolException e) {
+            assertTrue(inflated[0] <= bufferPool.getReadChunkSize());
+        }
+        inflater.end();
+        assertEquals(0, bufferPool.getStats().getInUse());
+    }
+
+    private ByteBuffer encode(BlockDeflater deflater, byte[] data) {
+        ByteBuffer chunk = ByteBuffer.allocate(bufferPool.getReadChunkSize());
+        chunk.position(BlockDeflater.HEADER_SIZE);
+        chunk.put(data);
+        chunk.flip();
+        deflater.encode(chunk, BlockDeflater.HEADER_SIZE);
+        //复制编码结果，缓冲块在转发中会被复用
+        ByteBuffer copy = ByteBuffer.allocate(chunk.remaining());
+        copy.put(chunk);
+        copy.flip();
+        return copy;
+    }
+
+    /**
+     * 把编码结果拼接后按step切分，模拟任意的读取边界
+     */
+    private byte[] decode(List<ByteBuffer> encoded, int step, int offset) throws Exception {
+        ByteArrayOutputStream stream = new ByteArrayOutputStream();
+        for (ByteBuffer buffer : encoded) {
+            stream.write(buffer.array(), 0, buffer.limit());
+        }
+        byte[] bytes = stream.toByteArray();
+
+        BlockInflater inflater = new BlockInflater(bufferPool);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (int i = 0; i < bytes.length; i += step) {
+            ByteBuffer in = ByteBuffer.wrap(bytes, i, Math.min(step, bytes.length - i));
+            inflater.decode(in, offset, chunk -> {
+                for (int j = offset; j < chunk.limit(); j++) {
+                    out.write(chunk.get(j));
+                }
+                bufferPool.release(chunk);
+            }, () -> false);
+        }
+        inflater.end();
+        assertEquals(0, bufferPool.getStats().getInUse());
+        return out.toByteArray();
+    }
+}
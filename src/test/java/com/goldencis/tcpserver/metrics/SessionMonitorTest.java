@@ -0,0 +1,160 @@
+package com.goldencis.tcpserver.metrics;
+
+import com.goldencis.tcpserver.buffer.BufferPool;
+import com.goldencis.tcpserver.entity.SessionSnapshot;
+import com.goldencis.tcpserver.entity.TcpProtocolBody;
+import com.goldencis.tcpserver.runner.EventLoop;
+import com.goldencis.tcpserver.runner.PipeRegistry;
+import com.goldencis.tcpserver.runner.RelayContext;
+import com.goldencis.tcpserver.runner.TcpTransferRunner;
+import com.goldencis.tcpserver.shaping.TrafficShaper;
+import com.goldencis.tcpserver.timer.HashedTimingWheel;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * 验证会话快照、速率采样和强制结束
+ */
+public class SessionMonitorTest {
+
+    private ServerSocketChannel server;
+
+    private EventLoop eventLoop;
+
+    private HashedTimingWheel timingWheel = new HashedTimingWheel("test-timer", 10, TimeUnit.MILLISECONDS, 64);
+
+    private PipeRegistry pipeRegistry = new PipeRegistry(4);
+
+    private RelayContext relayContext = new RelayContext(new BufferPool(512, 256 * 1024, 1024 * 1024, 8 * 1024 * 1024),
+            pipeRegistry, timingWheel);
+
+    private SessionMonitor monitor = new SessionMonitor(pipeRegistry, timingWheel, Runnable::run);
+
+    @Before
+    public void setUp() throws IOException {
+        server = ServerSocketChannel.open();
+        server.bind(new InetSocketAddress("127.0.0.1", 0));
+        eventLoop = new EventLoop("test-loop", 4);
+        eventLoop.start();
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        eventLoop.shutdown();
+        timingWheel.stop();
+        server.close();
+    }
+
+    @Test
+    public void listAndClosePendingSession() throws Exception {
+        SocketChannel noVNC = SocketChannel.open(server.getLocalAddress());
+        TcpTransferRunner runner = this.park("pipe-1", server.accept());
+
+        List<SessionSnapshot> snapshots = monitor.snapshots();
+        assertEquals(1, snapshots.size());
+        SessionSnapshot snapshot = snapshots.get(0);
+        assertEquals("pipe-1", snapshot.getPipe());
+        assertEquals("user-1", snapshot.getUserguid());
+        assertEquals(noVNC.getLocalAddress().toString(), snapshot.getSourceAddress());
+        assertNull(snapshot.getDestinationAddress());
+        assertTrue(snapshot.isSourceReady());
+        assertFalse(snapshot.isDestinationReady());
+
+        //强制结束后目标端不能再认领
+        assertTrue(monitor.close("pipe-1"));
+        assertFalse(runner.claim());
+        assertNull(monitor.snapshot("pipe-1"));
+        assertFalse(monitor.close("pipe-1"));
+        assertEquals(-1, noVNC.read(ByteBuffer.allocate(16)));
+        noVNC.close();
+    }
+
+    @Test
+    public void closeBetweenClaimAndStart() throws Exception {
+        TrafficShaper shaper = new TrafficShaper(0, 0, 1000, 1000);
+        relayContext.setShaper(shaper);
+        SocketChannel noVNC = SocketChannel.open(server.getLocalAddress());
+        SocketChannel target = SocketChannel.open(server.getLocalAddress());
+        TcpTransferRunner runner = this.park("pipe-3", server.accept());
+        SocketChannel destination = server.accept();
+        destination.configureBlocking(false);
+
+        //目标端已认领，开始转发前会话被强制结束
+        assertTrue(runner.claim());
+        assertTrue(monitor.close("pipe-3"));
+        runner.setDestinationChannel(destination);
+        runner.setDestinationReady(true);
+        runner.start();
+
+        assertFalse(runner.isOn());
+        assertEquals(0, relayContext.getMetrics().getActiveSessions());
+        assertTrue(shaper.snapshots().isEmpty());
+        assertFalse(destination.isOpen());
+        assertEquals(-1, noVNC.read(ByteBuffer.allocate(16)));
+        assertEquals(-1, target.read(ByteBuffer.allocate(16)));
+        noVNC.close();
+        target.close();
+    }
+
+    @Test
+    public void sampleThroughput() throws Exception {
+        SocketChannel noVNC = SocketChannel.open(server.getLocalAddress());
+        SocketChannel source = server.accept();
+        SocketChannel target = SocketChannel.open(server.getLocalAddress());
+        SocketChannel destination = server.accept();
+        TcpTransferRunner runner = this.park("pipe-2", source);
+        destination.configureBlocking(false);
+        runner.claim();
+        runner.setDestinationChannel(destination);
+        runner.setDestinationReady(true);
+        runner.start();
+
+        monitor.sample();
+        ByteBuffer up = ByteBuffer.allocate(64 * 1024);
+        while (up.hasRemaining()) {
+            noVNC.write(up);
+        }
+        ByteBuffer received = ByteBuffer.allocate(64 * 1024);
+        while (received.hasRemaining()) {
+            target.read(received);
+        }
+        Thread.sleep(20);
+        monitor.sample();
+
+        SessionSnapshot snapshot = monitor.snapshot("pipe-2");
+        assertNotNull(snapshot);
+        assertTrue(snapshot.isOn());
+        assertEquals(64 * 1024, snapshot.getUpstreamBytes());
+        assertTrue(snapshot.getUpstreamRate() > 0);
+        assertEquals(0, snapshot.getDownstreamRate());
+
+        runner.close();
+        noVNC.close();
+        target.close();
+    }
+
+    private TcpTransferRunner park(String pipe, SocketChannel source) throws IOException {
+        source.configureBlocking(false);
+        TcpProtocolBody body = new TcpProtocolBody("connectNoVNCServer_c2s", pipe);
+        body.setUserguid("user-1");
+        TcpTransferRunner runner = new TcpTransferRunner(pipe, eventLoop, relayContext, true, source);
+        runner.setUserguid(body.getUserguid());
+        assertTrue(pipeRegistry.park(body, runner));
+        return runner;
+    }
+}
@@ -0,0 +1,137 @@
+package com.goldencis.tcpserver.mq;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * 测试用的redis模拟服务，支持PUBLISH、SET、SETEX、GET、PING。
+ * PUBLISH对offline频道返回0，其他频道返回1；SETEX不处理有效期。
+ */
+public class FakeRedis implements Runnable {
+
+    private final ServerSocket server = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+
+    //收到的频道和消息
+    public final List<String[]> published = new CopyOnWriteArrayList<>();
+
+    public final Map<String, String> values = new ConcurrentHashMap<>();
+
+    //不为空时，收到第一条命令后等待放行再处理
+    public volatile CountDownLatch hold;
+
+    public FakeRedis() throws IOException {
+        Thread thread = new Thread(this, "fake-redis");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    public int getPort() {
+        return server.getLocalPort();
+    }
+
+    @Override
+    public void run() {
+        try {
+            while (true) {
+                Socket socket = server.accept();
+                Thread thread = new Thread(() -> this.serve(socket));
+                thread.setDaemon(true);
+                thread.start();
+            }
+        } catch (IOException e) {
+            //已关闭
+        }
+    }
+
+    private void serve(Socket socket) {
+        try (Socket s = socket) {
+            InputStream in = new BufferedInputStream(s.getInputStream());
+            OutputStream out = s.getOutputStream();
+            while (true) {
+                List<String> command = readCommand(in);
+                if (command == null) {
+                    return;
+                }
+                CountDownLatch latch = hold;
+                if (latch != null) {
+                    latch.await();
+                }
+                String name = command.get(0).toUpperCase();
+                String reply;
+                if ("PUBLISH".equals(name)) {
+                    published.add(new String[]{command.get(1), command.get(2)});
+                    reply = "offline".equals(command.get(1)) ? ":0\r\n" : ":1\r\n";
+                } else if ("SET".equals(name)) {
+                    values.put(command.get(1), command.get(2));
+                    reply = "+OK\r\n";
+                } else if ("SETEX".equals(name)) {
+                    values.put(command.get(1), command.get(3));
+                    reply = "+OK\r\n";
+                } else if ("GET".equals(name)) {
+                    String value = values.get(command.get(1));
+                    reply = value == null ? "$-1\r\n"
+                            : "$" + value.getBytes(StandardCharsets.UTF_8).length + "\r\n" + value + "\r\n";
+                } else if ("PING".equals(name)) {
+                    reply = "+PONG\r\n";
+                } else {
+                    reply = "-ERR unknown command\r\n";
+                }
+                out.write(reply.getBytes(StandardCharsets.UTF_8));
+                out.flush();
+            }
+        } catch (IOException | InterruptedException e) {
+            //连接关闭
+        }
+    }
+
+    private static List<String> readCommand(InputStream in) throws IOException {
+        String line = readLine(in);
+        if (line == null) {
+            return null;
+        }
+        int count = Integer.parseInt(line.substring(1));
+        List<String> args = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            int length = Integer.parseInt(readLine(in).substring(1));
+            byte[] bytes = new byte[length + 2];
+            int read = 0;
+            while (read < bytes.length) {
+                int n = in.read(bytes, read, bytes.length - read);
+                if (n < 0) {
+                    return null;
+                }
+                read += n;
+            }
+            args.add(new String(bytes, 0, length, StandardCharsets.UTF_8));
+        }
+        return args;
+    }
+
+    private static String readLine(InputStream in) throws IOException {
+        StringBuilder line = new StringBuilder();
+        int b;
+        while ((b = in.read()) >= 0) {
+            if (b == '\n') {
+                return line.substring(0, line.length() - 1);
+            }
+            line.append((char) b);
+        }
+        return null;
+    }
+
+    public void close() throws IOException {
+        server.close();
+    }
+}
@@ -0,0 +1,126 @@
+package com.goldencis.tcpserver.mq;
+
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * 使用模拟的redis服务验证异步批量通知
+ */
+public class RedisNotifierTest {
+
+    private FakeRedis redis;
+
+    private RedisNotifier notifier;
+
+    @After
+    public void tearDown() throws IOException {
+        if (notifier != null) {
+            notifier.stop();
+        }
+        if (redis != null) {
+            redis.close();
+        }
+    }
+
+    @Test
+    public void publishInBatches() throws Exception {
+        redis = new FakeRedis();
+        //先阻塞服务端，让通知在队列中积压
+        redis.hold = new CountDownLatch(1);
+        notifier = new RedisNotifier("127.0.0.1", redis.getPort(), 1000, 64);
+        notifier.start();
+
+        List<CompletableFuture<Boolean>> futures = new ArrayList<>();
+        for (int i = 0; i < 200; i++) {
+            futures.add(notifier.clientNotify("guid-" + i, "connectVncServer_c2s", "{\"pipe\":\"p" + i + "\"}", MQClient.MSG_REALTIME));
+        }
+        redis.hold.countDown();
+        for (CompletableFuture<Boolean> future : futures) {
+            assertTrue(future.get(5, TimeUnit.SECONDS));
+        }
+
+        assertEquals(200, redis.published.size());
+        assertEquals(200, notifier.getSentCount());
+        //积压的通知合并发送，批次数远少于通知数
+        assertTrue(notifier.getBatchCount() <= 5);
+
+        String[] first = redis.published.get(0);
+        assertEquals("guid-0", first[0]);
+        JSONObject payload = new JSONObject(first[1]);
+        assertEquals("connectVncServer_c2s", payload.getString("message"));
+        assertEquals("p0", payload.getJSONObject("content").getString("pipe"));
+    }
+
+    @Test
+    public void reportNoSubscriber() throws Exception {
+        redis = new FakeRedis();
+        notifier = new RedisNotifier("127.0.0.1", redis.getPort(), 16, 16);
+        notifier.start();
+
+        //模拟服务对offline频道返回0个订阅者
+        assertFalse(notifier.clientNotify("offline", "m", "c", MQClient.MSG_REALTIME).get(5, TimeUnit.SECONDS));
+        //非实时消息发往消息缓存服务的频道
+        assertTrue(notifier.clientNotify("a;b", "m", "c", MQClient.MSG_CACHED).get(5, TimeUnit.SECONDS));
+        assertEquals(MQClient.NOTIFY_CHANNEL, redis.published.get(1)[0]);
+        assertEquals("a;b", new JSONObject(redis.published.get(1)[1]).getString("clients"));
+    }
+
+    @Test
+    public void rejectWhenQueueIsFull() throws Exception {
+        redis = new FakeRedis();
+        redis.hold = new CountDownLatch(1);
+        notifier = new RedisNotifier("127.0.0.1", redis.getPort(), 4, 1);
+        notifier.start();
+
+        List<CompletableFuture<Boolean>> futures = new ArrayList<>();
+        for (int i = 0; i < 20; i++) {
+            futures.add(notifier.clientNotify("guid", "m", "c", MQClient.MSG_REALTIME));
+        }
+        assertTrue(notifier.getOverflowCount() > 0);
+        int rejected = 0;
+        redis.hold.countDown();
+        for (CompletableFuture<Boolean> future : futures) {
+            try {
+                future.get(5, TimeUnit.SECONDS);
+            } catch (ExecutionException e) {
+                assertTrue(e.getCause() instanceof RejectedExecutionException);
+                rejected++;
+            }
+        }
+        assertEquals(notifier.getOverflowCount(), rejected);
+    }
+
+    @Test
+    public void failWhenRedisIsDown() throws Exception {
+        //取一个未监听的端口
+        int port;
+        try (ServerSocket socket = new ServerSocket(0)) {
+            port = socket.getLocalPort();
+        }
+        notifier = new RedisNotifier("127.0.0.1", port, 16, 16);
+        notifier.start();
+        try {
+            notifier.clientNotify("guid", "m", "c", MQClient.MSG_REALTIME).get(5, TimeUnit.SECONDS);
+            fail();
+        } catch (ExecutionException e) {
+            //连接失败
+        }
+        assertEquals(1, notifier.getFailedCount());
+    }
+}
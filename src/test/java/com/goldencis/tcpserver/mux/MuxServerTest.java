@@ -0,0 +1,247 @@
+package com.goldencis.tcpserver.mux;
+
+import com.goldencis.tcpserver.buffer.BufferPool;
+import com.goldencis.tcpserver.constants.ConstantsDto;
+import com.goldencis.tcpserver.entity.TcpProtocolBody;
+import com.goldencis.tcpserver.runner.EventLoopGroup;
+import com.goldencis.tcpserver.runner.PipeRegistry;
+import com.goldencis.tcpserver.runner.RelayContext;
+import com.goldencis.tcpserver.runner.TcpTransferRunner;
+import com.goldencis.tcpserver.timer.HashedTimingWheel;
+import com.goldencis.tcpserver.utils.StreamFrameEncoder;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * 验证一个目标端连接上按流配对多个管道，以及每个流独立的流控窗口
+ */
+public class MuxServerTest {
+
+    private static final int WINDOW = 64 * 1024;
+
+    private ServerSocketChannel server;
+
+    private EventLoopGroup eventLoopGroup;
+
+    private BufferPool bufferPool = new BufferPool(512, 256 * 1024, 1024 * 1024, 8 * 1024 * 1024);
+
+    private HashedTimingWheel timingWheel = new HashedTimingWheel("test-timer", 10, TimeUnit.MILLISECONDS, 64);
+
+    private RelayContext relayContext = new RelayContext(bufferPool, new PipeRegistry(4), timingWheel);
+
+    private MuxServer muxServer;
+
+    //目标端的多路复用连接
+    private Socket agent;
+
+    private DataInputStream in;
+
+    private DataOutputStream out;
+
+    @Before
+    public void setUp() throws IOException {
+        server = ServerSocketChannel.open();
+        server.bind(new InetSocketAddress("127.0.0.1", 0));
+        eventLoopGroup = new EventLoopGroup(2, 4);
+        muxServer = new MuxServer(eventLoopGroup, relayContext, WINDOW, 16);
+
+        agent = new Socket("127.0.0.1", server.socket().getLocalPort());
+        agent.setSoTimeout(5000);
+        in = new DataInputStream(agent.getInputStream());
+        out = new DataOutputStream(agent.getOutputStream());
+        SocketChannel accepted = server.accept();
+        accepted.configureBlocking(false);
+        muxServer.accept(accepted, new TcpProtocolBody(ConstantsDto.CONNECT_MUX, null));
+
+        //握手响应
+        assertEquals((int) ConstantsDto.TCP_PROTOCOL_VERIFY, in.readInt());
+        assertEquals((int) ConstantsDto.TCP_PROTOCOL_VERSION, in.readInt());
+        byte[] body = new byte[in.readInt() - ConstantsDto.TCP_PROTOCOL_HEAD_SIZE];
+        in.readFully(body);
+        assertTrue(new String(body, StandardCharsets.UTF_8).contains(ConstantsDto.CONNECT_VNC_SUCCESS));
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        agent.close();
+        eventLoopGroup.shutdown();
+        timingWheel.stop();
+        server.close();
+    }
+
+    @Test
+    public void relayStreamsOverOneConnection() throws Exception {
+        SocketChannel noVNC1 = this.park("pipe-1");
+        SocketChannel noVNC2 = this.park("pipe-2");
+
+        this.send(1, StreamFrameEncoder.OPEN, "pipe-1".getBytes(StandardCharsets.UTF_8));
+        this.send(3, StreamFrameEncoder.OPEN, "pipe-2".getBytes(StandardCharsets.UTF_8));
+        this.send(5, StreamFrameEncoder.OPEN, "pipe-missing".getBytes(StandardCharsets.UTF_8));
+        Frame frame = this.receive();
+        assertEquals(1, frame.id);
+        assertEquals(StreamFrameEncoder.OPEN, frame.type);
+        assertEquals(3, this.receive().id);
+        frame = this.receive();
+        assertEquals(5, frame.id);
+        assertEquals(StreamFrameEncoder.CLOSE, frame.type);
+        assertEquals(1, muxServer.getStreamsRejected());
+        assertEquals(2, muxServer.getStreamCount());
+        assertEquals(1, muxServer.getConnectionCount());
+
+        //目标端到noVNC端
+        this.send(1, StreamFrameEncoder.DATA, "RFB 003.008\n".getBytes());
+        assertArrayEquals("RFB 003.008\n".getBytes(), readFully(noVNC1, 12));
+
+        //noVNC端到目标端，按流id区分
+        noVNC2.write(ByteBuffer.wrap("hello".getBytes()));
+        frame = this.receive();
+        assertEquals(3, frame.id);
+        assertEquals(StreamFrameEncoder.DATA, frame.type);
+        assertArrayEquals("hello".getBytes(), frame.payload);
+
+        //noVNC端关闭，目标端收到CLOSE
+        noVNC2.close();
+        frame = this.receive();
+        assertEquals(3, frame.id);
+        assertEquals(StreamFrameEncoder.CLOSE, frame.type);
+
+        //目标端关闭流，noVNC端随之关闭
+        this.send(1, StreamFrameEncoder.CLOSE, new byte[0]);
+        assertEquals(-1, noVNC1.read(ByteBuffer.allocate(16)));
+        noVNC1.close();
+        for (int i = 0; i < 200 && muxServer.getStreamCount() > 0; i++) {
+            Thread.sleep(10);
+        }
+        assertEquals(0, muxServer.getStreamCount());
+    }
+
+    @Test
+    public void stopAtWindowUntilUpdated() throws Exception {
+        SocketChannel noVNC = this.park("pipe-1");
+        this.send(1, StreamFrameEncoder.OPEN, "pipe-1".getBytes(StandardCharsets.UTF_8));
+        assertEquals(StreamFrameEncoder.OPEN, this.receive().type);
+
+        byte[] up = new byte[WINDOW * 4];
+        new Random(1).nextBytes(up);
+        Thread writer = new Thread(() -> {
+            try {
+                ByteBuffer buffer = ByteBuffer.wrap(up);
+                while (buffer.hasRemaining()) {
+                    noVNC.write(buffer);
+                }
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        });
+        writer.start();
+
+        //不归还窗口时最多收到一个窗口的数据
+        byte[] received = new byte[up.length];
+        int length = this.receiveData(received, 0, WINDOW);
+        assertEquals(WINDOW, length);
+        agent.setSoTimeout(200);
+        try {
+            this.receive();
+            fail();
+        } catch (SocketTimeoutException e) {
+            //窗口已用尽
+        }
+        assertTrue(muxServer.getWindowStalls() > 0);
+
+        //每收到一个窗口归还一次
+        agent.setSoTimeout(5000);
+        while (length < up.length) {
+            this.send(1, StreamFrameEncoder.WINDOW_UPDATE, ByteBuffer.allocate(4).putInt(WINDOW).array());
+            length = this.receiveData(received, length, length + WINDOW);
+        }
+        writer.join();
+        assertArrayEquals(up, received);
+    }
+
+    /**
+     * 登记noVNC端的会话
+     * @return noVNC端的客户端通道
+     */
+    private SocketChannel park(String pipe) throws IOException {
+        SocketChannel noVNC = SocketChannel.open(server.getLocalAddress());
+        SocketChannel accepted = server.accept();
+        accepted.configureBlocking(false);
+        TcpTransferRunner runner = new TcpTransferRunner(pipe, eventLoopGroup.next(), relayContext, true, accepted);
+        assertTrue(relayContext.getPipeRegistry().park(new TcpProtocolBody(ConstantsDto.CONNECT_NOVNC_SERVER, pipe), runner));
+        return noVNC;
+    }
+
+    private void send(int id, byte type, byte[] payload) throws IOException {
+        out.writeInt(id);
+        out.writeByte(type);
+        out.writeInt(payload.length);
+        out.write(payload);
+        out.flush();
+    }
+
+    private Frame receive() throws IOException {
+        Frame frame = new Frame();
+        frame.id = in.readInt();
+        frame.type = in.readByte();
+        frame.payload = new byte[in.readInt()];
+        in.readFully(frame.payload);
+        return frame;
+    }
+
+    /**
+     * 接收流1的DATA帧直到指定位置
+     * @return 已接收的总字节数
+     */
+    private int receiveData(byte[] received, int from, int to) throws IOException {
+        int length = from;
+        while (length < to) {
+            Frame frame = this.receive();
+            assertEquals(1, frame.id);
+            if (frame.type == StreamFrameEncoder.WINDOW_UPDATE) {
+                continue;
+            }
+            assertEquals(StreamFrameEncoder.DATA, frame.type);
+            System.arraycopy(frame.payload, 0, received, length, frame.payload.length);
+            length += frame.payload.length;
+        }
+        return length;
+    }
+
+    private static byte[] readFully(SocketChannel channel, int length) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer) < 0) {
+                throw new IOException("提前关闭");
+            }
+        }
+        return buffer.array();
+    }
+
+    private static class Frame {
+
+        int id;
+
+        byte type;
+
+        byte[] payload;
+    }
+}
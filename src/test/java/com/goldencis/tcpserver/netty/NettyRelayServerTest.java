@@ -0,0 +1,147 @@
+package com.goldencis.tcpserver.netty;
+
+import com.goldencis.tcpserver.constants.ConstantsDto;
+import com.goldencis.tcpserver.entity.TcpProtocolBody;
+import io.netty.channel.Channel;
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.UUID;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static com.goldencis.tcpserver.utils.TcpFrameDecoderTest.binaryFrame;
+import static com.goldencis.tcpserver.utils.TcpFrameDecoderTest.frame;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+
+/**
+ * 通过本地回环连接验证netty引擎的握手、配对和双向转发
+ */
+public class NettyRelayServerTest {
+
+    private BlockingQueue<TcpProtocolBody> notified = new LinkedBlockingQueue<>();
+
+    private NettyRelayServer server;
+
+    @Before
+    public void setUp() throws Exception {
+        //redis通知改为记录到队列
+        server = new NettyRelayServer(0, 0) {
+            @Override
+            void notifyVNCTarget(TcpProtocolBody body, Channel channel) {
+                notified.add(body);
+            }
+        };
+        server.start();
+    }
+
+    @After
+    public void tearDown() {
+        server.stop();
+    }
+
+    @Test
+    public void pairAndRelayJson() throws Exception {
+        String pipe = UUID.randomUUID().toString();
+        try (Socket noVNC = new Socket("127.0.0.1", server.getNoVNCPort());
+             Socket target = new Socket("127.0.0.1", server.getVNCtargetPort())) {
+            noVNC.getOutputStream().write(frame(ConstantsDto.TCP_PROTOCOL_VERIFY,
+                    "{\"action\":\"" + ConstantsDto.CONNECT_NOVNC_SERVER + "\",\"pipe\":\"" + pipe + "\",\"userguid\":\"u-1\"}"));
+            TcpProtocolBody body = notified.poll(5, TimeUnit.SECONDS);
+            assertNotNull(body);
+            assertEquals(pipe, body.getPipe());
+
+            //握手帧后紧跟的数据在配对后转发
+            byte[] handshake = frame(ConstantsDto.TCP_PROTOCOL_VERIFY,
+                    "{\"action\":\"" + ConstantsDto.CONNECT_VNC_CLIENT + "\",\"pipe\":\"" + pipe + "\"}");
+            byte[] hello = "RFB 003.008\n".getBytes();
+            byte[] first = Arrays.copyOf(handshake, handshake.length + hello.length);
+            System.arraycopy(hello, 0, first, handshake.length, hello.length);
+            target.getOutputStream().write(first);
+
+            DataInputStream in = new DataInputStream(target.getInputStream());
+            assertEquals(ConstantsDto.TCP_PROTOCOL_VERIFY.intValue(), in.readInt());
+            assertEquals(ConstantsDto.TCP_PROTOCOL_VERSION.intValue(), in.readInt());
+            byte[] response = new byte[in.readInt() - ConstantsDto.TCP_PROTOCOL_HEAD_SIZE];
+            in.readFully(response);
+            assertEquals(pipe, new JSONObject(new String(response)).getString("pipe"));
+
+            assertArrayEquals(hello, readFully(noVNC.getInputStream(), hello.length));
+            this.relay(noVNC, target);
+            assertEquals(0, server.size());
+        }
+    }
+
+    @Test
+    public void pairAndRelayBinary() throws Exception {
+        UUID pipe = UUID.randomUUID();
+        try (Socket noVNC = new Socket("127.0.0.1", server.getNoVNCPort());
+             Socket target = new Socket("127.0.0.1", server.getVNCtargetPort())) {
+            noVNC.getOutputStream().write(binaryFrame(ConstantsDto.ACTION_CONNECT_NOVNC_SERVER, pipe, "u-1"));
+            assertNotNull(notified.poll(5, TimeUnit.SECONDS));
+
+            target.getOutputStream().write(binaryFrame(ConstantsDto.ACTION_CONNECT_VNC_CLIENT, pipe, ""));
+            byte[] response = readFully(target.getInputStream(), ConstantsDto.TCP_PROTOCOL_HEAD_SIZE + ConstantsDto.TCP_PROTOCOL_BINARY_BODY_SIZE);
+            assertEquals(ConstantsDto.ACTION_CONNECT_VNC_SUCCESS, response[ConstantsDto.TCP_PROTOCOL_HEAD_SIZE]);
+
+            this.relay(noVNC, target);
+        }
+    }
+
+    @Test
+    public void closeUnknownPipe() throws Exception {
+        try (Socket target = new Socket("127.0.0.1", server.getVNCtargetPort())) {
+            target.getOutputStream().write(binaryFrame(ConstantsDto.ACTION_CONNECT_VNC_CLIENT, UUID.randomUUID(), ""));
+            assertEquals(-1, target.getInputStream().read());
+        }
+    }
+
+    private void relay(Socket noVNC, Socket target) throws Exception {
+        byte[] up = new byte[512 * 1024];
+        byte[] down = new byte[2 * 1024 * 1024];
+        new Random(1).nextBytes(up);
+        new Random(2).nextBytes(down);
+
+        Thread writer = writeAsync(noVNC.getOutputStream(), up);
+        assertArrayEquals(up, readFully(target.getInputStream(), up.length));
+        writer.join();
+
+        writer = writeAsync(target.getOutputStream(), down);
+        assertArrayEquals(down, readFully(noVNC.getInputStream(), down.length));
+        writer.join();
+
+        //一端关闭后另一端随之关闭
+        noVNC.close();
+        assertEquals(-1, target.getInputStream().read());
+    }
+
+    private static Thread writeAsync(OutputStream out, byte[] data) {
+        Thread writer = new Thread(() -> {
+            try {
+                out.write(data);
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        });
+        writer.start();
+        return writer;
+    }
+
+    private static byte[] readFully(InputStream in, int size) throws IOException {
+        byte[] data = new byte[size];
+        new DataInputStream(in).readFully(data);
+        return data;
+    }
+}
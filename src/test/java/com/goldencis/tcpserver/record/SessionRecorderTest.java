@@ -0,0 +1,197 @@
+package com.goldencis.tcpserver.record;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * 验证录制记录写入段文件、段文件切换、管道索引和队列已满时的丢弃
+ */
+public class SessionRecorderTest {
+
+    private Path dir;
+
+    @Before
+    public void setUp() throws IOException {
+        dir = Files.createTempDirectory("record");
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        try (Stream<Path> paths = Files.walk(dir)) {
+            for (Path path : paths.sorted((a, b) -> b.compareTo(a)).collect(Collectors.toList())) {
+                Files.delete(path);
+            }
+        }
+    }
+
+    @Test
+    public void recordAcrossSegments() throws Exception {
+        //段文件很小，会话跨多个段文件
+        SessionRecorder recorder = new SessionRecorder(dir.toString(), 4096, 1024, 1000);
+        recorder.start();
+        RecordingSession session = recorder.open("pipe/1", "user-1");
+        assertNotNull(session);
+
+        ByteArrayOutputStream upstream = new ByteArrayOutputStream();
+        ByteArrayOutputStream downstream = new ByteArrayOutputStream();
+        for (int i = 0; i < 20; i++) {
+            byte[] data = new byte[500 + i];
+            for (int j = 0; j < data.length; j++) {
+                data[j] = (byte) (i + j);
+            }
+            //数据位于缓冲块中间，录制不改变缓冲块的位置
+            ByteBuffer chunk = ByteBuffer.allocate(data.length + 20);
+            chunk.position(10);
+            chunk.put(data);
+            chunk.flip();
+            byte direction = i % 3 == 0 ? RecordingSession.DOWNSTREAM : RecordingSession.UPSTREAM;
+            session.record(direction, chunk, 10, 10 + data.length);
+            assertEquals(0, chunk.position());
+            (direction == RecordingSession.UPSTREAM ? upstream : downstream).write(data);
+        }
+        session.close();
+        recorder.stop();
+        assertEquals(0, recorder.getDroppedRecords());
+        assertEquals(22, recorder.getWrittenRecords());
+
+        List<Record> records = this.readSegments();
+        assertEquals(SegmentWriter.TYPE_START, records.get(0).type);
+        ByteBuffer start = ByteBuffer.wrap(records.get(0).payload);
+        start.getLong();
+        assertEquals("pipe/1", this.string(start));
+        assertEquals("user-1", this.string(start));
+        assertEquals(SegmentWriter.TYPE_END, records.get(records.size() - 1).type);
+
+        ByteArrayOutputStream recordedUpstream = new ByteArrayOutputStream();
+        ByteArrayOutputStream recordedDownstream = new ByteArrayOutputStream();
+        long nanos = 0;
+        for (Record record : records) {
+            assertEquals(session.getId(), record.sessionId);
+            assertTrue(record.nanos >= nanos);
+            nanos = record.nanos;
+            if (record.type == SegmentWriter.TYPE_DATA) {
+                (record.direction == RecordingSession.UPSTREAM ? recordedUpstream : recordedDownstream).write(record.payload);
+            }
+        }
+        assertArrayEquals(upstream.toByteArray(), recordedUpstream.toByteArray());
+        assertArrayEquals(downstream.toByteArray(), recordedDownstream.toByteArray());
+
+        //索引记录开始、跨入的每个段文件和结束
+        RecordIndex index = RecordIndex.load(dir, "pipe/1");
+        List<RecordIndex.Entry> entries = index.entries(session.getId());
+        assertEquals(RecordIndex.START, entries.get(0).getEvent());
+        assertEquals("segment-00000001.seg", entries.get(0).getSegment());
+        assertEquals(SegmentWriter.FILE_HEADER_SIZE, entries.get(0).getOffset());
+        assertEquals(RecordIndex.END, entries.get(entries.size() - 1).getEvent());
+        long segments;
+        try (Stream<Path> paths = Files.list(dir)) {
+            segments = paths.filter(path -> path.toString().endsWith(SegmentWriter.SEGMENT_SUFFIX)).count();
+        }
+        assertTrue(segments > 2);
+        assertEquals(segments - 1, entries.stream().filter(entry -> RecordIndex.SEGMENT.equals(entry.getEvent())).count());
+    }
+
+    @Test
+    public void dropWhenRingFull() throws Exception {
+        SessionRecorder recorder = new SessionRecorder(dir.toString(), 64 * 1024, 4, 1000);
+        recorder.start();
+        //停止写文件线程，之后由测试线程消费队列
+        recorder.stop();
+
+        RecordingSession session = recorder.open("pipe-2", "user-2");
+        for (int i = 0; i < 4; i++) {
+            session.record(RecordingSession.UPSTREAM, ByteBuffer.wrap(new byte[]{(byte) i}), 0, 1);
+        }
+        //开始记录和前三条数据占满队列，第四条被丢弃
+        assertEquals(4, recorder.getQueueSize());
+        assertEquals(1, recorder.getDroppedRecords());
+        assertEquals(1, recorder.getDroppedBytes());
+        recorder.run();
+        assertEquals(0, recorder.getQueueSize());
+
+        session.record(RecordingSession.UPSTREAM, ByteBuffer.wrap(new byte[]{4}), 0, 1);
+        session.close();
+        recorder.run();
+
+        List<Record> records = this.readSegments();
+        assertEquals(6, records.size());
+        for (int i = 1; i < 4; i++) {
+            assertEquals(0, records.get(i).flags);
+            assertEquals(i - 1, records.get(i).payload[0]);
+        }
+        //丢弃之后的第一条记录带有缺失标志
+        assertEquals(SegmentWriter.FLAG_GAP, records.get(4).flags);
+        assertEquals(4, records.get(4).payload[0]);
+        assertEquals(SegmentWriter.TYPE_END, records.get(5).type);
+        assertEquals(0, records.get(5).flags);
+    }
+
+    /**
+     * 按编号顺序读取全部段文件中的记录
+     */
+    private List<Record> readSegments() throws IOException {
+        List<Path> segments;
+        try (Stream<Path> paths = Files.list(dir)) {
+            segments = paths.filter(path -> path.toString().endsWith(SegmentWriter.SEGMENT_SUFFIX))
+                    .sorted().collect(Collectors.toList());
+        }
+        List<Record> records = new ArrayList<>();
+        for (Path path : segments) {
+            ByteBuffer buffer = ByteBuffer.wrap(Files.readAllBytes(path));
+            assertEquals(SegmentWriter.MAGIC, buffer.getInt());
+            assertEquals(buffer.capacity(), buffer.getInt());
+            int length;
+            while ((length = buffer.getInt()) != 0) {
+                Record record = new Record();
+                record.type = buffer.get();
+                record.direction = buffer.get();
+                record.flags = buffer.get();
+                buffer.get();
+                record.sessionId = buffer.getLong();
+                record.nanos = buffer.getLong();
+                record.payload = new byte[length - SegmentWriter.RECORD_HEADER_SIZE];
+                buffer.get(record.payload);
+                records.add(record);
+            }
+        }
+        return records;
+    }
+
+    private String string(ByteBuffer buffer) {
+        byte[] bytes = new byte[buffer.getShort()];
+        buffer.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static class Record {
+
+        byte type;
+
+        byte direction;
+
+        byte flags;
+
+        long sessionId;
+
+        long nanos;
+
+        byte[] payload;
+    }
+}
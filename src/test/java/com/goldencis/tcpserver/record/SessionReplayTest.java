@@ -0,0 +1,141 @@
+package com.goldencis.tcpserver.record;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * 验证录制会话的顺序读取、跨段文件、按时间定位和回放节奏
+ */
+public class SessionReplayTest {
+
+    private Path dir;
+
+    private List<byte[]> chunks = new ArrayList<>();
+
+    @Before
+    public void setUp() throws Exception {
+        dir = Files.createTempDirectory("replay");
+        //段文件很小，定位点间隔10毫秒
+        SessionRecorder recorder = new SessionRecorder(dir.toString(), 4096, 1024, 10);
+        recorder.start();
+        //同时录制另一个会话，回放时跳过其记录
+        RecordingSession other = recorder.open("pipe-other", "user-2");
+        RecordingSession session = recorder.open("pipe-1", "user-1");
+        for (int i = 0; i < 30; i++) {
+            byte[] data = new byte[300];
+            data[0] = (byte) i;
+            chunks.add(data);
+            byte direction = i % 2 == 0 ? RecordingSession.DOWNSTREAM : RecordingSession.UPSTREAM;
+            session.record(direction, ByteBuffer.wrap(data), 0, data.length);
+            other.record(RecordingSession.DOWNSTREAM, ByteBuffer.wrap(new byte[100]), 0, 100);
+            Thread.sleep(5);
+        }
+        session.close();
+        other.close();
+        recorder.stop();
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        try (Stream<Path> paths = Files.walk(dir)) {
+            for (Path path : paths.sorted((a, b) -> b.compareTo(a)).collect(Collectors.toList())) {
+                Files.delete(path);
+            }
+        }
+    }
+
+    @Test
+    public void readAndSeek() throws Exception {
+        SessionReplay replay = SessionReplay.open(dir, "pipe-1");
+        assertEquals("pipe-1", replay.getPipe());
+        assertEquals("user-1", replay.getUserguid());
+
+        List<Long> millis = new ArrayList<>();
+        for (int i = 0; i < chunks.size(); i++) {
+            assertTrue(replay.next());
+            assertEquals(i % 2 == 0 ? RecordingSession.DOWNSTREAM : RecordingSession.UPSTREAM, replay.direction());
+            assertFalse(replay.isGap());
+            byte[] payload = new byte[replay.payload().remaining()];
+            replay.payload().get(payload);
+            assertArrayEquals(chunks.get(i), payload);
+            millis.add(replay.millis());
+        }
+        assertFalse(replay.next());
+        assertTrue(RecordIndex.load(dir, "pipe-1").entries(replay.getSessionId()).stream()
+                .filter(entry -> RecordIndex.MARK.equals(entry.getEvent())).count() > 2);
+
+        //定位到某条记录的时间，之后读到的第一条不早于该时间
+        replay.seek(millis.get(20));
+        assertTrue(replay.next());
+        assertTrue(replay.millis() >= millis.get(20));
+        assertTrue(replay.payload().get(replay.payload().position()) <= 20);
+        int index = replay.payload().get(replay.payload().position());
+        for (int i = index + 1; i < chunks.size(); i++) {
+            assertTrue(replay.next());
+            assertEquals(i, replay.payload().get(replay.payload().position()));
+        }
+        assertFalse(replay.next());
+
+        //早于会话开始时从头读取，晚于结束时没有记录
+        replay.seek(0);
+        assertTrue(replay.next());
+        assertEquals(0, replay.payload().get(replay.payload().position()));
+        replay.seek(Long.MAX_VALUE);
+        assertFalse(replay.next());
+    }
+
+    @Test
+    public void paceBySpeed() throws Exception {
+        SessionReplay replay = SessionReplay.open(dir, "pipe-1");
+        assertTrue(replay.next());
+        long first = replay.nanos();
+        long last = first;
+        ReplayClock clock = new ReplayClock(4);
+        long start = System.nanoTime();
+        clock.await(first);
+        while (replay.next()) {
+            last = replay.nanos();
+            clock.await(last);
+        }
+        //4倍速回放用时不少于录制时长的四分之一，且明显短于录制时长
+        long elapsed = System.nanoTime() - start;
+        assertTrue(elapsed >= (last - first) / 4);
+        assertTrue(elapsed < last - first);
+
+        //最快速度不等待
+        replay = SessionReplay.open(dir, "pipe-1");
+        clock = new ReplayClock(ReplayClock.MAX_SPEED);
+        start = System.nanoTime();
+        while (replay.next()) {
+            clock.await(replay.nanos());
+        }
+        assertTrue(System.nanoTime() - start < (last - first) / 4);
+    }
+
+    @Test
+    public void missingRecording() throws Exception {
+        try {
+            SessionReplay.open(dir, "pipe-none");
+            fail();
+        } catch (NoSuchFileException e) {
+            //管道没有录制
+        }
+    }
+}
@@ -0,0 +1,37 @@
+package com.goldencis.tcpserver.runner;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+/**
+ * 事件循环随转发引擎启动或在第一次取用时启动
+ */
+public class EventLoopGroupTest {
+
+    @Test
+    public void startWithNioEngine() throws Exception {
+        EventLoopGroup group = new EventLoopGroup(2, 16);
+        try {
+            assertEquals(2, group.getLoops().length);
+            assertSame(group.getLoops()[0], group.next());
+        } finally {
+            group.shutdown();
+        }
+    }
+
+    @Test
+    public void startLazilyWithNettyEngine() throws Exception {
+        EventLoopGroup group = new EventLoopGroup(2, 16, "netty");
+        try {
+            //netty引擎不使用这些循环，未取用前不启动线程
+            assertEquals(0, group.getLoops().length);
+            EventLoop loop = group.next();
+            assertEquals(2, group.getLoops().length);
+            assertSame(loop, group.getLoops()[0]);
+        } finally {
+            group.shutdown();
+        }
+    }
+}
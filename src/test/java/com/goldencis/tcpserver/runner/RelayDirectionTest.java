@@ -0,0 +1,325 @@
+package com.goldencis.tcpserver.runner;
+
+import com.goldencis.tcpserver.buffer.BufferPool;
+import com.goldencis.tcpserver.compress.BlockDeflater;
+import com.goldencis.tcpserver.compress.BlockInflater;
+import com.goldencis.tcpserver.websocket.WebSocketFrameDecoder;
+import com.goldencis.tcpserver.websocket.WebSocketFrameTest;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.concurrent.atomic.LongAdder;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * 用模拟的两端验证数据泵的合并写出和聚集写
+ */
+public class RelayDirectionTest {
+
+    private BufferPool bufferPool = new BufferPool(512, 256 * 1024, 1024 * 1024, 8 * 1024 * 1024);
+
+    @Test
+    public void writeImmediatelyWithoutCoalescing() throws Exception {
+        ScriptedEndpoint from = new ScriptedEndpoint(messages(8, 100));
+        ScriptedEndpoint to = new ScriptedEndpoint(new ArrayDeque<>());
+        LongAdder totalWrites = new LongAdder();
+        RelayDirection direction = new RelayDirection(from, to, bufferPool, 1024 * 1024, 256 * 1024,
+                new LongAdder(), totalWrites);
+
+        direction.read(16);
+        assertFalse(direction.isFlushDue());
+        assertEquals(8, to.writes);
+        assertEquals(8, direction.getWrites());
+        assertEquals(8, totalWrites.sum());
+        assertEquals(800, to.written.size());
+        direction.release();
+        assertEquals(0, bufferPool.getStats().getInUse());
+    }
+
+    @Test
+    public void coalesceReadsIntoOneGatheringWrite() throws Exception {
+        ScriptedEndpoint from = new ScriptedEndpoint(messages(8, 100));
+        ScriptedEndpoint to = new ScriptedEndpoint(new ArrayDeque<>());
+        LongAdder totalWrites = new LongAdder();
+        RelayDirection direction = new RelayDirection(from, to, bufferPool, 1024 * 1024, 256 * 1024,
+                new LongAdder(), totalWrites);
+        direction.setCoalesceBytes(64 * 1024);
+
+        //未达到合并阈值，读到的数据留到本轮结束时写出
+        direction.read(16);
+        assertTrue(direction.isFlushDue());
+        assertEquals(0, to.writes);
+        assertEquals(800, direction.getPendingBytes());
+
+        direction.flush();
+        assertFalse(direction.isFlushDue());
+        assertEquals(1, to.writes);
+        assertEquals(1, totalWrites.sum());
+        assertEquals(0, direction.getPendingBytes());
+        byte[] expected = new byte[800];
+        for (int i = 0; i < expected.length; i++) {
+            expected[i] = (byte) (i / 100);
+        }
+        assertArrayEquals(expected, to.written.toByteArray());
+        assertEquals(0, bufferPool.getStats().getInUse());
+    }
+
+    @Test
+    public void flushEarlyWhenThresholdReached() throws Exception {
+        ScriptedEndpoint from = new ScriptedEndpoint(messages(8, 100));
+        ScriptedEndpoint to = new ScriptedEndpoint(new ArrayDeque<>());
+        RelayDirection direction = new RelayDirection(from, to, bufferPool, 1024 * 1024, 256 * 1024);
+        direction.setCoalesceBytes(300);
+
+        //每累积3条消息写出一次，剩余的2条留到本轮结束
+        direction.read(16);
+        assertEquals(2, to.writes);
+        assertEquals(200, direction.getPendingBytes());
+        assertTrue(direction.isFlushDue());
+        direction.flush();
+        assertEquals(3, to.writes);
+        assertEquals(800, to.written.size());
+    }
+
+    @Test
+    public void pauseReadWhenPoolExhausted() throws Exception {
+        //缓冲池只够一个读取用的缓冲块
+        BufferPool small = new BufferPool(512, 64 * 1024, 64 * 1024, 64 * 1024);
+        ScriptedEndpoint from = new ScriptedEndpoint(messages(2, 100));
+        ScriptedEndpoint to = new ScriptedEndpoint(new ArrayDeque<>());
+        RelayDirection direction = new RelayDirection(from, to, small, 1024 * 1024, 256 * 1024);
+        direction.setCoalesceBytes(64 * 1024);
+
+        direction.read(16);
+        assertTrue(direction.isStarved());
+        assertFalse(from.reading);
+        assertEquals(1, from.reads.size());
+        assertEquals(64 * 1024, small.getStats().getInUse());
+
+        //写出后缓冲块归还，恢复读取
+        direction.flush();
+        assertFalse(direction.isStarved());
+        assertTrue(from.reading);
+        direction.read(16);
+        direction.flush();
+        assertEquals(200, to.written.size());
+    }
+
+    @Test
+    public void stopReadingAfterHalfClose() throws Exception {
+        ScriptedEndpoint from = new ScriptedEndpoint(messages(1, 100));
+        from.eof = true;
+        ScriptedEndpoint to = new ScriptedEndpoint(new ArrayDeque<>());
+        to.writable = false;
+        RelayDirection direction = new RelayDirection(from, to, bufferPool, 1024 * 1024, 256 * 1024);
+
+        //源通道半关闭，目标通道写不进去，数据留在待写队列中
+        direction.read(16);
+        assertFalse(from.reading);
+        assertEquals(100, direction.getPendingBytes());
+        assertFalse(direction.isFinished());
+
+        //写出后也不再恢复读取
+        to.writable = true;
+        direction.flush();
+        assertFalse(from.reading);
+        assertTrue(direction.isFinished());
+        assertEquals(100, to.written.size());
+    }
+
+    @Test
+    public void watermarkCountsChunkCapacity() throws Exception {
+        ScriptedEndpoint from = new ScriptedEndpoint(messages(100, 10));
+        ScriptedEndpoint to = new ScriptedEndpoint(new ArrayDeque<>());
+        to.writable = false;
+        int chunk = bufferPool.getReadChunkSize();
+        RelayDirection direction = new RelayDirection(from, to, bufferPool, 4 * chunk, chunk);
+
+        //每条10字节的消息各占一个整块，4块后达到高水位
+        direction.read(100);
+        assertTrue(direction.isReadPaused());
+        assertFalse(from.reading);
+        assertEquals(40, direction.getPendingBytes());
+        assertEquals(4 * chunk, direction.getPendingMemory());
+        assertEquals(4 * chunk, bufferPool.getStats().getInUse());
+
+        to.writable = true;
+        direction.flush();
+        assertFalse(direction.isReadPaused());
+        assertTrue(from.reading);
+        assertEquals(0, direction.getPendingMemory());
+        direction.release();
+    }
+
+    @Test
+    public void pauseInflatingAtHighWatermark() throws Exception {
+        int chunk = bufferPool.getReadChunkSize();
+        byte[] block = new byte[chunk - BlockDeflater.HEADER_SIZE];
+        Arrays.fill(block, (byte) 7);
+        BlockDeflater deflater = new BlockDeflater(1, chunk);
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+        for (int i = 0; i < 8; i++) {
+            ByteBuffer buffer = ByteBuffer.allocate(chunk);
+            buffer.position(BlockDeflater.HEADER_SIZE);
+            buffer.put(block);
+            buffer.flip();
+            deflater.encode(buffer, BlockDeflater.HEADER_SIZE);
+            compressed.write(buffer.array(), 0, buffer.limit());
+        }
+        deflater.end();
+        ArrayDeque<byte[]> reads = new ArrayDeque<>();
+        reads.add(compressed.toByteArray());
+        ScriptedEndpoint target = new ScriptedEndpoint(reads);
+        ScriptedEndpoint noVNC = new ScriptedEndpoint(new ArrayDeque<>());
+        noVNC.writable = false;
+        RelayDirection direction = new RelayDirection(target, noVNC, bufferPool, 2 * chunk, chunk);
+        direction.setInflater(new BlockInflater(bufferPool));
+
+        //一次读取解压出8块，待写数据达到高水位时暂停解压，剩余输入留在解压端
+        direction.read(16);
+        assertTrue(direction.isReadPaused());
+        assertFalse(target.reading);
+        assertEquals(2 * chunk, direction.getPendingMemory());
+        //另有读取的输入和未写满的输出各一块
+        assertTrue(bufferPool.getStats().getInUse() <= 4 * chunk);
+
+        noVNC.writable = true;
+        direction.flush();
+        assertFalse(direction.isReadPaused());
+        assertTrue(target.reading);
+        assertEquals(8 * block.length, noVNC.written.size());
+        assertEquals(0, bufferPool.getStats().getInUse());
+        direction.release();
+    }
+
+    @Test
+    public void answerPingAndClose() throws Exception {
+        ArrayDeque<byte[]> frames = new ArrayDeque<>();
+        frames.add(WebSocketFrameTest.frame(0x9, new byte[]{1, 2, 3}, 1));
+        frames.add(WebSocketFrameTest.frame(0x8, new byte[]{0x03, (byte) 0xE8}, 2));
+        ScriptedEndpoint noVNC = new ScriptedEndpoint(frames);
+        ScriptedEndpoint target = new ScriptedEndpoint(new ArrayDeque<>());
+        RelayDirection upstream = new RelayDirection(noVNC, target, bufferPool, 1024 * 1024, 256 * 1024);
+        RelayDirection downstream = new RelayDirection(target, noVNC, bufferPool, 1024 * 1024, 256 * 1024);
+        upstream.setUnwrapper(new WebSocketFrameDecoder());
+        upstream.setReplies(downstream);
+        downstream.setWrapping(true);
+
+        //noVNC端写不进去时，回应的关闭帧写出前会话不结束
+        noVNC.writable = false;
+        upstream.read(16);
+        assertFalse(noVNC.reading);
+        assertFalse(target.reading);
+        assertFalse(upstream.isFinished());
+
+        noVNC.writable = true;
+        downstream.flush();
+        assertTrue(upstream.isFinished());
+        assertTrue(downstream.isFinished());
+        //pong带回ping的负载，关闭帧带回状态码
+        assertArrayEquals(new byte[]{(byte) 0x8A, 3, 1, 2, 3, (byte) 0x88, 2, 0x03, (byte) 0xE8},
+                noVNC.written.toByteArray());
+        assertEquals(0, target.written.size());
+        upstream.release();
+        downstream.release();
+    }
+
+    /**
+     * count条消息，每条length字节，内容为消息序号
+     */
+    private static ArrayDeque<byte[]> messages(int count, int length) {
+        ArrayDeque<byte[]> messages = new ArrayDeque<>();
+        for (int i = 0; i < count; i++) {
+            byte[] message = new byte[length];
+            Arrays.fill(message, (byte) i);
+            messages.add(message);
+        }
+        return messages;
+    }
+
+    /**
+     * 每次读取返回一条预设的消息，可写时全部接受并记录系统调用次数
+     */
+    private static class ScriptedEndpoint implements RelayEndpoint {
+
+        private final ArrayDeque<byte[]> reads;
+
+        private final ByteArrayOutputStream written = new ByteArrayOutputStream();
+
+        private int writes;
+
+        //是否监听可读事件
+        private boolean reading = true;
+
+        //预设的消息读完后是否返回末尾
+        private boolean eof;
+
+        //为false时写入返回0，模拟发送缓冲区已满
+        private boolean writable = true;
+
+        ScriptedEndpoint(ArrayDeque<byte[]> reads) {
+            this.reads = reads;
+        }
+
+        @Override
+        public int read(ByteBuffer dst) {
+            byte[] next = reads.poll();
+            if (next == null) {
+                return eof ? -1 : 0;
+            }
+            dst.put(next);
+            return next.length;
+        }
+
+        @Override
+        public int write(ByteBuffer src) {
+            writes++;
+            if (!writable) {
+                return 0;
+            }
+            int n = src.remaining();
+            this.drain(src);
+            return n;
+        }
+
+        @Override
+        public long write(ByteBuffer[] srcs, int offset, int length) {
+            writes++;
+            if (!writable) {
+                return 0;
+            }
+            long n = 0;
+            for (int i = offset; i < offset + length; i++) {
+                n += srcs[i].remaining();
+                this.drain(srcs[i]);
+            }
+            return n;
+        }
+
+        private void drain(ByteBuffer src) {
+            byte[] data = new byte[src.remaining()];
+            src.get(data);
+            written.write(data, 0, data.length);
+        }
+
+        @Override
+        public void interest(int op, boolean on) {
+            if (op == SelectionKey.OP_READ) {
+                reading = on;
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+        }
+    }
+}
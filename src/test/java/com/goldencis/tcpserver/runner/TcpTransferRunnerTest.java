@@ -0,0 +1,393 @@
+package com.goldencis.tcpserver.runner;
+
+import com.goldencis.tcpserver.buffer.BufferPool;
+import com.goldencis.tcpserver.compress.BlockDeflater;
+import com.goldencis.tcpserver.compress.BlockInflater;
+import com.goldencis.tcpserver.constants.ConstantsDto;
+import com.goldencis.tcpserver.shaping.TrafficShaper;
+import com.goldencis.tcpserver.timer.HashedTimingWheel;
+import com.goldencis.tcpserver.websocket.WebSocketFrameDecoder;
+import com.goldencis.tcpserver.websocket.WebSocketFrameTest;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * 通过本地回环连接验证转发器的双向转发
+ */
+public class TcpTransferRunnerTest {
+
+    private ServerSocketChannel server;
+
+    private EventLoop eventLoop;
+
+    private BufferPool bufferPool = new BufferPool(512, 256 * 1024, 1024 * 1024, 8 * 1024 * 1024);
+
+    private HashedTimingWheel timingWheel = new HashedTimingWheel("test-timer", 10, TimeUnit.MILLISECONDS, 64);
+
+    private RelayContext relayContext = new RelayContext(bufferPool, new PipeRegistry(4), timingWheel);
+
+    @Before
+    public void setUp() throws IOException {
+        server = ServerSocketChannel.open();
+        server.bind(new InetSocketAddress("127.0.0.1", 0));
+        eventLoop = new EventLoop("test-loop", 4, TimeUnit.MICROSECONDS.toNanos(500));
+        eventLoop.start();
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        eventLoop.shutdown();
+        timingWheel.stop();
+        server.close();
+    }
+
+    @Test
+    public void transferBothDirections() throws Exception {
+        //noVNC端
+        SocketChannel noVNC = SocketChannel.open(server.getLocalAddress());
+        //目标端
+        SocketChannel target = SocketChannel.open(server.getLocalAddress());
+        TcpTransferRunner runner = this.startRunner();
+
+        byte[] up = new byte[1024 * 1024];
+        byte[] down = new byte[64 * 1024];
+        new Random(1).nextBytes(up);
+        new Random(2).nextBytes(down);
+
+        Thread writer = writeAsync(noVNC, up);
+        assertArrayEquals(up, readFully(target, up.length));
+        writer.join();
+
+        writer = writeAsync(target, down);
+        assertArrayEquals(down, readFully(noVNC, down.length));
+        writer.join();
+
+        //空闲后缓冲块全部归还，归还动作在最后一次写出之后，稍作等待
+        for (int i = 0; i < 100 && bufferPool.getStats().getInUse() > 0; i++) {
+            Thread.sleep(10);
+        }
+        assertEquals(0, bufferPool.getStats().getInUse());
+
+        //会话和全局的字节计数
+        assertEquals(up.length, runner.getUpstream().getBytes());
+        assertEquals(down.length, runner.getDownstream().getBytes());
+        assertTrue(runner.getUpstream().getReads() > 0);
+        assertEquals(up.length, relayContext.getMetrics().getUpstreamBytes().sum());
+        assertEquals(down.length, relayContext.getMetrics().getDownstreamBytes().sum());
+        assertEquals(1, relayContext.getMetrics().getActiveSessions());
+
+        noVNC.close();
+        target.close();
+    }
+
+    @Test
+    public void pauseReadingWhenDestinationIsSlow() throws Exception {
+        relayContext.setUpstreamHighWatermark(128 * 1024);
+        relayContext.setUpstreamLowWatermark(32 * 1024);
+
+        SocketChannel noVNC = SocketChannel.open(server.getLocalAddress());
+        SocketChannel target = SocketChannel.open(server.getLocalAddress());
+        TcpTransferRunner runner = this.startRunner();
+
+        //目标端暂不读取，上行数据积压后应停止读取源通道
+        byte[] up = new byte[8 * 1024 * 1024];
+        new Random(3).nextBytes(up);
+        Thread writer = writeAsync(noVNC, up);
+        for (int i = 0; i < 200 && !runner.getUpstream().isReadPaused(); i++) {
+            Thread.sleep(10);
+        }
+        assertTrue(runner.getUpstream().isReadPaused());
+
+        //目标端开始读取后，数据完整到达
+        assertArrayEquals(up, readFully(target, up.length));
+        writer.join();
+
+        noVNC.close();
+        target.close();
+    }
+
+    @Test
+    public void shapeDownstream() throws Exception {
+        TrafficShaper shaper = new TrafficShaper(512 * 1024, 64 * 1024, 0, 0);
+        relayContext.setShaper(shaper);
+        SocketChannel noVNC = SocketChannel.open(server.getLocalAddress());
+        SocketChannel target = SocketChannel.open(server.getLocalAddress());
+        TcpTransferRunner runner = this.startRunner();
+
+        //超出突发的部分按512KB/s限速，暂停期间上行照常转发
+        byte[] down = new byte[1024 * 1024];
+        new Random(7).nextBytes(down);
+        long start = System.nanoTime();
+        Thread writer = writeAsync(target, down);
+        for (int i = 0; i < 200 && !runner.getDownstream().isThrottled(); i++) {
+            Thread.sleep(5);
+        }
+        assertTrue(runner.getDownstream().isThrottled());
+        byte[] key = {4, 1, 0, 0, 0, 0, 0, 0x61};
+        writeFully(noVNC, key);
+        assertArrayEquals(key, readFully(target, key.length));
+
+        assertArrayEquals(down, readFully(noVNC, down.length));
+        long elapsed = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        writer.join();
+        assertTrue("elapsed " + elapsed, elapsed >= 1500);
+        assertTrue(shaper.getThrottled() > 0);
+
+        noVNC.close();
+        target.close();
+        for (int i = 0; i < 100 && shaper.getParked() > 0; i++) {
+            Thread.sleep(10);
+        }
+        assertEquals(0, shaper.getParked());
+        assertEquals(0, shaper.snapshots().size());
+    }
+
+    @Test
+    public void closeIdleSession() throws Exception {
+        relayContext.setIdleTimeoutSeconds(1);
+
+        SocketChannel noVNC = SocketChannel.open(server.getLocalAddress());
+        SocketChannel target = SocketChannel.open(server.getLocalAddress());
+        TcpTransferRunner runner = this.startRunner();
+
+        //有数据时不关闭
+        writeFully(noVNC, new byte[16]);
+        assertEquals(16, readFully(target, 16).length);
+
+        //两个方向都空闲超过上限后，会话关闭并从配对表移除
+        long start = System.nanoTime();
+        assertEquals(-1, noVNC.read(ByteBuffer.allocate(16)));
+        assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(900));
+        assertTrue(!runner.isOn());
+        assertEquals(-1, target.read(ByteBuffer.allocate(16)));
+
+        noVNC.close();
+        target.close();
+    }
+
+    @Test
+    public void relayWebSocketFrames() throws Exception {
+        SocketChannel noVNC = SocketChannel.open(server.getLocalAddress());
+        SocketChannel target = SocketChannel.open(server.getLocalAddress());
+        TcpTransferRunner runner = this.startRunner(new WebSocketFrameDecoder());
+
+        //noVNC端发送的帧解码后转发给目标端
+        byte[] up = new byte[100 * 1024];
+        new Random(4).nextBytes(up);
+        Thread writer = writeAsync(noVNC, WebSocketFrameTest.frame(0x2, up, 5));
+        assertArrayEquals(up, readFully(target, up.length));
+        writer.join();
+
+        //目标端的数据封装为二进制帧，目标端关闭后发送关闭帧
+        byte[] down = new byte[200];
+        new Random(6).nextBytes(down);
+        writeFully(target, down);
+        target.close();
+        ByteArrayOutputStream payload = new ByteArrayOutputStream();
+        ByteBuffer frame = ByteBuffer.wrap(readUntilClosed(noVNC));
+        boolean closeFrame = false;
+        while (frame.hasRemaining()) {
+            int opcode = frame.get() & 0x0F;
+            int length = frame.get() & 0x7F;
+            if (length == 126) {
+                length = frame.getShort() & 0xFFFF;
+            }
+            closeFrame = opcode == 0x8;
+            payload.write(frame.array(), frame.position(), length);
+            frame.position(frame.position() + length);
+        }
+        assertTrue(closeFrame);
+        assertArrayEquals(down, payload.toByteArray());
+        assertTrue(!runner.isOn());
+
+        noVNC.close();
+    }
+
+    @Test
+    public void inputNotDelayedByFramebufferFlood() throws Exception {
+        SocketChannel noVNC = SocketChannel.open(server.getLocalAddress());
+        SocketChannel target = SocketChannel.open(server.getLocalAddress());
+        TcpTransferRunner runner = this.startRunner();
+
+        //目标端持续发送大块画面数据，noVNC端持续读取
+        AtomicBoolean flooding = new AtomicBoolean(true);
+        Thread flood = new Thread(() -> {
+            ByteBuffer update = ByteBuffer.allocate(4 * 1024 * 1024);
+            try {
+                while (flooding.get()) {
+                    update.clear();
+                    target.write(update);
+                }
+            } catch (IOException e) {
+                //连接关闭
+            }
+        });
+        Thread drain = new Thread(() -> {
+            ByteBuffer buffer = ByteBuffer.allocate(1024 * 1024);
+            try {
+                while (noVNC.read(buffer) >= 0) {
+                    buffer.clear();
+                }
+            } catch (IOException e) {
+                //连接关闭
+            }
+        });
+        flood.start();
+        drain.start();
+        while (runner.getDownstream().getBytes() < 16 * 1024 * 1024) {
+            Thread.sleep(10);
+        }
+
+        //画面数据持续转发期间，每个6字节的输入事件都应很快到达目标端
+        long maxLatency = 0;
+        for (int i = 0; i < 50; i++) {
+            byte[] event = {5, 0, 0, (byte) i, 0, (byte) i};
+            long start = System.nanoTime();
+            writeFully(noVNC, event);
+            assertArrayEquals(event, readFully(target, event.length));
+            maxLatency = Math.max(maxLatency, System.nanoTime() - start);
+        }
+        assertTrue("输入事件延迟" + TimeUnit.NANOSECONDS.toMillis(maxLatency) + "ms",
+                maxLatency < TimeUnit.MILLISECONDS.toNanos(500));
+
+        flooding.set(false);
+        runner.close();
+        flood.join();
+        drain.join();
+        noVNC.close();
+        target.close();
+    }
+
+    @Test
+    public void compressTargetLeg() throws Exception {
+        relayContext.setCompressEnabled(true);
+        SocketChannel noVNC = SocketChannel.open(server.getLocalAddress());
+        SocketChannel target = SocketChannel.open(server.getLocalAddress());
+        TcpTransferRunner runner = this.startRunner(null, ConstantsDto.CAPABILITY_DEFLATE);
+        assertTrue(runner.isCompress());
+
+        //noVNC端的原始数据压缩后发往目标端
+        byte[] up = new byte[256 * 1024];
+        for (int i = 0; i < up.length; i++) {
+            up[i] = (byte) (i % 1024 / 8);
+        }
+        Thread writer = writeAsync(noVNC, up);
+        BlockInflater inflater = new BlockInflater(bufferPool);
+        ByteArrayOutputStream received = new ByteArrayOutputStream();
+        long wire = 0;
+        ByteBuffer buffer = ByteBuffer.allocate(64 * 1024);
+        while (received.size() < up.length) {
+            buffer.clear();
+            wire += target.read(buffer);
+            buffer.flip();
+            inflater.decode(buffer, 0, chunk -> {
+                while (chunk.hasRemaining()) {
+                    received.write(chunk.get());
+                }
+                bufferPool.release(chunk);
+            }, () -> false);
+        }
+        inflater.end();
+        writer.join();
+        assertArrayEquals(up, received.toByteArray());
+        assertTrue(wire * 4 < up.length);
+
+        //目标端发来的压缩块解压后交给noVNC端
+        BlockDeflater deflater = new BlockDeflater(1, bufferPool.getReadChunkSize());
+        ByteBuffer chunk = ByteBuffer.allocate(bufferPool.getReadChunkSize());
+        chunk.position(BlockDeflater.HEADER_SIZE);
+        chunk.put(up, 0, 32 * 1024);
+        chunk.flip();
+        deflater.encode(chunk, BlockDeflater.HEADER_SIZE);
+        deflater.end();
+        while (chunk.hasRemaining()) {
+            target.write(chunk);
+        }
+        byte[] down = readFully(noVNC, 32 * 1024);
+        for (int i = 0; i < down.length; i++) {
+            assertEquals(up[i], down[i]);
+        }
+
+        noVNC.close();
+        target.close();
+    }
+
+    private TcpTransferRunner startRunner() throws IOException {
+        return this.startRunner(null);
+    }
+
+    private TcpTransferRunner startRunner(WebSocketFrameDecoder frames) throws IOException {
+        return this.startRunner(frames, 0);
+    }
+
+    private TcpTransferRunner startRunner(WebSocketFrameDecoder frames, int capabilities) throws IOException {
+        //两个客户端在服务端的通道，按连接顺序依次为源通道和目标通道
+        SocketChannel source = server.accept();
+        SocketChannel destination = server.accept();
+        source.configureBlocking(false);
+        destination.configureBlocking(false);
+
+        TcpTransferRunner runner = new TcpTransferRunner("pipe", eventLoop, relayContext, true, source);
+        runner.setDestinationChannel(destination);
+        runner.setDestinationReady(true);
+        runner.setWebSocketFrames(frames);
+        runner.negotiateCapabilities(capabilities);
+        runner.start();
+        return runner;
+    }
+
+    static Thread writeAsync(SocketChannel channel, byte[] data) {
+        Thread writer = new Thread(() -> {
+            try {
+                writeFully(channel, data);
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        });
+        writer.start();
+        return writer;
+    }
+
+    static void writeFully(SocketChannel channel, byte[] data) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(data);
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+
+    static byte[] readUntilClosed(SocketChannel channel) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ByteBuffer buffer = ByteBuffer.allocate(4096);
+        while (channel.read(buffer) >= 0) {
+            out.write(buffer.array(), 0, buffer.position());
+            buffer.clear();
+        }
+        out.write(buffer.array(), 0, buffer.position());
+        return out.toByteArray();
+    }
+
+    static byte[] readFully(SocketChannel channel, int size) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(size);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer) < 0) {
+                break;
+            }
+        }
+        return buffer.array();
+    }
+}
@@ -0,0 +1,93 @@
+package com.goldencis.tcpserver.server;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * 验证按来源IP限速和握手中连接数上限的准入，以及被拒绝的连接被复位
+ */
+public class AdmissionControlTest {
+
+    private ServerSocketChannel server;
+
+    private final List<SocketChannel> channels = new ArrayList<>();
+
+    @Before
+    public void setUp() throws IOException {
+        server = ServerSocketChannel.open();
+        server.bind(new InetSocketAddress("127.0.0.1", 0));
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        for (SocketChannel channel : channels) {
+            channel.close();
+        }
+        server.close();
+    }
+
+    @Test
+    public void shedWhenSourceExceedsRate() throws Exception {
+        //每秒1个，突发3个，同一IP的第4个连接被拒绝
+        AdmissionControl admission = new AdmissionControl("test", true, 1, 3, 0, 16);
+        for (int i = 0; i < 3; i++) {
+            assertTrue(admission.admit(this.accept(), i));
+        }
+        SocketChannel client = SocketChannel.open(server.getLocalAddress());
+        channels.add(client);
+        SocketChannel accepted = server.accept();
+        assertFalse(admission.admit(accepted, 3));
+        assertFalse(accepted.isOpen());
+        assertReset(client);
+
+        assertEquals(3, admission.getAdmitted());
+        assertEquals(1, admission.getShedRate());
+        assertEquals(0, admission.getShedHalfOpen());
+    }
+
+    @Test
+    public void shedWhenTooManyHalfOpen() throws Exception {
+        AdmissionControl admission = new AdmissionControl("test", true, 0, 0, 2, 16);
+        assertTrue(admission.admit(this.accept(), 1));
+        assertFalse(admission.admit(this.accept(), 2));
+        assertEquals(2, admission.getHalfOpen());
+        assertEquals(1, admission.getShedHalfOpen());
+        assertEquals(0, admission.getShedRate());
+
+        //未启用时全部接受
+        AdmissionControl disabled = new AdmissionControl("test", false, 1, 1, 1, 16);
+        assertTrue(disabled.admit(this.accept(), 100));
+        assertTrue(disabled.admit(this.accept(), 100));
+    }
+
+    private SocketChannel accept() throws IOException {
+        channels.add(SocketChannel.open(server.getLocalAddress()));
+        SocketChannel accepted = server.accept();
+        channels.add(accepted);
+        return accepted;
+    }
+
+    /**
+     * 被拒绝的连接收到RST，读取时报错或直接读到末尾
+     */
+    private static void assertReset(SocketChannel client) {
+        try {
+            assertEquals(-1, client.read(ByteBuffer.allocate(16)));
+        } catch (IOException e) {
+            //连接被复位
+        }
+    }
+}
@@ -0,0 +1,170 @@
+package com.goldencis.tcpserver.server;
+
+import com.goldencis.tcpserver.constants.ConstantsDto;
+import com.goldencis.tcpserver.entity.RecordedSession;
+import com.goldencis.tcpserver.entity.ReplayRequest;
+import com.goldencis.tcpserver.record.RecordingSession;
+import com.goldencis.tcpserver.record.SessionRecorder;
+import com.goldencis.tcpserver.timer.HashedTimingWheel;
+import com.goldencis.tcpserver.utils.TcpFrameDecoderTest;
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+/**
+ * 验证回放服务按票据向noVNC端发送录制的下行数据
+ */
+public class ReplayServerTest {
+
+    private Path dir;
+
+    private HashedTimingWheel timingWheel = new HashedTimingWheel("test-timer", 10, TimeUnit.MILLISECONDS, 64);
+
+    private ReplayServer replayServer;
+
+    private ByteArrayOutputStream downstream = new ByteArrayOutputStream();
+
+    @Before
+    public void setUp() throws Exception {
+        dir = Files.createTempDirectory("replay");
+        SessionRecorder recorder = new SessionRecorder(dir.toString(), 64 * 1024, 1024, 1000);
+        recorder.start();
+        RecordingSession session = recorder.open("pipe-1", "user-1");
+        for (int i = 0; i < 50; i++) {
+            byte[] data = new byte[4000];
+            data[0] = (byte) i;
+            session.record(RecordingSession.DOWNSTREAM, ByteBuffer.wrap(data), 0, data.length);
+            downstream.write(data);
+            //上行数据不回放
+            session.record(RecordingSession.UPSTREAM, ByteBuffer.wrap(new byte[]{3}), 0, 1);
+        }
+        session.close();
+        recorder.stop();
+        replayServer = new ReplayServer(recorder, timingWheel, 0);
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        timingWheel.stop();
+        try (Stream<Path> paths = Files.walk(dir)) {
+            for (Path path : paths.sorted((a, b) -> b.compareTo(a)).collect(Collectors.toList())) {
+                Files.delete(path);
+            }
+        }
+    }
+
+    @Test
+    public void replayByTicket() throws Exception {
+        List<RecordedSession> recordings = replayServer.recordings("pipe-1");
+        assertEquals(1, recordings.size());
+        assertEquals(4, recordings.get(0).getSegments());
+
+        ReplayRequest request = new ReplayRequest();
+        request.setPipe("pipe-1");
+        request.setSpeed(0.0);
+        String ticket = replayServer.createTicket(request);
+
+        assertArrayEquals(downstream.toByteArray(), this.replay(ticket));
+
+        //没有录制的管道不能创建回放
+        request.setPipe("pipe-none");
+        try {
+            replayServer.createTicket(request);
+            fail();
+        } catch (NoSuchFileException e) {
+            //没有录制
+        }
+    }
+
+    @Test
+    public void refuseWithoutTicket() throws Exception {
+        //录制的管道id不能直接回放
+        assertEquals(0, this.replay("pipe-1").length);
+
+        ReplayRequest request = new ReplayRequest();
+        request.setPipe("pipe-1");
+        request.setSpeed(0.0);
+        String ticket = replayServer.createTicket(request);
+        assertEquals(downstream.size(), this.replay(ticket).length);
+        //票据只能使用一次
+        assertEquals(0, this.replay(ticket).length);
+    }
+
+    @Test
+    public void closeWhenThreadsBusy() throws Exception {
+        replayServer.setMaxThreads(1);
+        Thread acceptor = new Thread(() -> {
+            try {
+                replayServer.server();
+            } catch (IOException e) {
+                //监听通道关闭
+            }
+        });
+        acceptor.start();
+        while (replayServer.getPort() == 0) {
+            Thread.sleep(10);
+        }
+
+        //第一个连接不握手，占住唯一的回放线程，第二个连接直接被关闭
+        try (Socket idle = new Socket("127.0.0.1", replayServer.getPort());
+             Socket refused = new Socket("127.0.0.1", replayServer.getPort())) {
+            refused.setSoTimeout(5000);
+            assertEquals(-1, refused.getInputStream().read());
+        } finally {
+            replayServer.clear();
+            acceptor.join(1000);
+        }
+    }
+
+    /**
+     * 以pipe握手，读到回放服务关闭连接
+     * @return 收到的下行数据
+     */
+    private byte[] replay(String pipe) throws Exception {
+        try (ServerSocketChannel server = ServerSocketChannel.open()) {
+            server.bind(new InetSocketAddress("127.0.0.1", 0));
+            try (Socket noVNC = new Socket()) {
+                noVNC.connect(server.getLocalAddress());
+                SocketChannel accepted = server.accept();
+                Thread thread = new Thread(() -> replayServer.replay(accepted));
+                thread.start();
+
+                JSONObject body = new JSONObject();
+                body.put("action", ConstantsDto.CONNECT_NOVNC_SERVER);
+                body.put("pipe", pipe);
+                noVNC.getOutputStream().write(TcpFrameDecoderTest.frame(ConstantsDto.TCP_PROTOCOL_VERIFY, body.toString()));
+
+                ByteArrayOutputStream received = new ByteArrayOutputStream();
+                InputStream in = noVNC.getInputStream();
+                byte[] buffer = new byte[8192];
+                int read;
+                while ((read = in.read(buffer)) >= 0) {
+                    received.write(buffer, 0, read);
+                }
+                thread.join(1000);
+                return received.toByteArray();
+            }
+        }
+    }
+}
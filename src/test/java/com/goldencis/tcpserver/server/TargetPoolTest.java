@@ -0,0 +1,190 @@
+package com.goldencis.tcpserver.server;
+
+import com.goldencis.tcpserver.buffer.BufferPool;
+import com.goldencis.tcpserver.constants.ConstantsDto;
+import com.goldencis.tcpserver.entity.TcpProtocolBody;
+import com.goldencis.tcpserver.runner.EventLoop;
+import com.goldencis.tcpserver.runner.PipeRegistry;
+import com.goldencis.tcpserver.runner.RelayContext;
+import com.goldencis.tcpserver.runner.TcpTransferRunner;
+import com.goldencis.tcpserver.timer.HashedTimingWheel;
+import com.goldencis.tcpserver.utils.TcpFrameDecoder;
+import com.goldencis.tcpserver.utils.TcpProtocolUtil;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * 验证备用连接的令牌校验、数量上限、断开检测、空闲超时和直接配对
+ */
+public class TargetPoolTest {
+
+    private ServerSocketChannel server;
+
+    private EventLoop eventLoop;
+
+    private BufferPool bufferPool = new BufferPool(512, 256 * 1024, 1024 * 1024, 8 * 1024 * 1024);
+
+    private HashedTimingWheel timingWheel = new HashedTimingWheel("test-timer", 10, TimeUnit.MILLISECONDS, 64);
+
+    private RelayContext relayContext = new RelayContext(bufferPool, new PipeRegistry(4), timingWheel);
+
+    @Before
+    public void setUp() throws IOException {
+        server = ServerSocketChannel.open();
+        server.bind(new InetSocketAddress("127.0.0.1", 0));
+        eventLoop = new EventLoop("test-loop", 4);
+        eventLoop.start();
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        eventLoop.shutdown();
+        timingWheel.stop();
+        server.close();
+    }
+
+    @Test
+    public void pairWithLiveStandby() throws Exception {
+        TargetPool pool = new TargetPool(timingWheel, 2, 3, 60);
+        SocketChannel[] agents = new SocketChannel[4];
+        SocketChannel[] accepted = new SocketChannel[4];
+        for (int i = 0; i < agents.length; i++) {
+            agents[i] = SocketChannel.open(server.getLocalAddress());
+            accepted[i] = server.accept();
+            accepted[i].configureBlocking(false);
+        }
+        assertTrue(pool.offer(accepted[0], standby(pool, "user-1")));
+        assertTrue(pool.offer(accepted[1], standby(pool, "user-1")));
+        //超出每个用户的上限
+        assertFalse(pool.offer(accepted[2], standby(pool, "user-1")));
+        assertTrue(pool.offer(accepted[2], standby(pool, "user-2")));
+        //超出全局上限
+        assertFalse(pool.offer(accepted[3], standby(pool, "user-3")));
+        assertEquals(2, pool.getRejected());
+        assertEquals(3, pool.getSize());
+
+        //先登记的连接已断开，取出时跳过
+        agents[0].close();
+        Thread.sleep(50);
+        TcpProtocolBody request = new TcpProtocolBody(ConstantsDto.CONNECT_NOVNC_SERVER, "pipe-1");
+        request.setUserguid("user-1");
+        TargetPool.Standby standby = pool.poll(request);
+        assertEquals(accepted[1], standby.getChannel());
+        assertEquals(1, pool.getDeadEvicted());
+        assertEquals(1, pool.getHits());
+
+        //以备用连接直接配对，目标端收到的响应中带有noVNC端的管道id
+        SocketChannel noVNC = SocketChannel.open(server.getLocalAddress());
+        SocketChannel source = server.accept();
+        source.configureBlocking(false);
+        TcpTransferRunner runner = new TcpTransferRunner("pipe-1", eventLoop, relayContext, true, source);
+        assertTrue(runner.claim());
+        runner.setStandby(true);
+        TcpProtocolUtil.pair(runner, standby.getChannel(), standby.getBody());
+
+        TcpFrameDecoder decoder = new TcpFrameDecoder(4096);
+        TcpProtocolBody response;
+        do {
+            response = decoder.decode(agents[1]);
+        } while (response == null);
+        assertEquals(ConstantsDto.CONNECT_VNC_SUCCESS, response.getAction());
+        assertEquals("pipe-1", response.getPipe());
+
+        agents[1].write(ByteBuffer.wrap("RFB 003.008\n".getBytes()));
+        assertArrayEquals("RFB 003.008\n".getBytes(), readFully(noVNC, 12));
+        noVNC.write(ByteBuffer.wrap("hello".getBytes()));
+        assertArrayEquals("hello".getBytes(), readFully(agents[1], 5));
+
+        //该用户已没有备用连接
+        assertNull(pool.poll(request));
+        assertEquals(1, pool.getMisses());
+        assertEquals(0.5, pool.getHitRatio(), 0.001);
+
+        runner.close();
+        noVNC.close();
+        pool.clear();
+        for (SocketChannel agent : agents) {
+            agent.close();
+        }
+    }
+
+    @Test
+    public void evictIdleStandby() throws Exception {
+        TargetPool pool = new TargetPool(timingWheel, 2, 16, 1);
+        SocketChannel agent = SocketChannel.open(server.getLocalAddress());
+        SocketChannel accepted = server.accept();
+        accepted.configureBlocking(false);
+        assertTrue(pool.offer(accepted, standby(pool, "user-1")));
+        assertEquals(1, pool.getSize("user-1"));
+
+        //空闲超时后关闭
+        assertEquals(-1, agent.read(ByteBuffer.allocate(16)));
+        assertEquals(0, pool.getSize());
+        assertEquals(1, pool.getIdleEvicted());
+        agent.close();
+    }
+
+    @Test
+    public void refuseWithoutToken() throws Exception {
+        TargetPool pool = new TargetPool(timingWheel, 2, 16, 60);
+        SocketChannel agent = SocketChannel.open(server.getLocalAddress());
+        SocketChannel accepted = server.accept();
+        accepted.configureBlocking(false);
+
+        //尚未下发令牌的用户
+        TcpProtocolBody body = new TcpProtocolBody(ConstantsDto.CONNECT_VNC_STANDBY, null);
+        body.setUserguid("user-1");
+        body.setToken("guess");
+        assertFalse(pool.offer(accepted, body));
+
+        //令牌已下发，只知道userguid或携带错误令牌都不能登记
+        String token = pool.token("user-1");
+        assertEquals(token, pool.token("user-1"));
+        body.setToken(null);
+        assertFalse(pool.offer(accepted, body));
+        body.setToken(token + "x");
+        assertFalse(pool.offer(accepted, body));
+        //其他用户的令牌
+        body.setToken(pool.token("user-2"));
+        assertFalse(pool.offer(accepted, body));
+        assertEquals(4, pool.getUnauthorized());
+        assertEquals(0, pool.getSize());
+
+        body.setToken(token);
+        assertTrue(pool.offer(accepted, body));
+        assertEquals(1, pool.getSize("user-1"));
+        pool.clear();
+        agent.close();
+    }
+
+    private static TcpProtocolBody standby(TargetPool pool, String userguid) {
+        TcpProtocolBody body = new TcpProtocolBody(ConstantsDto.CONNECT_VNC_STANDBY, null);
+        body.setUserguid(userguid);
+        body.setToken(pool.token(userguid));
+        return body;
+    }
+
+    private static byte[] readFully(SocketChannel channel, int length) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer) < 0) {
+                throw new IOException("提前关闭");
+            }
+        }
+        return buffer.array();
+    }
+}
@@ -0,0 +1,86 @@
+package com.goldencis.tcpserver.shaping;
+
+import com.goldencis.tcpserver.entity.ShapingLimit;
+import com.goldencis.tcpserver.entity.ShapingSnapshot;
+import org.junit.Test;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * 令牌桶的欠额计算，以及用户令牌桶的共用和运行时调整
+ */
+public class TrafficShaperTest {
+
+    private static final long SECOND = TimeUnit.SECONDS.toNanos(1);
+
+    @Test
+    public void bucketAllowsBurstThenChargesDebt() {
+        long now = System.nanoTime();
+        TokenBucket bucket = new TokenBucket(1000, 500);
+        assertEquals(0, bucket.consume(500, now));
+        //超出突发的500个令牌需要0.5秒补充
+        assertEquals(SECOND / 2, bucket.consume(500, now));
+        assertFalse(bucket.tryAcquire(1, now));
+        //欠额偿还后又可以取用
+        assertTrue(bucket.tryAcquire(500, now + SECOND));
+        assertFalse(bucket.tryAcquire(1, now + SECOND));
+
+        bucket.set(0, 0);
+        assertEquals(0, bucket.consume(1000000, now));
+    }
+
+    @Test
+    public void userBucketSharedAcrossSessions() {
+        TrafficShaper shaper = new TrafficShaper(0, 0, 1000, 1000);
+        long now = System.nanoTime();
+        SessionShaper first = shaper.open("pipe-1", "user-1");
+        SessionShaper second = shaper.open("pipe-2", "user-1");
+        assertEquals(0, first.consume(1000, now));
+        assertEquals(SECOND, second.consume(1000, now));
+        assertTrue(second.isParked());
+        assertEquals(1, shaper.getParked());
+        second.resume();
+        assertEquals(0, shaper.getParked());
+
+        //高优先级不限速，低优先级按比例降低
+        shaper.setUserLimit("user-1", new ShapingLimit(null, null, "high"));
+        assertEquals(0, first.consume(1000000, now));
+        shaper.setUserLimit("user-1", new ShapingLimit(null, null, "LOW"));
+        ShapingSnapshot snapshot = shaper.snapshots().get(0);
+        assertEquals("LOW", snapshot.getPriority());
+        assertEquals(500, snapshot.getRate());
+        assertEquals(2, snapshot.getSessions());
+        assertTrue(snapshot.isOverride());
+
+        //单个会话的限速
+        assertFalse(shaper.setSessionLimit("pipe-3", new ShapingLimit(100L, null, null)));
+        assertTrue(shaper.setSessionLimit("pipe-1", new ShapingLimit(100L, null, null)));
+        //低优先级的会话限速为50字节/秒，突发50
+        assertEquals(SECOND * 19, first.consume(1000, now + SECOND * 100));
+
+        //用户的单独设置在会话结束后保留
+        first.close();
+        second.close();
+        List<ShapingSnapshot> snapshots = shaper.snapshots();
+        assertEquals(1, snapshots.size());
+        assertEquals(0, snapshots.get(0).getSessions());
+        assertTrue(shaper.removeUserLimit("user-1"));
+        assertTrue(shaper.snapshots().isEmpty());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectUnknownPriority() {
+        new TrafficShaper(0, 0, 0, 0).setUserLimit("user-1", new ShapingLimit(null, null, "urgent"));
+    }
+
+    @Test
+    public void disabledShaperDoesNotOpen() {
+        assertNull(new TrafficShaper().open("pipe-1", "user-1"));
+    }
+}
@@ -0,0 +1,99 @@
+package com.goldencis.tcpserver.timer;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * 时间轮的到期、取消和计数
+ */
+public class HashedTimingWheelTest {
+
+    private HashedTimingWheel wheel = new HashedTimingWheel("test-timer", 10, TimeUnit.MILLISECONDS, 8);
+
+    @After
+    public void tearDown() {
+        wheel.stop();
+    }
+
+    @Test
+    public void expireAfterDelay() throws Exception {
+        CountDownLatch latch = new CountDownLatch(1);
+        long start = System.nanoTime();
+        //延迟超过一圈，验证圈数计算
+        Timeout timeout = wheel.newTimeout(latch::countDown, 200, TimeUnit.MILLISECONDS);
+
+        assertTrue(latch.await(2, TimeUnit.SECONDS));
+        assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(200));
+        assertTrue(timeout.isExpired());
+        assertFalse(timeout.cancel());
+        assertEquals(0, wheel.pendingTimeouts());
+    }
+
+    @Test
+    public void cancelledTimeoutNeverRuns() throws Exception {
+        AtomicInteger fired = new AtomicInteger();
+        Timeout timeout = wheel.newTimeout(fired::incrementAndGet, 50, TimeUnit.MILLISECONDS);
+        assertTrue(timeout.cancel());
+        assertFalse(timeout.cancel());
+        assertEquals(0, wheel.pendingTimeouts());
+
+        Thread.sleep(200);
+        assertEquals(0, fired.get());
+        assertFalse(timeout.isExpired());
+    }
+
+    @Test
+    public void expireLosesToConcurrentCancel() {
+        AtomicInteger fired = new AtomicInteger();
+        Timeout timeout = wheel.newTimeout(fired::incrementAndGet, 1, TimeUnit.HOURS);
+        assertTrue(timeout.cancel());
+        //取消之后时间轮线程再处理到期，不执行也不重复计数
+        assertFalse(timeout.expire());
+        assertEquals(0, fired.get());
+        assertEquals(0, wheel.pendingTimeouts());
+    }
+
+    @Test
+    public void cancelRacingExpiryAccounted() throws Exception {
+        int count = 20000;
+        List<Timeout> timeouts = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            timeouts.add(wheel.newTimeout(() -> { }, i % 30, TimeUnit.MILLISECONDS));
+        }
+        //与到期同时取消
+        for (Timeout timeout : timeouts) {
+            timeout.cancel();
+        }
+        Thread.sleep(200);
+        assertEquals(0, wheel.pendingTimeouts());
+    }
+
+    @Test
+    public void manyTimeoutsAccounted() throws Exception {
+        int count = 10000;
+        CountDownLatch latch = new CountDownLatch(count / 2);
+        List<Timeout> timeouts = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            timeouts.add(wheel.newTimeout(latch::countDown, 100 + i % 200, TimeUnit.MILLISECONDS));
+        }
+        //在到期前取消一半
+        for (int i = 0; i < count; i += 2) {
+            timeouts.get(i).cancel();
+        }
+        assertTrue(latch.await(5, TimeUnit.SECONDS));
+        assertEquals(0, wheel.pendingTimeouts());
+        for (int i = 1; i < count; i += 2) {
+            assertTrue(timeouts.get(i).isExpired());
+        }
+    }
+}
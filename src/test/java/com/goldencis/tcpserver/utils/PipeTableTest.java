@@ -0,0 +1,95 @@
+package com.goldencis.tcpserver.utils;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * 配对表的uuid快速路径、删除回移和并发登记
+ */
+public class PipeTableTest {
+
+    @Test
+    public void uuidStringAndBinaryShareSlot() {
+        PipeTable<String> table = new PipeTable<>(4);
+        UUID pipe = UUID.randomUUID();
+
+        assertNull(table.putIfAbsent(pipe.toString(), "a"));
+        assertEquals("a", table.get(pipe.getMostSignificantBits(), pipe.getLeastSignificantBits()));
+        assertEquals("a", table.get(pipe.toString().toUpperCase()));
+        assertEquals("a", table.putIfAbsent(pipe.getMostSignificantBits(), pipe.getLeastSignificantBits(), "b"));
+
+        //非uuid格式的管道id
+        assertNull(table.putIfAbsent("pipe-1", "c"));
+        assertEquals("c", table.get("pipe-1"));
+        assertEquals(2, table.size());
+
+        assertFalse(table.remove(pipe.toString(), "b"));
+        assertTrue(table.remove(pipe.toString(), "a"));
+        assertNull(table.get(pipe.toString()));
+    }
+
+    @Test
+    public void removeKeepsProbeChains() {
+        PipeTable<Integer> table = new PipeTable<>(1);
+        List<UUID> pipes = new ArrayList<>();
+        List<Integer> values = new ArrayList<>();
+        for (int i = 0; i < 1000; i++) {
+            UUID pipe = UUID.randomUUID();
+            pipes.add(pipe);
+            values.add(i);
+            table.putIfAbsent(pipe.getMostSignificantBits(), pipe.getLeastSignificantBits(), values.get(i));
+        }
+        //删除偶数位置的元素，其余元素仍可查到
+        for (int i = 0; i < pipes.size(); i += 2) {
+            UUID pipe = pipes.get(i);
+            assertTrue(table.remove(pipe.getMostSignificantBits(), pipe.getLeastSignificantBits(), values.get(i)));
+        }
+        for (int i = 0; i < pipes.size(); i++) {
+            UUID pipe = pipes.get(i);
+            Integer value = table.get(pipe.getMostSignificantBits(), pipe.getLeastSignificantBits());
+            assertSame(i % 2 == 0 ? null : values.get(i), value);
+        }
+        assertEquals(500, table.size());
+    }
+
+    @Test
+    public void onlyOneConcurrentPutWins() throws Exception {
+        PipeTable<Object> table = new PipeTable<>(16);
+        UUID pipe = UUID.randomUUID();
+        AtomicInteger winners = new AtomicInteger();
+        CountDownLatch start = new CountDownLatch(1);
+        List<Thread> threads = new ArrayList<>();
+        for (int i = 0; i < 8; i++) {
+            Object value = new Object();
+            Thread thread = new Thread(() -> {
+                try {
+                    start.await();
+                } catch (InterruptedException e) {
+                    return;
+                }
+                if (table.putIfAbsent(pipe.toString(), value) == null) {
+                    winners.incrementAndGet();
+                    assertSame(value, table.get(pipe.toString()));
+                }
+            });
+            thread.start();
+            threads.add(thread);
+        }
+        start.countDown();
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertEquals(1, winners.get());
+    }
+}
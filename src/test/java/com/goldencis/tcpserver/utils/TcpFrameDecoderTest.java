@@ -0,0 +1,306 @@
+package com.goldencis.tcpserver.utils;
+
+import com.goldencis.tcpserver.constants.ConstantsDto;
+import com.goldencis.tcpserver.entity.TcpProtocolBody;
+import org.junit.Test;
+
+import java.io.EOFException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.UUID;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+
+/**
+ * 协议解码器对分包、格式错误和不完整数据的处理
+ */
+public class TcpFrameDecoderTest {
+
+    private static final String JSON = "{\"action\":\"connectVncClient_c2s\",\"pipe\":\"p-1\",\"userguid\":\"u-1\"}";
+
+    @Test
+    public void decodeByteByByte() throws Exception {
+        byte[] frame = frame(ConstantsDto.TCP_PROTOCOL_VERIFY, JSON);
+        FragmentedChannel channel = new FragmentedChannel(frame, 1);
+        TcpFrameDecoder decoder = new TcpFrameDecoder(4096);
+
+        TcpProtocolBody body = null;
+        int calls = 0;
+        while (body == null) {
+            channel.release();
+            body = decoder.decode(channel);
+            calls++;
+        }
+        assertEquals(frame.length, calls);
+        assertEquals(ConstantsDto.CONNECT_VNC_CLIENT, body.getAction());
+        assertEquals("p-1", body.getPipe());
+        assertEquals("u-1", body.getUserguid());
+
+        //json请求的响应仍为json协议体
+        ByteBuffer response = ByteBuffer.allocate(1024);
+        TcpProtocolBody.response(ConstantsDto.CONNECT_VNC_SUCCESS, body, response);
+        response.flip();
+        assertEquals(ConstantsDto.TCP_PROTOCOL_VERIFY.intValue(), response.getInt());
+        assertEquals(ConstantsDto.TCP_PROTOCOL_VERSION.intValue(), response.getInt());
+        assertEquals(response.limit(), response.getInt());
+        assertEquals("{\"action\":\"connectVncSucc_s2c\",\"pipe\":\"p-1\",\"userguid\":null}",
+                StandardCharsets.UTF_8.decode(response).toString());
+    }
+
+    @Test
+    public void doNotReadBeyondFrame() throws Exception {
+        byte[] frame = frame(ConstantsDto.TCP_PROTOCOL_VERIFY, JSON);
+        byte[] withTail = new byte[frame.length + 4];
+        System.arraycopy(frame, 0, withTail, 0, frame.length);
+        FragmentedChannel channel = new FragmentedChannel(withTail, withTail.length);
+        channel.release();
+
+        TcpFrameDecoder decoder = new TcpFrameDecoder(4096);
+        assertEquals("p-1", decoder.decode(channel).getPipe());
+        //后续数据留给转发
+        assertEquals(4, channel.remaining());
+    }
+
+    @Test
+    public void reuseBufferForConsecutiveFrames() throws Exception {
+        //较长的json帧之后是较短的二进制帧，复用的缓冲区不残留上一帧的数据
+        UUID pipe = UUID.randomUUID();
+        byte[] first = frame(ConstantsDto.TCP_PROTOCOL_VERIFY, JSON);
+        byte[] second = binaryFrame(ConstantsDto.ACTION_CONNECT_VNC_CLIENT, pipe, "u-2");
+        byte[] both = new byte[first.length + second.length];
+        System.arraycopy(first, 0, both, 0, first.length);
+        System.arraycopy(second, 0, both, first.length, second.length);
+        FragmentedChannel channel = new FragmentedChannel(both, both.length);
+        channel.release();
+
+        TcpFrameDecoder decoder = new TcpFrameDecoder(4096);
+        assertEquals("p-1", decoder.decode(channel).getPipe());
+        assertFalse(decoder.isPartial());
+        TcpProtocolBody body = decoder.decode(channel);
+        assertEquals(pipe.toString(), body.getPipe());
+        assertEquals("u-2", body.getUserguid());
+        assertEquals(0, channel.remaining());
+    }
+
+    @Test
+    public void rejectMalformedFrame() throws Exception {
+        long malformed = TcpFrameDecoder.getMalformedCount();
+        FragmentedChannel channel = new FragmentedChannel(frame(0x12345678, JSON), 64);
+        channel.release();
+        try {
+            new TcpFrameDecoder(4096).decode(channel);
+            fail();
+        } catch (TcpProtocolException e) {
+            assertEquals(malformed + 1, TcpFrameDecoder.getMalformedCount());
+        }
+    }
+
+    @Test
+    public void rejectOversizedFrame() throws Exception {
+        FragmentedChannel channel = new FragmentedChannel(frame(ConstantsDto.TCP_PROTOCOL_VERIFY, JSON), 64);
+        channel.release();
+        try {
+            new TcpFrameDecoder(32).decode(channel);
+            fail();
+        } catch (TcpProtocolException e) {
+            //超出协议长度上限
+        }
+    }
+
+    @Test
+    public void countTruncatedFrame() throws Exception {
+        long truncated = TcpFrameDecoder.getTruncatedCount();
+        byte[] frame = frame(ConstantsDto.TCP_PROTOCOL_VERIFY, JSON);
+        FragmentedChannel channel = new FragmentedChannel(frame, 20);
+        channel.release();
+        TcpFrameDecoder decoder = new TcpFrameDecoder(4096);
+        assertNull(decoder.decode(channel));
+
+        channel.eof = true;
+        try {
+            decoder.decode(channel);
+            fail();
+        } catch (EOFException e) {
+            assertEquals(truncated + 1, TcpFrameDecoder.getTruncatedCount());
+        }
+    }
+
+    @Test
+    public void decodeBinaryBody() throws Exception {
+        UUID pipe = UUID.randomUUID();
+        byte[] frame = binaryFrame(ConstantsDto.ACTION_CONNECT_VNC_CLIENT, pipe, "u-1");
+        FragmentedChannel channel = new FragmentedChannel(frame, 7);
+        TcpFrameDecoder decoder = new TcpFrameDecoder(4096);
+
+        TcpProtocolBody body = null;
+        while (body == null) {
+            channel.release();
+            body = decoder.decode(channel);
+        }
+        assertEquals(ConstantsDto.TCP_PROTOCOL_VERSION_BINARY.intValue(), body.getVersion());
+        assertSame(ConstantsDto.CONNECT_VNC_CLIENT, body.getAction());
+        assertEquals(pipe.getMostSignificantBits(), body.getPipeMost());
+        assertEquals(pipe.getLeastSignificantBits(), body.getPipeLeast());
+        assertEquals(pipe.toString(), body.getPipe());
+        assertEquals("u-1", body.getUserguid());
+
+        //响应使用与请求相同的二进制版本
+        ByteBuffer response = ByteBuffer.allocate(64);
+        TcpProtocolBody.response(ConstantsDto.CONNECT_VNC_SUCCESS, body, response);
+        response.flip();
+        assertEquals(ConstantsDto.TCP_PROTOCOL_VERIFY.intValue(), response.getInt());
+        assertEquals(ConstantsDto.TCP_PROTOCOL_VERSION_BINARY.intValue(), response.getInt());
+        assertEquals(response.limit(), response.getInt());
+        TcpProtocolBody decoded = TcpProtocolBody.decode(response);
+        assertSame(ConstantsDto.CONNECT_VNC_SUCCESS, decoded.getAction());
+        assertEquals(pipe.toString(), decoded.getPipe());
+    }
+
+    @Test
+    public void negotiateCapabilities() throws Exception {
+        //二进制协议体在userguid之后带能力标志
+        byte[] frame = binaryFrame(ConstantsDto.ACTION_CONNECT_VNC_CLIENT, UUID.randomUUID(), "u-1");
+        ByteBuffer buffer = ByteBuffer.allocate(frame.length + 1);
+        buffer.put(frame).put((byte) ConstantsDto.CAPABILITY_DEFLATE);
+        buffer.putInt(8, buffer.capacity());
+        FragmentedChannel channel = new FragmentedChannel(buffer.array(), 64);
+        channel.release();
+        TcpProtocolBody body = new TcpFrameDecoder(4096).decode(channel);
+        assertEquals("u-1", body.getUserguid());
+        assertEquals(ConstantsDto.CAPABILITY_DEFLATE, body.getCapabilities());
+
+        ByteBuffer response = ByteBuffer.allocate(64);
+        TcpProtocolBody.response(ConstantsDto.CONNECT_VNC_SUCCESS, body, response);
+        response.flip();
+        response.position(ConstantsDto.TCP_PROTOCOL_HEAD_SIZE);
+        assertEquals(ConstantsDto.CAPABILITY_DEFLATE, TcpProtocolBody.decode(response).getCapabilities());
+
+        //json响应只在有能力标志时携带该字段
+        body = new TcpProtocolBody(ConstantsDto.CONNECT_VNC_CLIENT, "p-1");
+        response = ByteBuffer.allocate(256);
+        TcpProtocolBody.response(ConstantsDto.CONNECT_VNC_SUCCESS, body, response);
+        assertEquals(-1, new String(response.array(), 0, response.position(), StandardCharsets.UTF_8).indexOf("capabilities"));
+        body.setCapabilities(ConstantsDto.CAPABILITY_DEFLATE);
+        response.clear();
+        TcpProtocolBody.response(ConstantsDto.CONNECT_VNC_SUCCESS, body, response);
+        assertEquals(true, new String(response.array(), 0, response.position(), StandardCharsets.UTF_8).contains("\"capabilities\":1"));
+    }
+
+    @Test
+    public void decodeStandbyToken() throws Exception {
+        //能力标志之后带备用连接的令牌
+        byte[] token = "t-1".getBytes(StandardCharsets.UTF_8);
+        byte[] frame = binaryFrame(ConstantsDto.ACTION_CONNECT_VNC_STANDBY, new UUID(0, 0), "u-1");
+        ByteBuffer buffer = ByteBuffer.allocate(frame.length + 3 + token.length);
+        buffer.put(frame).put((byte) 0).putShort((short) token.length).put(token);
+        buffer.putInt(8, buffer.capacity());
+        FragmentedChannel channel = new FragmentedChannel(buffer.array(), 64);
+        channel.release();
+        TcpProtocolBody body = new TcpFrameDecoder(4096).decode(channel);
+        assertEquals(ConstantsDto.CONNECT_VNC_STANDBY, body.getAction());
+        assertEquals("u-1", body.getUserguid());
+        assertEquals("t-1", body.getToken());
+
+        //令牌长度与协议长度不符
+        buffer.putShort(frame.length + 1, (short) (token.length + 1));
+        channel = new FragmentedChannel(buffer.array(), 64);
+        channel.release();
+        try {
+            new TcpFrameDecoder(4096).decode(channel);
+            fail();
+        } catch (TcpProtocolException e) {
+            //令牌长度错误
+        }
+    }
+
+    @Test
+    public void rejectUnknownActionCode() throws Exception {
+        FragmentedChannel channel = new FragmentedChannel(binaryFrame(99, UUID.randomUUID(), ""), 64);
+        channel.release();
+        try {
+            new TcpFrameDecoder(4096).decode(channel);
+            fail();
+        } catch (TcpProtocolException e) {
+            //未知的动作码
+        }
+    }
+
+    public static byte[] binaryFrame(int action, UUID pipe, String userguid) {
+        byte[] guid = userguid.getBytes(StandardCharsets.UTF_8);
+        ByteBuffer buffer = ByteBuffer.allocate(ConstantsDto.TCP_PROTOCOL_HEAD_SIZE + ConstantsDto.TCP_PROTOCOL_BINARY_BODY_SIZE + guid.length);
+        buffer.putInt(ConstantsDto.TCP_PROTOCOL_VERIFY);
+        buffer.putInt(ConstantsDto.TCP_PROTOCOL_VERSION_BINARY);
+        buffer.putInt(buffer.capacity());
+        buffer.put((byte) action);
+        buffer.putLong(pipe.getMostSignificantBits());
+        buffer.putLong(pipe.getLeastSignificantBits());
+        buffer.putShort((short) guid.length);
+        buffer.put(guid);
+        return buffer.array();
+    }
+
+    public static byte[] frame(int verify, String json) {
+        byte[] body = json.getBytes(StandardCharsets.UTF_8);
+        ByteBuffer buffer = ByteBuffer.allocate(ConstantsDto.TCP_PROTOCOL_HEAD_SIZE + body.length);
+        buffer.putInt(verify);
+        buffer.putInt(ConstantsDto.TCP_PROTOCOL_VERSION);
+        buffer.putInt(buffer.capacity());
+        buffer.put(body);
+        return buffer.array();
+    }
+
+    /**
+     * 每次只放出fragment个字节的模拟通道
+     */
+    static class FragmentedChannel implements ReadableByteChannel {
+
+        private final ByteBuffer data;
+
+        private final int fragment;
+
+        //本次可读的字节数
+        private int available;
+
+        boolean eof;
+
+        FragmentedChannel(byte[] data, int fragment) {
+            this.data = ByteBuffer.wrap(data);
+            this.fragment = fragment;
+        }
+
+        void release() {
+            available = Math.min(fragment, data.remaining());
+        }
+
+        int remaining() {
+            return data.remaining();
+        }
+
+        @Override
+        public int read(ByteBuffer dst) {
+            if (eof) {
+                return -1;
+            }
+            int n = Math.min(available, dst.remaining());
+            for (int i = 0; i < n; i++) {
+                dst.put(data.get());
+            }
+            available -= n;
+            return n;
+        }
+
+        @Override
+        public boolean isOpen() {
+            return true;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+}
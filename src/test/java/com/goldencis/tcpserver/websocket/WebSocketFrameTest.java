@@ -0,0 +1,183 @@
+package com.goldencis.tcpserver.websocket;
+
+import com.goldencis.tcpserver.constants.ConstantsDto;
+import com.goldencis.tcpserver.entity.TcpProtocolBody;
+import com.goldencis.tcpserver.utils.TcpFrameDecoder;
+import com.goldencis.tcpserver.utils.TcpFrameDecoderTest;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * 验证websocket升级、帧解码和帧编码
+ */
+public class WebSocketFrameTest {
+
+    @Test
+    public void acceptKey() {
+        //RFC 6455 1.3中的示例
+        assertEquals("s3pPLMBiTxaQ9kYGzzhZRbK+xOo=", WebSocketHandshake.accept("dGhlIHNhbXBsZSBub25jZQ=="));
+    }
+
+    @Test
+    public void unwrapAcrossReads() throws Exception {
+        byte[] first = new byte[300];
+        byte[] second = new byte[70000];
+        new Random(1).nextBytes(first);
+        new Random(2).nextBytes(second);
+        ByteArrayOutputStream raw = new ByteArrayOutputStream();
+        raw.write(frame(0x2, first, 7));
+        //数据帧之间的ping帧不进入负载，其负载留待回应pong
+        raw.write(frame(0x9, new byte[]{1, 2, 3}, 8));
+        raw.write(frame(0x2, second, 9));
+        raw.write(frame(0x8, new byte[]{0x03, (byte) 0xE8, 'b', 'y', 'e'}, 10));
+        byte[] bytes = raw.toByteArray();
+
+        //按不同的长度切分原始数据，就地解帧后的负载应与发送的一致
+        for (int step : new int[]{1, 5, 13, 1000, bytes.length}) {
+            WebSocketFrameDecoder decoder = new WebSocketFrameDecoder();
+            ByteArrayOutputStream payload = new ByteArrayOutputStream();
+            ByteBuffer buffer = ByteBuffer.allocateDirect(step);
+            for (int i = 0; i < bytes.length && !decoder.isClosed(); i += step) {
+                buffer.clear();
+                buffer.put(bytes, i, Math.min(step, bytes.length - i));
+                int end = decoder.unwrap(buffer, 0);
+                for (int j = 0; j < end; j++) {
+                    payload.write(buffer.get(j));
+                }
+            }
+            assertTrue(decoder.isClosed());
+            ByteBuffer ping = decoder.takePing();
+            assertEquals(ByteBuffer.wrap(new byte[]{1, 2, 3}), ping);
+            assertNull(decoder.takePing());
+            //关闭帧只带回状态码
+            assertEquals(ByteBuffer.wrap(new byte[]{0x03, (byte) 0xE8}), decoder.getCloseStatus());
+            byte[] expected = new byte[first.length + second.length];
+            System.arraycopy(first, 0, expected, 0, first.length);
+            System.arraycopy(second, 0, expected, first.length, second.length);
+            assertArrayEquals(expected, payload.toByteArray());
+        }
+    }
+
+    @Test
+    public void wrapPayload() {
+        for (int length : new int[]{1, 125, 126, 65535, 65536}) {
+            ByteBuffer buffer = ByteBuffer.allocate(WebSocketFrameEncoder.HEADER_RESERVE + length);
+            buffer.position(buffer.capacity());
+            buffer.flip();
+            WebSocketFrameEncoder.wrap(buffer, WebSocketFrameEncoder.HEADER_RESERVE);
+            assertEquals((byte) 0x82, buffer.get());
+            int len = buffer.get() & 0x7F;
+            if (len == 126) {
+                len = buffer.getShort() & 0xFFFF;
+            } else if (len == 127) {
+                len = (int) buffer.getLong();
+            }
+            assertEquals(length, len);
+            assertEquals(length, buffer.remaining());
+        }
+    }
+
+    @Test
+    public void upgradeAndDecodeHandshake() throws Exception {
+        try (ServerSocketChannel server = ServerSocketChannel.open()) {
+            server.bind(new InetSocketAddress("127.0.0.1", 0));
+            SocketChannel client = SocketChannel.open(server.getLocalAddress());
+            SocketChannel channel = server.accept();
+            channel.configureBlocking(false);
+            WebSocketHandshake handshake = new WebSocketHandshake(8192, new TcpFrameDecoder(4096));
+
+            //请求分两次到达
+            String request = "GET /websockify HTTP/1.1\r\nHost: localhost\r\nUpgrade: websocket\r\nConnection: Upgrade\r\n"
+                    + "Sec-WebSocket-Key: dGhlIHNhbXBsZSBub25jZQ==\r\nSec-WebSocket-Protocol: binary\r\n"
+                    + "Sec-WebSocket-Version: 13\r\n\r\n";
+            byte[] bytes = request.getBytes(StandardCharsets.US_ASCII);
+            client.write(ByteBuffer.wrap(bytes, 0, 20));
+            assertNull(decodeWhenReadable(handshake, channel));
+            client.write(ByteBuffer.wrap(bytes, 20, bytes.length - 20));
+            assertNull(decodeWhenReadable(handshake, channel));
+
+            String response = new String(readAvailable(client), StandardCharsets.US_ASCII);
+            assertTrue(response.startsWith("HTTP/1.1 101"));
+            assertTrue(response.contains("Sec-WebSocket-Accept: s3pPLMBiTxaQ9kYGzzhZRbK+xOo=\r\n"));
+            assertTrue(response.contains("Sec-WebSocket-Protocol: binary\r\n"));
+
+            //握手协议和后续数据在同一帧中，握手之后的负载留给转发
+            byte[] protocol = TcpFrameDecoderTest.frame(ConstantsDto.TCP_PROTOCOL_VERIFY, "{\"action\":\"connectNoVncServer_c2s\",\"pipe\":\"p1\",\"userguid\":\"u1\"}");
+            byte[] payload = Arrays.copyOf(protocol, protocol.length + 3);
+            payload[protocol.length] = 7;
+            payload[protocol.length + 1] = 8;
+            payload[protocol.length + 2] = 9;
+            client.write(ByteBuffer.wrap(frame(0x2, payload, 3)));
+            TcpProtocolBody body = decodeWhenReadable(handshake, channel);
+            assertNotNull(body);
+            assertEquals("p1", body.getPipe());
+            assertEquals("u1", body.getUserguid());
+
+            ByteBuffer rest = ByteBuffer.allocate(16);
+            while (rest.position() < 3) {
+                channel.read(rest);
+                rest.position(handshake.getFrames().unwrap(rest, 0));
+            }
+            assertEquals(3, rest.position());
+            assertEquals(9, rest.get(2));
+            assertFalse(handshake.getFrames().isClosed());
+            client.close();
+            channel.close();
+        }
+    }
+
+    private static TcpProtocolBody decodeWhenReadable(WebSocketHandshake handshake, SocketChannel channel) throws Exception {
+        TcpProtocolBody body = null;
+        for (int i = 0; i < 50 && body == null; i++) {
+            body = handshake.decode(channel);
+            if (body == null) {
+                Thread.sleep(5);
+            }
+        }
+        return body;
+    }
+
+    private static byte[] readAvailable(SocketChannel channel) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(1024);
+        channel.read(buffer);
+        return Arrays.copyOf(buffer.array(), buffer.position());
+    }
+
+    /**
+     * 构造客户端发送的带掩码的帧
+     */
+    public static byte[] frame(int opcode, byte[] payload, int seed) {
+        byte[] mask = new byte[4];
+        new Random(seed).nextBytes(mask);
+        ByteBuffer buffer = ByteBuffer.allocate(14 + payload.length);
+        buffer.put((byte) (0x80 | opcode));
+        if (payload.length <= 125) {
+            buffer.put((byte) (0x80 | payload.length));
+        } else if (payload.length <= 0xFFFF) {
+            buffer.put((byte) (0x80 | 126)).putShort((short) payload.length);
+        } else {
+            buffer.put((byte) (0x80 | 127)).putLong(payload.length);
+        }
+        buffer.put(mask);
+        for (int i = 0; i < payload.length; i++) {
+            buffer.put((byte) (payload[i] ^ mask[i & 3]));
+        }
+        return Arrays.copyOf(buffer.array(), buffer.position());
+    }
+}